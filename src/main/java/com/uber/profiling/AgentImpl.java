@@ -20,19 +20,33 @@ import com.uber.profiling.profilers.CpuAndMemoryProfiler;
 import com.uber.profiling.profilers.IOProfiler;
 import com.uber.profiling.profilers.MethodArgumentCollector;
 import com.uber.profiling.profilers.MethodArgumentProfiler;
+import com.uber.profiling.profilers.MethodCallTreeProfiler;
 import com.uber.profiling.profilers.MethodDurationCollector;
 import com.uber.profiling.profilers.MethodDurationProfiler;
+import com.uber.profiling.profilers.MethodInvocationProfiler;
 import com.uber.profiling.profilers.ProcessInfoProfiler;
 import com.uber.profiling.profilers.StacktraceCollectorProfiler;
 import com.uber.profiling.profilers.StacktraceReporterProfiler;
 import com.uber.profiling.profilers.ThreadInfoProfiler;
+import com.uber.profiling.transformers.ClassRetransformer;
+import com.uber.profiling.transformers.ClassWeaverSettings;
+import com.uber.profiling.transformers.InstrumentationController;
 import com.uber.profiling.transformers.JavaAgentFileTransformer;
 import com.uber.profiling.transformers.MethodProfilerStaticProxy;
+import com.uber.profiling.transformers.OverheadBudgetGovernor;
 import com.uber.profiling.util.AgentLogger;
-import com.uber.profiling.util.ClassAndMethod;
+import com.uber.profiling.util.CallTreeRecorder;
+import com.uber.profiling.util.ClassAndMethodFilter;
 import com.uber.profiling.util.ClassAndMethodLongMetricBuffer;
 import com.uber.profiling.util.ClassMethodArgument;
+import com.uber.profiling.util.ClassMethodArgumentFilter;
 import com.uber.profiling.util.ClassMethodArgumentMetricBuffer;
+import com.uber.profiling.util.ClassMethodArgumentSketchBuffer;
+import com.uber.profiling.util.ClassNamePrefixTrie;
+import com.uber.profiling.util.MethodCallerRecorder;
+import com.uber.profiling.util.MethodConcurrencyRecorder;
+import com.uber.profiling.util.MethodInvocationCounter;
+import com.uber.profiling.util.SlowInvocationRecorder;
 import com.uber.profiling.util.SparkUtils;
 import com.uber.profiling.util.StacktraceMetricBuffer;
 
@@ -40,13 +54,12 @@ import java.lang.instrument.Instrumentation;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 public class AgentImpl {
     public static final String VERSION = "1.0.0";
@@ -78,33 +91,50 @@ public class AgentImpl {
             appId = SparkUtils.probeAppId(arguments.getAppIdRegex());
         }
 
-        if (!arguments.getDurationProfiling().isEmpty()
-                || !arguments.getArgumentProfiling().isEmpty()) {
-            instrumentation.addTransformer(new JavaAgentFileTransformer(arguments.getDurationProfiling(),
-                    arguments.getArgumentProfiling()), true);
-
-            Set<String> loadedClasses = Arrays.stream(instrumentation.getAllLoadedClasses())
-                    .map(Class::getName).collect(Collectors.toSet());
+        InstrumentationController instrumentationController = null;
 
-            Set<String> tobeReloadClasses = arguments.getDurationProfiling().stream()
-                    .map(ClassAndMethod::getClassName).collect(Collectors.toSet());
-
-            tobeReloadClasses.addAll(arguments.getArgumentProfiling().stream()
-                    .map(ClassMethodArgument::getClassName).collect(Collectors.toSet()));
+        if (!arguments.getDurationProfiling().isEmpty()
+                || !arguments.getArgumentProfiling().isEmpty()
+                || !arguments.getInvocationCounting().isEmpty()
+                || arguments.isInstrumentationControl()) {
+            ClassWeaverSettings weaverSettings = new ClassWeaverSettings();
+            weaverSettings.setWeaver(arguments.getWeaver());
+            weaverSettings.setDurationProfilingFilter(new ClassAndMethodFilter(arguments.getDurationProfiling(), arguments.getDurationProfilingOptions()));
+            weaverSettings.setArgumentProfilingFilter(new ClassMethodArgumentFilter(arguments.getArgumentProfiling()));
+            weaverSettings.setInvocationCountingFilter(new ClassAndMethodFilter(arguments.getInvocationCounting()));
+            weaverSettings.setDurationTimeUnit(arguments.getDurationTimeUnit());
+            weaverSettings.setCallTree(arguments.isCallTree());
+            JavaAgentFileTransformer transformer = new JavaAgentFileTransformer(weaverSettings);
+            instrumentation.addTransformer(transformer, true);
+
+            // Retransform classes loaded before the agent started (e.g. when attaching to a running JVM), looking at
+            // classes from all class loaders instead of resolving names through the agent class loader
+            ClassAndMethodFilter durationProfilingFilter = weaverSettings.getDurationProfilingFilter();
+            ClassAndMethodFilter invocationCountingFilter = weaverSettings.getInvocationCountingFilter();
+            ClassNamePrefixTrie classNamePrefixes = new ClassNamePrefixTrie();
+            int ruleIndex = 0;
+            for (ClassMethodArgument classMethodArgument : arguments.getArgumentProfiling()) {
+                classNamePrefixes.put(classMethodArgument.getClassName(), ruleIndex++);
+            }
 
-            tobeReloadClasses.retainAll(loadedClasses);
+            ClassRetransformer classRetransformer = new ClassRetransformer(instrumentation);
+            List<Class<?>> loadedClasses = durationProfilingFilter.isEmpty() && invocationCountingFilter.isEmpty() && classNamePrefixes.isEmpty()
+                    ? Collections.emptyList()
+                    : classRetransformer.getLoadedClasses(clazz -> durationProfilingFilter.matchClass(clazz)
+                            || invocationCountingFilter.matchClass(clazz)
+                            || classNamePrefixes.matchPrefix(clazz.getName()));
+            if (!loadedClasses.isEmpty()) {
+                classRetransformer.retransform(loadedClasses);
+            }
 
-            tobeReloadClasses.forEach(clazz -> {
-                try {
-                    instrumentation.retransformClasses(Class.forName(clazz));
-                    logger.info("Reload class [" + clazz + "] success.");
-                } catch (Exception e) {
-                    logger.warn("Reload class [" + clazz + "] failed.", e);
-                }
-            });
+            instrumentationController = new InstrumentationController(transformer, classRetransformer,
+                    arguments.getDurationProfiling(), arguments.getDurationProfilingOptions(), arguments.getArgumentProfiling());
+            if (arguments.isInstrumentationControl()) {
+                instrumentationController.registerMBean();
+            }
         }
 
-        List<Profiler> profilers = createProfilers(reporter, arguments, processUuid, appId);
+        List<Profiler> profilers = createProfilers(reporter, arguments, processUuid, appId, instrumentationController);
         
         ProfilerGroup profilerGroup = startProfilers(profilers);
 
@@ -155,7 +185,7 @@ public class AgentImpl {
         return new ProfilerGroup(oneTimeProfilers, periodicProfilers);
     }
 
-    private List<Profiler> createProfilers(Reporter reporter, Arguments arguments, String processUuid, String appId) {
+    private List<Profiler> createProfilers(Reporter reporter, Arguments arguments, String processUuid, String appId, InstrumentationController instrumentationController) {
         String tag = arguments.getTag();
         String cluster = arguments.getCluster();
         long metricInterval = arguments.getMetricInterval();
@@ -190,8 +220,8 @@ public class AgentImpl {
             profilers.add(threadInfoProfiler);
         }
 
-        if (!arguments.getDurationProfiling().isEmpty()) {
-            ClassAndMethodLongMetricBuffer classAndMethodMetricBuffer = new ClassAndMethodLongMetricBuffer();
+        if (!arguments.getDurationProfiling().isEmpty() || arguments.isInstrumentationControl()) {
+            ClassAndMethodLongMetricBuffer classAndMethodMetricBuffer = new ClassAndMethodLongMetricBuffer(arguments.isPerThreadMetricBuffer());
 
             MethodDurationProfiler methodDurationProfiler = new MethodDurationProfiler(classAndMethodMetricBuffer, reporter);
             methodDurationProfiler.setTag(tag);
@@ -199,31 +229,98 @@ public class AgentImpl {
             methodDurationProfiler.setIntervalMillis(metricInterval);
             methodDurationProfiler.setProcessUuid(processUuid);
             methodDurationProfiler.setAppId(appId);
+            methodDurationProfiler.setDurationTimeUnit(arguments.getDurationTimeUnit());
+            methodDurationProfiler.setPercentiles(arguments.getDurationPercentiles());
+            methodDurationProfiler.setReportSerializedHistogram(arguments.isDurationHistogram());
+
+            if (arguments.getOverheadBudget() > 0 && instrumentationController != null) {
+                methodDurationProfiler.setOverheadBudgetGovernor(new OverheadBudgetGovernor(instrumentationController,
+                        classAndMethodMetricBuffer.getMethodIdRegistry(), arguments.getOverheadBudget(), arguments.getOverheadBudgetAction()));
+            }
+
+            // Only used by methods with slowThreshold option, so it is always created
+            SlowInvocationRecorder slowInvocationRecorder = new SlowInvocationRecorder(classAndMethodMetricBuffer.getMethodIdRegistry(), SlowInvocationRecorder.DEFAULT_MAX_EXEMPLARS);
+            methodDurationProfiler.setSlowInvocationRecorder(slowInvocationRecorder);
 
             MethodDurationCollector methodDurationCollector = new MethodDurationCollector(classAndMethodMetricBuffer);
             MethodProfilerStaticProxy.setCollector(methodDurationCollector);
+            MethodProfilerStaticProxy.setSlowInvocationRecorder(slowInvocationRecorder);
+
+            // Only used by methods with concurrency option, so it is always created
+            MethodConcurrencyRecorder concurrencyRecorder = new MethodConcurrencyRecorder(classAndMethodMetricBuffer.getMethodIdRegistry());
+            methodDurationProfiler.setConcurrencyRecorder(concurrencyRecorder);
+            MethodProfilerStaticProxy.setConcurrencyRecorder(concurrencyRecorder);
+
+            // Only used by methods with caller option
+            MethodCallerRecorder callerRecorder = new MethodCallerRecorder(classAndMethodMetricBuffer.getMethodIdRegistry(), MethodCallerRecorder.DEFAULT_MAX_CALLERS);
+            methodDurationProfiler.setCallerRecorder(callerRecorder);
+            MethodProfilerStaticProxy.setCallerRecorder(callerRecorder);
 
             profilers.add(methodDurationProfiler);
+
+            if (arguments.isCallTree()) {
+                CallTreeRecorder callTreeRecorder = new CallTreeRecorder(classAndMethodMetricBuffer.getMethodIdRegistry(), arguments.getCallTreeMaxNodes());
+
+                MethodCallTreeProfiler methodCallTreeProfiler = new MethodCallTreeProfiler(callTreeRecorder, reporter);
+                methodCallTreeProfiler.setTag(tag);
+                methodCallTreeProfiler.setCluster(cluster);
+                methodCallTreeProfiler.setIntervalMillis(metricInterval);
+                methodCallTreeProfiler.setProcessUuid(processUuid);
+                methodCallTreeProfiler.setAppId(appId);
+
+                MethodProfilerStaticProxy.setCallTreeRecorder(callTreeRecorder);
+
+                profilers.add(methodCallTreeProfiler);
+            }
         }
 
-        if (!arguments.getArgumentProfiling().isEmpty()) {
-            ClassMethodArgumentMetricBuffer classAndMethodArgumentBuffer = new ClassMethodArgumentMetricBuffer();
+        if (!arguments.getArgumentProfiling().isEmpty() || arguments.isInstrumentationControl()) {
+            MethodArgumentProfiler methodArgumentProfiler;
+            MethodArgumentCollector methodArgumentCollector;
+            if (arguments.getArgumentTopK() > 0) {
+                ClassMethodArgumentSketchBuffer classMethodArgumentSketchBuffer = new ClassMethodArgumentSketchBuffer(arguments.getArgumentTopK());
+                methodArgumentProfiler = new MethodArgumentProfiler(classMethodArgumentSketchBuffer, reporter);
+                methodArgumentCollector = new MethodArgumentCollector(classMethodArgumentSketchBuffer);
+            } else {
+                ClassMethodArgumentMetricBuffer classAndMethodArgumentBuffer = new ClassMethodArgumentMetricBuffer(arguments.isPerThreadMetricBuffer());
+                methodArgumentProfiler = new MethodArgumentProfiler(classAndMethodArgumentBuffer, reporter);
+                methodArgumentCollector = new MethodArgumentCollector(classAndMethodArgumentBuffer);
+            }
+
+            // Numeric arguments are recorded in histograms, the same as durations
+            ClassAndMethodLongMetricBuffer numericArgumentBuffer = new ClassAndMethodLongMetricBuffer(arguments.isPerThreadMetricBuffer());
+            methodArgumentProfiler.setNumericBuffer(numericArgumentBuffer);
+            methodArgumentProfiler.setPercentiles(arguments.getDurationPercentiles());
+            methodArgumentCollector.setNumericBuffer(numericArgumentBuffer);
 
-            MethodArgumentProfiler methodArgumentProfiler = new MethodArgumentProfiler(classAndMethodArgumentBuffer, reporter);
             methodArgumentProfiler.setTag(tag);
             methodArgumentProfiler.setCluster(cluster);
             methodArgumentProfiler.setIntervalMillis(metricInterval);
             methodArgumentProfiler.setProcessUuid(processUuid);
             methodArgumentProfiler.setAppId(appId);
 
-            MethodArgumentCollector methodArgumentCollector = new MethodArgumentCollector(classAndMethodArgumentBuffer);
             MethodProfilerStaticProxy.setArgumentCollector(methodArgumentCollector);
 
             profilers.add(methodArgumentProfiler);
         }
         
+        if (!arguments.getInvocationCounting().isEmpty()) {
+            MethodInvocationCounter methodInvocationCounter = new MethodInvocationCounter();
+
+            MethodInvocationProfiler methodInvocationProfiler = new MethodInvocationProfiler(methodInvocationCounter, reporter);
+            methodInvocationProfiler.setTag(tag);
+            methodInvocationProfiler.setCluster(cluster);
+            methodInvocationProfiler.setIntervalMillis(metricInterval);
+            methodInvocationProfiler.setProcessUuid(processUuid);
+            methodInvocationProfiler.setAppId(appId);
+
+            MethodProfilerStaticProxy.setInvocationCounter(methodInvocationCounter);
+
+            profilers.add(methodInvocationProfiler);
+        }
+
         if (arguments.getSampleInterval() > 0) {
-            StacktraceMetricBuffer stacktraceMetricBuffer = new StacktraceMetricBuffer();
+            StacktraceMetricBuffer stacktraceMetricBuffer = new StacktraceMetricBuffer(arguments.isPerThreadMetricBuffer());
 
             StacktraceCollectorProfiler stacktraceCollectorProfiler = new StacktraceCollectorProfiler(stacktraceMetricBuffer, AgentThreadFactory.NAME_PREFIX);
             stacktraceCollectorProfiler.setIntervalMillis(arguments.getSampleInterval());
@@ -17,11 +17,17 @@
 package com.uber.profiling;
 
 import com.uber.profiling.reporters.ConsoleOutputReporter;
+import com.uber.profiling.transformers.JavaAgentFileTransformer;
+import com.uber.profiling.transformers.OverheadBudgetGovernor;
 import com.uber.profiling.util.AgentLogger;
+import com.uber.profiling.util.CallTreeRecorder;
 import com.uber.profiling.util.ClassAndMethod;
+import com.uber.profiling.util.ClassAndMethodFilter;
 import com.uber.profiling.util.ClassMethodArgument;
+import com.uber.profiling.util.ClassNameAutomaton;
 import com.uber.profiling.util.DummyConfigProvider;
 import com.uber.profiling.util.JsonUtils;
+import com.uber.profiling.util.MethodProfilingOptions;
 import com.uber.profiling.util.ReflectionUtils;
 
 import java.lang.reflect.Constructor;
@@ -29,11 +35,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class Arguments {
     public final static String DEFAULT_APP_ID_REGEX = "application_[\\w_]+";
     public final static long DEFAULT_METRIC_INTERVAL = 60000;
     public final static long DEFAULT_SAMPLE_INTERVAL = 100;
+    public final static double[] DEFAULT_DURATION_PERCENTILES = new double[]{50, 99, 99.9};
 
     public final static String ARG_NOOP = "noop";
     public final static String ARG_REPORTER = "reporter";
@@ -48,6 +56,18 @@ public class Arguments {
     public final static String ARG_THREAD_PROFILING = "threadProfiling";
     public final static String ARG_DURATION_PROFILING = "durationProfiling";
     public final static String ARG_ARGUMENT_PROFILING = "argumentProfiling";
+    public final static String ARG_INVOCATION_COUNTING = "invocationCounting";
+    public final static String ARG_DURATION_TIME_UNIT = "durationTimeUnit";
+    public final static String ARG_DURATION_PERCENTILES = "durationPercentiles";
+    public final static String ARG_DURATION_HISTOGRAM = "durationHistogram";
+    public final static String ARG_PER_THREAD_METRIC_BUFFER = "perThreadMetricBuffer";
+    public final static String ARG_WEAVER = "weaver";
+    public final static String ARG_INSTRUMENTATION_CONTROL = "instrumentationControl";
+    public final static String ARG_OVERHEAD_BUDGET = "overheadBudget";
+    public final static String ARG_OVERHEAD_BUDGET_ACTION = "overheadBudgetAction";
+    public final static String ARG_ARGUMENT_TOP_K = "argumentTopK";
+    public final static String ARG_CALL_TREE = "callTree";
+    public final static String ARG_CALL_TREE_MAX_NODES = "callTreeMaxNodes";
     
     public final static String ARG_IO_PROFILING = "ioProfiling";
 
@@ -73,7 +93,20 @@ public class Arguments {
     private boolean ioProfiling = false;
 
     private List<ClassAndMethod> durationProfiling = new ArrayList<>();
+    private Map<ClassAndMethod, MethodProfilingOptions> durationProfilingOptions = new HashMap<>();
     private List<ClassMethodArgument> argumentProfiling = new ArrayList<>();
+    private List<ClassAndMethod> invocationCounting = new ArrayList<>();
+    private TimeUnit durationTimeUnit = TimeUnit.MILLISECONDS;
+    private double[] durationPercentiles = DEFAULT_DURATION_PERCENTILES;
+    private boolean durationHistogram = false;
+    private boolean perThreadMetricBuffer = false;
+    private String weaver = JavaAgentFileTransformer.WEAVER_JAVASSIST;
+    private boolean instrumentationControl = false;
+    private double overheadBudget = 0;
+    private String overheadBudgetAction = OverheadBudgetGovernor.ACTION_SAMPLE;
+    private int argumentTopK = 0;
+    private boolean callTree = false;
+    private int callTreeMaxNodes = CallTreeRecorder.DEFAULT_MAX_NODES;
 
     private Arguments(Map<String, List<String>> parsedArgs) {
         updateArguments(parsedArgs);
@@ -188,16 +221,18 @@ public class Arguments {
         List<String> argValues = ArgumentUtils.getArgumentMultiValues(parsedArgs, ARG_DURATION_PROFILING);
         if (!argValues.isEmpty()) {
             durationProfiling.clear();
+            durationProfilingOptions.clear();
             for (String str : argValues) {
-                int index = str.lastIndexOf(".");
-                if (index <= 0 || index + 1 >= str.length()) {
-                    throw new IllegalArgumentException("Invalid argument value: " + str);
-                }
-                String className = str.substring(0, index);
-                String methodName = str.substring(index + 1);
-                ClassAndMethod classAndMethod = new ClassAndMethod(className, methodName);
+                ClassAndMethod classAndMethod = parseDurationProfiling(str);
                 durationProfiling.add(classAndMethod);
-                logger.info("Got argument value for durationProfiling: " + classAndMethod);
+
+                MethodProfilingOptions options = parseDurationProfilingOptions(str);
+                if (options != null) {
+                    durationProfilingOptions.put(classAndMethod, options);
+                    logger.info("Got argument value for durationProfiling: " + classAndMethod + " with options: " + options);
+                } else {
+                    logger.info("Got argument value for durationProfiling: " + classAndMethod);
+                }
             }
         }
 
@@ -205,24 +240,109 @@ public class Arguments {
         if (!argValues.isEmpty()) {
             argumentProfiling.clear();
             for (String str : argValues) {
-                int index = str.lastIndexOf(".");
-                if (index <= 0 || index + 1 >= str.length()) {
-                    throw new IllegalArgumentException("Invalid argument value: " + str);
+                ClassMethodArgument classMethodArgument = parseArgumentProfiling(str);
+                argumentProfiling.add(classMethodArgument);
+                logger.info("Got argument value for argumentProfiling: " + classMethodArgument);
+            }
+        }
+
+        argValues = ArgumentUtils.getArgumentMultiValues(parsedArgs, ARG_INVOCATION_COUNTING);
+        if (!argValues.isEmpty()) {
+            invocationCounting.clear();
+            for (String str : argValues) {
+                if (parseDurationProfilingOptions(str) != null) {
+                    throw new IllegalArgumentException("Invalid argument value for " + ARG_INVOCATION_COUNTING + " (options are not supported): " + str);
                 }
-                String classMethodName = str.substring(0, index);
-                int argumentIndex = Integer.parseInt(str.substring(index + 1, str.length()));
+                ClassAndMethod classAndMethod = parseDurationProfiling(str);
+                invocationCounting.add(classAndMethod);
+                logger.info("Got argument value for invocationCounting: " + classAndMethod);
+            }
+        }
 
-                index = classMethodName.lastIndexOf(".");
-                if (index <= 0 || index + 1 >= classMethodName.length()) {
-                    throw new IllegalArgumentException("Invalid argument value: " + str);
+        argValue = ArgumentUtils.getArgumentSingleValue(parsedArgs, ARG_DURATION_TIME_UNIT);
+        if (ArgumentUtils.needToUpdateArg(argValue)) {
+            durationTimeUnit = parseDurationTimeUnit(argValue);
+            logger.info("Got argument value for durationTimeUnit: " + durationTimeUnit);
+        }
+
+        argValues = ArgumentUtils.getArgumentMultiValues(parsedArgs, ARG_DURATION_PERCENTILES);
+        if (!argValues.isEmpty()) {
+            double[] values = new double[argValues.size()];
+            for (int i = 0; i < argValues.size(); i++) {
+                values[i] = Double.parseDouble(argValues.get(i));
+                if (values[i] < 0 || values[i] > 100) {
+                    throw new IllegalArgumentException("Invalid argument value for " + ARG_DURATION_PERCENTILES + " (must be between 0 and 100): " + argValues.get(i));
                 }
-                String className = classMethodName.substring(0, index);
-                String methodName = str.substring(index + 1, classMethodName.length());
+            }
+            durationPercentiles = values;
+            logger.info("Got argument value for durationPercentiles: " + argValues);
+        }
 
-                ClassMethodArgument classMethodArgument = new ClassMethodArgument(className, methodName, argumentIndex);
-                argumentProfiling.add(classMethodArgument);
-                logger.info("Got argument value for argumentProfiling: " + classMethodArgument);
+        argValue = ArgumentUtils.getArgumentSingleValue(parsedArgs, ARG_DURATION_HISTOGRAM);
+        if (ArgumentUtils.needToUpdateArg(argValue)) {
+            durationHistogram = Boolean.parseBoolean(argValue);
+            logger.info("Got argument value for durationHistogram: " + durationHistogram);
+        }
+
+        argValue = ArgumentUtils.getArgumentSingleValue(parsedArgs, ARG_PER_THREAD_METRIC_BUFFER);
+        if (ArgumentUtils.needToUpdateArg(argValue)) {
+            perThreadMetricBuffer = Boolean.parseBoolean(argValue);
+            logger.info("Got argument value for perThreadMetricBuffer: " + perThreadMetricBuffer);
+        }
+
+        argValue = ArgumentUtils.getArgumentSingleValue(parsedArgs, ARG_WEAVER);
+        if (ArgumentUtils.needToUpdateArg(argValue)) {
+            weaver = parseWeaver(argValue);
+            logger.info("Got argument value for weaver: " + weaver);
+        }
+
+        argValue = ArgumentUtils.getArgumentSingleValue(parsedArgs, ARG_INSTRUMENTATION_CONTROL);
+        if (ArgumentUtils.needToUpdateArg(argValue)) {
+            instrumentationControl = Boolean.parseBoolean(argValue);
+            logger.info("Got argument value for instrumentationControl: " + instrumentationControl);
+        }
+
+        argValue = ArgumentUtils.getArgumentSingleValue(parsedArgs, ARG_OVERHEAD_BUDGET);
+        if (ArgumentUtils.needToUpdateArg(argValue)) {
+            overheadBudget = Double.parseDouble(argValue);
+            if (overheadBudget < 0 || overheadBudget > 100) {
+                throw new IllegalArgumentException("Invalid argument value for " + ARG_OVERHEAD_BUDGET + " (must be between 0 and 100): " + argValue);
+            }
+            logger.info("Got argument value for overheadBudget: " + overheadBudget);
+        }
+
+        argValue = ArgumentUtils.getArgumentSingleValue(parsedArgs, ARG_OVERHEAD_BUDGET_ACTION);
+        if (ArgumentUtils.needToUpdateArg(argValue)) {
+            overheadBudgetAction = argValue.toLowerCase();
+            if (!OverheadBudgetGovernor.ACTION_SAMPLE.equals(overheadBudgetAction)
+                    && !OverheadBudgetGovernor.ACTION_DISABLE.equals(overheadBudgetAction)) {
+                throw new IllegalArgumentException("Invalid argument value for " + ARG_OVERHEAD_BUDGET_ACTION + " (must be sample or disable): " + argValue);
+            }
+            logger.info("Got argument value for overheadBudgetAction: " + overheadBudgetAction);
+        }
+
+        argValue = ArgumentUtils.getArgumentSingleValue(parsedArgs, ARG_ARGUMENT_TOP_K);
+        if (ArgumentUtils.needToUpdateArg(argValue)) {
+            argumentTopK = Integer.parseInt(argValue);
+            if (argumentTopK < 0) {
+                throw new IllegalArgumentException("Invalid argument value for " + ARG_ARGUMENT_TOP_K + " (must not be negative): " + argValue);
             }
+            logger.info("Got argument value for argumentTopK: " + argumentTopK);
+        }
+
+        argValue = ArgumentUtils.getArgumentSingleValue(parsedArgs, ARG_CALL_TREE);
+        if (ArgumentUtils.needToUpdateArg(argValue)) {
+            callTree = Boolean.parseBoolean(argValue);
+            logger.info("Got argument value for callTree: " + callTree);
+        }
+
+        argValue = ArgumentUtils.getArgumentSingleValue(parsedArgs, ARG_CALL_TREE_MAX_NODES);
+        if (ArgumentUtils.needToUpdateArg(argValue)) {
+            callTreeMaxNodes = Integer.parseInt(argValue);
+            if (callTreeMaxNodes < 1) {
+                throw new IllegalArgumentException("Invalid argument value for " + ARG_CALL_TREE_MAX_NODES + " (must be positive): " + argValue);
+            }
+            logger.info("Got argument value for callTreeMaxNodes: " + callTreeMaxNodes);
         }
 
         argValue = ArgumentUtils.getArgumentSingleValue(parsedArgs, ARG_IO_PROFILING);
@@ -232,6 +352,124 @@ public class Arguments {
         }
     }
     
+    /**
+     * Parse durationProfiling value like com.foo.Bar.baz, or com.foo.Bar.baz@sampleRate:100 with options. Constructors
+     * and class initializer are named like in class files, e.g. com.foo.Bar.<init> and com.foo.Bar.<clinit>.
+     *
+     * Class name could also be a glob pattern (com.foo.*.dao.*Repository.find*), or a supertype followed by +
+     * (org.apache.spark.rdd.RDD+.compute). A value like @com.foo.Timed selects all methods annotated with
+     * com.foo.Timed, see ClassAndMethodFilter.
+     */
+    public static ClassAndMethod parseDurationProfiling(String value) {
+        String str = value;
+        int optionsIndex = getOptionsIndex(str);
+        if (optionsIndex >= 0) {
+            str = str.substring(0, optionsIndex);
+        }
+
+        if (str.startsWith(ClassAndMethodFilter.ANNOTATION_PREFIX)) {
+            String annotationName = str.substring(ClassAndMethodFilter.ANNOTATION_PREFIX.length());
+            if (annotationName.isEmpty() || ClassNameAutomaton.isGlob(annotationName) || annotationName.endsWith(ClassAndMethodFilter.SUBTYPE_SUFFIX)) {
+                throw new IllegalArgumentException("Invalid argument value (annotation must be a type name): " + value);
+            }
+            return new ClassAndMethod(str, "*");
+        }
+
+        int index = str.lastIndexOf(".");
+        if (index <= 0 || index + 1 >= str.length()) {
+            throw new IllegalArgumentException("Invalid argument value: " + value);
+        }
+        String className = str.substring(0, index);
+        String methodName = str.substring(index + 1);
+        if (methodName.startsWith("<") && !ClassAndMethod.isInitializer(methodName)) {
+            throw new IllegalArgumentException("Invalid argument value (only " + ClassAndMethod.CONSTRUCTOR_NAME + " and " + ClassAndMethod.CLASS_INITIALIZER_NAME + " are supported): " + value);
+        }
+        if (className.endsWith(ClassAndMethodFilter.EXACT_CLASS_SUFFIX)) {
+            String exactClassName = className.substring(0, className.length() - ClassAndMethodFilter.EXACT_CLASS_SUFFIX.length());
+            if (exactClassName.isEmpty() || ClassNameAutomaton.isGlob(exactClassName) || exactClassName.endsWith(ClassAndMethodFilter.SUBTYPE_SUFFIX)) {
+                throw new IllegalArgumentException("Invalid argument value (exact class must be a type name): " + value);
+            }
+        }
+        if (className.endsWith(ClassAndMethodFilter.SUBTYPE_SUFFIX)) {
+            String superTypeName = className.substring(0, className.length() - ClassAndMethodFilter.SUBTYPE_SUFFIX.length());
+            if (superTypeName.isEmpty() || ClassNameAutomaton.isGlob(superTypeName)) {
+                throw new IllegalArgumentException("Invalid argument value (supertype must be a type name): " + value);
+            }
+        }
+        return new ClassAndMethod(className, methodName);
+    }
+
+    /**
+     * Parse options in durationProfiling value (after the method name), return null if there is no option.
+     */
+    public static MethodProfilingOptions parseDurationProfilingOptions(String value) {
+        int optionsIndex = getOptionsIndex(value);
+        if (optionsIndex < 0) {
+            return null;
+        }
+        return MethodProfilingOptions.parse(value.substring(optionsIndex + 1));
+    }
+
+    // The leading @ of an annotation selector is not an options separator
+    private static int getOptionsIndex(String value) {
+        return value.indexOf(MethodProfilingOptions.OPTION_SEPARATOR, value.startsWith(ClassAndMethodFilter.ANNOTATION_PREFIX) ? 1 : 0);
+    }
+
+    /**
+     * Parse argumentProfiling value like com.foo.Bar.baz.1, or com.foo.Bar.baz.1@numeric for numeric argument.
+     */
+    public static ClassMethodArgument parseArgumentProfiling(String value) {
+        String str = value;
+        boolean numeric = false;
+        int optionsIndex = str.indexOf(MethodProfilingOptions.OPTION_SEPARATOR);
+        if (optionsIndex >= 0) {
+            String option = str.substring(optionsIndex + 1);
+            if (!ClassMethodArgument.OPTION_NUMERIC.equals(option)) {
+                throw new IllegalArgumentException("Invalid argument value for " + ARG_ARGUMENT_PROFILING + " (only " + ClassMethodArgument.OPTION_NUMERIC + " option is supported): " + value);
+            }
+            numeric = true;
+            str = str.substring(0, optionsIndex);
+        }
+
+        int index = str.lastIndexOf(".");
+        if (index <= 0 || index + 1 >= str.length()) {
+            throw new IllegalArgumentException("Invalid argument value: " + str);
+        }
+        String classMethodName = str.substring(0, index);
+        int argumentIndex = Integer.parseInt(str.substring(index + 1, str.length()));
+
+        index = classMethodName.lastIndexOf(".");
+        if (index <= 0 || index + 1 >= classMethodName.length()) {
+            throw new IllegalArgumentException("Invalid argument value: " + str);
+        }
+        String className = classMethodName.substring(0, index);
+        String methodName = str.substring(index + 1, classMethodName.length());
+
+        return new ClassMethodArgument(className, methodName, argumentIndex, numeric);
+    }
+
+    private static TimeUnit parseDurationTimeUnit(String value) {
+        switch (value.toLowerCase()) {
+            case "millis":
+            case "milliseconds":
+                return TimeUnit.MILLISECONDS;
+            case "nanos":
+            case "nanoseconds":
+                return TimeUnit.NANOSECONDS;
+            default:
+                throw new IllegalArgumentException("Invalid argument value for " + ARG_DURATION_TIME_UNIT + " (must be millis or nanos): " + value);
+        }
+    }
+
+    private static String parseWeaver(String value) {
+        String weaver = value.toLowerCase();
+        if (!JavaAgentFileTransformer.WEAVER_JAVASSIST.equals(weaver)
+                && !JavaAgentFileTransformer.WEAVER_ASM.equals(weaver)) {
+            throw new IllegalArgumentException("Invalid argument value for " + ARG_WEAVER + " (must be javassist or asm): " + value);
+        }
+        return weaver;
+    }
+
     public void runConfigProvider() {
         try {
             ConfigProvider configProvider = getConfigProvider();
@@ -341,10 +579,62 @@ public class Arguments {
         return durationProfiling;
     }
 
+    public Map<ClassAndMethod, MethodProfilingOptions> getDurationProfilingOptions() {
+        return durationProfilingOptions;
+    }
+
     public List<ClassMethodArgument> getArgumentProfiling() {
         return argumentProfiling;
     }
 
+    public List<ClassAndMethod> getInvocationCounting() {
+        return invocationCounting;
+    }
+
+    public TimeUnit getDurationTimeUnit() {
+        return durationTimeUnit;
+    }
+
+    public double[] getDurationPercentiles() {
+        return durationPercentiles;
+    }
+
+    public boolean isDurationHistogram() {
+        return durationHistogram;
+    }
+
+    public boolean isPerThreadMetricBuffer() {
+        return perThreadMetricBuffer;
+    }
+
+    public String getWeaver() {
+        return weaver;
+    }
+
+    public boolean isInstrumentationControl() {
+        return instrumentationControl;
+    }
+
+    public double getOverheadBudget() {
+        return overheadBudget;
+    }
+
+    public String getOverheadBudgetAction() {
+        return overheadBudgetAction;
+    }
+
+    public int getArgumentTopK() {
+        return argumentTopK;
+    }
+
+    public boolean isCallTree() {
+        return callTree;
+    }
+
+    public int getCallTreeMaxNodes() {
+        return callTreeMaxNodes;
+    }
+
     public boolean isThreadProfiling() {
         return threadProfiling;
     }
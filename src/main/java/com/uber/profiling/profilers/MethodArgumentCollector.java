@@ -16,16 +16,61 @@
 
 package com.uber.profiling.profilers;
 
+import com.uber.profiling.util.ClassAndMethodLongMetricBuffer;
+import com.uber.profiling.util.ClassMethodArgument;
 import com.uber.profiling.util.ClassMethodArgumentMetricBuffer;
+import com.uber.profiling.util.ClassMethodArgumentSketchBuffer;
 
 public class MethodArgumentCollector {
     private ClassMethodArgumentMetricBuffer buffer;
+    private ClassMethodArgumentSketchBuffer sketchBuffer;
+    private ClassAndMethodLongMetricBuffer numericBuffer;
 
     public MethodArgumentCollector(ClassMethodArgumentMetricBuffer buffer) {
         this.buffer = buffer;
     }
 
+    public MethodArgumentCollector(ClassMethodArgumentSketchBuffer sketchBuffer) {
+        this.sketchBuffer = sketchBuffer;
+    }
+
+    public void setNumericBuffer(ClassAndMethodLongMetricBuffer numericBuffer) {
+        this.numericBuffer = numericBuffer;
+    }
+
+    /**
+     * Record value of an argument configured with numeric option into the histogram of the argument.
+     */
+    public void collectNumericArgument(int methodId, int argIndex, long value) {
+        if (numericBuffer == null) {
+            return;
+        }
+
+        numericBuffer.appendValue(methodId, ClassMethodArgument.getMetricName(argIndex), value);
+    }
+
+    public void collectArgument(String className, String methodName, int argIndex, String value) {
+        if (sketchBuffer == null) {
+            collectMetric(className, methodName, "arg." + argIndex + "." + value);
+            return;
+        }
+
+        if (value == null) {
+            value = "";
+        }
+
+        if (value.length() > Constants.MAX_STRING_LENGTH) {
+            value = value.substring(0, Constants.MAX_STRING_LENGTH);
+        }
+
+        sketchBuffer.appendValue(className, methodName, argIndex, value);
+    }
+
     public void collectMetric(String className, String methodName, String argument) {
+        if (buffer == null) {
+            return;
+        }
+
         if (argument == null) {
             argument = "";
         }
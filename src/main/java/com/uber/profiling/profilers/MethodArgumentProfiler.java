@@ -19,8 +19,12 @@ package com.uber.profiling.profilers;
 import com.uber.profiling.Profiler;
 import com.uber.profiling.Reporter;
 import com.uber.profiling.reporters.ConsoleOutputReporter;
+import com.uber.profiling.util.ClassAndMethodLongMetricBuffer;
 import com.uber.profiling.util.ClassAndMethodMetricKey;
 import com.uber.profiling.util.ClassMethodArgumentMetricBuffer;
+import com.uber.profiling.util.ClassMethodArgumentSketchBuffer;
+import com.uber.profiling.util.Histogram;
+import com.uber.profiling.util.SpaceSavingSketch;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -31,6 +35,12 @@ public class MethodArgumentProfiler extends ProfilerBase implements Profiler {
 
     private ClassMethodArgumentMetricBuffer buffer;
 
+    private ClassMethodArgumentSketchBuffer sketchBuffer;
+
+    private ClassAndMethodLongMetricBuffer numericBuffer;
+
+    private double[] percentiles = new double[0];
+
     private Reporter reporter = new ConsoleOutputReporter();
 
     private long intervalMillis = Constants.DEFAULT_METRIC_INTERVAL;
@@ -40,6 +50,11 @@ public class MethodArgumentProfiler extends ProfilerBase implements Profiler {
         this.reporter = reporter;
     }
 
+    public MethodArgumentProfiler(ClassMethodArgumentSketchBuffer sketchBuffer, Reporter reporter) {
+        this.sketchBuffer = sketchBuffer;
+        this.reporter = reporter;
+    }
+
     @Override
     public long getIntervalMillis() {
         return intervalMillis;
@@ -53,13 +68,34 @@ public class MethodArgumentProfiler extends ProfilerBase implements Profiler {
         this.reporter = reporter;
     }
 
+    public void setNumericBuffer(ClassAndMethodLongMetricBuffer numericBuffer) {
+        this.numericBuffer = numericBuffer;
+    }
+
+    public double[] getPercentiles() {
+        return percentiles;
+    }
+
+    public void setPercentiles(double[] percentiles) {
+        this.percentiles = percentiles == null ? new double[0] : percentiles;
+    }
+
     @Override
     public void profile() {
-        if (buffer == null) {
+        if (reporter == null) {
             return;
         }
 
-        if (reporter == null) {
+        if (numericBuffer != null) {
+            profileNumericArguments();
+        }
+
+        if (sketchBuffer != null) {
+            profileSketches();
+            return;
+        }
+
+        if (buffer == null) {
             return;
         }
 
@@ -99,4 +135,118 @@ public class MethodArgumentProfiler extends ProfilerBase implements Profiler {
             }
         }
     }
+
+    // Report statistics of numeric arguments with metric names like arg.1.count, arg.1.max and arg.1.p99
+    private void profileNumericArguments() {
+        Map<ClassAndMethodMetricKey, Histogram> metrics = numericBuffer.reset();
+
+        long epochMillis = System.currentTimeMillis();
+
+        for (Map.Entry<ClassAndMethodMetricKey, Histogram> entry : metrics.entrySet()) {
+            Map<String, Object> commonMap = new HashMap<>();
+
+            commonMap.put("epochMillis", epochMillis);
+            commonMap.put("processName", getProcessName());
+            commonMap.put("host", getHostName());
+            commonMap.put("processUuid", getProcessUuid());
+            commonMap.put("appId", getAppId());
+
+            commonMap.put("className", entry.getKey().getClassName());
+            commonMap.put("methodName", entry.getKey().getMethodName());
+
+            if (getTag() != null) {
+                commonMap.put("tag", getTag());
+            }
+
+            if (getCluster() != null) {
+                commonMap.put("cluster", getCluster());
+            }
+
+            if (getRole() != null) {
+                commonMap.put("role", getRole());
+            }
+
+            {
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", entry.getKey().getMetricName() + ".count");
+                metricMap.put("metricValue", (double) entry.getValue().getCount());
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+            {
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", entry.getKey().getMetricName() + ".sum");
+                metricMap.put("metricValue", (double) entry.getValue().getSum());
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+            {
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", entry.getKey().getMetricName() + ".min");
+                metricMap.put("metricValue", (double) entry.getValue().getMin());
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+            {
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", entry.getKey().getMetricName() + ".max");
+                metricMap.put("metricValue", (double) entry.getValue().getMax());
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+            for (double percentile : percentiles) {
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", entry.getKey().getMetricName() + "." + MethodDurationProfiler.getPercentileName(percentile));
+                metricMap.put("metricValue", (double) entry.getValue().getValueAtPercentile(percentile));
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+        }
+    }
+
+    // Report the top values of each argument with metric names like arg.1.value (same as counting every value), and
+    // one record per argument with the approximate distinct value count
+    private void profileSketches() {
+        Map<ClassAndMethodMetricKey, ClassMethodArgumentSketchBuffer.ArgumentSketch> metrics = sketchBuffer.reset();
+
+        long epochMillis = System.currentTimeMillis();
+
+        for (Map.Entry<ClassAndMethodMetricKey, ClassMethodArgumentSketchBuffer.ArgumentSketch> entry : metrics.entrySet()) {
+            Map<String, Object> commonMap = new HashMap<>();
+
+            commonMap.put("epochMillis", epochMillis);
+            commonMap.put("processName", getProcessName());
+            commonMap.put("host", getHostName());
+            commonMap.put("processUuid", getProcessUuid());
+            commonMap.put("appId", getAppId());
+
+            commonMap.put("className", entry.getKey().getClassName());
+            commonMap.put("methodName", entry.getKey().getMethodName());
+
+            if (getTag() != null) {
+                commonMap.put("tag", getTag());
+            }
+
+            if (getCluster() != null) {
+                commonMap.put("cluster", getCluster());
+            }
+
+            if (getRole() != null) {
+                commonMap.put("role", getRole());
+            }
+
+            for (SpaceSavingSketch.Item item : entry.getValue().getTopValues()) {
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", entry.getKey().getMetricName() + "." + item.getValue());
+                metricMap.put("metricValue", (double) item.getCount());
+                // The count may be overestimated by at most countError
+                metricMap.put("countError", item.getError());
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+            {
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", entry.getKey().getMetricName());
+                metricMap.put("metricValue", (double) entry.getValue().getDistinctCount());
+                metricMap.put("distinctCount", entry.getValue().getDistinctCount());
+                metricMap.put("count", entry.getValue().getCount());
+                metricMap.put("topK", sketchBuffer.getTopK());
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+        }
+    }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.profilers;
+
+import com.uber.profiling.Profiler;
+import com.uber.profiling.Reporter;
+import com.uber.profiling.reporters.ConsoleOutputReporter;
+import com.uber.profiling.util.CallTreeRecorder;
+import com.uber.profiling.util.ClassAndMethod;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MethodCallTreeProfiler reports one record per call path of instrumented methods each interval, with invocation
+ * count, inclusive time and exclusive (self) time in nanoseconds. The callPath field lists methods from the outermost
+ * instrumented method, so the records could be assembled into a tree.
+ */
+public class MethodCallTreeProfiler extends ProfilerBase implements Profiler {
+    public static final String PROFILER_NAME = "MethodCallTree";
+
+    private CallTreeRecorder recorder;
+
+    private Reporter reporter = new ConsoleOutputReporter();
+
+    private long intervalMillis = Constants.DEFAULT_METRIC_INTERVAL;
+
+    public MethodCallTreeProfiler(CallTreeRecorder recorder, Reporter reporter) {
+        this.recorder = recorder;
+        this.reporter = reporter;
+    }
+
+    @Override
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public void setIntervalMillis(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void setReporter(Reporter reporter) {
+        this.reporter = reporter;
+    }
+
+    @Override
+    public void profile() {
+        if (recorder == null) {
+            return;
+        }
+
+        if (reporter == null) {
+            return;
+        }
+
+        List<CallTreeRecorder.CallTreeNodeMetrics> nodes = recorder.reset();
+        long droppedCount = recorder.resetDroppedCount();
+
+        long epochMillis = System.currentTimeMillis();
+
+        for (CallTreeRecorder.CallTreeNodeMetrics node : nodes) {
+            Map<String, Object> metricMap = createCommonMap(epochMillis);
+
+            metricMap.put("className", node.getClassAndMethod().getClassName());
+            metricMap.put("methodName", node.getClassAndMethod().getMethodName());
+
+            List<String> callPath = new ArrayList<>(node.getPath().size());
+            for (ClassAndMethod classAndMethod : node.getPath()) {
+                callPath.add(classAndMethod.getClassName() + "." + classAndMethod.getMethodName());
+            }
+            metricMap.put("callPath", callPath);
+            metricMap.put("depth", callPath.size());
+
+            metricMap.put("count", node.getCount());
+            metricMap.put("inclusiveNanos", node.getInclusiveNanos());
+            metricMap.put("exclusiveNanos", node.getExclusiveNanos());
+            reporter.report(PROFILER_NAME, metricMap);
+        }
+
+        if (droppedCount > 0) {
+            // Invocations on call paths not recorded because the tree reached its max nodes
+            Map<String, Object> metricMap = createCommonMap(epochMillis);
+            metricMap.put("droppedCount", droppedCount);
+            metricMap.put("nodeCount", recorder.getNodeCount());
+            reporter.report(PROFILER_NAME, metricMap);
+        }
+    }
+
+    private Map<String, Object> createCommonMap(long epochMillis) {
+        Map<String, Object> map = new HashMap<>();
+
+        map.put("epochMillis", epochMillis);
+        map.put("processName", getProcessName());
+        map.put("host", getHostName());
+        map.put("processUuid", getProcessUuid());
+        map.put("appId", getAppId());
+
+        if (getTag() != null) {
+            map.put("tag", getTag());
+        }
+
+        if (getCluster() != null) {
+            map.put("cluster", getCluster());
+        }
+
+        if (getRole() != null) {
+            map.put("role", getRole());
+        }
+
+        return map;
+    }
+}
@@ -28,4 +28,8 @@ public class MethodDurationCollector {
     public void collectLongMetric(String className, String methodName, String metricName, long metricValue) {
         buffer.appendValue(className, methodName, metricName, metricValue);
     }
+
+    public void collectLongMetric(int methodId, String metricName, long metricValue) {
+        buffer.appendValue(methodId, metricName, metricValue);
+    }
 }
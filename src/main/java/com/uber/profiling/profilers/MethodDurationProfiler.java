@@ -19,15 +19,42 @@ package com.uber.profiling.profilers;
 import com.uber.profiling.Profiler;
 import com.uber.profiling.Reporter;
 import com.uber.profiling.reporters.ConsoleOutputReporter;
+import com.uber.profiling.transformers.OverheadBudgetGovernor;
 import com.uber.profiling.util.ClassAndMethodLongMetricBuffer;
 import com.uber.profiling.util.ClassAndMethodMetricKey;
 import com.uber.profiling.util.Histogram;
+import com.uber.profiling.util.MethodCallerRecorder;
+import com.uber.profiling.util.MethodConcurrencyRecorder;
+import com.uber.profiling.util.MethodProfilingOptions;
+import com.uber.profiling.util.SlowInvocationRecorder;
 
+import java.math.BigDecimal;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class MethodDurationProfiler extends ProfilerBase implements Profiler {
     public static final String PROFILER_NAME = "MethodDuration";
+    public static final String OVERHEAD_BUDGET_PROFILER_NAME = "MethodDurationOverheadBudget";
+
+    public static final String METRIC_DURATION = "duration";
+    public static final String METRIC_DURATION_SUCCESS = "duration.success";
+    public static final String METRIC_DURATION_ERROR = "duration.error";
+    // CPU time (nanoseconds) and heap bytes allocated by the thread during the invocation, see resourceUsage option
+    public static final String METRIC_CPU_TIME = "cpuTime";
+    public static final String METRIC_ALLOCATED_BYTES = "allocatedBytes";
+    // Size or numeric value of the value returned by the method, see returnValue option
+    public static final String METRIC_RETURN_VALUE = "returnValue";
+    // Max, time weighted average and current number of threads inside the method, see concurrency option
+    public static final String METRIC_CONCURRENCY_MAX = "concurrency.max";
+    public static final String METRIC_CONCURRENCY_AVERAGE = "concurrency.avg";
+    public static final String METRIC_CONCURRENCY_IN_FLIGHT = "concurrency.inFlight";
+    // Duration by immediate caller, see caller option
+    public static final String METRIC_DURATION_CALLER = "duration.caller";
+    // Exemplar of an invocation slower than slowThreshold option
+    public static final String METRIC_DURATION_SLOW = "duration.slow";
+    // Followed by exception class name, the metric only counts exceptions thrown out of the method
+    public static final String METRIC_EXCEPTION_PREFIX = "exception.";
 
     private ClassAndMethodLongMetricBuffer buffer;
 
@@ -35,6 +62,22 @@ public class MethodDurationProfiler extends ProfilerBase implements Profiler {
 
     private long intervalMillis = Constants.DEFAULT_METRIC_INTERVAL;
 
+    private TimeUnit durationTimeUnit = TimeUnit.MILLISECONDS;
+
+    private double[] percentiles = new double[0];
+
+    private boolean reportSerializedHistogram = false;
+
+    private OverheadBudgetGovernor overheadBudgetGovernor;
+
+    private SlowInvocationRecorder slowInvocationRecorder;
+
+    private MethodConcurrencyRecorder concurrencyRecorder;
+
+    private MethodCallerRecorder callerRecorder;
+
+    private long lastProfileNanos = System.nanoTime();
+
     public MethodDurationProfiler(ClassAndMethodLongMetricBuffer buffer, Reporter reporter) {
         this.buffer = buffer;
         this.reporter = reporter;
@@ -53,6 +96,42 @@ public class MethodDurationProfiler extends ProfilerBase implements Profiler {
         this.reporter = reporter;
     }
 
+    public TimeUnit getDurationTimeUnit() {
+        return durationTimeUnit;
+    }
+
+    public void setDurationTimeUnit(TimeUnit durationTimeUnit) {
+        this.durationTimeUnit = durationTimeUnit;
+    }
+
+    public double[] getPercentiles() {
+        return percentiles;
+    }
+
+    public void setPercentiles(double[] percentiles) {
+        this.percentiles = percentiles == null ? new double[0] : percentiles;
+    }
+
+    public void setReportSerializedHistogram(boolean reportSerializedHistogram) {
+        this.reportSerializedHistogram = reportSerializedHistogram;
+    }
+
+    public void setOverheadBudgetGovernor(OverheadBudgetGovernor overheadBudgetGovernor) {
+        this.overheadBudgetGovernor = overheadBudgetGovernor;
+    }
+
+    public void setSlowInvocationRecorder(SlowInvocationRecorder slowInvocationRecorder) {
+        this.slowInvocationRecorder = slowInvocationRecorder;
+    }
+
+    public void setConcurrencyRecorder(MethodConcurrencyRecorder concurrencyRecorder) {
+        this.concurrencyRecorder = concurrencyRecorder;
+    }
+
+    public void setCallerRecorder(MethodCallerRecorder callerRecorder) {
+        this.callerRecorder = callerRecorder;
+    }
+
     @Override
     public void profile() {
         if (buffer == null) {
@@ -63,32 +142,37 @@ public class MethodDurationProfiler extends ProfilerBase implements Profiler {
             return;
         }
 
-        Map<ClassAndMethodMetricKey, Histogram> metrics = buffer.reset();
+        Map<ClassAndMethodMetricKey, Histogram> metrics = addDurationTotals(buffer.reset());
+
+        long nowNanos = System.nanoTime();
+        long elapsedNanos = nowNanos - lastProfileNanos;
+        lastProfileNanos = nowNanos;
 
         long epochMillis = System.currentTimeMillis();
 
         for (Map.Entry<ClassAndMethodMetricKey, Histogram> entry : metrics.entrySet()) {
-            Map<String, Object> commonMap = new HashMap<>();
-
-            commonMap.put("epochMillis", epochMillis);
-            commonMap.put("processName", getProcessName());
-            commonMap.put("host", getHostName());
-            commonMap.put("processUuid", getProcessUuid());
-            commonMap.put("appId", getAppId());
+            Map<String, Object> commonMap = createCommonMap(epochMillis);
 
             commonMap.put("className", entry.getKey().getClassName());
             commonMap.put("methodName", entry.getKey().getMethodName());
 
-            if (getTag() != null) {
-                commonMap.put("tag", getTag());
+            String unit = getMetricUnit(entry.getKey().getMetricName());
+            if (unit != null) {
+                commonMap.put("unit", unit);
             }
 
-            if (getCluster() != null) {
-                commonMap.put("cluster", getCluster());
+            MethodProfilingOptions options = buffer.getMethodIdRegistry().getOptions(entry.getKey().getClassName(), entry.getKey().getMethodName());
+            if (options.isSampled()) {
+                commonMap.put("sampleRate", options.getSampleRate());
             }
-            
-            if (getRole() != null) {
-                commonMap.put("role", getRole());
+
+            if (entry.getKey().getMetricName().startsWith(METRIC_EXCEPTION_PREFIX)) {
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", METRIC_EXCEPTION_PREFIX + "count");
+                metricMap.put("exceptionType", entry.getKey().getMetricName().substring(METRIC_EXCEPTION_PREFIX.length()));
+                metricMap.put("metricValue", (double) entry.getValue().getCount());
+                reporter.report(PROFILER_NAME, metricMap);
+                continue;
             }
 
             {
@@ -97,6 +181,13 @@ public class MethodDurationProfiler extends ProfilerBase implements Profiler {
                 metricMap.put("metricValue", (double) entry.getValue().getCount());
                 reporter.report(PROFILER_NAME, metricMap);
             }
+            if (options.isSampled()) {
+                // Statistics are from sampled invocations, scale the count to estimate the number of all invocations
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", entry.getKey().getMetricName() + ".estimatedCount");
+                metricMap.put("metricValue", (double) entry.getValue().getCount() * options.getSampleRate());
+                reporter.report(PROFILER_NAME, metricMap);
+            }
             {
                 Map<String, Object> metricMap = new HashMap<>(commonMap);
                 metricMap.put("metricName", entry.getKey().getMetricName() + ".sum");
@@ -115,6 +206,235 @@ public class MethodDurationProfiler extends ProfilerBase implements Profiler {
                 metricMap.put("metricValue", (double) entry.getValue().getMax());
                 reporter.report(PROFILER_NAME, metricMap);
             }
+            for (double percentile : percentiles) {
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", entry.getKey().getMetricName() + "." + getPercentileName(percentile));
+                metricMap.put("metricValue", (double) entry.getValue().getValueAtPercentile(percentile));
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+            if (reportSerializedHistogram) {
+                // The serialized histogram could be merged with histograms from other processes to get exact
+                // percentiles across all processes, see Histogram.deserialize and Histogram.merge
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", entry.getKey().getMetricName() + ".histogram");
+                metricMap.put("metricValue", (double) entry.getValue().getCount());
+                metricMap.put("histogram", entry.getValue().serialize());
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+        }
+
+        if (slowInvocationRecorder != null) {
+            reportSlowInvocations(epochMillis);
+        }
+
+        if (concurrencyRecorder != null) {
+            reportConcurrency(epochMillis);
+        }
+
+        if (callerRecorder != null) {
+            reportCallers(epochMillis);
+        }
+
+        if (overheadBudgetGovernor != null) {
+            // Report each method switched to sampling or disabled as an event
+            for (Map<String, Object> event : overheadBudgetGovernor.check(metrics, elapsedNanos)) {
+                Map<String, Object> eventMap = createCommonMap(epochMillis);
+                eventMap.putAll(event);
+                reporter.report(OVERHEAD_BUDGET_PROFILER_NAME, eventMap);
+            }
+        }
+    }
+
+    private void reportSlowInvocations(long epochMillis) {
+        for (SlowInvocationRecorder.Reservoir reservoir : slowInvocationRecorder.reset()) {
+            String className = reservoir.getClassAndMethod().getClassName();
+            String methodName = reservoir.getClassAndMethod().getMethodName();
+            MethodProfilingOptions options = slowInvocationRecorder.getMethodIdRegistry().getOptions(className, methodName);
+
+            for (SlowInvocationRecorder.SlowInvocation slowInvocation : reservoir.getSlowInvocations()) {
+                Map<String, Object> metricMap = createCommonMap(epochMillis);
+
+                metricMap.put("className", className);
+                metricMap.put("methodName", methodName);
+                metricMap.put("unit", durationTimeUnit.name().toLowerCase());
+
+                metricMap.put("metricName", METRIC_DURATION_SLOW);
+                metricMap.put("metricValue", (double) slowInvocation.getDuration());
+                metricMap.put("slowThreshold", options.getSlowThreshold());
+                // Number of slow invocations in this interval, only some of them are reported as exemplars
+                metricMap.put("slowCount", reservoir.getSlowCount());
+                metricMap.put("invocationEpochMillis", slowInvocation.getEpochMillis());
+                metricMap.put("threadName", slowInvocation.getThreadName());
+                metricMap.put("stacktrace", slowInvocation.getStacktrace());
+                metricMap.put("arguments", slowInvocation.getArguments());
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+        }
+    }
+
+    private void reportConcurrency(long epochMillis) {
+        for (MethodConcurrencyRecorder.MethodConcurrency concurrency : concurrencyRecorder.reset()) {
+            Map<String, Object> commonMap = createCommonMap(epochMillis);
+
+            commonMap.put("className", concurrency.getClassAndMethod().getClassName());
+            commonMap.put("methodName", concurrency.getClassAndMethod().getMethodName());
+
+            {
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", METRIC_CONCURRENCY_MAX);
+                metricMap.put("metricValue", (double) concurrency.getMax());
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+            {
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", METRIC_CONCURRENCY_AVERAGE);
+                metricMap.put("metricValue", concurrency.getAverage());
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+            {
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", METRIC_CONCURRENCY_IN_FLIGHT);
+                metricMap.put("metricValue", (double) concurrency.getInFlight());
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+        }
+    }
+
+    private void reportCallers(long epochMillis) {
+        for (MethodCallerRecorder.CallerDuration callerDuration : callerRecorder.reset()) {
+            String className = callerDuration.getClassAndMethod().getClassName();
+            String methodName = callerDuration.getClassAndMethod().getMethodName();
+            Histogram histogram = callerDuration.getDuration();
+
+            Map<String, Object> commonMap = createCommonMap(epochMillis);
+
+            commonMap.put("className", className);
+            commonMap.put("methodName", methodName);
+            commonMap.put("callerClassName", callerDuration.getCaller().getClassName());
+            commonMap.put("callerMethodName", callerDuration.getCaller().getMethodName());
+            commonMap.put("unit", durationTimeUnit.name().toLowerCase());
+
+            MethodProfilingOptions options = callerRecorder.getMethodIdRegistry().getOptions(className, methodName);
+            if (options.isSampled()) {
+                commonMap.put("sampleRate", options.getSampleRate());
+            }
+
+            {
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", METRIC_DURATION_CALLER + ".count");
+                metricMap.put("metricValue", (double) histogram.getCount());
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+            {
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", METRIC_DURATION_CALLER + ".sum");
+                metricMap.put("metricValue", (double) histogram.getSum());
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+            {
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", METRIC_DURATION_CALLER + ".min");
+                metricMap.put("metricValue", (double) histogram.getMin());
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+            {
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", METRIC_DURATION_CALLER + ".max");
+                metricMap.put("metricValue", (double) histogram.getMax());
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+            for (double percentile : percentiles) {
+                Map<String, Object> metricMap = new HashMap<>(commonMap);
+                metricMap.put("metricName", METRIC_DURATION_CALLER + "." + getPercentileName(percentile));
+                metricMap.put("metricValue", (double) histogram.getValueAtPercentile(percentile));
+                reporter.report(PROFILER_NAME, metricMap);
+            }
+        }
+
+        long droppedCount = callerRecorder.resetDroppedCount();
+        if (droppedCount > 0) {
+            // Invocations from callers not recorded because the recorder reached its max callers
+            Map<String, Object> metricMap = createCommonMap(epochMillis);
+            metricMap.put("metricName", METRIC_DURATION_CALLER + ".dropped");
+            metricMap.put("metricValue", (double) droppedCount);
+            metricMap.put("callerCount", callerRecorder.getCallerCount());
+            reporter.report(PROFILER_NAME, metricMap);
+        }
+    }
+
+    // Fields of the process shared by all records reported in one interval
+    private Map<String, Object> createCommonMap(long epochMillis) {
+        Map<String, Object> commonMap = new HashMap<>();
+
+        commonMap.put("epochMillis", epochMillis);
+        commonMap.put("processName", getProcessName());
+        commonMap.put("host", getHostName());
+        commonMap.put("processUuid", getProcessUuid());
+        commonMap.put("appId", getAppId());
+
+        if (getTag() != null) {
+            commonMap.put("tag", getTag());
+        }
+
+        if (getCluster() != null) {
+            commonMap.put("cluster", getCluster());
+        }
+
+        if (getRole() != null) {
+            commonMap.put("role", getRole());
+        }
+
+        return commonMap;
+    }
+
+    /**
+     * Instrumented code records successful and failed invocations separately, so the overall duration of each
+     * method is merged from both here instead of recording every invocation twice.
+     */
+    static Map<ClassAndMethodMetricKey, Histogram> addDurationTotals(Map<ClassAndMethodMetricKey, Histogram> metrics) {
+        Map<ClassAndMethodMetricKey, Histogram> totals = new HashMap<>();
+        for (Map.Entry<ClassAndMethodMetricKey, Histogram> entry : metrics.entrySet()) {
+            String metricName = entry.getKey().getMetricName();
+            if (!METRIC_DURATION_SUCCESS.equals(metricName) && !METRIC_DURATION_ERROR.equals(metricName)) {
+                continue;
+            }
+
+            ClassAndMethodMetricKey key = new ClassAndMethodMetricKey(entry.getKey().getClassName(), entry.getKey().getMethodName(), METRIC_DURATION);
+            Histogram total = totals.get(key);
+            if (total == null) {
+                total = new Histogram();
+                Histogram existing = metrics.get(key);
+                if (existing != null) {
+                    total.merge(existing);
+                }
+                totals.put(key, total);
+            }
+            total.merge(entry.getValue());
+        }
+
+        if (totals.isEmpty()) {
+            return metrics;
+        }
+
+        Map<ClassAndMethodMetricKey, Histogram> result = new HashMap<>(metrics);
+        result.putAll(totals);
+        return result;
+    }
+
+    // Get metric name like p50, p99, p999 (for 99.9 percentile)
+    static String getPercentileName(double percentile) {
+        String str = BigDecimal.valueOf(percentile).stripTrailingZeros().toPlainString();
+        return "p" + str.replace(".", "");
+    }
+
+    private String getMetricUnit(String metricName) {
+        if (metricName.startsWith(METRIC_DURATION)) {
+            return durationTimeUnit.name().toLowerCase();
+        } else if (metricName.equals(METRIC_CPU_TIME)) {
+            return TimeUnit.NANOSECONDS.name().toLowerCase();
+        } else if (metricName.equals(METRIC_ALLOCATED_BYTES)) {
+            return "bytes";
         }
+        return null;
     }
 }
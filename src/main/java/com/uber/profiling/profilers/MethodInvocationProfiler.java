@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.profilers;
+
+import com.uber.profiling.Profiler;
+import com.uber.profiling.Reporter;
+import com.uber.profiling.reporters.ConsoleOutputReporter;
+import com.uber.profiling.util.ClassAndMethod;
+import com.uber.profiling.util.MethodInvocationCounter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class MethodInvocationProfiler extends ProfilerBase implements Profiler {
+    public static final String PROFILER_NAME = "MethodInvocation";
+
+    private MethodInvocationCounter counter;
+
+    private Reporter reporter = new ConsoleOutputReporter();
+
+    private long intervalMillis = Constants.DEFAULT_METRIC_INTERVAL;
+
+    public MethodInvocationProfiler(MethodInvocationCounter counter, Reporter reporter) {
+        this.counter = counter;
+        this.reporter = reporter;
+    }
+
+    @Override
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public void setIntervalMillis(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void setReporter(Reporter reporter) {
+        this.reporter = reporter;
+    }
+
+    @Override
+    public void profile() {
+        if (counter == null) {
+            return;
+        }
+
+        if (reporter == null) {
+            return;
+        }
+
+        Map<ClassAndMethod, Long> metrics = counter.reset();
+
+        long epochMillis = System.currentTimeMillis();
+
+        for (Map.Entry<ClassAndMethod, Long> entry : metrics.entrySet()) {
+            Map<String, Object> metricMap = new HashMap<>();
+
+            metricMap.put("epochMillis", epochMillis);
+            metricMap.put("processName", getProcessName());
+            metricMap.put("host", getHostName());
+            metricMap.put("processUuid", getProcessUuid());
+            metricMap.put("appId", getAppId());
+
+            metricMap.put("className", entry.getKey().getClassName());
+            metricMap.put("methodName", entry.getKey().getMethodName());
+
+            if (getTag() != null) {
+                metricMap.put("tag", getTag());
+            }
+
+            if (getCluster() != null) {
+                metricMap.put("cluster", getCluster());
+            }
+
+            if (getRole() != null) {
+                metricMap.put("role", getRole());
+            }
+
+            metricMap.put("metricName", "invocation.count");
+            metricMap.put("metricValue", (double) entry.getValue());
+            reporter.report(PROFILER_NAME, metricMap);
+        }
+    }
+}
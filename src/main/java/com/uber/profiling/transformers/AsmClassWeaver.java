@@ -0,0 +1,706 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.transformers;
+
+import com.uber.profiling.util.AgentLogger;
+import com.uber.profiling.util.ClassAndMethodFilter;
+import com.uber.profiling.util.ClassMethodArgumentFilter;
+import com.uber.profiling.util.MethodIdRegistry;
+import com.uber.profiling.util.MethodProfilingOptions;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AsmClassWeaver injects profiling code with ASM visitors, without compiling Java source at runtime.
+ *
+ * For duration profiling, a method body is wrapped like:
+ *
+ *   long start = System.nanoTime();
+ *   try {
+ *       ... original body ...
+ *       MethodProfilerStaticProxy.collectMethodDurationSuccess(METHOD_ID, System.nanoTime() - start);
+ *   } catch (Throwable ex) {
+ *       MethodProfilerStaticProxy.collectMethodException(METHOD_ID, ex);
+ *       MethodProfilerStaticProxy.collectMethodDurationError(METHOD_ID, System.nanoTime() - start);
+ *       throw ex;
+ *   }
+ *
+ * where METHOD_ID is a constant registered in MethodIdRegistry at transform time, and the success call is injected
+ * before each return instruction. With sampleRate option, timestamps are only taken and recorded when
+ * ThreadLocalRandom.current().nextInt(sampleRate) is 0. With resourceUsage option, thread CPU time and allocated bytes
+ * are also taken at method entry and MethodProfilerStaticProxy.collectMethodResourceUsage records their deltas next to
+ * each duration. With slowThreshold option, invocations slower than the threshold also call
+ * MethodProfilerStaticProxy.collectSlowInvocation with the arguments configured in argumentProfiling. With caller option,
+ * the duration is also passed to MethodProfilerStaticProxy.collectMethodCallerDuration. With returnValue option,
+ * a copy of the returned value is passed to MethodProfilerStaticProxy.collectMethodReturnValue before each return. With
+ * async option, the returned object and the start time are passed to MethodProfilerStaticProxy.collectMethodDurationAsync
+ * instead of the success call, which records the duration when the returned CompletionStage completes. With call tree
+ * enabled, MethodProfilerStaticProxy.enterCallTree(METHOD_ID) and exitCallTree() are also called for every invocation
+ * (regardless of sampleRate) to keep the call stack of instrumented methods. With concurrency option,
+ * MethodProfilerStaticProxy.enterConcurrency(METHOD_ID) and exitConcurrency(METHOD_ID, start) are also called for every
+ * invocation to count threads inside the method.
+ *
+ * For invocation counting, only MethodProfilerStaticProxy.countMethodInvocation(METHOD_ID) is called at method entry.
+ *
+ * For argument profiling, arguments are passed to MethodProfilerStaticProxy.collectMethodArgument at method entry,
+ * converted like String.valueOf. Numeric arguments are passed to MethodProfilerStaticProxy.collectNumericMethodArgument
+ * as long (boolean, char and integer types), double (float and double) or Object (other types, which are boxed already).
+ */
+public class AsmClassWeaver implements ClassWeaver {
+    private static final AgentLogger logger = AgentLogger.getLogger(AsmClassWeaver.class.getName());
+
+    private static final String PROXY_CLASS = Type.getInternalName(MethodProfilerStaticProxy.class);
+    private static final String OBJECT_CLASS = "java/lang/Object";
+
+    private final ClassAndMethodFilter durationProfilingFilter;
+    private final ClassMethodArgumentFilter argumentFilterProfilingFilter;
+    private final ClassAndMethodFilter invocationCountingFilter;
+    private final String durationClockMethod;
+    private final boolean nanoTimeClock;
+    private final boolean callTree;
+
+    public AsmClassWeaver(ClassWeaverSettings settings) {
+        this.durationProfilingFilter = settings.getDurationProfilingFilter();
+        this.argumentFilterProfilingFilter = settings.getArgumentProfilingFilter();
+        this.invocationCountingFilter = settings.getInvocationCountingFilter();
+        this.durationClockMethod = getClockMethod(settings.getDurationTimeUnit());
+        this.nanoTimeClock = settings.getDurationTimeUnit() == TimeUnit.NANOSECONDS;
+        this.callTree = settings.isCallTree();
+    }
+
+    private static String getClockMethod(TimeUnit durationTimeUnit) {
+        if (durationTimeUnit == TimeUnit.MILLISECONDS) {
+            return "currentTimeMillis";
+        } else if (durationTimeUnit == TimeUnit.NANOSECONDS) {
+            return "nanoTime";
+        } else {
+            throw new IllegalArgumentException("Unsupported duration time unit: " + durationTimeUnit);
+        }
+    }
+
+    @Override
+    public byte[] weave(ClassLoader loader, String normalizedClassName, byte[] classfileBuffer) {
+        ClassReader classReader = new ClassReader(classfileBuffer);
+        LoaderClassWriter classWriter = new LoaderClassWriter(classReader, loader);
+
+        // Supertypes are only resolved for supertype rules, since they may need to read other class files
+        Set<String> superTypeNames = durationProfilingFilter.hasSubtypeRules() || invocationCountingFilter.hasSubtypeRules()
+                ? classWriter.getSuperTypeNames(classReader.getClassName()) : Collections.emptySet();
+
+        // Annotations are visited after visitMethod returns, so they are collected before weaving
+        Map<String, Set<String>> methodAnnotationNames = Collections.emptyMap();
+        if (durationProfilingFilter.hasAnnotationRules() || invocationCountingFilter.hasAnnotationRules()) {
+            AnnotationClassVisitor annotationClassVisitor = new AnnotationClassVisitor();
+            classReader.accept(annotationClassVisitor, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            methodAnnotationNames = annotationClassVisitor.methodAnnotationNames;
+        }
+
+        WeavingClassVisitor classVisitor = new WeavingClassVisitor(classWriter, normalizedClassName, superTypeNames, methodAnnotationNames);
+
+        // Frames are computed again by the class writer after the exception handler is added
+        classReader.accept(classVisitor, ClassReader.SKIP_FRAMES);
+
+        if (!classVisitor.transformed) {
+            return null;
+        }
+
+        return classWriter.toByteArray();
+    }
+
+    /**
+     * Collect type names of visible and invisible annotations on methods, keyed by method name and descriptor.
+     */
+    private static class AnnotationClassVisitor extends ClassVisitor {
+        private final Map<String, Set<String>> methodAnnotationNames = new HashMap<>();
+
+        private AnnotationClassVisitor() {
+            super(Opcodes.ASM9);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            return new MethodVisitor(Opcodes.ASM9) {
+                @Override
+                public AnnotationVisitor visitAnnotation(String annotationDescriptor, boolean visible) {
+                    methodAnnotationNames.computeIfAbsent(name + descriptor, key -> new HashSet<>())
+                            .add(Type.getType(annotationDescriptor).getClassName());
+                    return null;
+                }
+            };
+        }
+    }
+
+    private class WeavingClassVisitor extends ClassVisitor {
+        private final String normalizedClassName;
+        private final Set<String> superTypeNames;
+        private final Map<String, Set<String>> methodAnnotationNames;
+        private boolean transformed = false;
+
+        private WeavingClassVisitor(ClassVisitor classVisitor, String normalizedClassName, Set<String> superTypeNames, Map<String, Set<String>> methodAnnotationNames) {
+            super(Opcodes.ASM9, classVisitor);
+            this.normalizedClassName = normalizedClassName;
+            this.superTypeNames = superTypeNames;
+            this.methodAnnotationNames = methodAnnotationNames;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            MethodVisitor methodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+
+            // Constructors (<init>) and class initializer (<clinit>) are matched by these names, methods without body are
+            // skipped
+            if (methodVisitor == null
+                    || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+                return methodVisitor;
+            }
+
+            Set<String> annotationNames = methodAnnotationNames.getOrDefault(name + descriptor, Collections.emptySet());
+            boolean enableDurationProfiling = durationProfilingFilter.matchMethod(normalizedClassName, superTypeNames, name, annotationNames);
+            List<Integer> argumentsForProfile = new ArrayList<>();
+            int argumentCount = Type.getArgumentTypes(descriptor).length;
+            for (Integer argument : argumentFilterProfilingFilter.matchMethod(normalizedClassName, name)) {
+                if (argument > argumentCount) {
+                    logger.warn("Ignored argument profiling for class method: " + normalizedClassName + "." + name + descriptor + ", argument index: " + argument);
+                } else {
+                    argumentsForProfile.add(argument);
+                }
+            }
+
+            List<Integer> numericArgumentsForProfile = new ArrayList<>();
+            for (Integer argument : argumentFilterProfilingFilter.matchNumericMethod(normalizedClassName, name)) {
+                if (argument > argumentCount) {
+                    logger.warn("Ignored numeric argument profiling for class method: " + normalizedClassName + "." + name + descriptor + ", argument index: " + argument);
+                } else {
+                    numericArgumentsForProfile.add(argument);
+                }
+            }
+
+            boolean enableInvocationCounting = invocationCountingFilter.matchMethod(normalizedClassName, superTypeNames, name, annotationNames);
+
+            if (!enableDurationProfiling && argumentsForProfile.isEmpty() && numericArgumentsForProfile.isEmpty() && !enableInvocationCounting) {
+                return methodVisitor;
+            }
+
+            transformed = true;
+
+            int methodId = -1;
+            MethodProfilingOptions options = MethodProfilingOptions.DEFAULT;
+            if (enableDurationProfiling) {
+                options = durationProfilingFilter.getMethodOptions(normalizedClassName, superTypeNames, name, annotationNames);
+                methodId = MethodIdRegistry.getInstance().register(normalizedClassName, name);
+                MethodIdRegistry.getInstance().setOptions(methodId, options);
+                if (options.isReturnValue() && Type.getReturnType(descriptor) == Type.VOID_TYPE) {
+                    logger.warn("Ignored returnValue option for void class method: " + normalizedClassName + "." + name + descriptor);
+                }
+                if (options.isAsync() && Type.getReturnType(descriptor).getSort() != Type.OBJECT) {
+                    logger.warn("Ignored async option for class method not returning an object: " + normalizedClassName + "." + name + descriptor);
+                }
+            }
+
+            int countingMethodId = enableInvocationCounting ? MethodIdRegistry.getInstance().register(normalizedClassName, name) : -1;
+            int numericArgumentMethodId = numericArgumentsForProfile.isEmpty() ? -1 : MethodIdRegistry.getInstance().register(normalizedClassName, name);
+
+            logger.info("Transformed class method: " + normalizedClassName + "." + name + descriptor + ", durationProfiling: " + enableDurationProfiling + (enableDurationProfiling ? ", options: " + options : "") + ", argumentProfiling: " + argumentsForProfile + (numericArgumentsForProfile.isEmpty() ? "" : ", numericArgumentProfiling: " + numericArgumentsForProfile) + ", invocationCounting: " + enableInvocationCounting);
+            return new WeavingMethodVisitor(methodVisitor, access, name, descriptor, normalizedClassName, methodId, options, argumentsForProfile, countingMethodId, numericArgumentsForProfile, numericArgumentMethodId);
+        }
+    }
+
+    private class WeavingMethodVisitor extends AdviceAdapter {
+        private final String normalizedClassName;
+        private final String methodName;
+        private final int methodId;
+        private final MethodProfilingOptions options;
+        private final List<Integer> argumentsForProfile;
+        private final int countingMethodId;
+        private final List<Integer> numericArgumentsForProfile;
+        private final int numericArgumentMethodId;
+
+        private final Label tryStart = new Label();
+        private int startTimeLocal;
+        private int sampleLocal;
+        private int cpuTimeLocal;
+        private int allocatedBytesLocal;
+        private int durationLocal;
+        private int concurrencyStartLocal;
+
+        // Owner of the last constructor called before onMethodEnter, which is the super() or this() call in constructors
+        private String calledConstructorOwner;
+        private boolean delegatingConstructor = false;
+
+        private WeavingMethodVisitor(MethodVisitor methodVisitor, int access, String name, String descriptor, String normalizedClassName, int methodId, MethodProfilingOptions options, List<Integer> argumentsForProfile, int countingMethodId, List<Integer> numericArgumentsForProfile, int numericArgumentMethodId) {
+            super(Opcodes.ASM9, methodVisitor, access, name, descriptor);
+            this.normalizedClassName = normalizedClassName;
+            this.methodName = name;
+            this.methodId = methodId;
+            this.options = options;
+            this.argumentsForProfile = argumentsForProfile;
+            this.countingMethodId = countingMethodId;
+            this.numericArgumentsForProfile = numericArgumentsForProfile;
+            this.numericArgumentMethodId = numericArgumentMethodId;
+        }
+
+        private boolean isDurationProfiling() {
+            return methodId >= 0 && !delegatingConstructor;
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            if (opcode == INVOKESPECIAL && name.equals("<init>")) {
+                calledConstructorOwner = owner;
+            }
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        }
+
+        // For constructors, AdviceAdapter calls this after super() or this(), so the injected code could use this and
+        // does not catch exceptions thrown by super()
+        @Override
+        protected void onMethodEnter() {
+            if (methodName.equals("<init>") && normalizedClassName.replace('.', '/').equals(calledConstructorOwner)) {
+                // The constructor called by this() records the construction, so each object construction is only
+                // recorded once, the same as JavassistClassWeaver
+                logger.info("Ignored constructor delegating to another constructor: " + normalizedClassName + "." + methodName + methodDesc);
+                delegatingConstructor = true;
+                return;
+            }
+
+            if (countingMethodId >= 0) {
+                push(countingMethodId);
+                invokeStatic(PROXY_CLASS, "countMethodInvocation", "(I)V");
+            }
+
+            for (Integer argument : argumentsForProfile) {
+                push(normalizedClassName);
+                push(methodName);
+                push(argument);
+                if (argument >= 1) {
+                    loadArgumentValue(argument - 1);
+                } else {
+                    push("");
+                }
+                invokeStatic(PROXY_CLASS, "collectMethodArgument", "(Ljava/lang/String;Ljava/lang/String;ILjava/lang/Object;)V");
+            }
+
+            for (Integer argument : numericArgumentsForProfile) {
+                push(numericArgumentMethodId);
+                push(argument);
+                loadArg(argument - 1);
+                invokeStatic(PROXY_CLASS, "collectNumericMethodArgument", "(II" + convertNumber(getArgumentTypes()[argument - 1]) + ")V");
+            }
+
+            if (isDurationProfiling()) {
+                if (options.isSampled()) {
+                    // int sample = ThreadLocalRandom.current().nextInt(sampleRate);
+                    sampleLocal = newLocal(Type.INT_TYPE);
+                    invokeStatic("java/util/concurrent/ThreadLocalRandom", "current", "()Ljava/util/concurrent/ThreadLocalRandom;");
+                    push(options.getSampleRate());
+                    visitMethodInsn(INVOKEVIRTUAL, "java/util/concurrent/ThreadLocalRandom", "nextInt", "(I)I", false);
+                    storeLocal(sampleLocal);
+                }
+                if (options.isResourceUsage()) {
+                    cpuTimeLocal = newLocal(Type.LONG_TYPE);
+                    storeLongIfSampled(cpuTimeLocal, "getThreadCpuTime");
+                    allocatedBytesLocal = newLocal(Type.LONG_TYPE);
+                    storeLongIfSampled(allocatedBytesLocal, "getThreadAllocatedBytes");
+                }
+                if (isDurationKept()) {
+                    durationLocal = newLocal(Type.LONG_TYPE);
+                }
+                // The clock is read last, so the duration does not include reading resource usage
+                startTimeLocal = newLocal(Type.LONG_TYPE);
+                storeLongIfSampled(startTimeLocal, null);
+                if (callTree) {
+                    push(methodId);
+                    invokeStatic(PROXY_CLASS, "enterCallTree", "(I)V");
+                }
+                if (options.isConcurrency()) {
+                    // long concurrencyStart = MethodProfilerStaticProxy.enterConcurrency(METHOD_ID);
+                    concurrencyStartLocal = newLocal(Type.LONG_TYPE);
+                    push(methodId);
+                    invokeStatic(PROXY_CLASS, "enterConcurrency", "(I)J");
+                    storeLocal(concurrencyStartLocal);
+                }
+                mark(tryStart);
+            }
+        }
+
+        @Override
+        protected void onMethodExit(int opcode) {
+            // Exceptions, including explicit throw, go to the handler added in visitMaxs
+            if (isDurationProfiling() && opcode != ATHROW) {
+                collectDuration(opcode);
+                exitCallTree();
+                exitConcurrency();
+            }
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            if (isDurationProfiling()) {
+                // Added after the exception table entries of the original method, so its own handlers take precedence
+                Label handler = mark();
+                // Exception types are counted for every invocation, also when the duration is not sampled
+                dup();
+                push(methodId);
+                swap();
+                invokeStatic(PROXY_CLASS, "collectMethodException", "(ILjava/lang/Throwable;)V");
+                collectDuration(ATHROW);
+                exitCallTree();
+                exitConcurrency();
+                throwException();
+                visitTryCatchBlock(tryStart, handler, handler, null);
+            }
+            super.visitMaxs(maxStack, maxLocals);
+        }
+
+        // long local = sample == 0 ? CLOCK_OR_PROXY_METHOD() : 0;
+        private void storeLongIfSampled(int local, String proxyMethod) {
+            Label notSampled = new Label();
+            Label end = new Label();
+            if (options.isSampled()) {
+                loadLocal(sampleLocal);
+                ifZCmp(NE, notSampled);
+            }
+            if (proxyMethod == null) {
+                invokeClock();
+            } else {
+                invokeStatic(PROXY_CLASS, proxyMethod, "()J");
+            }
+            if (options.isSampled()) {
+                goTo(end);
+                mark(notSampled);
+                push(0L);
+                mark(end);
+            }
+            storeLocal(local);
+        }
+
+        // Opcode is the return instruction, or ATHROW when the method exits by exception
+        private void collectDuration(int opcode) {
+            boolean error = opcode == ATHROW;
+            Label notSampled = null;
+            if (options.isSampled()) {
+                notSampled = new Label();
+                loadLocal(sampleLocal);
+                ifZCmp(NE, notSampled);
+            }
+
+            if (isAsync() && opcode == ARETURN) {
+                // collectMethodDurationAsync(METHOD_ID, value, start, NANO_TIME_CLOCK), with a copy of the value to
+                // return on the stack
+                dup();
+                push(methodId);
+                swap();
+                loadLocal(startTimeLocal);
+                push(nanoTimeClock);
+                invokeStatic(PROXY_CLASS, "collectMethodDurationAsync", "(ILjava/lang/Object;JZ)V");
+                if (isDurationKept()) {
+                    invokeClock();
+                    loadLocal(startTimeLocal);
+                    math(SUB, Type.LONG_TYPE);
+                    storeLocal(durationLocal);
+                }
+            } else {
+                push(methodId);
+                invokeClock();
+                loadLocal(startTimeLocal);
+                math(SUB, Type.LONG_TYPE);
+                if (isDurationKept()) {
+                    dup2();
+                    storeLocal(durationLocal);
+                }
+                if (error) {
+                    invokeStatic(PROXY_CLASS, "collectMethodDurationError", "(IJ)V");
+                } else {
+                    invokeStatic(PROXY_CLASS, "collectMethodDurationSuccess", "(IJ)V");
+                }
+            }
+
+            if (options.getSlowThreshold() > 0) {
+                // if (duration > slowThreshold) collectSlowInvocation(METHOD_ID, duration, new Object[]{arguments})
+                Label notSlow = new Label();
+                loadLocal(durationLocal);
+                push(options.getSlowThreshold());
+                ifCmp(Type.LONG_TYPE, LE, notSlow);
+                push(methodId);
+                loadLocal(durationLocal);
+                loadSlowInvocationArguments();
+                invokeStatic(PROXY_CLASS, "collectSlowInvocation", "(IJ[Ljava/lang/Object;)V");
+                mark(notSlow);
+            }
+
+            if (options.isCaller()) {
+                push(methodId);
+                loadLocal(durationLocal);
+                invokeStatic(PROXY_CLASS, "collectMethodCallerDuration", "(IJ)V");
+            }
+
+            if (options.isResourceUsage()) {
+                push(methodId);
+                loadLocal(cpuTimeLocal);
+                loadLocal(allocatedBytesLocal);
+                invokeStatic(PROXY_CLASS, "collectMethodResourceUsage", "(IJJ)V");
+            }
+
+            if (options.isReturnValue() && !error && opcode != RETURN) {
+                // collectMethodReturnValue(METHOD_ID, value), with a copy of the value to return on the stack
+                Type returnType = getReturnType();
+                if (returnType.getSize() == 2) {
+                    dup2();
+                } else {
+                    dup();
+                }
+                push(methodId);
+                swap(returnType, Type.INT_TYPE);
+                invokeStatic(PROXY_CLASS, "collectMethodReturnValue", "(I" + convertNumber(returnType) + ")V");
+            }
+
+            if (notSampled != null) {
+                mark(notSampled);
+            }
+        }
+
+        // Async option only applies to methods returning objects
+        private boolean isAsync() {
+            return options.isAsync() && getReturnType().getSort() == Type.OBJECT;
+        }
+
+        // The duration is also passed to proxy methods other than the duration collecting one
+        private boolean isDurationKept() {
+            return options.getSlowThreshold() > 0 || options.isCaller();
+        }
+
+        private void loadSlowInvocationArguments() {
+            List<Integer> arguments = new ArrayList<>();
+            for (Integer argument : argumentsForProfile) {
+                // Argument 0 only counts invocations
+                if (argument >= 1) {
+                    arguments.add(argument);
+                }
+            }
+
+            if (arguments.isEmpty()) {
+                visitInsn(ACONST_NULL);
+                return;
+            }
+
+            push(arguments.size());
+            newArray(Type.getType(Object.class));
+            for (int i = 0; i < arguments.size(); i++) {
+                dup();
+                push(i);
+                loadArg(arguments.get(i) - 1);
+                box(getArgumentTypes()[arguments.get(i) - 1]);
+                arrayStore(Type.getType(Object.class));
+            }
+        }
+
+        private void exitCallTree() {
+            if (callTree) {
+                invokeStatic(PROXY_CLASS, "exitCallTree", "()V");
+            }
+        }
+
+        private void exitConcurrency() {
+            if (options.isConcurrency()) {
+                push(methodId);
+                loadLocal(concurrencyStartLocal);
+                invokeStatic(PROXY_CLASS, "exitConcurrency", "(IJ)V");
+            }
+        }
+
+        private void invokeClock() {
+            invokeStatic("java/lang/System", durationClockMethod, "()J");
+        }
+
+        // Converts the value of the type on top of the stack to long or double if needed, and returns the descriptor of
+        // the converted value, the long, double and Object overloads of proxy methods recording numeric values (the same
+        // overloads as JavassistClassWeaver calls)
+        private String convertNumber(Type type) {
+            switch (type.getSort()) {
+                case Type.BOOLEAN:
+                case Type.CHAR:
+                case Type.BYTE:
+                case Type.SHORT:
+                case Type.INT:
+                    visitInsn(I2L);
+                    return "J";
+                case Type.LONG:
+                    return "J";
+                case Type.FLOAT:
+                    visitInsn(F2D);
+                    return "D";
+                case Type.DOUBLE:
+                    return "D";
+                default:
+                    return "Ljava/lang/Object;";
+            }
+        }
+
+        // Converts the argument like String.valueOf($n) in JavassistClassWeaver, so both weavers report the same value
+        private void loadArgumentValue(int argumentIndex) {
+            loadArg(argumentIndex);
+            Type type = getArgumentTypes()[argumentIndex];
+            switch (type.getSort()) {
+                case Type.BOOLEAN:
+                    invokeStatic("java/lang/String", "valueOf", "(Z)Ljava/lang/String;");
+                    break;
+                case Type.CHAR:
+                    invokeStatic("java/lang/String", "valueOf", "(C)Ljava/lang/String;");
+                    break;
+                case Type.BYTE:
+                case Type.SHORT:
+                case Type.INT:
+                    invokeStatic("java/lang/String", "valueOf", "(I)Ljava/lang/String;");
+                    break;
+                case Type.LONG:
+                    invokeStatic("java/lang/String", "valueOf", "(J)Ljava/lang/String;");
+                    break;
+                case Type.FLOAT:
+                    invokeStatic("java/lang/String", "valueOf", "(F)Ljava/lang/String;");
+                    break;
+                case Type.DOUBLE:
+                    invokeStatic("java/lang/String", "valueOf", "(D)Ljava/lang/String;");
+                    break;
+                default:
+                    if (type.getDescriptor().equals("[C")) {
+                        invokeStatic("java/lang/String", "valueOf", "([C)Ljava/lang/String;");
+                    }
+                    break;
+            }
+        }
+
+        private void invokeStatic(String owner, String name, String descriptor) {
+            visitMethodInsn(INVOKESTATIC, owner, name, descriptor, false);
+        }
+    }
+
+    /**
+     * ClassWriter computing common super classes by reading class files from the class loader, instead of loading
+     * classes with Class.forName, which must not happen while a class is being transformed.
+     */
+    private static class LoaderClassWriter extends ClassWriter {
+        private final ClassLoader loader;
+        private final Map<String, ClassReader> classReaders = new HashMap<>();
+
+        private LoaderClassWriter(ClassReader classReader, ClassLoader loader) {
+            super(classReader, ClassWriter.COMPUTE_FRAMES);
+            this.loader = loader;
+            this.classReaders.put(classReader.getClassName(), classReader);
+        }
+
+        @Override
+        protected String getCommonSuperClass(String type1, String type2) {
+            if (type1.equals(type2)) {
+                return type1;
+            }
+
+            ClassReader classReader1 = getClassReader(type1);
+            ClassReader classReader2 = getClassReader(type2);
+            if (classReader1 == null || classReader2 == null
+                    || isInterface(classReader1) || isInterface(classReader2)) {
+                return OBJECT_CLASS;
+            }
+
+            Set<String> superClasses1 = new HashSet<>();
+            for (String type = type1; type != null; type = getSuperName(type)) {
+                superClasses1.add(type);
+            }
+
+            for (String type = type2; type != null; type = getSuperName(type)) {
+                if (superClasses1.contains(type)) {
+                    return type;
+                }
+            }
+
+            return OBJECT_CLASS;
+        }
+
+        /**
+         * Return normalized names of all superclasses and interfaces of the type (in internal form), class files not
+         * found are skipped.
+         */
+        private Set<String> getSuperTypeNames(String type) {
+            Set<String> result = new HashSet<>();
+            List<String> pending = new ArrayList<>();
+            pending.add(type);
+            while (!pending.isEmpty()) {
+                ClassReader classReader = getClassReader(pending.remove(pending.size() - 1));
+                if (classReader == null) {
+                    continue;
+                }
+                List<String> superTypes = new ArrayList<>(Arrays.asList(classReader.getInterfaces()));
+                if (classReader.getSuperName() != null && !isInterface(classReader)) {
+                    superTypes.add(classReader.getSuperName());
+                }
+                for (String superType : superTypes) {
+                    if (result.add(superType.replace('/', '.'))) {
+                        pending.add(superType);
+                    }
+                }
+            }
+            return result;
+        }
+
+        private String getSuperName(String type) {
+            ClassReader classReader = getClassReader(type);
+            return classReader == null ? null : classReader.getSuperName();
+        }
+
+        private static boolean isInterface(ClassReader classReader) {
+            return (classReader.getAccess() & Opcodes.ACC_INTERFACE) != 0;
+        }
+
+        private ClassReader getClassReader(String type) {
+            if (classReaders.containsKey(type)) {
+                return classReaders.get(type);
+            }
+
+            ClassReader classReader = null;
+            String resourceName = type + ".class";
+            try (InputStream inputStream = loader == null ? ClassLoader.getSystemResourceAsStream(resourceName) : loader.getResourceAsStream(resourceName)) {
+                if (inputStream != null) {
+                    classReader = new ClassReader(inputStream);
+                }
+            } catch (IOException ex) {
+                logger.warn("Failed to read class file: " + resourceName, ex);
+            }
+
+            classReaders.put(type, classReader);
+            return classReader;
+        }
+    }
+}
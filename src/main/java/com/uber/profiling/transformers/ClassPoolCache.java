@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.transformers;
+
+import javassist.ClassPool;
+import javassist.LoaderClassPath;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * ClassPoolCache keeps one Javassist ClassPool per ClassLoader, so classes transformed from the same loader share
+ * the parsed superclasses and interfaces instead of scanning the class path again for every transformed class.
+ *
+ * Class loaders are weakly referenced and their pools are evicted after the loaders are collected (LoaderClassPath
+ * also references its loader weakly). Memory is bounded by replacing a pool with a new one after it is used for
+ * maxUsesPerPool transformations, and by dropping all pools when there are more than maxClassPools loaders.
+ */
+public class ClassPoolCache {
+    public static final int DEFAULT_MAX_CLASS_POOLS = 256;
+    public static final int DEFAULT_MAX_USES_PER_POOL = 2000;
+
+    private final int maxClassPools;
+    private final int maxUsesPerPool;
+
+    private final Map<ClassLoader, Entry> classPools = new WeakHashMap<>();
+
+    // WeakHashMap would keep a null key strongly, so bootstrap class loader uses its own entry
+    private Entry bootstrapEntry;
+
+    public ClassPoolCache() {
+        this(DEFAULT_MAX_CLASS_POOLS, DEFAULT_MAX_USES_PER_POOL);
+    }
+
+    public ClassPoolCache(int maxClassPools, int maxUsesPerPool) {
+        if (maxClassPools <= 0) {
+            throw new IllegalArgumentException("Invalid max class pools: " + maxClassPools);
+        }
+        if (maxUsesPerPool <= 0) {
+            throw new IllegalArgumentException("Invalid max uses per pool: " + maxUsesPerPool);
+        }
+        this.maxClassPools = maxClassPools;
+        this.maxUsesPerPool = maxUsesPerPool;
+    }
+
+    public synchronized ClassPool getClassPool(ClassLoader loader) {
+        Entry entry = loader == null ? bootstrapEntry : classPools.get(loader);
+
+        if (entry == null || entry.uses >= maxUsesPerPool) {
+            entry = new Entry(createClassPool(loader));
+            if (loader == null) {
+                bootstrapEntry = entry;
+            } else {
+                if (classPools.size() >= maxClassPools) {
+                    classPools.clear();
+                }
+                classPools.put(loader, entry);
+            }
+        }
+
+        entry.uses++;
+        return entry.classPool;
+    }
+
+    public synchronized int size() {
+        return classPools.size() + (bootstrapEntry == null ? 0 : 1);
+    }
+
+    private static ClassPool createClassPool(ClassLoader loader) {
+        ClassPool classPool = new ClassPool();
+        classPool.appendClassPath(new LoaderClassPath(loader));
+        return classPool;
+    }
+
+    private static class Entry {
+        private final ClassPool classPool;
+        private int uses;
+
+        private Entry(ClassPool classPool) {
+            this.classPool = classPool;
+        }
+    }
+}
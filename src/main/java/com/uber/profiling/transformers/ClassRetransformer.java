@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.transformers;
+
+import com.uber.profiling.util.AgentLogger;
+import com.uber.profiling.util.ClassNamePrefixTrie;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * ClassRetransformer retransforms already loaded classes, so registered transformers are applied to them again
+ * starting from their original byte code. A transformer returning null for a class restores its original byte code.
+ *
+ * Classes are retransformed in batches, since each retransformClasses call needs a safepoint. If a batch fails
+ * (e.g. one class could not be verified), classes in that batch are retransformed one by one. Time spent in
+ * each batch is logged and accumulated, since it approximates the pause caused by retransforming.
+ */
+public class ClassRetransformer {
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private static final AgentLogger logger = AgentLogger.getLogger(ClassRetransformer.class.getName());
+
+    private final Instrumentation instrumentation;
+    private final int batchSize;
+
+    private long batchCount = 0;
+    private long classCount = 0;
+    private long totalBatchNanos = 0;
+    private long maxBatchNanos = 0;
+
+    public ClassRetransformer(Instrumentation instrumentation) {
+        this(instrumentation, DEFAULT_BATCH_SIZE);
+    }
+
+    public ClassRetransformer(Instrumentation instrumentation, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+        }
+        this.instrumentation = instrumentation;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Get loaded classes (from all class loaders) whose names start with any prefix in the trie.
+     */
+    public List<Class<?>> getLoadedClasses(ClassNamePrefixTrie classNamePrefixes) {
+        if (classNamePrefixes.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return getLoadedClasses(clazz -> classNamePrefixes.matchPrefix(clazz.getName()));
+    }
+
+    /**
+     * Get loaded classes (from all class loaders) accepted by the predicate.
+     */
+    public List<Class<?>> getLoadedClasses(Predicate<Class<?>> predicate) {
+        List<Class<?>> result = new ArrayList<>();
+        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            if (instrumentation.isModifiableClass(clazz) && predicate.test(clazz)) {
+                result.add(clazz);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Retransform classes, return number of classes retransformed successfully.
+     */
+    public synchronized int retransform(List<Class<?>> classes) {
+        int succeeded = 0;
+        long startNanos = System.nanoTime();
+
+        for (int i = 0; i < classes.size(); i += batchSize) {
+            List<Class<?>> batch = classes.subList(i, Math.min(i + batchSize, classes.size()));
+            long batchStartNanos = System.nanoTime();
+            try {
+                instrumentation.retransformClasses(batch.toArray(new Class<?>[batch.size()]));
+                succeeded += batch.size();
+            } catch (Throwable ex) {
+                logger.warn("Failed to retransform batch of " + batch.size() + " classes, retrying them one by one", ex);
+                for (Class<?> clazz : batch) {
+                    try {
+                        instrumentation.retransformClasses(clazz);
+                        succeeded++;
+                    } catch (Throwable classEx) {
+                        logger.warn("Failed to retransform class: " + clazz.getName(), classEx);
+                    }
+                }
+            }
+
+            long batchNanos = System.nanoTime() - batchStartNanos;
+            batchCount++;
+            classCount += batch.size();
+            totalBatchNanos += batchNanos;
+            maxBatchNanos = Math.max(maxBatchNanos, batchNanos);
+
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Retransformed batch of %s classes in %s ms", batch.size(), TimeUnit.NANOSECONDS.toMillis(batchNanos)));
+            }
+        }
+
+        logger.info(String.format("Retransformed classes: %s of %s, batches: %s, time: %s ms",
+                succeeded, classes.size(), (classes.size() + batchSize - 1) / batchSize, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+        return succeeded;
+    }
+
+    public synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    public synchronized long getClassCount() {
+        return classCount;
+    }
+
+    public synchronized long getTotalBatchMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalBatchNanos);
+    }
+
+    public synchronized long getMaxBatchMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxBatchNanos);
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.transformers;
+
+/**
+ * ClassWeaver injects profiling code into the methods of a class which matched the duration or argument profiling
+ * filters. JavaAgentFileTransformer selects the implementation with the weaver argument.
+ */
+public interface ClassWeaver {
+    /**
+     * Return the byte code with profiling code injected, or null if no method in the class is changed.
+     */
+    byte[] weave(ClassLoader loader, String normalizedClassName, byte[] classfileBuffer) throws Exception;
+}
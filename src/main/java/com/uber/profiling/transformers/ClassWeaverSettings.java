@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.profiling.transformers;
+
+import com.uber.profiling.util.ClassAndMethodFilter;
+import com.uber.profiling.util.ClassMethodArgumentFilter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ClassWeaverSettings holds what JavaAgentFileTransformer and the ClassWeaver implementations need to inject profiling
+ * code: the weaver to use, the filters selecting methods and the options applied to all of them. Settings not set
+ * keep their defaults (javassist weaver, empty filters, durations in milliseconds and no call tree).
+ */
+public class ClassWeaverSettings {
+    private String weaver = JavaAgentFileTransformer.WEAVER_JAVASSIST;
+    private ClassAndMethodFilter durationProfilingFilter = new ClassAndMethodFilter(null);
+    private ClassMethodArgumentFilter argumentProfilingFilter = new ClassMethodArgumentFilter(null);
+    private ClassAndMethodFilter invocationCountingFilter = new ClassAndMethodFilter(null);
+    private TimeUnit durationTimeUnit = TimeUnit.MILLISECONDS;
+    private boolean callTree = false;
+
+    public ClassWeaverSettings() {
+    }
+
+    public ClassWeaverSettings(ClassWeaverSettings other) {
+        this.weaver = other.weaver;
+        this.durationProfilingFilter = other.durationProfilingFilter;
+        this.argumentProfilingFilter = other.argumentProfilingFilter;
+        this.invocationCountingFilter = other.invocationCountingFilter;
+        this.durationTimeUnit = other.durationTimeUnit;
+        this.callTree = other.callTree;
+    }
+
+    public String getWeaver() {
+        return weaver;
+    }
+
+    public void setWeaver(String weaver) {
+        this.weaver = weaver;
+    }
+
+    public ClassAndMethodFilter getDurationProfilingFilter() {
+        return durationProfilingFilter;
+    }
+
+    public void setDurationProfilingFilter(ClassAndMethodFilter durationProfilingFilter) {
+        this.durationProfilingFilter = durationProfilingFilter;
+    }
+
+    public ClassMethodArgumentFilter getArgumentProfilingFilter() {
+        return argumentProfilingFilter;
+    }
+
+    public void setArgumentProfilingFilter(ClassMethodArgumentFilter argumentProfilingFilter) {
+        this.argumentProfilingFilter = argumentProfilingFilter;
+    }
+
+    public ClassAndMethodFilter getInvocationCountingFilter() {
+        return invocationCountingFilter;
+    }
+
+    public void setInvocationCountingFilter(ClassAndMethodFilter invocationCountingFilter) {
+        this.invocationCountingFilter = invocationCountingFilter;
+    }
+
+    public TimeUnit getDurationTimeUnit() {
+        return durationTimeUnit;
+    }
+
+    public void setDurationTimeUnit(TimeUnit durationTimeUnit) {
+        this.durationTimeUnit = durationTimeUnit;
+    }
+
+    public boolean isCallTree() {
+        return callTree;
+    }
+
+    public void setCallTree(boolean callTree) {
+        this.callTree = callTree;
+    }
+}
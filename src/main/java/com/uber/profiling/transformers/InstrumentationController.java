@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.transformers;
+
+import com.uber.profiling.Arguments;
+import com.uber.profiling.util.AgentLogger;
+import com.uber.profiling.util.ClassAndMethod;
+import com.uber.profiling.util.ClassAndMethodFilter;
+import com.uber.profiling.util.ClassMethodArgument;
+import com.uber.profiling.util.ClassNamePrefixTrie;
+import com.uber.profiling.util.MethodProfilingOptions;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * InstrumentationController changes profiled methods of JavaAgentFileTransformer at runtime, and retransforms loaded
+ * classes affected by the change. Classes no longer matching any profiled method get their original byte code back,
+ * so removed methods have no overhead afterwards.
+ */
+public class InstrumentationController implements InstrumentationControllerMBean {
+    public static final String OBJECT_NAME = "com.uber.profiling:type=InstrumentationController";
+
+    private static final AgentLogger logger = AgentLogger.getLogger(InstrumentationController.class.getName());
+
+    private final JavaAgentFileTransformer transformer;
+    private final ClassRetransformer classRetransformer;
+
+    private final List<ClassAndMethod> durationProfiling = new ArrayList<>();
+    private final Map<ClassAndMethod, MethodProfilingOptions> durationProfilingOptions = new HashMap<>();
+    private final List<ClassMethodArgument> argumentProfiling = new ArrayList<>();
+
+    public InstrumentationController(JavaAgentFileTransformer transformer, ClassRetransformer classRetransformer,
+                                     List<ClassAndMethod> durationProfiling, Map<ClassAndMethod, MethodProfilingOptions> durationProfilingOptions,
+                                     List<ClassMethodArgument> argumentProfiling) {
+        this.transformer = transformer;
+        this.classRetransformer = classRetransformer;
+        this.durationProfiling.addAll(durationProfiling);
+        this.durationProfilingOptions.putAll(durationProfilingOptions);
+        this.argumentProfiling.addAll(argumentProfiling);
+    }
+
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+            logger.info("Registered MBean: " + OBJECT_NAME);
+        } catch (Throwable ex) {
+            logger.warn("Failed to register MBean: " + OBJECT_NAME, ex);
+        }
+    }
+
+    @Override
+    public synchronized List<String> getDurationProfiling() {
+        List<String> result = new ArrayList<>();
+        for (ClassAndMethod classAndMethod : durationProfiling) {
+            MethodProfilingOptions options = durationProfilingOptions.get(classAndMethod);
+            result.add(options == null ? classAndMethod.toString() : classAndMethod + MethodProfilingOptions.OPTION_SEPARATOR + options);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized List<String> getArgumentProfiling() {
+        List<String> result = new ArrayList<>();
+        for (ClassMethodArgument classMethodArgument : argumentProfiling) {
+            String value = classMethodArgument.getClassName() + "." + classMethodArgument.getMethodName() + "." + classMethodArgument.getArgumentIndex();
+            // Keep the option so the listed value can be passed back to removeArgumentProfiling
+            result.add(classMethodArgument.isNumeric() ? value + MethodProfilingOptions.OPTION_SEPARATOR + ClassMethodArgument.OPTION_NUMERIC : value);
+        }
+        return result;
+    }
+
+    @Override
+    public long getRetransformBatchCount() {
+        return classRetransformer.getBatchCount();
+    }
+
+    @Override
+    public long getRetransformClassCount() {
+        return classRetransformer.getClassCount();
+    }
+
+    @Override
+    public long getRetransformTotalBatchMillis() {
+        return classRetransformer.getTotalBatchMillis();
+    }
+
+    @Override
+    public long getRetransformMaxBatchMillis() {
+        return classRetransformer.getMaxBatchMillis();
+    }
+
+    @Override
+    public synchronized int addDurationProfiling(String value) {
+        ClassAndMethod classAndMethod = Arguments.parseDurationProfiling(value);
+        MethodProfilingOptions options = Arguments.parseDurationProfilingOptions(value);
+
+        boolean exists = durationProfiling.contains(classAndMethod);
+        if (exists && Objects.equals(options, durationProfilingOptions.get(classAndMethod))) {
+            return 0;
+        }
+
+        if (!exists) {
+            durationProfiling.add(classAndMethod);
+        }
+        if (options == null) {
+            durationProfilingOptions.remove(classAndMethod);
+        } else {
+            durationProfilingOptions.put(classAndMethod, options);
+        }
+
+        logger.info("Added durationProfiling: " + value);
+        return update(Collections.singletonList(classAndMethod), Collections.emptyList());
+    }
+
+    @Override
+    public synchronized int removeDurationProfiling(String value) {
+        ClassAndMethod classAndMethod = Arguments.parseDurationProfiling(value);
+        if (!durationProfiling.removeIf(t -> t.equals(classAndMethod))) {
+            return 0;
+        }
+        durationProfilingOptions.remove(classAndMethod);
+
+        logger.info("Removed durationProfiling: " + value);
+        return update(Collections.singletonList(classAndMethod), Collections.emptyList());
+    }
+
+    @Override
+    public synchronized int addArgumentProfiling(String value) {
+        ClassMethodArgument classMethodArgument = Arguments.parseArgumentProfiling(value);
+        if (argumentProfiling.contains(classMethodArgument)) {
+            return 0;
+        }
+        argumentProfiling.add(classMethodArgument);
+
+        logger.info("Added argumentProfiling: " + value);
+        return update(Collections.emptyList(), Collections.singletonList(classMethodArgument.getClassName()));
+    }
+
+    @Override
+    public synchronized int removeArgumentProfiling(String value) {
+        ClassMethodArgument classMethodArgument = Arguments.parseArgumentProfiling(value);
+        if (!argumentProfiling.removeIf(t -> t.equals(classMethodArgument))) {
+            return 0;
+        }
+
+        logger.info("Removed argumentProfiling: " + value);
+        return update(Collections.emptyList(), Collections.singletonList(classMethodArgument.getClassName()));
+    }
+
+    @Override
+    public synchronized int removeAll() {
+        List<ClassAndMethod> changedDurationProfiling = new ArrayList<>(durationProfiling);
+        List<String> changedArgumentClassNames = new ArrayList<>();
+        argumentProfiling.forEach(t -> changedArgumentClassNames.add(t.getClassName()));
+
+        durationProfiling.clear();
+        durationProfilingOptions.clear();
+        argumentProfiling.clear();
+
+        logger.info("Removed all durationProfiling and argumentProfiling");
+        return update(changedDurationProfiling, changedArgumentClassNames);
+    }
+
+    // Update transformer, then retransform loaded classes matching the changed durationProfiling rules (which could
+    // select classes by glob, supertype or annotation) or the changed argumentProfiling class name prefixes
+    private int update(List<ClassAndMethod> changedDurationProfiling, Collection<String> changedArgumentClassNames) {
+        transformer.updateProfiling(new ArrayList<>(durationProfiling), new HashMap<>(durationProfilingOptions), new ArrayList<>(argumentProfiling));
+
+        ClassAndMethodFilter changedDurationProfilingFilter = new ClassAndMethodFilter(changedDurationProfiling);
+        ClassNamePrefixTrie classNamePrefixes = new ClassNamePrefixTrie();
+        int index = 0;
+        for (String className : changedArgumentClassNames) {
+            classNamePrefixes.put(className, index++);
+        }
+
+        if (changedDurationProfilingFilter.isEmpty() && classNamePrefixes.isEmpty()) {
+            return 0;
+        }
+
+        return classRetransformer.retransform(classRetransformer.getLoadedClasses(
+                clazz -> changedDurationProfilingFilter.matchClass(clazz) || classNamePrefixes.matchPrefix(clazz.getName())));
+    }
+}
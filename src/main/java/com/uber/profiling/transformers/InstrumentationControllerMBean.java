@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.transformers;
+
+import java.util.List;
+
+/**
+ * JMX interface to add or remove profiled methods at runtime. Values use the same format as durationProfiling and
+ * argumentProfiling agent arguments, e.g. com.foo.Bar.baz@sampleRate:100 and com.foo.Bar.baz.1.
+ */
+public interface InstrumentationControllerMBean {
+    List<String> getDurationProfiling();
+
+    List<String> getArgumentProfiling();
+
+    long getRetransformBatchCount();
+
+    long getRetransformClassCount();
+
+    long getRetransformTotalBatchMillis();
+
+    long getRetransformMaxBatchMillis();
+
+    /**
+     * Return number of retransformed classes.
+     */
+    int addDurationProfiling(String value);
+
+    int removeDurationProfiling(String value);
+
+    int addArgumentProfiling(String value);
+
+    int removeArgumentProfiling(String value);
+
+    /**
+     * Remove all profiled methods and restore original byte code of instrumented classes.
+     */
+    int removeAll();
+}
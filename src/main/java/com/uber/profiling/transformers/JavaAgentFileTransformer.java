@@ -21,26 +21,51 @@ import com.uber.profiling.util.ClassAndMethod;
 import com.uber.profiling.util.ClassAndMethodFilter;
 import com.uber.profiling.util.ClassMethodArgument;
 import com.uber.profiling.util.ClassMethodArgumentFilter;
-import javassist.ClassPool;
-import javassist.CtClass;
-import javassist.CtMethod;
-import javassist.LoaderClassPath;
+import com.uber.profiling.util.MethodProfilingOptions;
 
-import java.io.ByteArrayInputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
 import java.util.List;
+import java.util.Map;
 
 public class JavaAgentFileTransformer implements ClassFileTransformer {
+    public static final String WEAVER_JAVASSIST = "javassist";
+    public static final String WEAVER_ASM = "asm";
+
     private static final AgentLogger logger = AgentLogger.getLogger(JavaAgentFileTransformer.class.getName());
 
-    private ClassAndMethodFilter durationProfilingFilter;
-    private ClassMethodArgumentFilter argumentFilterProfilingFilter;
+    // Weaver and options fixed at startup, invocation counting is cheap enough to keep for the lifetime of the process
+    private final ClassWeaverSettings settings;
+
+    // Replaced as a whole when profiling targets are updated at runtime, see updateProfiling
+    private volatile WeavingRules weavingRules;
+
+    public JavaAgentFileTransformer(ClassWeaverSettings settings) {
+        this.settings = new ClassWeaverSettings(settings);
+        this.weavingRules = new WeavingRules(this.settings, createClassWeaver(this.settings));
+    }
+
+    /**
+     * Replace the methods to profile. This only affects classes transformed afterwards, already loaded classes need
+     * to be retransformed (see InstrumentationController).
+     */
+    public void updateProfiling(List<ClassAndMethod> durationProfiling, Map<ClassAndMethod, MethodProfilingOptions> durationProfilingOptions, List<ClassMethodArgument> argumentProfiling) {
+        ClassWeaverSettings newSettings = new ClassWeaverSettings(settings);
+        newSettings.setDurationProfilingFilter(new ClassAndMethodFilter(durationProfiling, durationProfilingOptions));
+        newSettings.setArgumentProfilingFilter(new ClassMethodArgumentFilter(argumentProfiling));
+        this.weavingRules = new WeavingRules(newSettings, createClassWeaver(newSettings));
+    }
 
-    public JavaAgentFileTransformer(List<ClassAndMethod> durationProfiling, List<ClassMethodArgument> argumentProfiling) {
-        this.durationProfilingFilter = new ClassAndMethodFilter(durationProfiling);
-        this.argumentFilterProfilingFilter = new ClassMethodArgumentFilter(argumentProfiling);
+    public static ClassWeaver createClassWeaver(ClassWeaverSettings settings) {
+        String weaver = settings.getWeaver();
+        if (WEAVER_JAVASSIST.equals(weaver)) {
+            return new JavassistClassWeaver(settings);
+        } else if (WEAVER_ASM.equals(weaver)) {
+            return new AsmClassWeaver(settings);
+        } else {
+            throw new IllegalArgumentException("Unsupported weaver: " + weaver);
+        }
     }
 
     @Override
@@ -50,112 +75,74 @@ public class JavaAgentFileTransformer implements ClassFileTransformer {
                 logger.debug("Hit null or empty class name");
                 return null;
             }
-            return transformImpl(loader, className, classfileBuffer);
+            return transformImpl(loader, className, protectionDomain, classfileBuffer);
         } catch (Throwable ex) {
             logger.warn("Failed to transform class " + className, ex);
             return classfileBuffer;
         }
     }
 
-    private byte[] transformImpl(ClassLoader loader, String className, byte[] classfileBuffer) {
-        if (durationProfilingFilter.isEmpty()
-                && argumentFilterProfilingFilter.isEmpty()) {
+    private byte[] transformImpl(ClassLoader loader, String className, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        WeavingRules rules = weavingRules;
+
+        if (rules.durationProfilingFilter.isEmpty()
+                && rules.argumentFilterProfilingFilter.isEmpty()
+                && rules.invocationCountingFilter.isEmpty()) {
             return null;
         }
 
-        String normalizedClassName = className.replaceAll("/", ".");
-        logger.debug("Checking class for transform: " + normalizedClassName);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Checking class for transform: " + className);
+        }
 
-        if (!durationProfilingFilter.matchClass(normalizedClassName)
-                && !argumentFilterProfilingFilter.matchClass(normalizedClassName)) {
-            return null;
+        // Filters match internal class names directly, so classes which are not instrumented are rejected
+        // without normalizing their names
+        if (!rules.durationProfilingFilter.matchClassName(className)
+                && !rules.argumentFilterProfilingFilter.matchClass(className)
+                && !rules.invocationCountingFilter.matchClassName(className)) {
+            // Other classes could only be selected by supertype or annotation rules
+            boolean selectorRules = rules.durationProfilingFilter.hasSubtypeRules() || rules.durationProfilingFilter.hasAnnotationRules()
+                    || rules.invocationCountingFilter.hasSubtypeRules() || rules.invocationCountingFilter.hasAnnotationRules();
+            if (!selectorRules || !ClassAndMethodFilter.isSelectableClass(loader, protectionDomain)) {
+                return null;
+            }
         }
 
+        String normalizedClassName = className.replace('/', '.');
+
         byte[] byteCode;
 
-        logger.info("Transforming class: " + normalizedClassName);
+        // Supertype and annotation rules let every class through, so only transformed classes are logged as info
+        if (logger.isDebugEnabled()) {
+            logger.debug("Transforming class: " + normalizedClassName);
+        }
 
         try {
-            ClassPool classPool = new ClassPool();
-            classPool.appendClassPath(new LoaderClassPath(loader));
-            final CtClass ctClass;
-            try (ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(classfileBuffer)) {
-                ctClass = classPool.makeClass(byteArrayInputStream);
-            }
-            
-            CtMethod[] ctMethods = ctClass.getDeclaredMethods();
-            for (CtMethod ctMethod : ctMethods) {
-                boolean enableDurationProfiling = durationProfilingFilter.matchMethod(ctClass.getName(), ctMethod.getName());
-                List<Integer> enableArgumentProfiler = argumentFilterProfilingFilter.matchMethod(ctClass.getName(), ctMethod.getName());
-                transformMethod(normalizedClassName, ctMethod, enableDurationProfiling, enableArgumentProfiler);
-            }
-
-            byteCode = ctClass.toBytecode();
-            ctClass.detach();
-
+            byteCode = rules.classWeaver.weave(loader, normalizedClassName, classfileBuffer);
         } catch (Throwable ex) {
             ex.printStackTrace();
             logger.warn("Failed to transform class: " + normalizedClassName, ex);
             byteCode = null;
         }
 
-        return byteCode;
-    }
-
-    private void transformMethod(String normalizedClassName, CtMethod method, boolean enableDurationProfiling, List<Integer> argumentsForProfile) {
-        if (method.isEmpty()) {
-            logger.info("Ignored empty class method: " + method.getLongName());
-            return;
-        }
-
-        if (!enableDurationProfiling && argumentsForProfile.isEmpty()) {
-            return;
+        if (byteCode != null) {
+            logger.info("Transformed class: " + normalizedClassName);
         }
 
-        try {
-            if (enableDurationProfiling) {
-                method.addLocalVariable("startMillis_java_agent_instrument", CtClass.longType);
-                method.addLocalVariable("durationMillis_java_agent_instrument", CtClass.longType);
-            }
-
-            StringBuilder sb = new StringBuilder();
-            sb.append("{");
-
-            if (enableDurationProfiling) {
-                sb.append("startMillis_java_agent_instrument = System.currentTimeMillis();");
-            }
-
-            for (Integer argument : argumentsForProfile) {
-                if (argument >= 1) {
-                    sb.append(String.format("try{com.uber.profiling.transformers.MethodProfilerStaticProxy.collectMethodArgument(\"%s\", \"%s\", %s, String.valueOf($%s));}catch(Throwable ex){ex.printStackTrace();}",
-                            normalizedClassName,
-                            method.getName(),
-                            argument,
-                            argument));
-                } else {
-                    sb.append(String.format("try{com.uber.profiling.transformers.MethodProfilerStaticProxy.collectMethodArgument(\"%s\", \"%s\", %s, \"\");}catch(Throwable ex){ex.printStackTrace();}",
-                            normalizedClassName,
-                            method.getName(),
-                            argument,
-                            argument));
-                }
-            }
-
-            sb.append("}");
-
-            method.insertBefore(sb.toString());
-
-            if (enableDurationProfiling) {
-                method.insertAfter("{" +
-                        "durationMillis_java_agent_instrument = System.currentTimeMillis() - startMillis_java_agent_instrument;" +
-                        String.format("try{com.uber.profiling.transformers.MethodProfilerStaticProxy.collectMethodDuration(\"%s\", \"%s\", durationMillis_java_agent_instrument);}catch(Throwable ex){ex.printStackTrace();}", normalizedClassName, method.getName()) +
-                        "}");
-            }
+        return byteCode;
+    }
 
-            logger.info("Transformed class method: " + method.getLongName() + ", durationProfiling: " + enableDurationProfiling + ", argumentProfiling: " + argumentsForProfile);
-        } catch (Throwable ex) {
-            ex.printStackTrace();
-            logger.warn("Failed to transform class method: " + method.getLongName(), ex);
+    private static class WeavingRules {
+        private final ClassAndMethodFilter durationProfilingFilter;
+        private final ClassMethodArgumentFilter argumentFilterProfilingFilter;
+        private final ClassAndMethodFilter invocationCountingFilter;
+        private final ClassWeaver classWeaver;
+
+        private WeavingRules(ClassWeaverSettings settings, ClassWeaver classWeaver) {
+            this.durationProfilingFilter = settings.getDurationProfilingFilter();
+            this.argumentFilterProfilingFilter = settings.getArgumentProfilingFilter();
+            this.invocationCountingFilter = settings.getInvocationCountingFilter();
+            this.classWeaver = classWeaver;
         }
     }
 }
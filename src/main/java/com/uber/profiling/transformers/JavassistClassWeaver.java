@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.transformers;
+
+import com.uber.profiling.util.AgentLogger;
+import com.uber.profiling.util.ClassAndMethodFilter;
+import com.uber.profiling.util.ClassMethodArgumentFilter;
+import com.uber.profiling.util.MethodIdRegistry;
+import com.uber.profiling.util.MethodProfilingOptions;
+import javassist.ClassPool;
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.NotFoundException;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.Descriptor;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.annotation.Annotation;
+import javassist.compiler.CompileError;
+import javassist.compiler.Javac;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JavassistClassWeaver injects profiling code as Java source compiled by Javassist.
+ */
+public class JavassistClassWeaver implements ClassWeaver {
+    private static final AgentLogger logger = AgentLogger.getLogger(JavassistClassWeaver.class.getName());
+
+    private final ClassAndMethodFilter durationProfilingFilter;
+    private final ClassMethodArgumentFilter argumentFilterProfilingFilter;
+    private final ClassAndMethodFilter invocationCountingFilter;
+    private final String durationClockExpression;
+    private final boolean nanoTimeClock;
+    private final boolean callTree;
+
+    private final ClassPoolCache classPoolCache = new ClassPoolCache();
+
+    public JavassistClassWeaver(ClassWeaverSettings settings) {
+        this.durationProfilingFilter = settings.getDurationProfilingFilter();
+        this.argumentFilterProfilingFilter = settings.getArgumentProfilingFilter();
+        this.invocationCountingFilter = settings.getInvocationCountingFilter();
+        this.durationClockExpression = getClockExpression(settings.getDurationTimeUnit());
+        this.nanoTimeClock = settings.getDurationTimeUnit() == TimeUnit.NANOSECONDS;
+        this.callTree = settings.isCallTree();
+    }
+
+    // System.nanoTime() is monotonic and has sub-millisecond resolution, System.currentTimeMillis() is kept as default
+    // so existing duration metrics do not change their unit
+    private static String getClockExpression(TimeUnit durationTimeUnit) {
+        if (durationTimeUnit == TimeUnit.MILLISECONDS) {
+            return "System.currentTimeMillis()";
+        } else if (durationTimeUnit == TimeUnit.NANOSECONDS) {
+            return "System.nanoTime()";
+        } else {
+            throw new IllegalArgumentException("Unsupported duration time unit: " + durationTimeUnit);
+        }
+    }
+
+    @Override
+    public byte[] weave(ClassLoader loader, String normalizedClassName, byte[] classfileBuffer) throws Exception {
+        ClassPool classPool = classPoolCache.getClassPool(loader);
+        final CtClass ctClass;
+        try (ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(classfileBuffer)) {
+            ctClass = classPool.makeClass(byteArrayInputStream);
+        }
+
+        // The class pool is shared by later transformations, so always remove the transformed class from it
+        try {
+            // Constructors and class initializer are named <init> and <clinit> like in the class file
+            List<CtBehavior> ctBehaviors = new ArrayList<>(Arrays.asList(ctClass.getDeclaredMethods()));
+            ctBehaviors.addAll(Arrays.asList(ctClass.getDeclaredConstructors()));
+            if (ctClass.getClassInitializer() != null) {
+                ctBehaviors.add(ctClass.getClassInitializer());
+            }
+            // Supertypes are only resolved for supertype rules, since they may need to load other classes
+            Set<String> superTypeNames = durationProfilingFilter.hasSubtypeRules() || invocationCountingFilter.hasSubtypeRules()
+                    ? getSuperTypeNames(ctClass) : Collections.emptySet();
+            boolean annotationRules = durationProfilingFilter.hasAnnotationRules() || invocationCountingFilter.hasAnnotationRules();
+
+            boolean transformed = false;
+            for (CtBehavior ctBehavior : ctBehaviors) {
+                String methodName = ctBehavior.getMethodInfo().getName();
+                Set<String> annotationNames = annotationRules ? getAnnotationNames(ctBehavior) : Collections.emptySet();
+                boolean enableDurationProfiling = durationProfilingFilter.matchMethod(ctClass.getName(), superTypeNames, methodName, annotationNames);
+                MethodProfilingOptions options = durationProfilingFilter.getMethodOptions(ctClass.getName(), superTypeNames, methodName, annotationNames);
+                List<Integer> enableArgumentProfiler = argumentFilterProfilingFilter.matchMethod(ctClass.getName(), methodName);
+                List<Integer> enableNumericArgumentProfiler = argumentFilterProfilingFilter.matchNumericMethod(ctClass.getName(), methodName);
+                boolean enableInvocationCounting = invocationCountingFilter.matchMethod(ctClass.getName(), superTypeNames, methodName, annotationNames);
+                transformed |= transformMethod(normalizedClassName, ctBehavior, methodName, enableDurationProfiling, options, enableArgumentProfiler, enableNumericArgumentProfiler, enableInvocationCounting);
+            }
+
+            // Supertype and annotation rules let all classes through the class name check, most of them do not
+            // have matching methods and are kept unchanged
+            if (!transformed) {
+                return null;
+            }
+
+            return ctClass.toBytecode();
+        } finally {
+            ctClass.detach();
+        }
+    }
+
+    // Return whether the method is transformed
+    private boolean transformMethod(String normalizedClassName, CtBehavior method, String methodName, boolean enableDurationProfiling, MethodProfilingOptions options, List<Integer> argumentsForProfile, List<Integer> numericArgumentsForProfile, boolean enableInvocationCounting) {
+        if (!enableDurationProfiling && argumentsForProfile.isEmpty() && numericArgumentsForProfile.isEmpty() && !enableInvocationCounting) {
+            return false;
+        }
+
+        if (method.isEmpty()) {
+            logger.info("Ignored empty class method: " + method.getLongName());
+            return false;
+        }
+
+        try {
+            // The constructor called by this() records the construction, so each object construction is only recorded
+            // once
+            if (method instanceof CtConstructor && ((CtConstructor) method).isConstructor() && !((CtConstructor) method).callsSuper()) {
+                logger.info("Ignored constructor delegating to another constructor: " + method.getLongName());
+                return false;
+            }
+
+            // Duration profiling and invocation counting of the same method share its id
+            int methodId = MethodIdRegistry.getInstance().register(normalizedClassName, methodName);
+            String descriptor = method.getMethodInfo().getDescriptor();
+
+            if (enableDurationProfiling) {
+                method.addLocalVariable("startTime_java_agent_instrument", CtClass.longType);
+                method.addLocalVariable("duration_java_agent_instrument", CtClass.longType);
+                method.addLocalVariable("completed_java_agent_instrument", CtClass.booleanType);
+                if (options.isSampled()) {
+                    method.addLocalVariable("sampled_java_agent_instrument", CtClass.booleanType);
+                }
+                if (options.isResourceUsage()) {
+                    method.addLocalVariable("cpuTime_java_agent_instrument", CtClass.longType);
+                    method.addLocalVariable("allocatedBytes_java_agent_instrument", CtClass.longType);
+                }
+                if (options.isConcurrency()) {
+                    method.addLocalVariable("concurrencyStart_java_agent_instrument", CtClass.longType);
+                }
+
+                MethodIdRegistry.getInstance().setOptions(methodId, options);
+                String collectSuccessCode = String.format("com.uber.profiling.transformers.MethodProfilerStaticProxy.collectMethodDurationSuccess(%s, duration_java_agent_instrument);", methodId);
+                if (options.isAsync()) {
+                    char returnType = descriptor.charAt(descriptor.indexOf(')') + 1);
+                    if (returnType != 'L') {
+                        logger.warn("Ignored async option for class method not returning an object: " + method.getLongName());
+                    } else {
+                        // Only on normal return, the duration is recorded when the returned value ($_) completes
+                        collectSuccessCode = String.format("com.uber.profiling.transformers.MethodProfilerStaticProxy.collectMethodDurationAsync(%s, $_, startTime_java_agent_instrument, %s);",
+                                methodId, nanoTimeClock);
+                    }
+                }
+                String collectCode = "duration_java_agent_instrument = " + durationClockExpression + " - startTime_java_agent_instrument;" + collectSuccessCode;
+                String collectErrorCode = "duration_java_agent_instrument = " + durationClockExpression + " - startTime_java_agent_instrument;" +
+                        String.format("com.uber.profiling.transformers.MethodProfilerStaticProxy.collectMethodDurationError(%s, duration_java_agent_instrument);", methodId);
+                if (options.getSlowThreshold() > 0) {
+                    String collectSlowInvocationCode = String.format("if (duration_java_agent_instrument > %sL) {com.uber.profiling.transformers.MethodProfilerStaticProxy.collectSlowInvocation(%s, duration_java_agent_instrument, %s);}",
+                            options.getSlowThreshold(), methodId, getSlowInvocationArguments(argumentsForProfile));
+                    collectCode += collectSlowInvocationCode;
+                    collectErrorCode += collectSlowInvocationCode;
+                }
+                if (options.isCaller()) {
+                    String collectCallerCode = String.format("com.uber.profiling.transformers.MethodProfilerStaticProxy.collectMethodCallerDuration(%s, duration_java_agent_instrument);", methodId);
+                    collectCode += collectCallerCode;
+                    collectErrorCode += collectCallerCode;
+                }
+                if (options.isReturnValue()) {
+                    char returnType = descriptor.charAt(descriptor.indexOf(')') + 1);
+                    if (returnType == 'V') {
+                        logger.warn("Ignored returnValue option for void class method: " + method.getLongName());
+                    } else {
+                        // Only on normal return, $_ is the returned value
+                        collectCode += String.format("com.uber.profiling.transformers.MethodProfilerStaticProxy.collectMethodReturnValue(%s, %s);",
+                                methodId, getNumericValue(returnType, "$_"));
+                    }
+                }
+                if (options.isResourceUsage()) {
+                    String collectResourceUsageCode = String.format("com.uber.profiling.transformers.MethodProfilerStaticProxy.collectMethodResourceUsage(%s, cpuTime_java_agent_instrument, allocatedBytes_java_agent_instrument);", methodId);
+                    collectCode += collectResourceUsageCode;
+                    collectErrorCode += collectResourceUsageCode;
+                }
+                if (options.isSampled()) {
+                    collectCode = "if (sampled_java_agent_instrument) {" + collectCode + "}";
+                    collectErrorCode = "if (sampled_java_agent_instrument) {" + collectErrorCode + "}";
+                }
+                if (callTree) {
+                    // The call stack is kept for every invocation, also when duration is not sampled
+                    collectCode += "com.uber.profiling.transformers.MethodProfilerStaticProxy.exitCallTree();";
+                    collectErrorCode += "com.uber.profiling.transformers.MethodProfilerStaticProxy.exitCallTree();";
+                }
+                if (options.isConcurrency()) {
+                    // Threads inside the method are also counted for every invocation
+                    String exitConcurrencyCode = String.format("com.uber.profiling.transformers.MethodProfilerStaticProxy.exitConcurrency(%s, concurrencyStart_java_agent_instrument);", methodId);
+                    collectCode += exitConcurrencyCode;
+                    collectErrorCode += exitConcurrencyCode;
+                }
+
+                // Javassist code inserted as finally or catch could not tell how the method exits, or could not
+                // access local variables, so they are combined: the code after normal return marks the invocation
+                // completed, a catch clause counts the exception type, and a finally block records duration of
+                // invocations not completed. These are inserted before the code at method start, which is not
+                // covered by the exception handlers, so the local variables are always assigned in the handlers.
+                method.insertAfter("{completed_java_agent_instrument = true;" + collectCode + "}");
+                method.addCatch(String.format("{com.uber.profiling.transformers.MethodProfilerStaticProxy.collectMethodException(%s, $e); throw $e;}", methodId),
+                        method.getDeclaringClass().getClassPool().get("java.lang.Throwable"));
+                method.insertAfter("{if (!completed_java_agent_instrument) {" + collectErrorCode + "}}", true);
+            }
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("{");
+
+            if (enableDurationProfiling) {
+                sb.append("completed_java_agent_instrument = false;");
+            }
+
+            if (enableInvocationCounting) {
+                // Only increments a counter, the proxy method catches its own exceptions
+                sb.append(String.format("com.uber.profiling.transformers.MethodProfilerStaticProxy.countMethodInvocation(%s);", methodId));
+            }
+
+            for (Integer argument : argumentsForProfile) {
+                if (argument >= 1) {
+                    sb.append(String.format("try{com.uber.profiling.transformers.MethodProfilerStaticProxy.collectMethodArgument(\"%s\", \"%s\", %s, String.valueOf($%s));}catch(Throwable ex){ex.printStackTrace();}",
+                            normalizedClassName,
+                            methodName,
+                            argument,
+                            argument));
+                } else {
+                    sb.append(String.format("try{com.uber.profiling.transformers.MethodProfilerStaticProxy.collectMethodArgument(\"%s\", \"%s\", %s, \"\");}catch(Throwable ex){ex.printStackTrace();}",
+                            normalizedClassName,
+                            methodName,
+                            argument,
+                            argument));
+                }
+            }
+
+            for (Integer argument : numericArgumentsForProfile) {
+                String argumentValue = getNumericArgumentValue(descriptor, argument);
+                if (argumentValue == null) {
+                    logger.warn("Ignored numeric argument profiling for class method: " + method.getLongName() + ", argument index: " + argument);
+                    continue;
+                }
+                // Primitive values are passed without boxing, the proxy method catches its own exceptions
+                sb.append(String.format("com.uber.profiling.transformers.MethodProfilerStaticProxy.collectNumericMethodArgument(%s, %s, %s);",
+                        methodId,
+                        argument,
+                        argumentValue));
+            }
+
+            // Start time is recorded after collecting arguments, otherwise Javassist loses the start time local
+            // variable in the stack map frames after the try/catch blocks for arguments
+            if (enableDurationProfiling) {
+                String sampledCondition = "";
+                if (options.isSampled()) {
+                    // Only sampled invocations take timestamps, ThreadLocalRandom is cheap and not shared between threads
+                    sb.append("sampled_java_agent_instrument = java.util.concurrent.ThreadLocalRandom.current().nextInt(" + options.getSampleRate() + ") == 0;");
+                    sampledCondition = "sampled_java_agent_instrument ? ";
+                }
+                String sampledElse = options.isSampled() ? " : 0L;" : ";";
+                if (options.isResourceUsage()) {
+                    sb.append("cpuTime_java_agent_instrument = " + sampledCondition + "com.uber.profiling.transformers.MethodProfilerStaticProxy.getThreadCpuTime()" + sampledElse);
+                    sb.append("allocatedBytes_java_agent_instrument = " + sampledCondition + "com.uber.profiling.transformers.MethodProfilerStaticProxy.getThreadAllocatedBytes()" + sampledElse);
+                }
+                // The clock is read last, so the duration does not include reading resource usage
+                sb.append("startTime_java_agent_instrument = " + sampledCondition + durationClockExpression + sampledElse);
+                if (callTree) {
+                    sb.append(String.format("com.uber.profiling.transformers.MethodProfilerStaticProxy.enterCallTree(%s);", methodId));
+                }
+                if (options.isConcurrency()) {
+                    sb.append(String.format("concurrencyStart_java_agent_instrument = com.uber.profiling.transformers.MethodProfilerStaticProxy.enterConcurrency(%s);", methodId));
+                }
+            }
+
+            sb.append("}");
+
+            if (method instanceof CtConstructor && ((CtConstructor) method).isConstructor()) {
+                // Code inserted before super() could not use this, and exceptions thrown by super() could not be
+                // caught, so constructors are profiled after calling super()
+                insertBeforeConstructorBody((CtConstructor) method, sb.toString());
+            } else {
+                method.insertBefore(sb.toString());
+            }
+
+            logger.info("Transformed class method: " + method.getLongName() + ", durationProfiling: " + enableDurationProfiling + (enableDurationProfiling ? ", options: " + options : "") + ", argumentProfiling: " + argumentsForProfile + (numericArgumentsForProfile.isEmpty() ? "" : ", numericArgumentProfiling: " + numericArgumentsForProfile) + ", invocationCounting: " + enableInvocationCounting);
+            return true;
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+            logger.warn("Failed to transform class method: " + method.getLongName(), ex);
+            // The method may be partially transformed
+            return true;
+        }
+    }
+
+    // Names of all superclasses and interfaces of the class, supertypes not found by the class pool are skipped
+    private static Set<String> getSuperTypeNames(CtClass ctClass) {
+        Set<String> result = new HashSet<>();
+        List<CtClass> pending = new ArrayList<>();
+        pending.add(ctClass);
+        while (!pending.isEmpty()) {
+            CtClass type = pending.remove(pending.size() - 1);
+            List<String> superTypeNames = new ArrayList<>(Arrays.asList(type.getClassFile2().getInterfaces()));
+            if (type.getClassFile2().getSuperclass() != null && !type.isInterface()) {
+                superTypeNames.add(type.getClassFile2().getSuperclass());
+            }
+            for (String superTypeName : superTypeNames) {
+                if (!result.add(superTypeName)) {
+                    continue;
+                }
+                try {
+                    pending.add(type.getClassPool().get(superTypeName));
+                } catch (NotFoundException ex) {
+                    logger.debug("Could not find supertype " + superTypeName + " of class " + ctClass.getName());
+                }
+            }
+        }
+        return result;
+    }
+
+    // Type names of visible and invisible annotations on the method
+    private static Set<String> getAnnotationNames(CtBehavior method) {
+        Set<String> result = new HashSet<>();
+        for (String tag : new String[]{AnnotationsAttribute.visibleTag, AnnotationsAttribute.invisibleTag}) {
+            AnnotationsAttribute attribute = (AnnotationsAttribute) method.getMethodInfo2().getAttribute(tag);
+            if (attribute != null) {
+                for (Annotation annotation : attribute.getAnnotations()) {
+                    result.add(annotation.getTypeName());
+                }
+            }
+        }
+        return result;
+    }
+
+    // Java source of a numeric argument value matching one of MethodProfilerStaticProxy.collectNumericMethodArgument
+    // overloads, parameter types are read from the method descriptor so they do not need to be loaded by the class pool.
+    // Return null if the method does not have the argument.
+    private static String getNumericArgumentValue(String descriptor, int argument) {
+        Descriptor.Iterator iterator = new Descriptor.Iterator(descriptor);
+        int parameterIndex = 0;
+        while (iterator.hasNext()) {
+            int position = iterator.next();
+            if (!iterator.isParameter()) {
+                break;
+            }
+            if (++parameterIndex < argument) {
+                continue;
+            }
+            return getNumericValue(descriptor.charAt(position), "$" + argument);
+        }
+        return null;
+    }
+
+    // Java source converting an expression of the descriptor type to long, double or Object, the overloads of
+    // MethodProfilerStaticProxy methods recording numeric values
+    private static String getNumericValue(char type, String expression) {
+        switch (type) {
+            case 'Z':
+                return "(" + expression + " ? 1L : 0L)";
+            case 'C':
+            case 'B':
+            case 'S':
+            case 'I':
+            case 'J':
+                return "(long) " + expression;
+            case 'F':
+            case 'D':
+                return "(double) " + expression;
+            default:
+                return "(Object) " + expression;
+        }
+    }
+
+    /**
+     * Same as CtConstructor.insertBeforeBody, which does not make local variables added by addLocalVariable visible to
+     * the inserted code.
+     */
+    private static void insertBeforeConstructorBody(CtConstructor constructor, String src) throws NotFoundException, CompileError, BadBytecode {
+        MethodInfo methodInfo = constructor.getMethodInfo();
+        CodeAttribute codeAttribute = methodInfo.getCodeAttribute();
+        CodeIterator iterator = codeAttribute.iterator();
+        int pos = iterator.skipConstructor();
+
+        Bytecode bytecode = new Bytecode(methodInfo.getConstPool(), codeAttribute.getMaxStack(), codeAttribute.getMaxLocals());
+        bytecode.setStackDepth(codeAttribute.getMaxStack());
+        Javac javac = new Javac(bytecode, constructor.getDeclaringClass());
+        javac.recordParams(constructor.getParameterTypes(), false);
+        javac.recordLocalVariables(codeAttribute, pos);
+        javac.compileStmnt(src);
+        codeAttribute.setMaxStack(bytecode.getMaxStack());
+        codeAttribute.setMaxLocals(bytecode.getMaxLocals());
+
+        pos = iterator.insertEx(bytecode.get());
+        iterator.insert(bytecode.getExceptionTable(), pos);
+        methodInfo.rebuildStackMapIf6(constructor.getDeclaringClass().getClassPool(), constructor.getDeclaringClass().getClassFile2());
+    }
+
+    // Arguments configured in argumentProfiling as Java source of an Object array, argument 0 only counts invocations
+    private static String getSlowInvocationArguments(List<Integer> argumentsForProfile) {
+        StringBuilder sb = new StringBuilder();
+        for (Integer argument : argumentsForProfile) {
+            if (argument >= 1) {
+                sb.append(sb.length() == 0 ? "" : ", ").append("($w)$").append(argument);
+            }
+        }
+        return sb.length() == 0 ? "(Object[]) null" : "new Object[]{" + sb + "}";
+    }
+}
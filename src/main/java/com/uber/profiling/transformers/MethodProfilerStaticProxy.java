@@ -18,10 +18,59 @@ package com.uber.profiling.transformers;
 
 import com.uber.profiling.profilers.MethodArgumentCollector;
 import com.uber.profiling.profilers.MethodDurationCollector;
+import com.uber.profiling.profilers.MethodDurationProfiler;
+import com.uber.profiling.util.CallTreeRecorder;
+import com.uber.profiling.util.MethodCallerRecorder;
+import com.uber.profiling.util.MethodConcurrencyRecorder;
+import com.uber.profiling.util.MethodInvocationCounter;
+import com.uber.profiling.util.SlowInvocationRecorder;
+import com.uber.profiling.util.ThreadResourceUsage;
+import com.uber.profiling.util.ValueSizeUtils;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 public class MethodProfilerStaticProxy {
     private static MethodDurationCollector collectorSingleton;
     private static MethodArgumentCollector argumentCollectorSingleton;
+    private static MethodInvocationCounter invocationCounterSingleton;
+    private static CallTreeRecorder callTreeRecorderSingleton;
+    private static SlowInvocationRecorder slowInvocationRecorderSingleton;
+    private static MethodConcurrencyRecorder concurrencyRecorderSingleton;
+    private static MethodCallerRecorder callerRecorderSingleton;
+
+    // StackWalker (Java 9+) only visits the frames needed, while Throwable fills in the whole stack, it is loaded by
+    // reflection since the agent is built for Java 8
+    private static final Object STACK_WALKER;
+    private static final Method STACK_WALKER_WALK;
+    private static final Method STACK_FRAME_TO_ELEMENT;
+    private static final Function<Stream<?>, Object[]> CALLER_FRAMES = stream -> stream.skip(1).limit(3).toArray();
+    // Frames of the profiler above the slow method (getSlowMethodStackTrace, SlowInvocationRecorder.record, etc.) are
+    // walked too and skipped afterwards
+    private static final int SLOW_INVOCATION_PROFILER_FRAMES = 8;
+    private static final Function<Stream<?>, Object[]> SLOW_METHOD_FRAMES =
+            stream -> stream.limit(SLOW_INVOCATION_PROFILER_FRAMES + SlowInvocationRecorder.MAX_STACK_DEPTH).toArray();
+
+    static {
+        Object stackWalker = null;
+        Method stackWalkerWalk = null;
+        Method stackFrameToElement = null;
+        try {
+            Class<?> stackWalkerClass = Class.forName("java.lang.StackWalker");
+            stackWalker = stackWalkerClass.getMethod("getInstance").invoke(null);
+            stackWalkerWalk = stackWalkerClass.getMethod("walk", Function.class);
+            stackFrameToElement = Class.forName("java.lang.StackWalker$StackFrame").getMethod("toStackTraceElement");
+        } catch (ReflectiveOperationException ex) {
+            stackWalker = null;
+        }
+        STACK_WALKER = stackWalker;
+        STACK_WALKER_WALK = stackWalkerWalk;
+        STACK_FRAME_TO_ELEMENT = stackFrameToElement;
+    }
 
     private MethodProfilerStaticProxy() {
     }
@@ -34,6 +83,26 @@ public class MethodProfilerStaticProxy {
         argumentCollectorSingleton = collector;
     }
 
+    public static void setInvocationCounter(MethodInvocationCounter counter) {
+        invocationCounterSingleton = counter;
+    }
+
+    public static void setCallTreeRecorder(CallTreeRecorder recorder) {
+        callTreeRecorderSingleton = recorder;
+    }
+
+    public static void setSlowInvocationRecorder(SlowInvocationRecorder recorder) {
+        slowInvocationRecorderSingleton = recorder;
+    }
+
+    public static void setConcurrencyRecorder(MethodConcurrencyRecorder recorder) {
+        concurrencyRecorderSingleton = recorder;
+    }
+
+    public static void setCallerRecorder(MethodCallerRecorder recorder) {
+        callerRecorderSingleton = recorder;
+    }
+
     public static void collectMethodDuration(String className, String methodName, long metricValue) {
         if (collectorSingleton == null) {
             return;
@@ -46,14 +115,397 @@ public class MethodProfilerStaticProxy {
         }
     }
 
+    public static void collectMethodDuration(int methodId, long metricValue) {
+        if (collectorSingleton == null) {
+            return;
+        }
+
+        try {
+            collectorSingleton.collectLongMetric(methodId, "duration", metricValue);
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    public static void collectMethodDurationSuccess(int methodId, long metricValue) {
+        if (collectorSingleton == null) {
+            return;
+        }
+
+        try {
+            collectorSingleton.collectLongMetric(methodId, MethodDurationProfiler.METRIC_DURATION_SUCCESS, metricValue);
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    public static void collectMethodDurationError(int methodId, long metricValue) {
+        if (collectorSingleton == null) {
+            return;
+        }
+
+        try {
+            collectorSingleton.collectLongMetric(methodId, MethodDurationProfiler.METRIC_DURATION_ERROR, metricValue);
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Record duration of a method with async option returning normally. If the returned value is a CompletionStage
+     * (e.g. CompletableFuture), the duration is recorded when it completes, as duration.success or duration.error with
+     * the exception type, by a callback attached to it without blocking. Otherwise (null, or a Future without
+     * completion callbacks), the duration until the method returned is recorded as duration.success. Start time is
+     * from System.nanoTime() when nanoTime is true, otherwise from System.currentTimeMillis().
+     */
+    public static void collectMethodDurationAsync(int methodId, Object returnValue, long startTime, boolean nanoTime) {
+        if (collectorSingleton == null) {
+            return;
+        }
+
+        try {
+            if (returnValue instanceof CompletionStage) {
+                ((CompletionStage<?>) returnValue).whenComplete((result, throwable) -> {
+                    try {
+                        long duration = getTime(nanoTime) - startTime;
+                        if (throwable == null) {
+                            collectorSingleton.collectLongMetric(methodId, MethodDurationProfiler.METRIC_DURATION_SUCCESS, duration);
+                        } else {
+                            // Stages depending on a failed stage wrap its exception
+                            Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                            collectorSingleton.collectLongMetric(methodId, MethodDurationProfiler.METRIC_EXCEPTION_PREFIX + cause.getClass().getName(), 1);
+                            collectorSingleton.collectLongMetric(methodId, MethodDurationProfiler.METRIC_DURATION_ERROR, duration);
+                        }
+                    } catch (Throwable ex) {
+                        ex.printStackTrace();
+                    }
+                });
+            } else {
+                collectorSingleton.collectLongMetric(methodId, MethodDurationProfiler.METRIC_DURATION_SUCCESS, getTime(nanoTime) - startTime);
+            }
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private static long getTime(boolean nanoTime) {
+        return nanoTime ? System.nanoTime() : System.currentTimeMillis();
+    }
+
+    public static void collectMethodException(int methodId, Throwable throwable) {
+        if (collectorSingleton == null) {
+            return;
+        }
+
+        try {
+            collectorSingleton.collectLongMetric(methodId, MethodDurationProfiler.METRIC_EXCEPTION_PREFIX + throwable.getClass().getName(), 1);
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Record value returned by a method with returnValue option, see collectMethodReturnValue(int, Object) for values
+     * of reference types.
+     */
+    public static void collectMethodReturnValue(int methodId, long returnValue) {
+        if (collectorSingleton == null) {
+            return;
+        }
+
+        try {
+            collectorSingleton.collectLongMetric(methodId, MethodDurationProfiler.METRIC_RETURN_VALUE, returnValue);
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    public static void collectMethodReturnValue(int methodId, double returnValue) {
+        if (collectorSingleton == null) {
+            return;
+        }
+
+        try {
+            collectorSingleton.collectLongMetric(methodId, MethodDurationProfiler.METRIC_RETURN_VALUE, Math.round(returnValue));
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Record value of a boxed number, or size of a collection, map, array, char sequence or buffer returned by a
+     * method. Null or other values are ignored, the returned value is not kept.
+     */
+    public static void collectMethodReturnValue(int methodId, Object returnValue) {
+        if (collectorSingleton == null) {
+            return;
+        }
+
+        try {
+            long value;
+            if (returnValue instanceof Number) {
+                value = ValueSizeUtils.toLong((Number) returnValue);
+            } else {
+                value = ValueSizeUtils.getSize(returnValue);
+                if (value == ValueSizeUtils.UNKNOWN_SIZE) {
+                    return;
+                }
+            }
+            collectorSingleton.collectLongMetric(methodId, MethodDurationProfiler.METRIC_RETURN_VALUE, value);
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    public static long getThreadCpuTime() {
+        return ThreadResourceUsage.getCurrentThreadCpuTime();
+    }
+
+    public static long getThreadAllocatedBytes() {
+        return ThreadResourceUsage.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Record CPU time and allocated bytes of the current thread since the values returned by getThreadCpuTime and
+     * getThreadAllocatedBytes at method entry. Values not available on this JVM are negative and skipped.
+     */
+    public static void collectMethodResourceUsage(int methodId, long startCpuTime, long startAllocatedBytes) {
+        if (collectorSingleton == null) {
+            return;
+        }
+
+        try {
+            if (startCpuTime >= 0) {
+                long cpuTime = ThreadResourceUsage.getCurrentThreadCpuTime();
+                if (cpuTime >= 0) {
+                    collectorSingleton.collectLongMetric(methodId, MethodDurationProfiler.METRIC_CPU_TIME, cpuTime - startCpuTime);
+                }
+            }
+            if (startAllocatedBytes >= 0) {
+                long allocatedBytes = ThreadResourceUsage.getCurrentThreadAllocatedBytes();
+                if (allocatedBytes >= 0) {
+                    collectorSingleton.collectLongMetric(methodId, MethodDurationProfiler.METRIC_ALLOCATED_BYTES, allocatedBytes - startAllocatedBytes);
+                }
+            }
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Record an invocation slower than the slowThreshold option of the method, with arguments configured in
+     * argumentProfiling for the method (null if none). Stack trace is only captured if the invocation is kept.
+     */
+    public static void collectSlowInvocation(int methodId, long duration, Object[] arguments) {
+        if (slowInvocationRecorderSingleton == null) {
+            return;
+        }
+
+        try {
+            slowInvocationRecorderSingleton.record(methodId, () -> new SlowInvocationRecorder.SlowInvocation(
+                    duration,
+                    System.currentTimeMillis(),
+                    Thread.currentThread().getName(),
+                    getSlowMethodStackTrace(),
+                    SlowInvocationRecorder.getArgumentValues(arguments)));
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    // Stack trace starting from the slow method, frames of the profiler itself are skipped
+    private static List<String> getSlowMethodStackTrace() {
+        StackTraceElement[] elements = getSlowMethodFrames();
+        int skipFrames = 0;
+        for (int i = 0; i < elements.length; i++) {
+            if (elements[i].getClassName().equals(MethodProfilerStaticProxy.class.getName())
+                    && elements[i].getMethodName().equals("collectSlowInvocation")) {
+                skipFrames = i + 1;
+                break;
+            }
+        }
+        return SlowInvocationRecorder.getStackTrace(elements, skipFrames);
+    }
+
+    private static StackTraceElement[] getSlowMethodFrames() {
+        if (STACK_WALKER != null) {
+            try {
+                Object[] frames = (Object[]) STACK_WALKER_WALK.invoke(STACK_WALKER, SLOW_METHOD_FRAMES);
+                StackTraceElement[] elements = new StackTraceElement[frames.length];
+                for (int i = 0; i < frames.length; i++) {
+                    elements[i] = (StackTraceElement) STACK_FRAME_TO_ELEMENT.invoke(frames[i]);
+                }
+                return elements;
+            } catch (ReflectiveOperationException ex) {
+                // Fall back to the full stack trace below
+            }
+        }
+        return new Throwable().getStackTrace();
+    }
+
+    /**
+     * Record duration of a profiled invocation of a method with caller option by its immediate caller. Finding the
+     * caller walks the stack, so this is only called for sampled invocations (MethodProfilingOptions requires
+     * sampleRate with caller option).
+     */
+    public static void collectMethodCallerDuration(int methodId, long duration) {
+        if (callerRecorderSingleton == null) {
+            return;
+        }
+
+        try {
+            StackTraceElement caller = getCallerFrame();
+            if (caller != null) {
+                callerRecorderSingleton.record(methodId, caller.getClassName(), caller.getMethodName(), duration);
+            }
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    // Frame calling the profiled method, which is the frame after collectMethodCallerDuration, or null if not found
+    private static StackTraceElement getCallerFrame() throws ReflectiveOperationException {
+        if (STACK_WALKER == null) {
+            StackTraceElement[] elements = new Throwable().getStackTrace();
+            for (int i = 0; i < elements.length - 2; i++) {
+                if (isCallerDurationFrame(elements[i])) {
+                    return elements[i + 2];
+                }
+            }
+            return null;
+        }
+
+        // Frames of collectMethodCallerDuration, the profiled method and its caller, skipping this method
+        Object[] frames = (Object[]) STACK_WALKER_WALK.invoke(STACK_WALKER, CALLER_FRAMES);
+        if (frames.length < 3 || !isCallerDurationFrame((StackTraceElement) STACK_FRAME_TO_ELEMENT.invoke(frames[0]))) {
+            return null;
+        }
+        return (StackTraceElement) STACK_FRAME_TO_ELEMENT.invoke(frames[2]);
+    }
+
+    private static boolean isCallerDurationFrame(StackTraceElement element) {
+        return element.getClassName().equals(MethodProfilerStaticProxy.class.getName())
+                && element.getMethodName().equals("collectMethodCallerDuration");
+    }
+
     public static void collectMethodArgument(String className, String methodName, int argIndex, Object argValue) {
         if (argumentCollectorSingleton == null) {
             return;
         }
 
         try {
-            String argument = "arg." + argIndex + "." + String.valueOf(argValue);
-            argumentCollectorSingleton.collectMetric(className, methodName, argument);
+            argumentCollectorSingleton.collectArgument(className, methodName, argIndex, String.valueOf(argValue));
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Record value of a numeric argument (argumentProfiling with numeric option). Primitive values are passed
+     * without boxing, boolean and char as 0/1 and character code.
+     */
+    public static void collectNumericMethodArgument(int methodId, int argIndex, long argValue) {
+        if (argumentCollectorSingleton == null) {
+            return;
+        }
+
+        try {
+            argumentCollectorSingleton.collectNumericArgument(methodId, argIndex, argValue);
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Histograms only keep long values, float and double values are rounded.
+     */
+    public static void collectNumericMethodArgument(int methodId, int argIndex, double argValue) {
+        if (argumentCollectorSingleton == null) {
+            return;
+        }
+
+        try {
+            argumentCollectorSingleton.collectNumericArgument(methodId, argIndex, Math.round(argValue));
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Boxed numbers like Integer or Long (rounded if Float or Double), null or other values are ignored.
+     */
+    public static void collectNumericMethodArgument(int methodId, int argIndex, Object argValue) {
+        if (argumentCollectorSingleton == null || !(argValue instanceof Number)) {
+            return;
+        }
+
+        try {
+            argumentCollectorSingleton.collectNumericArgument(methodId, argIndex, ValueSizeUtils.toLong((Number) argValue));
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    public static void countMethodInvocation(int methodId) {
+        if (invocationCounterSingleton == null) {
+            return;
+        }
+
+        try {
+            invocationCounterSingleton.increment(methodId);
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Called on entry of methods with concurrency option, return start time to be passed to exitConcurrency, or -1 if
+     * not recorded.
+     */
+    public static long enterConcurrency(int methodId) {
+        if (concurrencyRecorderSingleton == null) {
+            return -1;
+        }
+
+        try {
+            return concurrencyRecorderSingleton.enter(methodId);
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+            return -1;
+        }
+    }
+
+    public static void exitConcurrency(int methodId, long startNanos) {
+        if (concurrencyRecorderSingleton == null) {
+            return;
+        }
+
+        try {
+            concurrencyRecorderSingleton.exit(methodId, startNanos);
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    public static void enterCallTree(int methodId) {
+        if (callTreeRecorderSingleton == null) {
+            return;
+        }
+
+        try {
+            callTreeRecorderSingleton.enter(methodId);
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    public static void exitCallTree() {
+        if (callTreeRecorderSingleton == null) {
+            return;
+        }
+
+        try {
+            callTreeRecorderSingleton.exit();
         } catch (Throwable ex) {
             ex.printStackTrace();
         }
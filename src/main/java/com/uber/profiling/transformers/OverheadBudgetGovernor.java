@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.transformers;
+
+import com.uber.profiling.util.AgentLogger;
+import com.uber.profiling.util.ClassAndMethodFilter;
+import com.uber.profiling.util.ClassAndMethodMetricKey;
+import com.uber.profiling.util.Histogram;
+import com.uber.profiling.util.MethodIdRegistry;
+import com.uber.profiling.util.MethodProfilingOptions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OverheadBudgetGovernor estimates instrumentation overhead of each profiled method from its invocation rate, and
+ * switches methods exceeding the budget to sampling (or disables profiling them) by retransforming their classes.
+ *
+ * Overhead is estimated as percentage of one CPU core, using the cost of a profiled invocation (two clock reads plus
+ * recording into the metric buffer, plus the stack walk of caller option and the ThreadMXBean reads of resourceUsage
+ * option) and the cost of code running for every invocation (the random sampling guard and concurrency option).
+ * Call tree, invocation counting, argument profiling and thrown exceptions are not included, so the estimate is a
+ * lower bound for methods also configured with them.
+ */
+public class OverheadBudgetGovernor {
+    public static final String ACTION_SAMPLE = "sample";
+    public static final String ACTION_DISABLE = "disable";
+
+    // Measured with ClassWeaverBenchmark, rounded up
+    static final long PROFILED_INVOCATION_NANOS = 150;
+    static final long SAMPLING_GUARD_NANOS = 20;
+    static final long CONCURRENCY_NANOS = 150;
+    static final long RESOURCE_USAGE_NANOS = 1500;
+    static final long CALLER_NANOS = 10000;
+
+    private static final String DURATION_METRIC_NAME = "duration";
+
+    private static final AgentLogger logger = AgentLogger.getLogger(OverheadBudgetGovernor.class.getName());
+
+    private final InstrumentationController instrumentationController;
+    private final MethodIdRegistry methodIdRegistry;
+    private final double budgetPercent;
+    private final String action;
+
+    public OverheadBudgetGovernor(InstrumentationController instrumentationController, MethodIdRegistry methodIdRegistry, double budgetPercent, String action) {
+        if (budgetPercent <= 0) {
+            throw new IllegalArgumentException("Invalid overhead budget: " + budgetPercent);
+        }
+        if (!ACTION_SAMPLE.equals(action) && !ACTION_DISABLE.equals(action)) {
+            throw new IllegalArgumentException("Invalid overhead budget action: " + action);
+        }
+        this.instrumentationController = instrumentationController;
+        this.methodIdRegistry = methodIdRegistry;
+        this.budgetPercent = budgetPercent;
+        this.action = action;
+    }
+
+    /**
+     * Estimate overhead of methods from duration metrics collected during elapsedNanos, and apply the action to
+     * methods exceeding the budget. Return one event (as a map of fields) for each method changed.
+     */
+    public List<Map<String, Object>> check(Map<ClassAndMethodMetricKey, Histogram> metrics, long elapsedNanos) {
+        List<Map<String, Object>> events = new ArrayList<>();
+        if (elapsedNanos <= 0) {
+            return events;
+        }
+
+        double elapsedSeconds = (double) elapsedNanos / TimeUnit.SECONDS.toNanos(1);
+
+        for (Map.Entry<ClassAndMethodMetricKey, Histogram> entry : metrics.entrySet()) {
+            if (!DURATION_METRIC_NAME.equals(entry.getKey().getMetricName())) {
+                continue;
+            }
+
+            String className = entry.getKey().getClassName();
+            String methodName = entry.getKey().getMethodName();
+            MethodProfilingOptions options = methodIdRegistry.getOptions(className, methodName);
+
+            double invocationRate = entry.getValue().getCount() * options.getSampleRate() / elapsedSeconds;
+            double overheadPercent = getOverheadPercent(invocationRate, options);
+            if (overheadPercent <= budgetPercent) {
+                continue;
+            }
+
+            MethodProfilingOptions newOptions = options.copy();
+            int newSampleRate = getSampleRateWithinBudget(invocationRate, options);
+            if (ACTION_SAMPLE.equals(action) && newSampleRate < Integer.MAX_VALUE) {
+                newOptions.setSampleRate(Math.max(newSampleRate, options.getSampleRate() + 1));
+            } else {
+                // The sampling guard alone exceeds the budget, or the action is disable
+                newOptions.setDisabled(true);
+            }
+
+            // Exact class name, so the rule does not change (or start profiling) methods of other classes with the
+            // same prefix, e.g. com.foo.BarBaz or com.foo.Bar$Inner for com.foo.Bar
+            String value = className + ClassAndMethodFilter.EXACT_CLASS_SUFFIX + "." + methodName + MethodProfilingOptions.OPTION_SEPARATOR + newOptions;
+            logger.warn(String.format("Method %s.%s exceeds overhead budget (%.4g%% > %.4g%%, %.0f invocations/second), changing options to %s",
+                    className, methodName, overheadPercent, budgetPercent, invocationRate, newOptions));
+            int retransformedClasses = instrumentationController.addDurationProfiling(value);
+
+            Map<String, Object> event = new HashMap<>();
+            event.put("className", className);
+            event.put("methodName", methodName);
+            event.put("action", newOptions.isDisabled() ? ACTION_DISABLE : ACTION_SAMPLE);
+            event.put("sampleRate", newOptions.getSampleRate());
+            event.put("invocationRate", invocationRate);
+            event.put("estimatedOverheadPercent", overheadPercent);
+            event.put("overheadBudgetPercent", budgetPercent);
+            event.put("retransformedClasses", retransformedClasses);
+            events.add(event);
+        }
+
+        return events;
+    }
+
+    static double getOverheadPercent(double invocationRate, MethodProfilingOptions options) {
+        double nanosPerSecond = invocationRate / options.getSampleRate() * getProfiledInvocationNanos(options)
+                + invocationRate * getEveryInvocationNanos(options);
+        if (options.isSampled()) {
+            nanosPerSecond += invocationRate * SAMPLING_GUARD_NANOS;
+        }
+        return nanosPerSecond / TimeUnit.SECONDS.toNanos(1) * 100;
+    }
+
+    // Cost of a sampled invocation
+    private static long getProfiledInvocationNanos(MethodProfilingOptions options) {
+        long nanos = PROFILED_INVOCATION_NANOS;
+        if (options.isResourceUsage()) {
+            nanos += RESOURCE_USAGE_NANOS;
+        }
+        if (options.isCaller()) {
+            nanos += CALLER_NANOS;
+        }
+        return nanos;
+    }
+
+    // Cost of code running for every invocation regardless of sampleRate, besides the sampling guard
+    private static long getEveryInvocationNanos(MethodProfilingOptions options) {
+        return options.isConcurrency() ? CONCURRENCY_NANOS : 0;
+    }
+
+    // Smallest sample rate keeping overhead within budget, or Integer.MAX_VALUE if the code running for every
+    // invocation alone exceeds it
+    int getSampleRateWithinBudget(double invocationRate, MethodProfilingOptions options) {
+        double budgetNanosPerSecond = budgetPercent / 100 * TimeUnit.SECONDS.toNanos(1);
+        double remainingNanosPerSecond = budgetNanosPerSecond - invocationRate * (SAMPLING_GUARD_NANOS + getEveryInvocationNanos(options));
+        if (remainingNanosPerSecond <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.ceil(invocationRate * getProfiledInvocationNanos(options) / remainingNanosPerSecond));
+    }
+}
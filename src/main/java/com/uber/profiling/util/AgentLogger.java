@@ -52,6 +52,10 @@ public class AgentLogger {
         System.out.println(System.currentTimeMillis() + " " + prefix + msg);
     }
 
+    public boolean isDebugEnabled() {
+        return AgentLogger.debug;
+    }
+
     public void debug(String msg) {
         if (AgentLogger.debug) {
             info(msg);
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CallTreeRecorder aggregates time of nested invocations of instrumented methods by call path. Instrumented code calls
+ * enter(methodId) at method entry and exit() at method exit (also when an exception is thrown), and each thread keeps
+ * a stack of the instrumented methods it is currently in. A call path is a tree node identified by its parent node and
+ * method id, so the path of each invocation is found with one map lookup.
+ *
+ * Each node records invocation count, inclusive time (whole invocation) and exclusive time (inclusive time minus time
+ * in instrumented child methods). The number of nodes is bounded by maxNodes, invocations on new paths are not
+ * recorded after the tree is full (see getDroppedCount), but their time is still excluded from their parent's
+ * exclusive time. Like MethodInvocationCounter, counters are never reset and reset() returns the increase since its
+ * last call.
+ */
+public class CallTreeRecorder {
+    public static final int DEFAULT_MAX_NODES = 1000;
+
+    // Frames deeper than this are not recorded, their time is counted as exclusive time of the deepest recorded frame
+    static final int MAX_DEPTH = 128;
+
+    private static final int ROOT_NODE_ID = 0;
+    private static final int NOT_RECORDED_NODE_ID = -1;
+
+    private final MethodIdRegistry methodIdRegistry;
+    private final int maxNodes;
+
+    // Key is parent node id in the high 32 bits and method id in the low 32 bits
+    private final ConcurrentHashMap<Long, Integer> nodeIds = new ConcurrentHashMap<>();
+
+    // Index is node id, node 0 is the root which is not an invocation, guarded by this for writes
+    private volatile Node[] nodes = new Node[64];
+    private volatile int nodeCount = 1;
+
+    private final LongAdder droppedCount = new LongAdder();
+    private long lastDroppedCount = 0;
+
+    private final ThreadLocal<CallStack> callStacks = ThreadLocal.withInitial(CallStack::new);
+
+    public CallTreeRecorder() {
+        this(MethodIdRegistry.getInstance(), DEFAULT_MAX_NODES);
+    }
+
+    public CallTreeRecorder(MethodIdRegistry methodIdRegistry, int maxNodes) {
+        if (maxNodes < 1) {
+            throw new IllegalArgumentException("Invalid max nodes: " + maxNodes);
+        }
+        this.methodIdRegistry = methodIdRegistry;
+        // One more for the root node
+        this.maxNodes = maxNodes + 1;
+    }
+
+    public void enter(int methodId) {
+        CallStack stack = callStacks.get();
+        int depth = stack.depth++;
+        if (depth >= MAX_DEPTH) {
+            return;
+        }
+
+        int parentNodeId = depth == 0 ? ROOT_NODE_ID : stack.nodeIds[depth - 1];
+        stack.nodeIds[depth] = parentNodeId == NOT_RECORDED_NODE_ID ? NOT_RECORDED_NODE_ID : getOrCreateNode(parentNodeId, methodId);
+        stack.childNanos[depth] = 0;
+        stack.startNanos[depth] = System.nanoTime();
+    }
+
+    public void exit() {
+        long endNanos = System.nanoTime();
+
+        CallStack stack = callStacks.get();
+        if (stack.depth == 0) {
+            // Method entered before the recorder was set
+            return;
+        }
+
+        int depth = --stack.depth;
+        if (depth >= MAX_DEPTH) {
+            return;
+        }
+
+        long inclusiveNanos = endNanos - stack.startNanos[depth];
+        if (depth > 0) {
+            stack.childNanos[depth - 1] += inclusiveNanos;
+        }
+
+        int nodeId = stack.nodeIds[depth];
+        if (nodeId == NOT_RECORDED_NODE_ID) {
+            droppedCount.increment();
+            return;
+        }
+
+        Node node = nodes[nodeId];
+        node.count.increment();
+        node.inclusiveNanos.add(inclusiveNanos);
+        node.exclusiveNanos.add(inclusiveNanos - stack.childNanos[depth]);
+    }
+
+    private int getOrCreateNode(int parentNodeId, int methodId) {
+        Integer nodeId = nodeIds.get(getNodeKey(parentNodeId, methodId));
+        if (nodeId != null) {
+            return nodeId;
+        }
+
+        // Avoid taking the lock for every invocation on a new path once the tree is full
+        if (nodeCount >= maxNodes) {
+            return NOT_RECORDED_NODE_ID;
+        }
+
+        return createNode(parentNodeId, methodId);
+    }
+
+    private synchronized int createNode(int parentNodeId, int methodId) {
+        long key = getNodeKey(parentNodeId, methodId);
+        Integer existingNodeId = nodeIds.get(key);
+        if (existingNodeId != null) {
+            return existingNodeId;
+        }
+
+        ClassAndMethod classAndMethod = methodIdRegistry.get(methodId);
+        if (classAndMethod == null || nodeCount >= maxNodes) {
+            return NOT_RECORDED_NODE_ID;
+        }
+
+        Node[] currentNodes = nodes;
+        int nodeId = nodeCount;
+        if (nodeId >= currentNodes.length) {
+            currentNodes = Arrays.copyOf(currentNodes, Math.min(currentNodes.length * 2, maxNodes));
+        }
+
+        Node parent = currentNodes[parentNodeId];
+        currentNodes[nodeId] = new Node(parent, classAndMethod);
+
+        // Publish the node before its id, so threads getting the id from nodeIds always see the node
+        nodes = currentNodes;
+        nodeCount = nodeId + 1;
+        nodeIds.put(key, nodeId);
+        return nodeId;
+    }
+
+    private static long getNodeKey(int parentNodeId, int methodId) {
+        return ((long) parentNodeId << 32) | (methodId & 0xFFFFFFFFL);
+    }
+
+    public int getNodeCount() {
+        return nodeCount - 1;
+    }
+
+    /**
+     * Return metrics of each call path since last reset, paths without invocations are not included.
+     */
+    public synchronized List<CallTreeNodeMetrics> reset() {
+        List<CallTreeNodeMetrics> result = new ArrayList<>();
+
+        Node[] currentNodes = nodes;
+        int currentNodeCount = nodeCount;
+        for (int i = ROOT_NODE_ID + 1; i < currentNodeCount; i++) {
+            Node node = currentNodes[i];
+
+            long count = node.count.sum();
+            long inclusiveNanos = node.inclusiveNanos.sum();
+            long exclusiveNanos = node.exclusiveNanos.sum();
+
+            long countDelta = count - node.lastCount;
+            long inclusiveNanosDelta = inclusiveNanos - node.lastInclusiveNanos;
+            long exclusiveNanosDelta = exclusiveNanos - node.lastExclusiveNanos;
+
+            node.lastCount = count;
+            node.lastInclusiveNanos = inclusiveNanos;
+            node.lastExclusiveNanos = exclusiveNanos;
+
+            if (countDelta > 0) {
+                result.add(new CallTreeNodeMetrics(node.path, countDelta, inclusiveNanosDelta, exclusiveNanosDelta));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Return number of invocations not recorded since last reset because the tree was full.
+     */
+    public synchronized long resetDroppedCount() {
+        long value = droppedCount.sum();
+        long result = value - lastDroppedCount;
+        lastDroppedCount = value;
+        return result;
+    }
+
+    private static class Node {
+        private final List<ClassAndMethod> path;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder inclusiveNanos = new LongAdder();
+        private final LongAdder exclusiveNanos = new LongAdder();
+
+        // Values returned by last reset, only accessed in reset()
+        private long lastCount;
+        private long lastInclusiveNanos;
+        private long lastExclusiveNanos;
+
+        private Node(Node parent, ClassAndMethod classAndMethod) {
+            List<ClassAndMethod> path = new ArrayList<>();
+            if (parent != null) {
+                path.addAll(parent.path);
+            }
+            path.add(classAndMethod);
+            this.path = path;
+        }
+    }
+
+    private static class CallStack {
+        private final int[] nodeIds = new int[MAX_DEPTH];
+        private final long[] startNanos = new long[MAX_DEPTH];
+        private final long[] childNanos = new long[MAX_DEPTH];
+        private int depth = 0;
+    }
+
+    public static class CallTreeNodeMetrics {
+        private final List<ClassAndMethod> path;
+        private final long count;
+        private final long inclusiveNanos;
+        private final long exclusiveNanos;
+
+        public CallTreeNodeMetrics(List<ClassAndMethod> path, long count, long inclusiveNanos, long exclusiveNanos) {
+            this.path = path;
+            this.count = count;
+            this.inclusiveNanos = inclusiveNanos;
+            this.exclusiveNanos = exclusiveNanos;
+        }
+
+        /**
+         * Return instrumented methods from the outermost to this method.
+         */
+        public List<ClassAndMethod> getPath() {
+            return path;
+        }
+
+        public ClassAndMethod getClassAndMethod() {
+            return path.get(path.size() - 1);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getInclusiveNanos() {
+            return inclusiveNanos;
+        }
+
+        public long getExclusiveNanos() {
+            return exclusiveNanos;
+        }
+    }
+}
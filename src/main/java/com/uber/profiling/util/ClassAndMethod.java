@@ -17,6 +17,10 @@
 package com.uber.profiling.util;
 
 public class ClassAndMethod {
+    // Names of constructors and class initializer (static blocks) in class files, also used in profiling rules
+    public static final String CONSTRUCTOR_NAME = "<init>";
+    public static final String CLASS_INITIALIZER_NAME = "<clinit>";
+
     private final String className;
     private final String methodName;
 
@@ -41,6 +45,14 @@ public class ClassAndMethod {
         return methodName;
     }
 
+    /**
+     * Return whether the method name is a constructor or class initializer, which are only matched by their exact
+     * name, not by method name wildcard.
+     */
+    public static boolean isInitializer(String methodName) {
+        return CONSTRUCTOR_NAME.equals(methodName) || CLASS_INITIALIZER_NAME.equals(methodName);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -16,18 +16,94 @@
 
 package com.uber.profiling.util;
 
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Executable;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
+/**
+ * ClassAndMethodFilter matches class methods against rules (ClassAndMethod). The class name of a rule could be:
+ *
+ * - A class name prefix, e.g. com.foo.Bar matches com.foo.Bar and com.foo.BarBaz.
+ * - An exact class name followed by !, e.g. com.foo.Bar! matches com.foo.Bar only.
+ * - A glob pattern matching whole class names, e.g. com.foo.*.dao.*Repository (see ClassNameAutomaton).
+ * - A supertype followed by +, e.g. org.apache.spark.rdd.RDD+ matches RDD and all classes extending or implementing it.
+ * - An annotation type after @ (with * as method name), e.g. @com.foo.Timed matches all methods annotated with it.
+ *
+ * The method name of a rule is an exact name or a glob pattern with * and ?. Globs do not match constructors and
+ * class initializer (see ClassAndMethod.isInitializer).
+ *
+ * Class name prefixes and globs are compiled once into a ClassNameAutomaton, supertypes and annotations are looked up
+ * by name, so finding the rules of a class method does not check every rule.
+ */
 public class ClassAndMethodFilter {
-    private static final String METHOD_NAME_WILDCARD = "*";
+    public static final String SUBTYPE_SUFFIX = "+";
+    public static final String EXACT_CLASS_SUFFIX = "!";
+    public static final String ANNOTATION_PREFIX = "@";
+
+    private static final int[] EMPTY_INDEXES = new int[0];
+
+    // Location of the profiler jar (or classes directory), null if unknown
+    private static final String AGENT_LOCATION = getLocation(ClassAndMethodFilter.class.getProtectionDomain());
+
+    private static final int RULE_ANNOTATION = 0;
+    private static final int RULE_SUBTYPE = 1;
+    private static final int RULE_CLASS_NAME = 2;
 
     private ClassAndMethod[] classAndMethods = new ClassAndMethod[0];
 
+    private final ClassNameAutomaton classNameAutomaton = new ClassNameAutomaton();
+
+    // Rule indexes by supertype name or annotation type name
+    private final Map<String, int[]> subtypeRules = new HashMap<>();
+    private final Map<String, int[]> annotationRules = new HashMap<>();
+
+    // Compiled method name globs, null for exact method names
+    private Pattern[] methodPatterns = new Pattern[0];
+
+    private Map<ClassAndMethod, MethodProfilingOptions> methodOptions;
+
     public ClassAndMethodFilter(List<ClassAndMethod> classMethodNames) {
+        this(classMethodNames, null);
+    }
+
+    public ClassAndMethodFilter(List<ClassAndMethod> classMethodNames, Map<ClassAndMethod, MethodProfilingOptions> methodOptions) {
+        this.methodOptions = methodOptions == null ? Collections.emptyMap() : methodOptions;
         if (classMethodNames != null) {
             this.classAndMethods = new ClassAndMethod[classMethodNames.size()];
+            this.methodPatterns = new Pattern[classMethodNames.size()];
             for (int i = 0; i < classMethodNames.size(); i++) {
-                this.classAndMethods[i] = classMethodNames.get(i);
+                ClassAndMethod classAndMethod = classMethodNames.get(i);
+                this.classAndMethods[i] = classAndMethod;
+
+                String className = classAndMethod.getClassName();
+                switch (getRuleType(classAndMethod)) {
+                    case RULE_ANNOTATION:
+                        addRuleIndex(annotationRules, className.substring(ANNOTATION_PREFIX.length()), i);
+                        break;
+                    case RULE_SUBTYPE:
+                        addRuleIndex(subtypeRules, className.substring(0, className.length() - SUBTYPE_SUFFIX.length()), i);
+                        break;
+                    default:
+                        if (className.endsWith(EXACT_CLASS_SUFFIX)) {
+                            classNameAutomaton.put(className.substring(0, className.length() - EXACT_CLASS_SUFFIX.length()), false, i);
+                        } else {
+                            classNameAutomaton.put(className, !ClassNameAutomaton.isGlob(className), i);
+                        }
+                        break;
+                }
+
+                if (ClassNameAutomaton.isGlob(classAndMethod.getMethodName())) {
+                    this.methodPatterns[i] = compileMethodGlob(classAndMethod.getMethodName());
+                }
             }
         }
     }
@@ -36,24 +112,266 @@ public class ClassAndMethodFilter {
         return classAndMethods.length == 0;
     }
 
+    /**
+     * Return whether there are rules selecting classes by supertype, which need the supertypes of the class to match.
+     */
+    public boolean hasSubtypeRules() {
+        return !subtypeRules.isEmpty();
+    }
+
+    /**
+     * Return whether there are rules selecting methods by annotation, which need the annotations of the method to match.
+     */
+    public boolean hasAnnotationRules() {
+        return !annotationRules.isEmpty();
+    }
+
+    /**
+     * Return whether the class may have matching methods. Class name could be in internal form (package/Class) or
+     * normalized form (package.Class). Any class may match when there are supertype or annotation rules.
+     */
     public boolean matchClass(String className) {
-        for (ClassAndMethod classAndMethod : classAndMethods) {
-            if (className.startsWith(classAndMethod.getClassName())) {
+        return hasSubtypeRules() || hasAnnotationRules() || matchClassName(className);
+    }
+
+    /**
+     * Return whether any class name prefix or glob rule matches the class, ignoring supertype and annotation rules.
+     */
+    public boolean matchClassName(String className) {
+        return classNameAutomaton.match(className);
+    }
+
+    /**
+     * Return whether supertype and annotation rules apply to the class defined by the class loader in the protection
+     * domain. They do not apply to JDK classes (defined by the bootstrap class loader) or classes of the profiler
+     * itself, so a rule like java.lang.Runnable+.run does not profile the threads of the JVM or the profiler. Rules
+     * with class names still apply to them.
+     */
+    public static boolean isSelectableClass(ClassLoader loader, ProtectionDomain protectionDomain) {
+        if (loader == null) {
+            return false;
+        }
+        return AGENT_LOCATION == null || !AGENT_LOCATION.equals(getLocation(protectionDomain));
+    }
+
+    private static String getLocation(ProtectionDomain protectionDomain) {
+        if (protectionDomain == null || protectionDomain.getCodeSource() == null || protectionDomain.getCodeSource().getLocation() == null) {
+            return null;
+        }
+        return protectionDomain.getCodeSource().getLocation().toString();
+    }
+
+    /**
+     * Return whether the loaded class may have matching methods, used to find loaded classes to retransform. Only
+     * annotations retained at runtime are visible to this.
+     */
+    public boolean matchClass(Class<?> clazz) {
+        if (matchClassName(clazz.getName())) {
+            return true;
+        }
+
+        if (!isSelectableClass(clazz.getClassLoader(), clazz.getProtectionDomain())) {
+            return false;
+        }
+
+        if (hasSubtypeRules()) {
+            if (subtypeRules.containsKey(clazz.getName())) {
                 return true;
             }
+            for (String superTypeName : getSuperTypeNames(clazz)) {
+                if (subtypeRules.containsKey(superTypeName)) {
+                    return true;
+                }
+            }
+        }
+
+        if (hasAnnotationRules()) {
+            try {
+                List<Executable> executables = new ArrayList<>(Arrays.asList(clazz.getDeclaredMethods()));
+                executables.addAll(Arrays.asList(clazz.getDeclaredConstructors()));
+                for (Executable executable : executables) {
+                    for (Annotation annotation : executable.getDeclaredAnnotations()) {
+                        if (annotationRules.containsKey(annotation.annotationType().getName())) {
+                            return true;
+                        }
+                    }
+                }
+            } catch (Throwable ex) {
+                // Methods could not be resolved (e.g. missing classes), the class could not be loaded by the
+                // transformer either
+            }
         }
+
         return false;
     }
 
+    /**
+     * Return whether any rule matches the class method, unless the most specific matching rule has disabled option.
+     * Supertype and annotation rules do not match, see matchMethod(String, Set, String, Set).
+     */
     public boolean matchMethod(String className, String methodName) {
-        for (ClassAndMethod classAndMethod : classAndMethods) {
-            if (className.startsWith(classAndMethod.getClassName())) {
-                if (METHOD_NAME_WILDCARD.equals(classAndMethod.getMethodName())
-                        || methodName.equals(classAndMethod.getMethodName())) {
-                    return true;
+        return matchMethod(className, Collections.emptySet(), methodName, Collections.emptySet());
+    }
+
+    /**
+     * Return whether any rule matches the class method, unless the most specific matching rule has disabled option.
+     * Super type names are the (normalized) names of all classes and interfaces the class extends or implements, and
+     * annotation names are the type names of annotations on the method. They could be empty if the filter has no
+     * supertype or annotation rules.
+     */
+    public boolean matchMethod(String className, Set<String> superTypeNames, String methodName, Set<String> annotationNames) {
+        int ruleIndex = getBestRuleIndex(className, superTypeNames, methodName, annotationNames);
+        if (ruleIndex < 0) {
+            return false;
+        }
+        return methodOptions.isEmpty() || !getRuleOptions(ruleIndex).isDisabled();
+    }
+
+    public MethodProfilingOptions getMethodOptions(String className, String methodName) {
+        return getMethodOptions(className, Collections.emptySet(), methodName, Collections.emptySet());
+    }
+
+    /**
+     * Get options of the most specific rule matching the class method, where a rule with exact method name is more
+     * specific than a rule with method name glob, then a rule with class name prefix or glob is more specific than a
+     * supertype rule, which is more specific than an annotation rule, and then a longer class name (without glob
+     * characters) is more specific, so an exact class name is more specific than the same class name as prefix.
+     */
+    public MethodProfilingOptions getMethodOptions(String className, Set<String> superTypeNames, String methodName, Set<String> annotationNames) {
+        int ruleIndex = getBestRuleIndex(className, superTypeNames, methodName, annotationNames);
+        return ruleIndex < 0 ? MethodProfilingOptions.DEFAULT : getRuleOptions(ruleIndex);
+    }
+
+    private MethodProfilingOptions getRuleOptions(int ruleIndex) {
+        MethodProfilingOptions options = methodOptions.get(classAndMethods[ruleIndex]);
+        return options == null ? MethodProfilingOptions.DEFAULT : options;
+    }
+
+    private int getBestRuleIndex(String className, Set<String> superTypeNames, String methodName, Set<String> annotationNames) {
+        int bestRuleIndex = getBestRuleIndex(-1, classNameAutomaton.getMatchedRuleIndexes(className), methodName);
+
+        if (hasSubtypeRules()) {
+            bestRuleIndex = getBestRuleIndex(bestRuleIndex, subtypeRules.getOrDefault(className.replace('/', '.'), EMPTY_INDEXES), methodName);
+            for (String superTypeName : superTypeNames) {
+                bestRuleIndex = getBestRuleIndex(bestRuleIndex, subtypeRules.getOrDefault(superTypeName, EMPTY_INDEXES), methodName);
+            }
+        }
+
+        if (hasAnnotationRules()) {
+            for (String annotationName : annotationNames) {
+                bestRuleIndex = getBestRuleIndex(bestRuleIndex, annotationRules.getOrDefault(annotationName, EMPTY_INDEXES), methodName);
+            }
+        }
+
+        return bestRuleIndex;
+    }
+
+    private int getBestRuleIndex(int bestRuleIndex, int[] ruleIndexes, String methodName) {
+        for (int ruleIndex : ruleIndexes) {
+            if (!matchMethodName(ruleIndex, methodName)) {
+                continue;
+            }
+            if (bestRuleIndex < 0 || compareSpecificity(ruleIndex, bestRuleIndex) > 0) {
+                bestRuleIndex = ruleIndex;
+            }
+        }
+        return bestRuleIndex;
+    }
+
+    private boolean matchMethodName(int ruleIndex, String methodName) {
+        Pattern methodPattern = methodPatterns[ruleIndex];
+        if (methodPattern == null) {
+            return methodName.equals(classAndMethods[ruleIndex].getMethodName());
+        }
+        // Method name glob does not match constructors and class initializer, so existing rules do not start
+        // profiling them
+        return !ClassAndMethod.isInitializer(methodName) && methodPattern.matcher(methodName).matches();
+    }
+
+    // Rules with the same specificity keep the first one
+    private int compareSpecificity(int ruleIndex1, int ruleIndex2) {
+        boolean exactMethodName1 = methodPatterns[ruleIndex1] == null;
+        boolean exactMethodName2 = methodPatterns[ruleIndex2] == null;
+        if (exactMethodName1 != exactMethodName2) {
+            return exactMethodName1 ? 1 : -1;
+        }
+
+        int ruleType1 = getRuleType(classAndMethods[ruleIndex1]);
+        int ruleType2 = getRuleType(classAndMethods[ruleIndex2]);
+        if (ruleType1 != ruleType2) {
+            return Integer.compare(ruleType1, ruleType2);
+        }
+
+        return Integer.compare(getLiteralLength(classAndMethods[ruleIndex1].getClassName()), getLiteralLength(classAndMethods[ruleIndex2].getClassName()));
+    }
+
+    private static int getRuleType(ClassAndMethod classAndMethod) {
+        String className = classAndMethod.getClassName();
+        if (className.startsWith(ANNOTATION_PREFIX)) {
+            return RULE_ANNOTATION;
+        } else if (className.endsWith(SUBTYPE_SUFFIX)) {
+            return RULE_SUBTYPE;
+        } else {
+            return RULE_CLASS_NAME;
+        }
+    }
+
+    private static int getLiteralLength(String pattern) {
+        int length = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c != '*' && c != '?') {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    private static void addRuleIndex(Map<String, int[]> rules, String name, int ruleIndex) {
+        int[] ruleIndexes = rules.getOrDefault(name, EMPTY_INDEXES);
+        ruleIndexes = Arrays.copyOf(ruleIndexes, ruleIndexes.length + 1);
+        ruleIndexes[ruleIndexes.length - 1] = ruleIndex;
+        rules.put(name, ruleIndexes);
+    }
+
+    // Method names do not have '.', so * and ? match any characters
+    private static Pattern compileMethodGlob(String glob) {
+        StringBuilder sb = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > literalStart) {
+                    sb.append(Pattern.quote(glob.substring(literalStart, i)));
                 }
+                sb.append(c == '*' ? ".*" : ".");
+                literalStart = i + 1;
             }
         }
-        return false;
+        if (glob.length() > literalStart) {
+            sb.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return Pattern.compile(sb.toString());
+    }
+
+    /**
+     * Return names of all superclasses and interfaces of the loaded class, not including the class itself.
+     */
+    public static Set<String> getSuperTypeNames(Class<?> clazz) {
+        Set<String> result = new HashSet<>();
+        List<Class<?>> pending = new ArrayList<>();
+        pending.add(clazz);
+        while (!pending.isEmpty()) {
+            Class<?> type = pending.remove(pending.size() - 1);
+            if (type.getSuperclass() != null && result.add(type.getSuperclass().getName())) {
+                pending.add(type.getSuperclass());
+            }
+            for (Class<?> interfaceType : type.getInterfaces()) {
+                if (result.add(interfaceType.getName())) {
+                    pending.add(interfaceType);
+                }
+            }
+        }
+        return result;
     }
 }
@@ -16,25 +16,124 @@
 
 package com.uber.profiling.util;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * ClassAndMethodLongMetricBuffer is a buffer to store metrics. It is thread safe for appendValue.
  * The reset method will create a new empty internal buffer and return the old one.
+ *
+ * Metrics are stored per metric name in tables indexed by method id (see MethodIdRegistry), so instrumented code
+ * passing a method id records a value without allocating a key or hashing class and method names.
+ *
+ * Writers and reset are coordinated with WriterReaderPhaser, so a value appended while reset runs lands in exactly
+ * one of the returned buffers, without taking any lock when appending.
+ *
+ * When perThread is enabled, each thread appends values into its own tables (see PerThreadRecorder), and reset
+ * merges the tables from all threads.
  */
 public class ClassAndMethodLongMetricBuffer {
-    private volatile ConcurrentHashMap<ClassAndMethodMetricKey, Histogram> metrics = new ConcurrentHashMap<>();
+    private final MethodIdRegistry methodIdRegistry;
+
+    private final PerThreadRecorder<ConcurrentHashMap<String, MethodIdTable<Histogram>>> perThreadRecorder;
+
+    private final WriterReaderPhaser phaser = new WriterReaderPhaser();
+
+    private volatile ConcurrentHashMap<String, MethodIdTable<Histogram>> metrics = new ConcurrentHashMap<>();
+
+    public ClassAndMethodLongMetricBuffer() {
+        this(MethodIdRegistry.getInstance());
+    }
+
+    public ClassAndMethodLongMetricBuffer(MethodIdRegistry methodIdRegistry) {
+        this(methodIdRegistry, false);
+    }
+
+    public ClassAndMethodLongMetricBuffer(boolean perThread) {
+        this(MethodIdRegistry.getInstance(), perThread);
+    }
+
+    public ClassAndMethodLongMetricBuffer(MethodIdRegistry methodIdRegistry, boolean perThread) {
+        this.methodIdRegistry = methodIdRegistry;
+        this.perThreadRecorder = perThread ? new PerThreadRecorder<>(ConcurrentHashMap::new) : null;
+    }
+
+    public MethodIdRegistry getMethodIdRegistry() {
+        return methodIdRegistry;
+    }
 
     public void appendValue(String className, String methodName, String metricName, long value) {
-        ClassAndMethodMetricKey methodMetricKey = new ClassAndMethodMetricKey(className, methodName, metricName);
-        Histogram histogram = metrics.computeIfAbsent(methodMetricKey, key -> new Histogram());
-        histogram.appendValue(value);
+        int methodId = methodIdRegistry.register(className, methodName);
+        appendValue(methodId, metricName, value);
+    }
+
+    public void appendValue(int methodId, String metricName, long value) {
+        if (perThreadRecorder == null) {
+            long criticalValue = phaser.writerCriticalSectionEnter();
+            try {
+                appendValue(metrics, methodId, metricName, value);
+            } finally {
+                phaser.writerCriticalSectionExit(criticalValue);
+            }
+            return;
+        }
+
+        PerThreadRecorder.Writer<ConcurrentHashMap<String, MethodIdTable<Histogram>>> writer = perThreadRecorder.beginWrite();
+        try {
+            appendValue(writer.getBuffer(), methodId, metricName, value);
+        } finally {
+            writer.endWrite();
+        }
     }
 
     public Map<ClassAndMethodMetricKey, Histogram> reset() {
-        ConcurrentHashMap<ClassAndMethodMetricKey, Histogram> oldCopy = metrics;
-        metrics = new ConcurrentHashMap<>();
-        return oldCopy;
+        Map<ClassAndMethodMetricKey, Histogram> result = new HashMap<>();
+
+        if (perThreadRecorder == null) {
+            ConcurrentHashMap<String, MethodIdTable<Histogram>> oldCopy;
+            phaser.readerLock();
+            try {
+                oldCopy = metrics;
+                metrics = new ConcurrentHashMap<>();
+                phaser.flipPhase();
+            } finally {
+                phaser.readerUnlock();
+            }
+            addToResult(result, oldCopy, false);
+        } else {
+            for (ConcurrentHashMap<String, MethodIdTable<Histogram>> threadMetrics : perThreadRecorder.drain()) {
+                addToResult(result, threadMetrics, true);
+            }
+        }
+
+        return result;
+    }
+
+    private void appendValue(ConcurrentHashMap<String, MethodIdTable<Histogram>> tables, int methodId, String metricName, long value) {
+        MethodIdTable<Histogram> table = tables.get(metricName);
+        if (table == null) {
+            table = tables.computeIfAbsent(metricName, key -> new MethodIdTable<>(methodIdRegistry.size()));
+        }
+        Histogram histogram = table.computeIfAbsent(methodId, id -> new Histogram());
+        histogram.appendValue(value);
+    }
+
+    private void addToResult(Map<ClassAndMethodMetricKey, Histogram> result, Map<String, MethodIdTable<Histogram>> tables, boolean merge) {
+        for (Map.Entry<String, MethodIdTable<Histogram>> entry : tables.entrySet()) {
+            String metricName = entry.getKey();
+            entry.getValue().forEach((histogram, methodId) -> {
+                ClassAndMethod classAndMethod = methodIdRegistry.get(methodId);
+                if (classAndMethod == null) {
+                    return;
+                }
+                ClassAndMethodMetricKey key = new ClassAndMethodMetricKey(classAndMethod.getClassName(), classAndMethod.getMethodName(), metricName);
+                if (merge) {
+                    result.computeIfAbsent(key, k -> new Histogram()).merge(histogram);
+                } else {
+                    result.put(key, histogram);
+                }
+            });
+        }
     }
 }
@@ -17,11 +17,28 @@
 package com.uber.profiling.util;
 
 public class ClassMethodArgument {
+    // Option after the argument index like com.foo.Bar.baz.1@numeric, the argument value is recorded in a histogram
+    // instead of counting each distinct value
+    public static final String OPTION_NUMERIC = "numeric";
+
+    private static final String[] ARGUMENT_METRIC_NAMES = new String[32];
+
+    static {
+        for (int i = 0; i < ARGUMENT_METRIC_NAMES.length; i++) {
+            ARGUMENT_METRIC_NAMES[i] = "arg." + i;
+        }
+    }
+
     private final String className;
     private final String methodName;
     private final int argumentIndex;
+    private final boolean numeric;
 
     public ClassMethodArgument(String className, String methodName, int argumentIndex) {
+        this(className, methodName, argumentIndex, false);
+    }
+
+    public ClassMethodArgument(String className, String methodName, int argumentIndex, boolean numeric) {
         if (className == null) {
             throw new NullPointerException("className");
         }
@@ -34,9 +51,25 @@ public class ClassMethodArgument {
             throw new IllegalArgumentException("argumentIndex (must equal or greater than 0: 0 means not collecting argument value, 1 means collecting first argument value)");
         }
 
+        if (numeric && argumentIndex == 0) {
+            throw new IllegalArgumentException("argumentIndex (must be greater than 0 for numeric argument)");
+        }
+
         this.className = className;
         this.methodName = methodName;
         this.argumentIndex = argumentIndex;
+        this.numeric = numeric;
+    }
+
+    /**
+     * Metric name of the argument like arg.1, names of the first arguments are cached to avoid concatenating strings
+     * on each invocation.
+     */
+    public static String getMetricName(int argumentIndex) {
+        if (argumentIndex >= 0 && argumentIndex < ARGUMENT_METRIC_NAMES.length) {
+            return ARGUMENT_METRIC_NAMES[argumentIndex];
+        }
+        return "arg." + argumentIndex;
     }
 
     public String getClassName() {
@@ -51,6 +84,10 @@ public class ClassMethodArgument {
         return argumentIndex;
     }
 
+    public boolean isNumeric() {
+        return numeric;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -59,6 +96,7 @@ public class ClassMethodArgument {
         ClassMethodArgument that = (ClassMethodArgument) o;
 
         if (argumentIndex != that.argumentIndex) return false;
+        if (numeric != that.numeric) return false;
         if (className != null ? !className.equals(that.className) : that.className != null) return false;
         return methodName != null ? methodName.equals(that.methodName) : that.methodName == null;
     }
@@ -68,6 +106,7 @@ public class ClassMethodArgument {
         int result = className != null ? className.hashCode() : 0;
         result = 31 * result + (methodName != null ? methodName.hashCode() : 0);
         result = 31 * result + argumentIndex;
+        result = 31 * result + (numeric ? 1 : 0);
         return result;
     }
 
@@ -77,6 +116,7 @@ public class ClassMethodArgument {
                 "className='" + className + '\'' +
                 ", methodName='" + methodName + '\'' +
                 ", argumentIndex='" + argumentIndex + '\'' +
+                ", numeric=" + numeric +
                 '}';
     }
 }
@@ -24,11 +24,14 @@ public class ClassMethodArgumentFilter {
 
     private ClassMethodArgument[] classMethodArguments = new ClassMethodArgument[0];
 
+    private ClassNamePrefixTrie classNameTrie = new ClassNamePrefixTrie();
+
     public ClassMethodArgumentFilter(List<ClassMethodArgument> classMethodArgumentToFilter) {
         if (classMethodArgumentToFilter != null) {
             this.classMethodArguments = new ClassMethodArgument[classMethodArgumentToFilter.size()];
             for (int i = 0; i < classMethodArgumentToFilter.size(); i++) {
                 this.classMethodArguments[i] = classMethodArgumentToFilter.get(i);
+                this.classNameTrie.put(this.classMethodArguments[i].getClassName(), i);
             }
         }
     }
@@ -37,24 +40,36 @@ public class ClassMethodArgumentFilter {
         return classMethodArguments.length == 0;
     }
 
+    /**
+     * Class name could be in internal form (package/Class) or normalized form (package.Class).
+     */
     public boolean matchClass(String className) {
-        for (ClassMethodArgument classAndMethod : classMethodArguments) {
-            if (className.startsWith(classAndMethod.getClassName())) {
-                return true;
-            }
-        }
-        return false;
+        return classNameTrie.matchPrefix(className);
     }
 
+    /**
+     * Return indexes of the arguments whose values are counted, numeric arguments are returned by matchNumericMethod.
+     */
     public List<Integer> matchMethod(String className, String methodName) {
+        return matchMethod(className, methodName, false);
+    }
+
+    /**
+     * Return indexes of the arguments configured with numeric option, whose values are recorded in histograms.
+     */
+    public List<Integer> matchNumericMethod(String className, String methodName) {
+        return matchMethod(className, methodName, true);
+    }
+
+    private List<Integer> matchMethod(String className, String methodName, boolean numeric) {
         List<Integer> result = new ArrayList<>();
 
-        for (ClassMethodArgument classMethodArgument : classMethodArguments) {
-            if (className.startsWith(classMethodArgument.getClassName())) {
-                if (METHOD_NAME_WILDCARD.equals(classMethodArgument.getMethodName())
-                        || methodName.equals(classMethodArgument.getMethodName())) {
-                    result.add(classMethodArgument.getArgumentIndex());
-                }
+        for (int index : classNameTrie.getMatchedRuleIndexes(className)) {
+            ClassMethodArgument classMethodArgument = classMethodArguments[index];
+            if (classMethodArgument.isNumeric() == numeric
+                    && ((METHOD_NAME_WILDCARD.equals(classMethodArgument.getMethodName()) && !ClassAndMethod.isInitializer(methodName))
+                    || methodName.equals(classMethodArgument.getMethodName()))) {
+                result.add(classMethodArgument.getArgumentIndex());
             }
         }
 
@@ -16,6 +16,7 @@
 
 package com.uber.profiling.util;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
@@ -23,19 +24,73 @@ import java.util.concurrent.atomic.AtomicLong;
 /**
  * This class is a buffer to store argument counters. It is thread safe for appendValue.
  * The reset method will create a new empty internal buffer and return the old one.
+ *
+ * Writers and reset are coordinated with WriterReaderPhaser, so a value appended while reset runs lands in exactly
+ * one of the returned buffers, without taking any lock when appending.
+ *
+ * When perThread is enabled, each thread counts into its own map (see PerThreadRecorder), and reset merges the
+ * counters from all threads.
  */
 public class ClassMethodArgumentMetricBuffer {
+    private final PerThreadRecorder<ConcurrentHashMap<ClassAndMethodMetricKey, AtomicLong>> perThreadRecorder;
+
+    private final WriterReaderPhaser phaser = new WriterReaderPhaser();
+
     private volatile ConcurrentHashMap<ClassAndMethodMetricKey, AtomicLong> metrics = new ConcurrentHashMap<>();
 
+    public ClassMethodArgumentMetricBuffer() {
+        this(false);
+    }
+
+    public ClassMethodArgumentMetricBuffer(boolean perThread) {
+        this.perThreadRecorder = perThread ? new PerThreadRecorder<>(ConcurrentHashMap::new) : null;
+    }
+
     public void appendValue(String className, String methodName, String argument) {
         ClassAndMethodMetricKey methodMetricKey = new ClassAndMethodMetricKey(className, methodName, argument);
-        AtomicLong counter = metrics.computeIfAbsent(methodMetricKey, key -> new AtomicLong(0));
-        counter.incrementAndGet();
+
+        if (perThreadRecorder == null) {
+            long criticalValue = phaser.writerCriticalSectionEnter();
+            try {
+                increment(metrics, methodMetricKey);
+            } finally {
+                phaser.writerCriticalSectionExit(criticalValue);
+            }
+            return;
+        }
+
+        PerThreadRecorder.Writer<ConcurrentHashMap<ClassAndMethodMetricKey, AtomicLong>> writer = perThreadRecorder.beginWrite();
+        try {
+            increment(writer.getBuffer(), methodMetricKey);
+        } finally {
+            writer.endWrite();
+        }
     }
 
     public Map<ClassAndMethodMetricKey, AtomicLong> reset() {
-        ConcurrentHashMap<ClassAndMethodMetricKey, AtomicLong> oldCopy = metrics;
-        metrics = new ConcurrentHashMap<>();
-        return oldCopy;
+        if (perThreadRecorder == null) {
+            phaser.readerLock();
+            try {
+                ConcurrentHashMap<ClassAndMethodMetricKey, AtomicLong> oldCopy = metrics;
+                metrics = new ConcurrentHashMap<>();
+                phaser.flipPhase();
+                return oldCopy;
+            } finally {
+                phaser.readerUnlock();
+            }
+        }
+
+        Map<ClassAndMethodMetricKey, AtomicLong> result = new HashMap<>();
+        for (Map<ClassAndMethodMetricKey, AtomicLong> threadMetrics : perThreadRecorder.drain()) {
+            for (Map.Entry<ClassAndMethodMetricKey, AtomicLong> entry : threadMetrics.entrySet()) {
+                result.computeIfAbsent(entry.getKey(), key -> new AtomicLong(0)).addAndGet(entry.getValue().get());
+            }
+        }
+        return result;
+    }
+
+    private static void increment(ConcurrentHashMap<ClassAndMethodMetricKey, AtomicLong> map, ClassAndMethodMetricKey key) {
+        AtomicLong counter = map.computeIfAbsent(key, k -> new AtomicLong(0));
+        counter.incrementAndGet();
     }
 }
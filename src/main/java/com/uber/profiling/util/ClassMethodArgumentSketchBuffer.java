@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is a fixed size alternative to ClassMethodArgumentMetricBuffer for arguments with many distinct values.
+ * Instead of a counter per value, each argument of each method has an ArgumentSketch with the topK most frequent
+ * values (SpaceSavingSketch) and an approximate distinct value count (HyperLogLog), so memory and the number of
+ * reported metrics do not grow with the number of distinct values. Metric name of the keys is like arg.1.
+ *
+ * Updating a sketch is not atomic like incrementing a counter, so sketches are never shared between threads: each
+ * thread writes into its own sketches (see PerThreadRecorder) and reset merges them, regardless of the
+ * perThreadMetricBuffer argument. Memory grows with the number of threads calling profiled methods instead.
+ */
+public class ClassMethodArgumentSketchBuffer {
+    private final int topK;
+
+    private final PerThreadRecorder<ConcurrentHashMap<ClassAndMethodMetricKey, ArgumentSketch>> perThreadRecorder =
+            new PerThreadRecorder<>(ConcurrentHashMap::new);
+
+    public ClassMethodArgumentSketchBuffer(int topK) {
+        if (topK < 1) {
+            throw new IllegalArgumentException("Invalid top K: " + topK);
+        }
+        this.topK = topK;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    public void appendValue(String className, String methodName, int argIndex, String value) {
+        ClassAndMethodMetricKey methodMetricKey = new ClassAndMethodMetricKey(className, methodName, ClassMethodArgument.getMetricName(argIndex));
+
+        PerThreadRecorder.Writer<ConcurrentHashMap<ClassAndMethodMetricKey, ArgumentSketch>> writer = perThreadRecorder.beginWrite();
+        try {
+            writer.getBuffer().computeIfAbsent(methodMetricKey, k -> new ArgumentSketch(topK)).offer(value);
+        } finally {
+            writer.endWrite();
+        }
+    }
+
+    public Map<ClassAndMethodMetricKey, ArgumentSketch> reset() {
+        Map<ClassAndMethodMetricKey, ArgumentSketch> result = new HashMap<>();
+        for (Map<ClassAndMethodMetricKey, ArgumentSketch> threadMetrics : perThreadRecorder.drain()) {
+            for (Map.Entry<ClassAndMethodMetricKey, ArgumentSketch> entry : threadMetrics.entrySet()) {
+                result.computeIfAbsent(entry.getKey(), key -> new ArgumentSketch(topK)).merge(entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Top values, distinct value count and total count of one argument. This class is not thread safe.
+     */
+    public static class ArgumentSketch {
+        private final SpaceSavingSketch topValues;
+        private final HyperLogLog distinctValues = new HyperLogLog();
+        private long count = 0;
+
+        public ArgumentSketch(int topK) {
+            this.topValues = new SpaceSavingSketch(topK);
+        }
+
+        public void offer(String value) {
+            topValues.offer(value);
+            distinctValues.offer(value);
+            count++;
+        }
+
+        public void merge(ArgumentSketch other) {
+            topValues.merge(other.topValues);
+            distinctValues.merge(other.distinctValues);
+            count += other.count;
+        }
+
+        public List<SpaceSavingSketch.Item> getTopValues() {
+            return topValues.getItems();
+        }
+
+        public long getDistinctCount() {
+            return distinctValues.estimate();
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.profiling.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ClassNameAutomaton matches class names against class name prefixes and glob patterns from filter rules in a single
+ * walk over the characters of the class name, so the cost of matching does not grow with the number of rules.
+ *
+ * In glob patterns, * matches any characters except '.', ** matches any characters including '.', and ? matches one
+ * character except '.', e.g. com.foo.*.dao.*Repository matches com.foo.user.dao.UserRepository. A glob pattern
+ * matches the whole class name, while a prefix matches any class name starting with it, like ClassNamePrefixTrie.
+ *
+ * All patterns form one non deterministic automaton, which is turned into a deterministic automaton lazily: each
+ * deterministic state is a set of pattern positions, created the first time a class name reaches it and cached with
+ * its transitions, so matching a class name after warming up is one array lookup per character. Class names may be
+ * passed in internal form (package/Class) or normalized form (package.Class).
+ */
+public class ClassNameAutomaton {
+    // Deterministic states are not cached after this, matching still works but computes the states again
+    static final int MAX_CACHED_STATES = 10000;
+
+    private static final int ANY_CHAR = -1;
+    private static final int STAR = -2;
+    private static final int DOUBLE_STAR = -3;
+    private static final int END = -4;
+
+    private static final int CACHED_CHARS = 128;
+
+    // Position of each pattern is a state of the non deterministic automaton, tokens[state] is the character or glob
+    // token to consume at the state (END after the last token), and rules[state] is the rule index of the pattern
+    private int[] tokens = new int[0];
+    private int[] rules = new int[0];
+    private int[] startStates = new int[0];
+
+    private final ConcurrentHashMap<StateKey, State> states = new ConcurrentHashMap<>();
+    private volatile State startState;
+
+    /**
+     * Return whether the string has glob characters (* or ?).
+     */
+    public static boolean isGlob(String str) {
+        return str.indexOf('*') >= 0 || str.indexOf('?') >= 0;
+    }
+
+    /**
+     * Add a pattern for the rule, prefix means the pattern matches all class names starting with it, otherwise the
+     * pattern is a glob matching whole class names.
+     */
+    public synchronized void put(String pattern, boolean prefix, int ruleIndex) {
+        List<Integer> patternTokens = new ArrayList<>();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = normalize(pattern.charAt(i));
+            if (c == '*') {
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                    patternTokens.add(DOUBLE_STAR);
+                    i++;
+                } else {
+                    patternTokens.add(STAR);
+                }
+            } else if (c == '?') {
+                patternTokens.add(ANY_CHAR);
+            } else {
+                patternTokens.add((int) c);
+            }
+        }
+        if (prefix) {
+            patternTokens.add(DOUBLE_STAR);
+        }
+        patternTokens.add(END);
+
+        int offset = tokens.length;
+        tokens = Arrays.copyOf(tokens, offset + patternTokens.size());
+        rules = Arrays.copyOf(rules, offset + patternTokens.size());
+        for (int i = 0; i < patternTokens.size(); i++) {
+            tokens[offset + i] = patternTokens.get(i);
+            rules[offset + i] = ruleIndex;
+        }
+        startStates = Arrays.copyOf(startStates, startStates.length + 1);
+        startStates[startStates.length - 1] = offset;
+
+        // States of the old automaton are not valid anymore
+        states.clear();
+        startState = null;
+    }
+
+    public boolean isEmpty() {
+        return startStates.length == 0;
+    }
+
+    /**
+     * Return whether any pattern matches the class name.
+     */
+    public boolean match(String className) {
+        return getMatchedRuleIndexes(className).length > 0;
+    }
+
+    /**
+     * Return indexes of all rules whose pattern matches the class name, in ascending order. The returned array is
+     * shared and must not be modified.
+     */
+    public int[] getMatchedRuleIndexes(String className) {
+        State state = getStartState();
+        for (int i = 0; i < className.length() && state.nfaStates.length > 0; i++) {
+            state = state.next(normalize(className.charAt(i)));
+        }
+        return state.acceptedRuleIndexes;
+    }
+
+    private State getStartState() {
+        State state = startState;
+        if (state == null) {
+            synchronized (this) {
+                state = getOrCreateState(closure(startStates));
+                startState = state;
+            }
+        }
+        return state;
+    }
+
+    private State getOrCreateState(int[] nfaStates) {
+        StateKey key = new StateKey(nfaStates);
+        State state = states.get(key);
+        if (state != null) {
+            return state;
+        }
+
+        state = new State(nfaStates, getAcceptedRuleIndexes(nfaStates));
+        if (states.size() >= MAX_CACHED_STATES) {
+            return state;
+        }
+        State existing = states.putIfAbsent(key, state);
+        return existing == null ? state : existing;
+    }
+
+    // Add states reachable without consuming a character, i.e. skipping * or ** matching nothing, result is sorted
+    private int[] closure(int[] nfaStates) {
+        int[] result = new int[nfaStates.length * 2 + 1];
+        int count = 0;
+        for (int nfaState : nfaStates) {
+            for (int s = nfaState; ; s++) {
+                if (count >= result.length) {
+                    result = Arrays.copyOf(result, result.length * 2);
+                }
+                result[count++] = s;
+                if (tokens[s] != STAR && tokens[s] != DOUBLE_STAR) {
+                    break;
+                }
+            }
+        }
+        return sortedUnique(result, count);
+    }
+
+    private int[] step(int[] nfaStates, char c) {
+        int[] result = new int[nfaStates.length];
+        int count = 0;
+        for (int nfaState : nfaStates) {
+            int token = tokens[nfaState];
+            int nextState;
+            if (token == c || (token == ANY_CHAR && c != '.')) {
+                nextState = nfaState + 1;
+            } else if ((token == STAR && c != '.') || token == DOUBLE_STAR) {
+                nextState = nfaState;
+            } else {
+                continue;
+            }
+            result[count++] = nextState;
+        }
+        return closure(Arrays.copyOf(result, count));
+    }
+
+    private int[] getAcceptedRuleIndexes(int[] nfaStates) {
+        int[] result = new int[nfaStates.length];
+        int count = 0;
+        for (int nfaState : nfaStates) {
+            if (tokens[nfaState] == END) {
+                result[count++] = rules[nfaState];
+            }
+        }
+        return sortedUnique(result, count);
+    }
+
+    private static int[] sortedUnique(int[] values, int count) {
+        Arrays.sort(values, 0, count);
+        int uniqueCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (uniqueCount == 0 || values[uniqueCount - 1] != values[i]) {
+                values[uniqueCount++] = values[i];
+            }
+        }
+        return Arrays.copyOf(values, uniqueCount);
+    }
+
+    private static char normalize(char c) {
+        return c == '/' ? '.' : c;
+    }
+
+    private class State {
+        private final int[] nfaStates;
+        private final int[] acceptedRuleIndexes;
+
+        // Cached transitions for ASCII characters, written without lock since the computed state is always the same,
+        // and State only has final fields so it is safely published
+        private final State[] transitions = new State[CACHED_CHARS];
+
+        private State(int[] nfaStates, int[] acceptedRuleIndexes) {
+            this.nfaStates = nfaStates;
+            this.acceptedRuleIndexes = acceptedRuleIndexes;
+        }
+
+        private State next(char c) {
+            if (c < CACHED_CHARS) {
+                State state = transitions[c];
+                if (state == null) {
+                    state = getOrCreateState(step(nfaStates, c));
+                    transitions[c] = state;
+                }
+                return state;
+            }
+            return getOrCreateState(step(nfaStates, c));
+        }
+    }
+
+    private static class StateKey {
+        private final int[] nfaStates;
+        private final int hashCode;
+
+        private StateKey(int[] nfaStates) {
+            this.nfaStates = nfaStates;
+            this.hashCode = Arrays.hashCode(nfaStates);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return Arrays.equals(nfaStates, ((StateKey) o).nfaStates);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
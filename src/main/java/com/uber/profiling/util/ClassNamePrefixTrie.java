@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ClassNamePrefixTrie indexes class name prefixes from filter rules, so a class name is checked against all rules
+ * in a single walk over its characters, independent of the number of rules.
+ *
+ * Each prefix is associated with the index of its rule. Class names may be passed either in internal form
+ * (package/Class) or in normalized form (package.Class), '/' is treated as '.' while walking, so the transformer does
+ * not need to normalize class names before they match.
+ */
+public class ClassNamePrefixTrie {
+    private static final int[] EMPTY_INDEXES = new int[0];
+
+    private final Node root = new Node();
+
+    private boolean empty = true;
+
+    public void put(String classNamePrefix, int ruleIndex) {
+        Node node = root;
+        for (int i = 0; i < classNamePrefix.length(); i++) {
+            node = node.getOrAddChild(normalize(classNamePrefix.charAt(i)));
+        }
+        node.addRuleIndex(ruleIndex);
+        empty = false;
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Return whether any prefix in this trie is a prefix of the class name. This does not allocate.
+     */
+    public boolean matchPrefix(String className) {
+        Node node = root;
+        if (node.ruleIndexes.length > 0) {
+            return true;
+        }
+        for (int i = 0; i < className.length(); i++) {
+            node = node.getChild(normalize(className.charAt(i)));
+            if (node == null) {
+                return false;
+            }
+            if (node.ruleIndexes.length > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return indexes of all rules whose prefix is a prefix of the class name, in ascending order.
+     */
+    public List<Integer> getMatchedRuleIndexes(String className) {
+        List<Integer> result = new ArrayList<>();
+        Node node = root;
+        addAll(result, node.ruleIndexes);
+        for (int i = 0; i < className.length(); i++) {
+            node = node.getChild(normalize(className.charAt(i)));
+            if (node == null) {
+                break;
+            }
+            addAll(result, node.ruleIndexes);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static char normalize(char c) {
+        return c == '/' ? '.' : c;
+    }
+
+    private static void addAll(List<Integer> list, int[] values) {
+        for (int value : values) {
+            list.add(value);
+        }
+    }
+
+    private static class Node {
+        // Sorted child characters, children[i] is the child for keys[i]
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private int[] ruleIndexes = EMPTY_INDEXES;
+
+        private Node getChild(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index >= 0 ? children[index] : null;
+        }
+
+        private Node getOrAddChild(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            if (index >= 0) {
+                return children[index];
+            }
+
+            int insertIndex = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertIndex);
+            System.arraycopy(children, 0, newChildren, 0, insertIndex);
+            System.arraycopy(keys, insertIndex, newKeys, insertIndex + 1, keys.length - insertIndex);
+            System.arraycopy(children, insertIndex, newChildren, insertIndex + 1, children.length - insertIndex);
+
+            Node child = new Node();
+            newKeys[insertIndex] = c;
+            newChildren[insertIndex] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+
+        private void addRuleIndex(int ruleIndex) {
+            int[] newRuleIndexes = Arrays.copyOf(ruleIndexes, ruleIndexes.length + 1);
+            newRuleIndexes[ruleIndexes.length] = ruleIndex;
+            ruleIndexes = newRuleIndexes;
+        }
+    }
+}
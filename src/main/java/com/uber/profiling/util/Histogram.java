@@ -14,31 +14,73 @@
  * limitations under the License.
  */
 
+
 package com.uber.profiling.util;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Base64;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Histogram is a fixed memory, lock free log-linear bucket histogram (similar to HdrHistogram).
+ *
+ * Values below 32 are counted exactly. Larger values are counted in buckets where each power of two range is
+ * split into 32 linear sub buckets, so the relative error of a reported percentile is at most 1/32 (~3%).
+ * Bucket counters are allocated lazily per power of two, so a histogram only pays memory for the value ranges
+ * it actually sees, and never more than 59 * 32 counters. Negative values (e.g. numeric arguments or return values) are
+ * counted by magnitude in a mirrored set of buckets, with the same relative error.
+ *
+ * Histograms could be merged, and serialized into a compact form (see serialize) to be merged across processes.
+ */
 public class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+    private static final int CHUNK_COUNT = 64 - SUB_BUCKET_BITS;
 
-    private AtomicLong count = new AtomicLong(0);
-    private AtomicLong sum = new AtomicLong(0);
-    private AtomicLong min = new AtomicLong(Long.MAX_VALUE);
-    private AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+    private static final byte SERIALIZATION_VERSION = 1;
 
-    public void appendValue(long value) {
-        count.incrementAndGet();
-        sum.addAndGet(value);
+    private static final int BUCKET_COUNT = CHUNK_COUNT * SUB_BUCKET_COUNT;
+
+    private final AtomicReferenceArray<AtomicLongArray> chunks = new AtomicReferenceArray<>(CHUNK_COUNT);
+
+    // Buckets of negative values, indexed by -(value + 1), so -1 is in the first bucket and Long.MIN_VALUE fits
+    private final AtomicReferenceArray<AtomicLongArray> negativeChunks = new AtomicReferenceArray<>(CHUNK_COUNT);
+
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
 
-        min.updateAndGet(x -> Math.min(value, x));
-        max.updateAndGet(x -> Math.max(value, x));
+    public void appendValue(long value) {
+        recordInBucket(value, 1);
+        sum.add(value);
+        updateMin(value);
+        updateMax(value);
     }
 
     public long getCount() {
-        return count.get();
+        return getCount(chunks) + getCount(negativeChunks);
+    }
+
+    private static long getCount(AtomicReferenceArray<AtomicLongArray> chunks) {
+        long count = 0;
+        for (int chunkIndex = 0; chunkIndex < CHUNK_COUNT; chunkIndex++) {
+            AtomicLongArray chunk = chunks.get(chunkIndex);
+            if (chunk != null) {
+                for (int i = 0; i < SUB_BUCKET_COUNT; i++) {
+                    count += chunk.get(i);
+                }
+            }
+        }
+        return count;
     }
 
     public long getSum() {
-        return sum.get();
+        return sum.sum();
     }
 
     public long getMin() {
@@ -49,4 +91,231 @@ public class Histogram {
         return max.get();
     }
 
+    /**
+     * Get the value at the given percentile (0 to 100). The returned value is the highest value in the same bucket
+     * as the exact percentile value, capped by the max value. Return 0 if the histogram is empty.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+
+        double clampedPercentile = Math.min(Math.max(percentile, 0.0), 100.0);
+        long rank = Math.max(1, (long) Math.ceil(clampedPercentile / 100.0 * count));
+
+        long seen = 0;
+
+        // Negative values from the largest magnitude, the highest value of a negative bucket is the negated lowest
+        // magnitude minus one
+        for (int chunkIndex = CHUNK_COUNT - 1; chunkIndex >= 0; chunkIndex--) {
+            AtomicLongArray chunk = negativeChunks.get(chunkIndex);
+            if (chunk == null) {
+                continue;
+            }
+            for (int i = SUB_BUCKET_COUNT - 1; i >= 0; i--) {
+                seen += chunk.get(i);
+                if (seen >= rank) {
+                    long value = -getBucketLowestValue(chunkIndex, i) - 1;
+                    return Math.max(Math.min(value, getMax()), getMin());
+                }
+            }
+        }
+
+        for (int chunkIndex = 0; chunkIndex < CHUNK_COUNT; chunkIndex++) {
+            AtomicLongArray chunk = chunks.get(chunkIndex);
+            if (chunk == null) {
+                continue;
+            }
+            for (int i = 0; i < SUB_BUCKET_COUNT; i++) {
+                seen += chunk.get(i);
+                if (seen >= rank) {
+                    long value = getBucketHighestValue(chunkIndex, i);
+                    return Math.max(Math.min(value, getMax()), getMin());
+                }
+            }
+        }
+        return getMax();
+    }
+
+    public void merge(Histogram other) {
+        for (int index = 0; index < 2 * BUCKET_COUNT; index++) {
+            long count = other.getBucketCount(index);
+            if (count != 0) {
+                addBucketCount(index, count);
+            }
+        }
+        sum.add(other.getSum());
+        updateMin(other.getMin());
+        updateMax(other.getMax());
+    }
+
+    /**
+     * Serialize the histogram into a compact byte array: only non empty buckets are written, as varint encoded
+     * bucket index deltas and counts. Buckets of negative values follow the others, so histograms without negative
+     * values are serialized the same as before they were supported.
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(SERIALIZATION_VERSION);
+        stream.write(SUB_BUCKET_BITS);
+        writeVarLong(stream, zigZagEncode(getSum()));
+        writeVarLong(stream, zigZagEncode(getMin()));
+        writeVarLong(stream, zigZagEncode(getMax()));
+
+        int lastIndex = 0;
+        for (int index = 0; index < 2 * BUCKET_COUNT; index++) {
+            long count = getBucketCount(index);
+            if (count != 0) {
+                writeVarLong(stream, index - lastIndex);
+                writeVarLong(stream, count);
+                lastIndex = index;
+            }
+        }
+        return stream.toByteArray();
+    }
+
+    public static Histogram fromByteArray(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        byte version = buffer.get();
+        if (version != SERIALIZATION_VERSION) {
+            throw new IllegalArgumentException("Unsupported histogram serialization version: " + version);
+        }
+        byte subBucketBits = buffer.get();
+        if (subBucketBits != SUB_BUCKET_BITS) {
+            throw new IllegalArgumentException("Unsupported histogram sub bucket bits: " + subBucketBits);
+        }
+
+        Histogram histogram = new Histogram();
+        histogram.sum.add(zigZagDecode(readVarLong(buffer)));
+        histogram.updateMin(zigZagDecode(readVarLong(buffer)));
+        histogram.updateMax(zigZagDecode(readVarLong(buffer)));
+
+        int index = 0;
+        while (buffer.hasRemaining()) {
+            index += (int) readVarLong(buffer);
+            long count = readVarLong(buffer);
+            if (index < 0 || index >= 2 * BUCKET_COUNT) {
+                throw new IllegalArgumentException("Invalid histogram bucket index: " + index);
+            }
+            histogram.addBucketCount(index, count);
+        }
+        return histogram;
+    }
+
+    public String serialize() {
+        return Base64.getEncoder().encodeToString(toByteArray());
+    }
+
+    public static Histogram deserialize(String str) {
+        return fromByteArray(Base64.getDecoder().decode(str));
+    }
+
+    private void recordInBucket(long value, long count) {
+        AtomicReferenceArray<AtomicLongArray> bucketChunks = value < 0 ? negativeChunks : chunks;
+        long bucketValue = value < 0 ? -(value + 1) : value;
+        int chunkIndex = getChunkIndex(bucketValue);
+        int subBucketIndex = getSubBucketIndex(bucketValue, chunkIndex);
+        getOrCreateChunk(bucketChunks, chunkIndex).addAndGet(subBucketIndex, count);
+    }
+
+    // Buckets are numbered from 0 to BUCKET_COUNT for non negative values, then to 2 * BUCKET_COUNT for negative values
+    private long getBucketCount(int index) {
+        AtomicReferenceArray<AtomicLongArray> bucketChunks = index < BUCKET_COUNT ? chunks : negativeChunks;
+        int bucketIndex = index % BUCKET_COUNT;
+        AtomicLongArray chunk = bucketChunks.get(bucketIndex / SUB_BUCKET_COUNT);
+        return chunk == null ? 0 : chunk.get(bucketIndex % SUB_BUCKET_COUNT);
+    }
+
+    private void addBucketCount(int index, long count) {
+        AtomicReferenceArray<AtomicLongArray> bucketChunks = index < BUCKET_COUNT ? chunks : negativeChunks;
+        int bucketIndex = index % BUCKET_COUNT;
+        getOrCreateChunk(bucketChunks, bucketIndex / SUB_BUCKET_COUNT).addAndGet(bucketIndex % SUB_BUCKET_COUNT, count);
+    }
+
+    private static AtomicLongArray getOrCreateChunk(AtomicReferenceArray<AtomicLongArray> chunks, int chunkIndex) {
+        AtomicLongArray chunk = chunks.get(chunkIndex);
+        if (chunk == null) {
+            chunks.compareAndSet(chunkIndex, null, new AtomicLongArray(SUB_BUCKET_COUNT));
+            chunk = chunks.get(chunkIndex);
+        }
+        return chunk;
+    }
+
+    private void updateMin(long value) {
+        // Only write when the value is smaller, so the common case is a plain read without contention
+        long current = min.get();
+        while (value < current && !min.compareAndSet(current, value)) {
+            current = min.get();
+        }
+    }
+
+    private void updateMax(long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    // Chunk 0 holds values [0, 32) exactly, chunk n (n >= 1) holds values [2^(n+4), 2^(n+5)) with bucket width 2^(n-1)
+    private static int getChunkIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return 0;
+        }
+        return 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    }
+
+    private static int getSubBucketIndex(long value, int chunkIndex) {
+        if (chunkIndex == 0) {
+            return (int) value;
+        }
+        return (int) (value >>> (chunkIndex - 1)) & SUB_BUCKET_MASK;
+    }
+
+    private static long getBucketLowestValue(int chunkIndex, int subBucketIndex) {
+        if (chunkIndex == 0) {
+            return subBucketIndex;
+        }
+        return ((long) (SUB_BUCKET_COUNT + subBucketIndex)) << (chunkIndex - 1);
+    }
+
+    private static long getBucketHighestValue(int chunkIndex, int subBucketIndex) {
+        if (chunkIndex == 0) {
+            return subBucketIndex;
+        }
+        long bucketWidth = 1L << (chunkIndex - 1);
+        return getBucketLowestValue(chunkIndex, subBucketIndex) + bucketWidth - 1;
+    }
+
+    private static long zigZagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream stream, long value) {
+        while ((value & ~0x7FL) != 0) {
+            stream.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        stream.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift >= 64) {
+                throw new IllegalArgumentException("Invalid varint in serialized histogram");
+            }
+        }
+    }
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MethodCallerRecorder records durations of methods with caller option by their immediate caller, so a method called
+ * from many places reports one histogram per call site instead of one blended histogram.
+ *
+ * Each distinct callee and caller (class and method) pair gets a dense caller id the first time it is seen, and
+ * later invocations from the same caller find the id with one map lookup, without creating ClassAndMethod or
+ * histogram again. Durations are recorded into tables indexed by caller id, coordinated with reset by
+ * WriterReaderPhaser like ClassAndMethodLongMetricBuffer. The number of pairs is bounded by maxCallers, invocations
+ * from new callers are not recorded after that (see resetDroppedCount).
+ */
+public class MethodCallerRecorder {
+    public static final int DEFAULT_MAX_CALLERS = 1000;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final MethodIdRegistry methodIdRegistry;
+    private final int maxCallers;
+
+    private final ConcurrentHashMap<CallerKey, Integer> callerIds = new ConcurrentHashMap<>();
+
+    // Index is caller id, guarded by this for writes
+    private volatile MethodCaller[] callers = new MethodCaller[INITIAL_CAPACITY];
+    private volatile int callerCount = 0;
+
+    private final WriterReaderPhaser phaser = new WriterReaderPhaser();
+
+    private volatile MethodIdTable<Histogram> durations = new MethodIdTable<>(INITIAL_CAPACITY);
+
+    private final LongAdder droppedCount = new LongAdder();
+    private long lastDroppedCount = 0;
+
+    public MethodCallerRecorder() {
+        this(MethodIdRegistry.getInstance(), DEFAULT_MAX_CALLERS);
+    }
+
+    public MethodCallerRecorder(MethodIdRegistry methodIdRegistry, int maxCallers) {
+        if (maxCallers < 1) {
+            throw new IllegalArgumentException("Invalid max callers: " + maxCallers);
+        }
+        this.methodIdRegistry = methodIdRegistry;
+        this.maxCallers = maxCallers;
+    }
+
+    public MethodIdRegistry getMethodIdRegistry() {
+        return methodIdRegistry;
+    }
+
+    /**
+     * Record duration of an invocation of the method (registered in MethodIdRegistry) called from the caller class
+     * method. Invocations of unknown methods are ignored.
+     */
+    public void record(int methodId, String callerClassName, String callerMethodName, long duration) {
+        int callerId = getOrCreateCallerId(methodId, callerClassName, callerMethodName);
+        if (callerId < 0) {
+            return;
+        }
+
+        long criticalValue = phaser.writerCriticalSectionEnter();
+        try {
+            durations.computeIfAbsent(callerId, id -> new Histogram()).appendValue(duration);
+        } finally {
+            phaser.writerCriticalSectionExit(criticalValue);
+        }
+    }
+
+    private int getOrCreateCallerId(int methodId, String callerClassName, String callerMethodName) {
+        CallerKey key = new CallerKey(methodId, callerClassName, callerMethodName);
+        Integer callerId = callerIds.get(key);
+        if (callerId != null) {
+            return callerId;
+        }
+
+        // Avoid taking the lock for every invocation from a new caller once the table is full
+        if (callerCount >= maxCallers) {
+            droppedCount.increment();
+            return -1;
+        }
+
+        return createCallerId(key);
+    }
+
+    private synchronized int createCallerId(CallerKey key) {
+        Integer existingCallerId = callerIds.get(key);
+        if (existingCallerId != null) {
+            return existingCallerId;
+        }
+
+        ClassAndMethod classAndMethod = methodIdRegistry.get(key.methodId);
+        if (classAndMethod == null) {
+            return -1;
+        }
+        if (callerCount >= maxCallers) {
+            droppedCount.increment();
+            return -1;
+        }
+
+        MethodCaller[] currentCallers = callers;
+        int callerId = callerCount;
+        if (callerId >= currentCallers.length) {
+            currentCallers = Arrays.copyOf(currentCallers, currentCallers.length * 2);
+        }
+        currentCallers[callerId] = new MethodCaller(classAndMethod, new ClassAndMethod(key.callerClassName, key.callerMethodName));
+
+        // Publish the caller before its id, so threads getting the id from callerIds always see the caller
+        callers = currentCallers;
+        callerCount = callerId + 1;
+        callerIds.put(key, callerId);
+        return callerId;
+    }
+
+    public int getCallerCount() {
+        return callerCount;
+    }
+
+    /**
+     * Return durations recorded by each caller since last reset, callers without invocations are not included.
+     */
+    public synchronized List<CallerDuration> reset() {
+        MethodIdTable<Histogram> oldDurations;
+        phaser.readerLock();
+        try {
+            oldDurations = durations;
+            durations = new MethodIdTable<>(callerCount);
+            phaser.flipPhase();
+        } finally {
+            phaser.readerUnlock();
+        }
+
+        List<CallerDuration> result = new ArrayList<>();
+        MethodCaller[] currentCallers = callers;
+        oldDurations.forEach((histogram, callerId) -> result.add(new CallerDuration(currentCallers[callerId], histogram)));
+        return result;
+    }
+
+    /**
+     * Return number of invocations not recorded since last reset because there were too many callers.
+     */
+    public synchronized long resetDroppedCount() {
+        long value = droppedCount.sum();
+        long result = value - lastDroppedCount;
+        lastDroppedCount = value;
+        return result;
+    }
+
+    private static class CallerKey {
+        private final int methodId;
+        private final String callerClassName;
+        private final String callerMethodName;
+
+        private CallerKey(int methodId, String callerClassName, String callerMethodName) {
+            this.methodId = methodId;
+            this.callerClassName = callerClassName;
+            this.callerMethodName = callerMethodName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            CallerKey that = (CallerKey) o;
+
+            if (methodId != that.methodId) return false;
+            if (!Objects.equals(callerClassName, that.callerClassName)) return false;
+            return Objects.equals(callerMethodName, that.callerMethodName);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = methodId;
+            result = 31 * result + Objects.hashCode(callerClassName);
+            result = 31 * result + Objects.hashCode(callerMethodName);
+            return result;
+        }
+    }
+
+    private static class MethodCaller {
+        private final ClassAndMethod classAndMethod;
+        private final ClassAndMethod caller;
+
+        private MethodCaller(ClassAndMethod classAndMethod, ClassAndMethod caller) {
+            this.classAndMethod = classAndMethod;
+            this.caller = caller;
+        }
+    }
+
+    public static class CallerDuration {
+        private final ClassAndMethod classAndMethod;
+        private final ClassAndMethod caller;
+        private final Histogram duration;
+
+        private CallerDuration(MethodCaller methodCaller, Histogram duration) {
+            this.classAndMethod = methodCaller.classAndMethod;
+            this.caller = methodCaller.caller;
+            this.duration = duration;
+        }
+
+        /**
+         * Return the profiled method.
+         */
+        public ClassAndMethod getClassAndMethod() {
+            return classAndMethod;
+        }
+
+        public ClassAndMethod getCaller() {
+            return caller;
+        }
+
+        public Histogram getDuration() {
+            return duration;
+        }
+    }
+}
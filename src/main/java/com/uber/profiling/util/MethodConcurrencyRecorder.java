@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MethodConcurrencyRecorder keeps the number of threads inside each instrumented method (with concurrency option) in
+ * slots indexed by method id (see MethodIdRegistry), like MethodInvocationCounter.
+ *
+ * Every interval it reports the max concurrency and the time weighted average concurrency. The average is the
+ * integral of concurrency over time divided by the interval length, where the integral is the time spent by completed
+ * invocations plus (in flight invocations * now - sum of their start times), so long running invocations count in
+ * each interval they span.
+ *
+ * The number of threads in flight is a single AtomicLong rather than a LongAdder (striped counter): the max needs the
+ * exact count on every entry, which incrementAndGet returns at the cost of one contended update, while summing the
+ * stripes of a LongAdder on every entry would cost more than it saves. The max itself is only written when the count
+ * exceeds it, so it is exact and rarely contended. Sums of times are only read when reporting, so they stay in
+ * LongAdder.
+ */
+public class MethodConcurrencyRecorder {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final MethodIdRegistry methodIdRegistry;
+
+    // Start times are relative to this, so sums of start times do not overflow
+    private final long baseNanos = System.nanoTime();
+
+    private volatile Gauge[] gauges = new Gauge[INITIAL_CAPACITY];
+
+    // Only accessed in reset()
+    private long lastResetNanos = 0;
+
+    public MethodConcurrencyRecorder() {
+        this(MethodIdRegistry.getInstance());
+    }
+
+    public MethodConcurrencyRecorder(MethodIdRegistry methodIdRegistry) {
+        this.methodIdRegistry = methodIdRegistry;
+    }
+
+    public MethodIdRegistry getMethodIdRegistry() {
+        return methodIdRegistry;
+    }
+
+    /**
+     * Record a thread entering the method, return start time to be passed to exit, or -1 if the method id is unknown.
+     */
+    public long enter(int methodId) {
+        Gauge gauge = getGauge(methodId);
+        if (gauge == null) {
+            return -1;
+        }
+
+        long startNanos = getNanos();
+        gauge.enter(startNanos);
+        return startNanos;
+    }
+
+    public void exit(int methodId, long startNanos) {
+        if (startNanos < 0) {
+            return;
+        }
+
+        Gauge gauge = getGauge(methodId);
+        if (gauge != null) {
+            gauge.exit(startNanos, getNanos());
+        }
+    }
+
+    private long getNanos() {
+        return System.nanoTime() - baseNanos;
+    }
+
+    private Gauge getGauge(int methodId) {
+        Gauge[] currentGauges = gauges;
+        if (methodId >= 0 && methodId < currentGauges.length) {
+            Gauge gauge = currentGauges[methodId];
+            if (gauge != null) {
+                return gauge;
+            }
+        }
+
+        return getOrCreateGauge(methodId);
+    }
+
+    private synchronized Gauge getOrCreateGauge(int methodId) {
+        if (methodIdRegistry.get(methodId) == null) {
+            return null;
+        }
+
+        Gauge[] currentGauges = gauges;
+        if (methodId >= currentGauges.length) {
+            currentGauges = Arrays.copyOf(currentGauges, Math.max(currentGauges.length * 2, methodId + 1));
+        }
+
+        Gauge gauge = currentGauges[methodId];
+        if (gauge == null) {
+            gauge = new Gauge();
+            currentGauges[methodId] = gauge;
+        }
+
+        // Write the volatile array reference again to publish the new gauge to other threads
+        gauges = currentGauges;
+        return gauge;
+    }
+
+    /**
+     * Return max and average concurrency of each method since last reset, methods without invocations in the
+     * interval are not included.
+     */
+    public synchronized List<MethodConcurrency> reset() {
+        List<MethodConcurrency> result = new ArrayList<>();
+
+        long nowNanos = getNanos();
+        long elapsedNanos = nowNanos - lastResetNanos;
+        lastResetNanos = nowNanos;
+
+        Gauge[] currentGauges = gauges;
+        for (int i = 0; i < currentGauges.length; i++) {
+            Gauge gauge = currentGauges[i];
+            if (gauge == null) {
+                continue;
+            }
+
+            long inFlight = gauge.inFlight.get();
+            // Threads still inside the method are the starting concurrency of the next interval
+            long max = gauge.max.getAndSet(inFlight);
+
+            long integralNanos = gauge.getIntegralNanos(inFlight, nowNanos);
+            long intervalIntegralNanos = integralNanos - gauge.lastIntegralNanos;
+            gauge.lastIntegralNanos = integralNanos;
+
+            if (max <= 0 && intervalIntegralNanos <= 0) {
+                continue;
+            }
+
+            // Counters are read one by one while threads update them, so the average is clamped to [0, max]
+            double average = elapsedNanos <= 0 ? 0 : (double) intervalIntegralNanos / elapsedNanos;
+            average = Math.max(0, Math.min(average, max));
+
+            result.add(new MethodConcurrency(methodIdRegistry.get(i), max, average, inFlight));
+        }
+
+        return result;
+    }
+
+    private static class Gauge {
+        private final AtomicLong inFlight = new AtomicLong();
+        private final LongAdder inFlightStartNanos = new LongAdder();
+        private final LongAdder completedNanos = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        // Only accessed in reset()
+        private long lastIntegralNanos = 0;
+
+        private void enter(long startNanos) {
+            long current = inFlight.incrementAndGet();
+            inFlightStartNanos.add(startNanos);
+
+            long currentMax = max.get();
+            while (current > currentMax && !max.compareAndSet(currentMax, current)) {
+                currentMax = max.get();
+            }
+        }
+
+        private void exit(long startNanos, long endNanos) {
+            inFlight.decrementAndGet();
+            inFlightStartNanos.add(-startNanos);
+            completedNanos.add(endNanos - startNanos);
+        }
+
+        private long getIntegralNanos(long inFlightCount, long nowNanos) {
+            return completedNanos.sum() + inFlightCount * nowNanos - inFlightStartNanos.sum();
+        }
+    }
+
+    public static class MethodConcurrency {
+        private final ClassAndMethod classAndMethod;
+        private final long max;
+        private final double average;
+        private final long inFlight;
+
+        public MethodConcurrency(ClassAndMethod classAndMethod, long max, double average, long inFlight) {
+            this.classAndMethod = classAndMethod;
+            this.max = max;
+            this.average = average;
+            this.inFlight = inFlight;
+        }
+
+        public ClassAndMethod getClassAndMethod() {
+            return classAndMethod;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getAverage() {
+            return average;
+        }
+
+        public long getInFlight() {
+            return inFlight;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MethodIdRegistry assigns a dense int id to each instrumented class method at transform time, so the injected
+ * bytecode only passes a constant int and metrics could be recorded into array indexed slots.
+ * Registering the same class method again returns the same id. Looking up a method by id is lock free.
+ *
+ * The registry also keeps the profiling options each method was instrumented with, so profilers could interpret
+ * the recorded metrics (e.g. scale sampled counts by the sample rate).
+ */
+public class MethodIdRegistry {
+    private static final MethodIdRegistry INSTANCE = new MethodIdRegistry();
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final ConcurrentHashMap<ClassAndMethod, Integer> methodIds = new ConcurrentHashMap<>();
+
+    private volatile ClassAndMethod[] methods = new ClassAndMethod[INITIAL_CAPACITY];
+    private volatile MethodProfilingOptions[] methodOptions = new MethodProfilingOptions[INITIAL_CAPACITY];
+    private volatile int size = 0;
+
+    public static MethodIdRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    public int register(String className, String methodName) {
+        ClassAndMethod classAndMethod = new ClassAndMethod(className, methodName);
+        Integer methodId = methodIds.get(classAndMethod);
+        if (methodId != null) {
+            return methodId;
+        }
+
+        synchronized (this) {
+            methodId = methodIds.get(classAndMethod);
+            if (methodId != null) {
+                return methodId;
+            }
+
+            int newId = size;
+            if (newId >= methods.length) {
+                methods = Arrays.copyOf(methods, methods.length * 2);
+                methodOptions = Arrays.copyOf(methodOptions, methodOptions.length * 2);
+            }
+            methods[newId] = classAndMethod;
+            // Publish the new entry before making the id visible to other threads
+            size = newId + 1;
+            methodIds.put(classAndMethod, newId);
+            return newId;
+        }
+    }
+
+    public ClassAndMethod get(int methodId) {
+        if (methodId < 0 || methodId >= size) {
+            return null;
+        }
+        return methods[methodId];
+    }
+
+    public synchronized void setOptions(int methodId, MethodProfilingOptions options) {
+        if (methodId < 0 || methodId >= size) {
+            throw new IllegalArgumentException("Invalid method id: " + methodId);
+        }
+        methodOptions[methodId] = options;
+        // Write the volatile array reference again to publish the new options to readers
+        methodOptions = methodOptions;
+    }
+
+    public MethodProfilingOptions getOptions(int methodId) {
+        MethodProfilingOptions[] currentMethodOptions = methodOptions;
+        if (methodId < 0 || methodId >= currentMethodOptions.length) {
+            return MethodProfilingOptions.DEFAULT;
+        }
+        MethodProfilingOptions options = currentMethodOptions[methodId];
+        return options == null ? MethodProfilingOptions.DEFAULT : options;
+    }
+
+    public MethodProfilingOptions getOptions(String className, String methodName) {
+        Integer methodId = methodIds.get(new ClassAndMethod(className, methodName));
+        return methodId == null ? MethodProfilingOptions.DEFAULT : getOptions(methodId);
+    }
+
+    public int size() {
+        return size;
+    }
+}
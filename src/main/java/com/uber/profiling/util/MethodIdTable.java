@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * MethodIdTable stores one value per method id (see MethodIdRegistry) in an array, so looking up the value for an
+ * instrumented method is a plain array access without hashing or allocating any key.
+ * Reading an existing slot is lock free. Creating a slot takes a lock, which only happens once per method.
+ */
+public class MethodIdTable<T> {
+    private static final int MIN_CAPACITY = 16;
+
+    private volatile AtomicReferenceArray<T> slots;
+
+    public MethodIdTable() {
+        this(MIN_CAPACITY);
+    }
+
+    public MethodIdTable(int initialCapacity) {
+        this.slots = new AtomicReferenceArray<>(Math.max(initialCapacity, MIN_CAPACITY));
+    }
+
+    public T get(int methodId) {
+        AtomicReferenceArray<T> array = slots;
+        if (methodId < 0 || methodId >= array.length()) {
+            return null;
+        }
+        return array.get(methodId);
+    }
+
+    public T computeIfAbsent(int methodId, IntFunction<T> mappingFunction) {
+        T value = get(methodId);
+        if (value != null) {
+            return value;
+        }
+
+        if (methodId < 0) {
+            throw new IllegalArgumentException("methodId must not be negative: " + methodId);
+        }
+
+        synchronized (this) {
+            AtomicReferenceArray<T> array = slots;
+            if (methodId >= array.length()) {
+                int newLength = array.length();
+                while (newLength <= methodId) {
+                    newLength *= 2;
+                }
+                AtomicReferenceArray<T> newArray = new AtomicReferenceArray<>(newLength);
+                for (int i = 0; i < array.length(); i++) {
+                    newArray.set(i, array.get(i));
+                }
+                array = newArray;
+                slots = newArray;
+            }
+
+            value = array.get(methodId);
+            if (value == null) {
+                value = mappingFunction.apply(methodId);
+                array.set(methodId, value);
+            }
+            return value;
+        }
+    }
+
+    public void forEach(ObjIntConsumer<T> action) {
+        AtomicReferenceArray<T> array = slots;
+        for (int i = 0; i < array.length(); i++) {
+            T value = array.get(i);
+            if (value != null) {
+                action.accept(value, i);
+            }
+        }
+    }
+}
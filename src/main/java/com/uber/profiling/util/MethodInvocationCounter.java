@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MethodInvocationCounter counts invocations of instrumented methods in LongAdder (striped counter) slots indexed by
+ * method id (see MethodIdRegistry), so concurrent invocations of the same method do not contend on one counter.
+ *
+ * Counters are never reset, reset() returns the increase since its last call. This way increments racing with
+ * reset() are reported in the next interval instead of being lost.
+ */
+public class MethodInvocationCounter {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final MethodIdRegistry methodIdRegistry;
+
+    private volatile LongAdder[] counters = new LongAdder[INITIAL_CAPACITY];
+
+    // Counter values returned by last reset, only accessed in reset()
+    private long[] lastValues = new long[INITIAL_CAPACITY];
+
+    public MethodInvocationCounter() {
+        this(MethodIdRegistry.getInstance());
+    }
+
+    public MethodInvocationCounter(MethodIdRegistry methodIdRegistry) {
+        this.methodIdRegistry = methodIdRegistry;
+    }
+
+    public MethodIdRegistry getMethodIdRegistry() {
+        return methodIdRegistry;
+    }
+
+    public void increment(int methodId) {
+        LongAdder[] currentCounters = counters;
+        if (methodId >= 0 && methodId < currentCounters.length) {
+            LongAdder counter = currentCounters[methodId];
+            if (counter != null) {
+                counter.increment();
+                return;
+            }
+        }
+
+        LongAdder counter = getOrCreateCounter(methodId);
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+
+    private synchronized LongAdder getOrCreateCounter(int methodId) {
+        if (methodIdRegistry.get(methodId) == null) {
+            return null;
+        }
+
+        LongAdder[] currentCounters = counters;
+        if (methodId >= currentCounters.length) {
+            currentCounters = Arrays.copyOf(currentCounters, Math.max(currentCounters.length * 2, methodId + 1));
+        }
+
+        LongAdder counter = currentCounters[methodId];
+        if (counter == null) {
+            counter = new LongAdder();
+            currentCounters[methodId] = counter;
+        }
+
+        // Write the volatile array reference again to publish the new counter to other threads
+        counters = currentCounters;
+        return counter;
+    }
+
+    /**
+     * Return invocation count of each method since last reset, methods without invocations are not included.
+     */
+    public synchronized Map<ClassAndMethod, Long> reset() {
+        Map<ClassAndMethod, Long> result = new HashMap<>();
+
+        LongAdder[] currentCounters = counters;
+        if (lastValues.length < currentCounters.length) {
+            lastValues = Arrays.copyOf(lastValues, currentCounters.length);
+        }
+
+        for (int i = 0; i < currentCounters.length; i++) {
+            LongAdder counter = currentCounters[i];
+            if (counter == null) {
+                continue;
+            }
+
+            long value = counter.sum();
+            long count = value - lastValues[i];
+            lastValues[i] = value;
+
+            if (count > 0) {
+                result.put(methodIdRegistry.get(i), count);
+            }
+        }
+
+        return result;
+    }
+}
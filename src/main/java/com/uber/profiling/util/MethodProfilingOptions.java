@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+/**
+ * MethodProfilingOptions holds per method options for duration profiling, which are specified after the method name
+ * in durationProfiling argument, like com.foo.Bar.baz@sampleRate:100.
+ */
+public class MethodProfilingOptions {
+    public static final MethodProfilingOptions DEFAULT = new MethodProfilingOptions();
+
+    public static final String OPTION_SEPARATOR = "@";
+    public static final String OPTION_SAMPLE_RATE = "sampleRate";
+    public static final String OPTION_DISABLED = "disabled";
+    public static final String OPTION_RESOURCE_USAGE = "resourceUsage";
+    public static final String OPTION_SLOW_THRESHOLD = "slowThreshold";
+    public static final String OPTION_RETURN_VALUE = "returnValue";
+    public static final String OPTION_CONCURRENCY = "concurrency";
+    public static final String OPTION_CALLER = "caller";
+    public static final String OPTION_ASYNC = "async";
+
+    // Profile one in sampleRate invocations, 1 means profiling every invocation
+    private int sampleRate = 1;
+
+    // Do not profile the method even if it matches a rule, used to exclude methods from a wildcard rule
+    private boolean disabled = false;
+
+    // Also record CPU time and allocated bytes of the current thread for each profiled invocation
+    private boolean resourceUsage = false;
+
+    // Keep exemplars (stack trace and arguments) of invocations slower than this, in durationTimeUnit, 0 means disabled
+    private long slowThreshold = 0;
+
+    // Also record size of the returned value (collection, array, etc.) or its numeric value for each profiled invocation
+    private boolean returnValue = false;
+
+    // Also count threads inside the method for every invocation (regardless of sampleRate), see MethodConcurrencyRecorder
+    private boolean concurrency = false;
+
+    // Also record duration of each profiled invocation by its immediate caller (class and method), see MethodCallerRecorder
+    private boolean caller = false;
+
+    // Record duration until the returned CompletionStage completes instead of until the method returns
+    private boolean async = false;
+
+    /**
+     * Parse options like sampleRate:100, disabled, resourceUsage, slowThreshold:500, returnValue, concurrency, caller
+     * or async (multiple options are separated by @), throw IllegalArgumentException for unknown or invalid option.
+     */
+    public static MethodProfilingOptions parse(String str) {
+        MethodProfilingOptions options = new MethodProfilingOptions();
+        if (str == null || str.isEmpty()) {
+            return options;
+        }
+
+        for (String option : str.split(OPTION_SEPARATOR)) {
+            int index = option.indexOf(':');
+            String key = index < 0 ? option : option.substring(0, index);
+            String value = index < 0 ? "" : option.substring(index + 1);
+            switch (key) {
+                case OPTION_SAMPLE_RATE:
+                    options.setSampleRate(parsePositiveInt(option, value));
+                    break;
+                case OPTION_DISABLED:
+                    options.setDisabled(value.isEmpty() || Boolean.parseBoolean(value));
+                    break;
+                case OPTION_RESOURCE_USAGE:
+                    options.setResourceUsage(value.isEmpty() || Boolean.parseBoolean(value));
+                    break;
+                case OPTION_SLOW_THRESHOLD:
+                    options.setSlowThreshold(parsePositiveLong(option, value));
+                    break;
+                case OPTION_RETURN_VALUE:
+                    options.setReturnValue(value.isEmpty() || Boolean.parseBoolean(value));
+                    break;
+                case OPTION_CONCURRENCY:
+                    options.setConcurrency(value.isEmpty() || Boolean.parseBoolean(value));
+                    break;
+                case OPTION_CALLER:
+                    options.setCaller(value.isEmpty() || Boolean.parseBoolean(value));
+                    break;
+                case OPTION_ASYNC:
+                    options.setAsync(value.isEmpty() || Boolean.parseBoolean(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid method profiling option: " + option);
+            }
+        }
+
+        // Finding the caller walks the stack, which is too expensive for every invocation
+        if (options.isCaller() && !options.isSampled()) {
+            throw new IllegalArgumentException("Invalid method profiling options (" + OPTION_CALLER + " requires " + OPTION_SAMPLE_RATE + " greater than 1): " + str);
+        }
+
+        // These options are measured when the method returns, so they would not describe the asynchronous duration
+        if (options.isAsync() && (options.getSlowThreshold() > 0 || options.isCaller() || options.isConcurrency())) {
+            throw new IllegalArgumentException("Invalid method profiling options (" + OPTION_ASYNC + " cannot be combined with "
+                    + OPTION_SLOW_THRESHOLD + ", " + OPTION_CALLER + " or " + OPTION_CONCURRENCY + "): " + str);
+        }
+
+        return options;
+    }
+
+    private static int parsePositiveInt(String option, String value) {
+        try {
+            int result = Integer.parseInt(value);
+            if (result >= 1) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to throw IllegalArgumentException with the option
+        }
+        throw new IllegalArgumentException("Invalid method profiling option (must be positive integer): " + option);
+    }
+
+    private static long parsePositiveLong(String option, String value) {
+        try {
+            long result = Long.parseLong(value);
+            if (result >= 1) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to throw IllegalArgumentException with the option
+        }
+        throw new IllegalArgumentException("Invalid method profiling option (must be positive integer): " + option);
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSampleRate(int sampleRate) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("Invalid sample rate: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    public boolean isSampled() {
+        return sampleRate > 1;
+    }
+
+    public boolean isDisabled() {
+        return disabled;
+    }
+
+    public void setDisabled(boolean disabled) {
+        this.disabled = disabled;
+    }
+
+    public boolean isResourceUsage() {
+        return resourceUsage;
+    }
+
+    public void setResourceUsage(boolean resourceUsage) {
+        this.resourceUsage = resourceUsage;
+    }
+
+    public long getSlowThreshold() {
+        return slowThreshold;
+    }
+
+    public void setSlowThreshold(long slowThreshold) {
+        if (slowThreshold < 0) {
+            throw new IllegalArgumentException("Invalid slow threshold: " + slowThreshold);
+        }
+        this.slowThreshold = slowThreshold;
+    }
+
+    public boolean isReturnValue() {
+        return returnValue;
+    }
+
+    public void setReturnValue(boolean returnValue) {
+        this.returnValue = returnValue;
+    }
+
+    public boolean isConcurrency() {
+        return concurrency;
+    }
+
+    public void setConcurrency(boolean concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public boolean isCaller() {
+        return caller;
+    }
+
+    public void setCaller(boolean caller) {
+        this.caller = caller;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public MethodProfilingOptions copy() {
+        MethodProfilingOptions options = new MethodProfilingOptions();
+        options.sampleRate = sampleRate;
+        options.disabled = disabled;
+        options.resourceUsage = resourceUsage;
+        options.slowThreshold = slowThreshold;
+        options.returnValue = returnValue;
+        options.concurrency = concurrency;
+        options.caller = caller;
+        options.async = async;
+        return options;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        MethodProfilingOptions that = (MethodProfilingOptions) o;
+
+        if (sampleRate != that.sampleRate) return false;
+        if (disabled != that.disabled) return false;
+        if (resourceUsage != that.resourceUsage) return false;
+        if (slowThreshold != that.slowThreshold) return false;
+        if (returnValue != that.returnValue) return false;
+        if (concurrency != that.concurrency) return false;
+        if (caller != that.caller) return false;
+        return async == that.async;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = sampleRate;
+        result = 31 * result + (disabled ? 1 : 0);
+        result = 31 * result + (resourceUsage ? 1 : 0);
+        result = 31 * result + (int) (slowThreshold ^ (slowThreshold >>> 32));
+        result = 31 * result + (returnValue ? 1 : 0);
+        result = 31 * result + (concurrency ? 1 : 0);
+        result = 31 * result + (caller ? 1 : 0);
+        result = 31 * result + (async ? 1 : 0);
+        return result;
+    }
+
+    /**
+     * Return options in the same format accepted by parse.
+     */
+    @Override
+    public String toString() {
+        String str = OPTION_SAMPLE_RATE + ":" + sampleRate;
+        if (disabled) {
+            str += OPTION_SEPARATOR + OPTION_DISABLED;
+        }
+        if (resourceUsage) {
+            str += OPTION_SEPARATOR + OPTION_RESOURCE_USAGE;
+        }
+        if (slowThreshold > 0) {
+            str += OPTION_SEPARATOR + OPTION_SLOW_THRESHOLD + ":" + slowThreshold;
+        }
+        if (returnValue) {
+            str += OPTION_SEPARATOR + OPTION_RETURN_VALUE;
+        }
+        if (concurrency) {
+            str += OPTION_SEPARATOR + OPTION_CONCURRENCY;
+        }
+        if (caller) {
+            str += OPTION_SEPARATOR + OPTION_CALLER;
+        }
+        if (async) {
+            str += OPTION_SEPARATOR + OPTION_ASYNC;
+        }
+        return str;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.Supplier;
+
+/**
+ * PerThreadRecorder gives each writer thread its own buffer, so application threads never write into memory shared
+ * with other threads. The reader calls drain() to swap in new buffers and collect the old ones for merging.
+ *
+ * Each writer marks itself as writing with a per thread sequence number (odd while writing). After swapping a
+ * thread's buffer, drain() waits until that thread is no longer writing into the old buffer, so no in-flight write
+ * is lost. Buffers of threads which have died are drained one last time and then dropped.
+ */
+public class PerThreadRecorder<T> {
+    private final Supplier<T> bufferFactory;
+
+    private final ConcurrentLinkedQueue<Writer<T>> writers = new ConcurrentLinkedQueue<>();
+
+    private final ThreadLocal<Writer<T>> threadWriter = ThreadLocal.withInitial(this::createWriter);
+
+    public PerThreadRecorder(Supplier<T> bufferFactory) {
+        this.bufferFactory = bufferFactory;
+    }
+
+    /**
+     * Start writing into the current thread's buffer. Must be followed by Writer.endWrite(), usually in finally block.
+     */
+    public Writer<T> beginWrite() {
+        Writer<T> writer = threadWriter.get();
+        writer.beginWrite();
+        return writer;
+    }
+
+    /**
+     * Swap each thread's buffer with a new one and return the old buffers. Only buffers with writes since the last
+     * drain are swapped. This method should only be called by one thread at a time.
+     */
+    public List<T> drain() {
+        List<T> result = new ArrayList<>();
+
+        Iterator<Writer<T>> iterator = writers.iterator();
+        while (iterator.hasNext()) {
+            Writer<T> writer = iterator.next();
+            boolean threadAlive = writer.isThreadAlive();
+
+            T oldBuffer = writer.swapIfWritten(bufferFactory);
+            if (oldBuffer != null) {
+                result.add(oldBuffer);
+            }
+
+            if (!threadAlive) {
+                // The thread cannot write anymore and its last buffer is already drained
+                iterator.remove();
+            }
+        }
+
+        return result;
+    }
+
+    public int getWriterCount() {
+        return writers.size();
+    }
+
+    private Writer<T> createWriter() {
+        Writer<T> writer = new Writer<>(Thread.currentThread(), bufferFactory.get());
+        writers.add(writer);
+        return writer;
+    }
+
+    public static class Writer<T> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicLongFieldUpdater<Writer> SEQUENCE_UPDATER = AtomicLongFieldUpdater.newUpdater(Writer.class, "sequence");
+
+        private final WeakReference<Thread> thread;
+
+        private volatile T buffer;
+
+        // Odd while the owner thread is writing, only updated by the owner thread
+        private volatile long sequence = 0;
+
+        // Sequence value when the buffer was swapped last time, only used by the reader
+        private long drainedSequence = 0;
+
+        private Writer(Thread thread, T buffer) {
+            this.thread = new WeakReference<>(thread);
+            this.buffer = buffer;
+        }
+
+        public T getBuffer() {
+            return buffer;
+        }
+
+        public void endWrite() {
+            // Release store is enough here, the reader only needs to see it eventually together with the writes
+            SEQUENCE_UPDATER.lazySet(this, sequence + 1);
+        }
+
+        private void beginWrite() {
+            // Volatile store followed by volatile load of buffer, so either the reader sees this thread as writing,
+            // or this thread sees the new buffer
+            sequence = sequence + 1;
+        }
+
+        private boolean isThreadAlive() {
+            Thread t = thread.get();
+            return t != null && t.isAlive();
+        }
+
+        private T swapIfWritten(Supplier<T> bufferFactory) {
+            long currentSequence = sequence;
+            if (currentSequence == drainedSequence) {
+                return null;
+            }
+
+            T oldBuffer = buffer;
+            buffer = bufferFactory.get();
+
+            long observedSequence = sequence;
+            if ((observedSequence & 1) != 0) {
+                // The owner thread is in the middle of a write which may go to the old buffer, wait for it to finish
+                while (sequence == observedSequence) {
+                    Thread.yield();
+                }
+            }
+
+            // Any write which may go to the new buffer will move the sequence past this value, so it is not skipped
+            // by the next drain
+            drainedSequence = observedSequence;
+            return oldBuffer;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * SlowInvocationRecorder keeps exemplars of invocations slower than the slowThreshold option of their method. Each
+ * method has a reservoir of at most maxExemplars invocations per interval, picked uniformly from all slow invocations
+ * of the interval by reservoir sampling. A slot is reserved before the exemplar is created, so invocations not kept
+ * do not pay for capturing stack trace and arguments.
+ */
+public class SlowInvocationRecorder {
+    public static final int DEFAULT_MAX_EXEMPLARS = 5;
+
+    public static final int MAX_STACK_DEPTH = 64;
+    static final int MAX_ARGUMENT_LENGTH = 200;
+
+    private final MethodIdRegistry methodIdRegistry;
+    private final int maxExemplars;
+
+    // Replaced by reset(), exemplars recorded into the old map while resetting are dropped
+    private volatile Map<Integer, Reservoir> reservoirs = new ConcurrentHashMap<>();
+
+    public SlowInvocationRecorder() {
+        this(MethodIdRegistry.getInstance(), DEFAULT_MAX_EXEMPLARS);
+    }
+
+    public SlowInvocationRecorder(MethodIdRegistry methodIdRegistry, int maxExemplars) {
+        if (maxExemplars < 1) {
+            throw new IllegalArgumentException("Invalid max exemplars: " + maxExemplars);
+        }
+        this.methodIdRegistry = methodIdRegistry;
+        this.maxExemplars = maxExemplars;
+    }
+
+    public MethodIdRegistry getMethodIdRegistry() {
+        return methodIdRegistry;
+    }
+
+    /**
+     * Count a slow invocation of the method, and keep the exemplar created by the supplier if it is picked.
+     */
+    public void record(int methodId, Supplier<SlowInvocation> exemplarSupplier) {
+        Reservoir reservoir = reservoirs.get(methodId);
+        if (reservoir == null) {
+            ClassAndMethod classAndMethod = methodIdRegistry.get(methodId);
+            if (classAndMethod == null) {
+                return;
+            }
+            reservoir = reservoirs.computeIfAbsent(methodId, t -> new Reservoir(classAndMethod, maxExemplars));
+        }
+
+        int slot = reservoir.reserve();
+        if (slot >= 0) {
+            reservoir.set(slot, exemplarSupplier.get());
+        }
+    }
+
+    /**
+     * Return reservoirs of methods with slow invocations since last reset.
+     */
+    public List<Reservoir> reset() {
+        Map<Integer, Reservoir> oldReservoirs = reservoirs;
+        reservoirs = new ConcurrentHashMap<>();
+        return new ArrayList<>(oldReservoirs.values());
+    }
+
+    /**
+     * Convert stack trace elements to class.method strings like StacktraceReporterProfiler, skipping the given number
+     * of innermost frames (e.g. the profiler's own frames).
+     */
+    public static List<String> getStackTrace(StackTraceElement[] elements, int skipFrames) {
+        List<String> result = new ArrayList<>();
+        for (int i = skipFrames; i < elements.length && result.size() < MAX_STACK_DEPTH; i++) {
+            result.add(elements[i].getClassName() + "." + elements[i].getMethodName());
+        }
+        return result;
+    }
+
+    /**
+     * Convert argument values like String.valueOf, truncated to keep exemplars small.
+     */
+    public static List<String> getArgumentValues(Object[] arguments) {
+        if (arguments == null) {
+            return Collections.emptyList();
+        }
+
+        List<String> result = new ArrayList<>(arguments.length);
+        for (Object argument : arguments) {
+            String str = argument instanceof char[] ? new String((char[]) argument) : String.valueOf(argument);
+            if (str.length() > MAX_ARGUMENT_LENGTH) {
+                str = str.substring(0, MAX_ARGUMENT_LENGTH);
+            }
+            result.add(str);
+        }
+        return result;
+    }
+
+    public static class Reservoir {
+        private final ClassAndMethod classAndMethod;
+        private final SlowInvocation[] slowInvocations;
+        private long slowCount = 0;
+
+        private Reservoir(ClassAndMethod classAndMethod, int size) {
+            this.classAndMethod = classAndMethod;
+            this.slowInvocations = new SlowInvocation[size];
+        }
+
+        // Return the slot to keep this invocation, or -1 if it is not picked
+        private synchronized int reserve() {
+            slowCount++;
+            if (slowCount <= slowInvocations.length) {
+                return (int) (slowCount - 1);
+            }
+            long index = ThreadLocalRandom.current().nextLong(slowCount);
+            return index < slowInvocations.length ? (int) index : -1;
+        }
+
+        private synchronized void set(int slot, SlowInvocation slowInvocation) {
+            slowInvocations[slot] = slowInvocation;
+        }
+
+        public ClassAndMethod getClassAndMethod() {
+            return classAndMethod;
+        }
+
+        /**
+         * Return number of slow invocations, including those not kept as exemplars.
+         */
+        public synchronized long getSlowCount() {
+            return slowCount;
+        }
+
+        public synchronized List<SlowInvocation> getSlowInvocations() {
+            List<SlowInvocation> result = new ArrayList<>();
+            for (SlowInvocation slowInvocation : slowInvocations) {
+                if (slowInvocation != null) {
+                    result.add(slowInvocation);
+                }
+            }
+            return result;
+        }
+    }
+
+    public static class SlowInvocation {
+        private final long duration;
+        private final long epochMillis;
+        private final String threadName;
+        private final List<String> stacktrace;
+        private final List<String> arguments;
+
+        public SlowInvocation(long duration, long epochMillis, String threadName, List<String> stacktrace, List<String> arguments) {
+            this.duration = duration;
+            this.epochMillis = epochMillis;
+            this.threadName = threadName;
+            this.stacktrace = stacktrace;
+            this.arguments = arguments;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        public long getEpochMillis() {
+            return epochMillis;
+        }
+
+        public String getThreadName() {
+            return threadName;
+        }
+
+        /**
+         * Return frames from the slow method to its outermost caller.
+         */
+        public List<String> getStacktrace() {
+            return stacktrace;
+        }
+
+        public List<String> getArguments() {
+            return arguments;
+        }
+    }
+}
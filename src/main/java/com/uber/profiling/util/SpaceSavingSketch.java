@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SpaceSavingSketch tracks the most frequent values of a stream with a fixed number of counters (the Space-Saving
+ * algorithm). A value without counter replaces the value with the smallest count, and inherits that count as its
+ * possible overestimation (error), so every value with true count above total count / capacity is guaranteed to be
+ * kept. Counters are kept in a min heap, so each update takes O(log capacity).
+ *
+ * This class is not thread safe.
+ */
+public class SpaceSavingSketch {
+    private final int capacity;
+
+    // Min heap ordered by counts
+    private final String[] items;
+    private final long[] counts;
+    private final long[] errors;
+    private int size = 0;
+
+    private final Map<String, Integer> heapIndexes = new HashMap<>();
+
+    public SpaceSavingSketch(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.items = new String[capacity];
+        this.counts = new long[capacity];
+        this.errors = new long[capacity];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void offer(String item) {
+        offer(item, 1, 0);
+    }
+
+    private void offer(String item, long count, long error) {
+        Integer index = heapIndexes.get(item);
+        if (index != null) {
+            counts[index] += count;
+            errors[index] += error;
+            siftDown(index);
+            return;
+        }
+
+        if (size < capacity) {
+            set(size, item, count, error);
+            siftUp(size++);
+            return;
+        }
+
+        // Replace the value with the smallest count at the heap root
+        long minCount = counts[0];
+        heapIndexes.remove(items[0]);
+        set(0, item, minCount + count, minCount + error);
+        siftDown(0);
+    }
+
+    /**
+     * Add values and counts of another sketch, like offering each of its values with their counts. The result is
+     * approximate, the count of a value dropped by one of the sketches misses up to that sketch's smallest count.
+     */
+    public void merge(SpaceSavingSketch other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.items[i], other.counts[i], other.errors[i]);
+        }
+    }
+
+    /**
+     * Return tracked values ordered by count from the largest.
+     */
+    public List<Item> getItems() {
+        List<Item> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(new Item(items[i], counts[i], errors[i]));
+        }
+        result.sort((a, b) -> Long.compare(b.getCount(), a.getCount()));
+        return result;
+    }
+
+    private void set(int index, String item, long count, long error) {
+        items[index] = item;
+        counts[index] = count;
+        errors[index] = error;
+        heapIndexes.put(item, index);
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (counts[parent] <= counts[index]) {
+                break;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int smallest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && counts[left] < counts[smallest]) {
+                smallest = left;
+            }
+            if (right < size && counts[right] < counts[smallest]) {
+                smallest = right;
+            }
+            if (smallest == index) {
+                return;
+            }
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        String item = items[i];
+        long count = counts[i];
+        long error = errors[i];
+        set(i, items[j], counts[j], errors[j]);
+        set(j, item, count, error);
+    }
+
+    public static class Item {
+        private final String value;
+        private final long count;
+        private final long error;
+
+        public Item(String value, long count, long error) {
+            this.value = value;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * Return estimated count, which is at most getError() larger than the true count.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public long getError() {
+            return error;
+        }
+    }
+}
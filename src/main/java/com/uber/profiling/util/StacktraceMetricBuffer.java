@@ -16,6 +16,7 @@
 
 package com.uber.profiling.util;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
@@ -23,15 +24,47 @@ import java.util.concurrent.atomic.AtomicLong;
 /**
  * StacktraceMetricBuffer is a buffer to store metrics. It is thread safe for appendValue.
  * The reset method will create a new empty internal buffer and return the old one.
+ *
+ * Writers and reset are coordinated with WriterReaderPhaser, so a value appended while reset runs lands in exactly
+ * one of the returned buffers, without taking any lock when appending.
+ *
+ * When perThread is enabled, each thread counts into its own map (see PerThreadRecorder), and reset merges the
+ * counters from all threads.
  */
 public class StacktraceMetricBuffer {
     private AtomicLong lastResetMillis = new AtomicLong(System.currentTimeMillis());
-    
+
+    private final PerThreadRecorder<ConcurrentHashMap<Stacktrace, AtomicLong>> perThreadRecorder;
+
+    private final WriterReaderPhaser phaser = new WriterReaderPhaser();
+
     private volatile ConcurrentHashMap<Stacktrace, AtomicLong> metrics = new ConcurrentHashMap<>();
 
+    public StacktraceMetricBuffer() {
+        this(false);
+    }
+
+    public StacktraceMetricBuffer(boolean perThread) {
+        this.perThreadRecorder = perThread ? new PerThreadRecorder<>(ConcurrentHashMap::new) : null;
+    }
+
     public void appendValue(Stacktrace stacktrace) {
-        AtomicLong counter = metrics.computeIfAbsent(stacktrace, key -> new AtomicLong(0));
-        counter.incrementAndGet();
+        if (perThreadRecorder == null) {
+            long criticalValue = phaser.writerCriticalSectionEnter();
+            try {
+                increment(metrics, stacktrace);
+            } finally {
+                phaser.writerCriticalSectionExit(criticalValue);
+            }
+            return;
+        }
+
+        PerThreadRecorder.Writer<ConcurrentHashMap<Stacktrace, AtomicLong>> writer = perThreadRecorder.beginWrite();
+        try {
+            increment(writer.getBuffer(), stacktrace);
+        } finally {
+            writer.endWrite();
+        }
     }
 
     public long getLastResetMillis() {
@@ -39,11 +72,33 @@ public class StacktraceMetricBuffer {
     }
     
     public Map<Stacktrace, AtomicLong> reset() {
-        ConcurrentHashMap<Stacktrace, AtomicLong> oldCopy = metrics;
-        metrics = new ConcurrentHashMap<>();
+        Map<Stacktrace, AtomicLong> result;
+
+        if (perThreadRecorder == null) {
+            phaser.readerLock();
+            try {
+                result = metrics;
+                metrics = new ConcurrentHashMap<>();
+                phaser.flipPhase();
+            } finally {
+                phaser.readerUnlock();
+            }
+        } else {
+            result = new HashMap<>();
+            for (Map<Stacktrace, AtomicLong> threadMetrics : perThreadRecorder.drain()) {
+                for (Map.Entry<Stacktrace, AtomicLong> entry : threadMetrics.entrySet()) {
+                    result.computeIfAbsent(entry.getKey(), key -> new AtomicLong(0)).addAndGet(entry.getValue().get());
+                }
+            }
+        }
         
         lastResetMillis.set(System.currentTimeMillis());
         
-        return oldCopy;
+        return result;
+    }
+
+    private static void increment(ConcurrentHashMap<Stacktrace, AtomicLong> map, Stacktrace stacktrace) {
+        AtomicLong counter = map.computeIfAbsent(stacktrace, key -> new AtomicLong(0));
+        counter.incrementAndGet();
     }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * ThreadResourceUsage reads CPU time and allocated bytes of the current thread, which are sampled before and after
+ * a profiled method invocation. Allocated bytes need the HotSpot extension com.sun.management.ThreadMXBean, both
+ * methods return -1 when the JVM does not support or has disabled the measurement.
+ */
+public class ThreadResourceUsage {
+    private static final AgentLogger logger = AgentLogger.getLogger(ThreadResourceUsage.class.getName());
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.ThreadMXBean hotSpotThreadMXBean = getHotSpotThreadMXBean();
+
+    private ThreadResourceUsage() {
+    }
+
+    private static com.sun.management.ThreadMXBean getHotSpotThreadMXBean() {
+        try {
+            if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+                if (bean.isThreadAllocatedMemorySupported()) {
+                    return bean;
+                }
+            }
+        } catch (Throwable ex) {
+            logger.warn("Failed to get thread allocated memory support", ex);
+        }
+        logger.warn("Thread allocated memory is not supported, allocatedBytes will not be reported");
+        return null;
+    }
+
+    public static boolean isCpuTimeSupported() {
+        return threadMXBean.isCurrentThreadCpuTimeSupported();
+    }
+
+    public static boolean isAllocatedBytesSupported() {
+        return hotSpotThreadMXBean != null;
+    }
+
+    /**
+     * Get CPU time of the current thread in nanoseconds, or -1 if not available.
+     */
+    public static long getCurrentThreadCpuTime() {
+        try {
+            return threadMXBean.getCurrentThreadCpuTime();
+        } catch (UnsupportedOperationException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Get bytes allocated in heap by the current thread so far, or -1 if not available.
+     */
+    public static long getCurrentThreadAllocatedBytes() {
+        if (hotSpotThreadMXBean == null) {
+            return -1;
+        }
+        // getCurrentThreadAllocatedBytes is only available since Java 14
+        return hotSpotThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import java.lang.reflect.Array;
+import java.nio.Buffer;
+import java.util.Collection;
+import java.util.Map;
+
+public class ValueSizeUtils {
+    public static final long UNKNOWN_SIZE = -1;
+
+    /**
+     * Return size of a value: number of elements of collections, maps and arrays, length of char sequences and
+     * remaining elements of buffers (bytes of ByteBuffer, ints of IntBuffer, etc.). Return UNKNOWN_SIZE for null or
+     * other values.
+     *
+     * The value is only inspected and not kept, so it could be called on values returned by instrumented methods.
+     */
+    public static long getSize(Object value) {
+        if (value == null) {
+            return UNKNOWN_SIZE;
+        } else if (value instanceof Collection) {
+            return ((Collection<?>) value).size();
+        } else if (value instanceof Map) {
+            return ((Map<?, ?>) value).size();
+        } else if (value instanceof CharSequence) {
+            return ((CharSequence) value).length();
+        } else if (value instanceof Buffer) {
+            return ((Buffer) value).remaining();
+        } else if (value.getClass().isArray()) {
+            return Array.getLength(value);
+        }
+        return UNKNOWN_SIZE;
+    }
+
+    /**
+     * Return value of a number as long to be recorded in Histogram, Float and Double values are rounded.
+     */
+    public static long toLong(Number value) {
+        if (value instanceof Double || value instanceof Float) {
+            return Math.round(value.doubleValue());
+        }
+        return value.longValue();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * WriterReaderPhaser coordinates wait free writers with a reader which swaps the data structure written by them
+ * (double buffering), using the algorithm from HdrHistogram's WriterReaderPhaser.
+ *
+ * Writers wrap each write with writerCriticalSectionEnter/writerCriticalSectionExit, which are two atomic increments
+ * and never block. The reader swaps the active data structure, then calls flipPhase, which returns only after every
+ * writer that could still be writing to the old data structure has exited. After that the reader owns the old data
+ * structure exclusively, so each write lands in exactly one of the two data structures.
+ */
+public class WriterReaderPhaser {
+    private static final AtomicLongFieldUpdater<WriterReaderPhaser> START_EPOCH_UPDATER = AtomicLongFieldUpdater.newUpdater(WriterReaderPhaser.class, "startEpoch");
+    private static final AtomicLongFieldUpdater<WriterReaderPhaser> EVEN_END_EPOCH_UPDATER = AtomicLongFieldUpdater.newUpdater(WriterReaderPhaser.class, "evenEndEpoch");
+    private static final AtomicLongFieldUpdater<WriterReaderPhaser> ODD_END_EPOCH_UPDATER = AtomicLongFieldUpdater.newUpdater(WriterReaderPhaser.class, "oddEndEpoch");
+
+    // Writers in the even phase get non negative values from startEpoch, writers in the odd phase get negative values
+    private volatile long startEpoch = 0;
+    private volatile long evenEndEpoch = 0;
+    private volatile long oddEndEpoch = Long.MIN_VALUE;
+
+    private final ReentrantLock readerLock = new ReentrantLock();
+
+    /**
+     * Enter a write critical section, return value must be passed to writerCriticalSectionExit.
+     */
+    public long writerCriticalSectionEnter() {
+        return START_EPOCH_UPDATER.getAndIncrement(this);
+    }
+
+    public void writerCriticalSectionExit(long criticalValueAtEnter) {
+        if (criticalValueAtEnter < 0) {
+            ODD_END_EPOCH_UPDATER.getAndIncrement(this);
+        } else {
+            EVEN_END_EPOCH_UPDATER.getAndIncrement(this);
+        }
+    }
+
+    public void readerLock() {
+        readerLock.lock();
+    }
+
+    public void readerUnlock() {
+        readerLock.unlock();
+    }
+
+    /**
+     * Flip to the next phase and wait until all writers which entered in the previous phase have exited.
+     * Must be called while holding the reader lock, after the active data structure is swapped.
+     */
+    public void flipPhase() {
+        if (!readerLock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("flipPhase must be called while holding the reader lock");
+        }
+
+        boolean nextPhaseIsEven = startEpoch < 0;
+
+        long initialStartValue;
+        if (nextPhaseIsEven) {
+            initialStartValue = 0;
+            evenEndEpoch = initialStartValue;
+        } else {
+            initialStartValue = Long.MIN_VALUE;
+            oddEndEpoch = initialStartValue;
+        }
+
+        long startValueAtFlip = START_EPOCH_UPDATER.getAndSet(this, initialStartValue);
+
+        while ((nextPhaseIsEven ? oddEndEpoch : evenEndEpoch) != startValueAtFlip) {
+            Thread.yield();
+        }
+    }
+}
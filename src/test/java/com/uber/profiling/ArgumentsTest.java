@@ -19,6 +19,7 @@ package com.uber.profiling;
 import com.uber.profiling.reporters.ConsoleOutputReporter;
 import com.uber.profiling.util.ClassAndMethod;
 import com.uber.profiling.util.ClassMethodArgument;
+import com.uber.profiling.util.MethodProfilingOptions;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -26,6 +27,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class ArgumentsTest {
     @Test
@@ -81,6 +83,168 @@ public class ArgumentsTest {
         Assert.assertEquals(Arguments.DEFAULT_APP_ID_REGEX, arguments.getAppIdRegex());
     }
 
+    @Test
+    public void durationProfiling_initializer() {
+        Arguments arguments = Arguments.parseArgs("durationProfiling=a.bc.<init>,durationProfiling=a.bc.<clinit>@sampleRate:10");
+        Assert.assertEquals(2, arguments.getDurationProfiling().size());
+        Assert.assertEquals(new ClassAndMethod("a.bc", ClassAndMethod.CONSTRUCTOR_NAME), arguments.getDurationProfiling().get(0));
+        Assert.assertEquals(new ClassAndMethod("a.bc", ClassAndMethod.CLASS_INITIALIZER_NAME), arguments.getDurationProfiling().get(1));
+        Assert.assertEquals(10, arguments.getDurationProfilingOptions().get(new ClassAndMethod("a.bc", ClassAndMethod.CLASS_INITIALIZER_NAME)).getSampleRate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void durationProfiling_invalidInitializer() {
+        Arguments.parseArgs("durationProfiling=a.bc.<foo>");
+    }
+
+    @Test
+    public void durationProfiling_selectors() {
+        Arguments arguments = Arguments.parseArgs("durationProfiling=com.foo.*.dao.*Repository.find*,durationProfiling=org.apache.spark.rdd.RDD+.compute,durationProfiling=@com.foo.Timed@sampleRate:10");
+        Assert.assertEquals(3, arguments.getDurationProfiling().size());
+        Assert.assertEquals(new ClassAndMethod("com.foo.*.dao.*Repository", "find*"), arguments.getDurationProfiling().get(0));
+        Assert.assertEquals(new ClassAndMethod("org.apache.spark.rdd.RDD+", "compute"), arguments.getDurationProfiling().get(1));
+        Assert.assertEquals(new ClassAndMethod("@com.foo.Timed", "*"), arguments.getDurationProfiling().get(2));
+
+        Assert.assertEquals(1, arguments.getDurationProfilingOptions().size());
+        Assert.assertEquals(10, arguments.getDurationProfilingOptions().get(new ClassAndMethod("@com.foo.Timed", "*")).getSampleRate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void durationProfiling_invalidAnnotation() {
+        Arguments.parseArgs("durationProfiling=@com.foo.*");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void durationProfiling_invalidSubtype() {
+        Arguments.parseArgs("durationProfiling=com.foo.*+.compute");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void durationProfiling_invalidExactClass() {
+        Arguments.parseArgs("durationProfiling=com.foo.*!.compute");
+    }
+
+    @Test
+    public void durationProfiling_options() {
+        Arguments arguments = Arguments.parseArgs("durationProfiling=a.bc.foo@sampleRate:100,durationProfiling=ab.c.d.*");
+        Assert.assertEquals(2, arguments.getDurationProfiling().size());
+        Assert.assertEquals(new ClassAndMethod("a.bc", "foo"), arguments.getDurationProfiling().get(0));
+        Assert.assertEquals(new ClassAndMethod("ab.c.d", "*"), arguments.getDurationProfiling().get(1));
+
+        Assert.assertEquals(1, arguments.getDurationProfilingOptions().size());
+        Assert.assertEquals(100, arguments.getDurationProfilingOptions().get(new ClassAndMethod("a.bc", "foo")).getSampleRate());
+    }
+
+    @Test
+    public void durationProfiling_resourceUsage() {
+        Arguments arguments = Arguments.parseArgs("durationProfiling=a.bc.foo@sampleRate:10@resourceUsage");
+        MethodProfilingOptions options = arguments.getDurationProfilingOptions().get(new ClassAndMethod("a.bc", "foo"));
+        Assert.assertEquals(10, options.getSampleRate());
+        Assert.assertTrue(options.isResourceUsage());
+        Assert.assertEquals(options, MethodProfilingOptions.parse(options.toString()));
+    }
+
+    @Test
+    public void durationProfiling_slowThreshold() {
+        Arguments arguments = Arguments.parseArgs("durationProfiling=a.bc.foo@slowThreshold:500");
+        MethodProfilingOptions options = arguments.getDurationProfilingOptions().get(new ClassAndMethod("a.bc", "foo"));
+        Assert.assertEquals(500, options.getSlowThreshold());
+        Assert.assertEquals(options, MethodProfilingOptions.parse(options.toString()));
+    }
+
+    @Test
+    public void durationProfiling_returnValue() {
+        Arguments arguments = Arguments.parseArgs("durationProfiling=a.bc.foo@returnValue@sampleRate:10");
+        MethodProfilingOptions options = arguments.getDurationProfilingOptions().get(new ClassAndMethod("a.bc", "foo"));
+        Assert.assertTrue(options.isReturnValue());
+        Assert.assertEquals(10, options.getSampleRate());
+        Assert.assertEquals(options, MethodProfilingOptions.parse(options.toString()));
+        Assert.assertNotEquals(options, MethodProfilingOptions.parse("sampleRate:10"));
+    }
+
+    @Test
+    public void durationProfiling_caller() {
+        Arguments arguments = Arguments.parseArgs("durationProfiling=a.bc.foo@sampleRate:10@caller");
+        MethodProfilingOptions options = arguments.getDurationProfilingOptions().get(new ClassAndMethod("a.bc", "foo"));
+        Assert.assertTrue(options.isCaller());
+        Assert.assertEquals(10, options.getSampleRate());
+        Assert.assertEquals(options, MethodProfilingOptions.parse(options.toString()));
+        Assert.assertNotEquals(options, MethodProfilingOptions.parse("sampleRate:10"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void durationProfiling_callerNotSampled() {
+        Arguments.parseArgs("durationProfiling=a.bc.foo@caller");
+    }
+
+    @Test
+    public void durationProfiling_async() {
+        Arguments arguments = Arguments.parseArgs("durationProfiling=a.bc.foo@async@sampleRate:10");
+        MethodProfilingOptions options = arguments.getDurationProfilingOptions().get(new ClassAndMethod("a.bc", "foo"));
+        Assert.assertTrue(options.isAsync());
+        Assert.assertEquals(10, options.getSampleRate());
+        Assert.assertEquals(options, MethodProfilingOptions.parse(options.toString()));
+        Assert.assertNotEquals(options, MethodProfilingOptions.parse("sampleRate:10"));
+    }
+
+    @Test
+    public void durationProfiling_asyncInvalidCombination() {
+        for (String option : new String[]{"slowThreshold:100", "sampleRate:10@caller", "concurrency"}) {
+            try {
+                Arguments.parseArgs("durationProfiling=a.bc.foo@async@" + option);
+                Assert.fail("Expected IllegalArgumentException for " + option);
+            } catch (IllegalArgumentException ex) {
+                Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("async cannot be combined"));
+            }
+        }
+    }
+
+    @Test
+    public void durationProfiling_concurrency() {
+        Arguments arguments = Arguments.parseArgs("durationProfiling=a.bc.foo@concurrency");
+        MethodProfilingOptions options = arguments.getDurationProfilingOptions().get(new ClassAndMethod("a.bc", "foo"));
+        Assert.assertTrue(options.isConcurrency());
+        Assert.assertFalse(options.isSampled());
+        Assert.assertEquals(options, MethodProfilingOptions.parse(options.toString()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void durationProfiling_invalidSlowThreshold() {
+        Arguments.parseArgs("durationProfiling=a.bc.foo@slowThreshold:0");
+    }
+
+    @Test
+    public void argumentTopK() {
+        Assert.assertEquals(0, Arguments.parseArgs("").getArgumentTopK());
+        Assert.assertEquals(20, Arguments.parseArgs("argumentTopK=20").getArgumentTopK());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void argumentTopK_invalid() {
+        Arguments.parseArgs("argumentTopK=-1");
+    }
+
+    @Test
+    public void callTree() {
+        Arguments arguments = Arguments.parseArgs("");
+        Assert.assertFalse(arguments.isCallTree());
+        Assert.assertEquals(1000, arguments.getCallTreeMaxNodes());
+
+        arguments = Arguments.parseArgs("callTree=true,callTreeMaxNodes=50");
+        Assert.assertTrue(arguments.isCallTree());
+        Assert.assertEquals(50, arguments.getCallTreeMaxNodes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void callTreeMaxNodes_invalid() {
+        Arguments.parseArgs("callTreeMaxNodes=0");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void durationProfiling_invalidOption() {
+        Arguments.parseArgs("durationProfiling=a.bc.foo@sampleRate:0");
+    }
+
     @Test
     public void argumentProfiling() {
         Arguments arguments = Arguments.parseArgs("durationProfiling=a.bc.foo,durationProfiling=ab.c.d.test");
@@ -91,6 +255,111 @@ public class ArgumentsTest {
         Assert.assertEquals(Arguments.DEFAULT_APP_ID_REGEX, arguments.getAppIdRegex());
     }
 
+    @Test
+    public void argumentProfiling_numeric() {
+        Arguments arguments = Arguments.parseArgs("argumentProfiling=a.bc.foo.1,argumentProfiling=a.bc.foo.2@numeric");
+        Assert.assertEquals(2, arguments.getArgumentProfiling().size());
+        Assert.assertEquals(new ClassMethodArgument("a.bc", "foo", 1), arguments.getArgumentProfiling().get(0));
+        Assert.assertEquals(new ClassMethodArgument("a.bc", "foo", 2, true), arguments.getArgumentProfiling().get(1));
+        Assert.assertTrue(arguments.getArgumentProfiling().get(1).isNumeric());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void argumentProfiling_numericInvalidOption() {
+        Arguments.parseArgs("argumentProfiling=a.bc.foo.1@sampleRate:10");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void argumentProfiling_numericInvalidIndex() {
+        Arguments.parseArgs("argumentProfiling=a.bc.foo.0@numeric");
+    }
+
+    @Test
+    public void durationTimeUnit() {
+        Arguments arguments = Arguments.parseArgs("durationProfiling=a.bc.foo");
+        Assert.assertEquals(TimeUnit.MILLISECONDS, arguments.getDurationTimeUnit());
+
+        arguments = Arguments.parseArgs("durationProfiling=a.bc.foo,durationTimeUnit=nanos");
+        Assert.assertEquals(TimeUnit.NANOSECONDS, arguments.getDurationTimeUnit());
+
+        arguments = Arguments.parseArgs("durationTimeUnit=Milliseconds");
+        Assert.assertEquals(TimeUnit.MILLISECONDS, arguments.getDurationTimeUnit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void durationTimeUnit_invalid() {
+        Arguments.parseArgs("durationTimeUnit=seconds");
+    }
+
+    @Test
+    public void durationPercentiles() {
+        Arguments arguments = Arguments.parseArgs("durationProfiling=a.bc.foo");
+        Assert.assertArrayEquals(Arguments.DEFAULT_DURATION_PERCENTILES, arguments.getDurationPercentiles(), 0.0);
+        Assert.assertFalse(arguments.isDurationHistogram());
+
+        arguments = Arguments.parseArgs("durationPercentiles=90,durationPercentiles=99.99,durationHistogram=true");
+        Assert.assertArrayEquals(new double[]{90, 99.99}, arguments.getDurationPercentiles(), 0.0);
+        Assert.assertTrue(arguments.isDurationHistogram());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void durationPercentiles_invalid() {
+        Arguments.parseArgs("durationPercentiles=101");
+    }
+
+    @Test
+    public void weaver() {
+        Arguments arguments = Arguments.parseArgs("durationProfiling=a.bc.foo");
+        Assert.assertEquals("javassist", arguments.getWeaver());
+
+        arguments = Arguments.parseArgs("durationProfiling=a.bc.foo,weaver=ASM");
+        Assert.assertEquals("asm", arguments.getWeaver());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void weaver_invalid() {
+        Arguments.parseArgs("weaver=bytebuddy");
+    }
+
+    @Test
+    public void invocationCounting() {
+        Arguments arguments = Arguments.parseArgs("invocationCounting=a.bc.foo,invocationCounting=a.bc.*");
+        Assert.assertEquals(2, arguments.getInvocationCounting().size());
+        Assert.assertEquals(new ClassAndMethod("a.bc", "foo"), arguments.getInvocationCounting().get(0));
+        Assert.assertEquals(new ClassAndMethod("a.bc", "*"), arguments.getInvocationCounting().get(1));
+        Assert.assertEquals(0, arguments.getDurationProfiling().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invocationCounting_options() {
+        Arguments.parseArgs("invocationCounting=a.bc.foo@sampleRate:10");
+    }
+
+    @Test
+    public void instrumentationControl() {
+        Arguments arguments = Arguments.parseArgs("");
+        Assert.assertFalse(arguments.isInstrumentationControl());
+
+        arguments = Arguments.parseArgs("instrumentationControl=true");
+        Assert.assertTrue(arguments.isInstrumentationControl());
+    }
+
+    @Test
+    public void overheadBudget() {
+        Arguments arguments = Arguments.parseArgs("");
+        Assert.assertEquals(0, arguments.getOverheadBudget(), 0.0);
+        Assert.assertEquals("sample", arguments.getOverheadBudgetAction());
+
+        arguments = Arguments.parseArgs("overheadBudget=0.5,overheadBudgetAction=Disable");
+        Assert.assertEquals(0.5, arguments.getOverheadBudget(), 0.0);
+        Assert.assertEquals("disable", arguments.getOverheadBudgetAction());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void overheadBudgetAction_invalid() {
+        Arguments.parseArgs("overheadBudgetAction=ignore");
+    }
+
     @Test
     public void setReporter() {
         Arguments arguments = Arguments.parseArgs("");
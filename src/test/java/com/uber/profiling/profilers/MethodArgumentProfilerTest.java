@@ -17,7 +17,10 @@
 package com.uber.profiling.profilers;
 
 import com.uber.profiling.Reporter;
+import com.uber.profiling.util.ClassAndMethodLongMetricBuffer;
 import com.uber.profiling.util.ClassMethodArgumentMetricBuffer;
+import com.uber.profiling.util.ClassMethodArgumentSketchBuffer;
+import com.uber.profiling.util.MethodIdRegistry;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -80,4 +83,104 @@ public class MethodArgumentProfilerTest {
         Assert.assertEquals(1, metricsToCheck.size());
         Assert.assertEquals(1.0, (Double) metricsToCheck.get(0).get("metricValue"), 0.01);
     }
+
+    @Test
+    public void profile_numeric() {
+        final List<Map<String, Object>> metricList = new ArrayList<>();
+
+        MethodIdRegistry methodIdRegistry = new MethodIdRegistry();
+        int methodId = methodIdRegistry.register("class1", "method1");
+
+        ClassMethodArgumentMetricBuffer buffer = new ClassMethodArgumentMetricBuffer();
+        ClassAndMethodLongMetricBuffer numericBuffer = new ClassAndMethodLongMetricBuffer(methodIdRegistry);
+
+        MethodArgumentCollector collector = new MethodArgumentCollector(buffer);
+        collector.setNumericBuffer(numericBuffer);
+
+        Reporter reporter = new Reporter() {
+            @Override
+            public void report(String profilerName, Map<String, Object> metrics) {
+                metricList.add(metrics);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        MethodArgumentProfiler profiler = new MethodArgumentProfiler(buffer, reporter);
+        profiler.setNumericBuffer(numericBuffer);
+        profiler.setPercentiles(new double[]{50, 99});
+
+        for (int i = 1; i <= 100; i++) {
+            collector.collectNumericArgument(methodId, 2, i);
+        }
+        collector.collectArgument("class1", "method1", 1, "a");
+
+        profiler.profile();
+
+        // count, sum, min, max and 2 percentiles of the numeric argument, and the counted value of argument 1
+        Assert.assertEquals(7, metricList.size());
+
+        Map<String, Double> values = metricList.stream()
+                .filter(t -> t.get("className").equals("class1") && t.get("methodName").equals("method1"))
+                .collect(Collectors.toMap(t -> (String) t.get("metricName"), t -> (Double) t.get("metricValue")));
+        Assert.assertEquals(100.0, values.get("arg.2.count"), 0.01);
+        Assert.assertEquals(5050.0, values.get("arg.2.sum"), 0.01);
+        Assert.assertEquals(1.0, values.get("arg.2.min"), 0.01);
+        Assert.assertEquals(100.0, values.get("arg.2.max"), 0.01);
+        Assert.assertEquals(50.0, values.get("arg.2.p50"), 2.0);
+        Assert.assertEquals(99.0, values.get("arg.2.p99"), 4.0);
+        Assert.assertEquals(1.0, values.get("arg.1.a"), 0.01);
+
+        metricList.clear();
+        profiler.profile();
+        Assert.assertEquals(0, metricList.size());
+    }
+
+    @Test
+    public void profile_topK() {
+        final List<Map<String, Object>> metricList = new ArrayList<>();
+
+        ClassMethodArgumentSketchBuffer buffer = new ClassMethodArgumentSketchBuffer(2);
+
+        MethodArgumentCollector collector = new MethodArgumentCollector(buffer);
+
+        Reporter reporter = new Reporter() {
+            @Override
+            public void report(String profilerName, Map<String, Object> metrics) {
+                metricList.add(metrics);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        MethodArgumentProfiler profiler = new MethodArgumentProfiler(buffer, reporter);
+
+        for (int i = 0; i < 100; i++) {
+            collector.collectArgument("class1", "method1", 1, "user" + i);
+            collector.collectArgument("class1", "method1", 1, "user1");
+        }
+
+        profiler.profile();
+
+        // Two top values and one record with distinct count, however many values there are
+        Assert.assertEquals(3, metricList.size());
+
+        Map<String, Object> topValue = metricList.stream().filter(t -> t.get("metricName").equals("arg.1.user1")).findFirst().get();
+        Assert.assertEquals("class1", topValue.get("className"));
+        Assert.assertEquals(101.0, (Double) topValue.get("metricValue"), 0.01);
+        Assert.assertEquals(0L, topValue.get("countError"));
+
+        Map<String, Object> summary = metricList.stream().filter(t -> t.get("metricName").equals("arg.1")).findFirst().get();
+        Assert.assertEquals(100L, summary.get("distinctCount"));
+        Assert.assertEquals(200L, summary.get("count"));
+        Assert.assertEquals(2, summary.get("topK"));
+
+        metricList.clear();
+        profiler.profile();
+        Assert.assertEquals(0, metricList.size());
+    }
 }
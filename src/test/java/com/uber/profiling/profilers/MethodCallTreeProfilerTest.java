@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.profilers;
+
+import com.uber.profiling.Reporter;
+import com.uber.profiling.util.CallTreeRecorder;
+import com.uber.profiling.util.MethodIdRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class MethodCallTreeProfilerTest {
+    @Test
+    public void profile() {
+        final List<String> nameList = new ArrayList<>();
+        final List<Map<String, Object>> metricList = new ArrayList<>();
+
+        MethodIdRegistry registry = new MethodIdRegistry();
+        int methodId1 = registry.register("class1", "method1");
+        int methodId2 = registry.register("class2", "method2");
+
+        CallTreeRecorder recorder = new CallTreeRecorder(registry, 1);
+
+        Reporter reporter = new Reporter() {
+            @Override
+            public void report(String profilerName, Map<String, Object> metrics) {
+                nameList.add(profilerName);
+                metricList.add(metrics);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        MethodCallTreeProfiler profiler = new MethodCallTreeProfiler(recorder, reporter);
+        profiler.setIntervalMillis(123);
+        Assert.assertEquals(123L, profiler.getIntervalMillis());
+
+        // method2 called by method1 is not recorded with max nodes of 1
+        recorder.enter(methodId1);
+        recorder.enter(methodId2);
+        recorder.exit();
+        recorder.exit();
+
+        profiler.profile();
+
+        Assert.assertEquals(2, metricList.size());
+        Assert.assertEquals(MethodCallTreeProfiler.PROFILER_NAME, nameList.get(0));
+
+        Map<String, Object> node = metricList.get(0);
+        Assert.assertEquals("class1", node.get("className"));
+        Assert.assertEquals("method1", node.get("methodName"));
+        Assert.assertEquals(Arrays.asList("class1.method1"), node.get("callPath"));
+        Assert.assertEquals(1, node.get("depth"));
+        Assert.assertEquals(1L, node.get("count"));
+        Assert.assertTrue((long) node.get("exclusiveNanos") <= (long) node.get("inclusiveNanos"));
+
+        Map<String, Object> dropped = metricList.get(1);
+        Assert.assertEquals(1L, dropped.get("droppedCount"));
+        Assert.assertEquals(1, dropped.get("nodeCount"));
+
+        metricList.clear();
+        profiler.profile();
+        Assert.assertEquals(0, metricList.size());
+    }
+}
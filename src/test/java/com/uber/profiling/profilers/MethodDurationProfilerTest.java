@@ -18,12 +18,21 @@ package com.uber.profiling.profilers;
 
 import com.uber.profiling.Reporter;
 import com.uber.profiling.util.ClassAndMethodLongMetricBuffer;
+import com.uber.profiling.util.Histogram;
+import com.uber.profiling.util.MethodCallerRecorder;
+import com.uber.profiling.util.MethodConcurrencyRecorder;
+import com.uber.profiling.util.MethodIdRegistry;
+import com.uber.profiling.util.MethodProfilingOptions;
+import com.uber.profiling.util.SlowInvocationRecorder;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class MethodDurationProfilerTest {
@@ -97,4 +106,350 @@ public class MethodDurationProfilerTest {
         Assert.assertEquals(1, metricsToCheck.size());
         Assert.assertEquals(222.0, (Double) metricsToCheck.get(0).get("metricValue"), 0.01);
     }
+
+    @Test
+    public void profile_durationTimeUnit() {
+        final List<Map<String, Object>> metricList = new ArrayList<>();
+
+        ClassAndMethodLongMetricBuffer buffer = new ClassAndMethodLongMetricBuffer();
+
+        MethodDurationCollector collector = new MethodDurationCollector(buffer);
+
+        Reporter reporter = new Reporter() {
+            @Override
+            public void report(String profilerName, Map<String, Object> metrics) {
+                metricList.add(metrics);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        MethodDurationProfiler profiler = new MethodDurationProfiler(buffer, reporter);
+        Assert.assertEquals(TimeUnit.MILLISECONDS, profiler.getDurationTimeUnit());
+        profiler.setDurationTimeUnit(TimeUnit.NANOSECONDS);
+
+        collector.collectLongMetric("class1", "method1", "duration", 1500);
+        collector.collectLongMetric("class1", "method1", "metric1", 10);
+
+        profiler.profile();
+
+        Assert.assertEquals(8, metricList.size());
+        for (Map<String, Object> metrics : metricList) {
+            if (((String) metrics.get("metricName")).startsWith("duration.")) {
+                Assert.assertEquals("nanoseconds", metrics.get("unit"));
+            } else {
+                Assert.assertFalse(metrics.containsKey("unit"));
+            }
+        }
+    }
+
+    @Test
+    public void profile_percentiles() {
+        final List<Map<String, Object>> metricList = new ArrayList<>();
+
+        ClassAndMethodLongMetricBuffer buffer = new ClassAndMethodLongMetricBuffer();
+
+        MethodDurationCollector collector = new MethodDurationCollector(buffer);
+
+        Reporter reporter = new Reporter() {
+            @Override
+            public void report(String profilerName, Map<String, Object> metrics) {
+                metricList.add(metrics);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        MethodDurationProfiler profiler = new MethodDurationProfiler(buffer, reporter);
+        profiler.setPercentiles(new double[]{50, 99.9});
+        profiler.setReportSerializedHistogram(true);
+
+        for (int i = 1; i <= 1000; i++) {
+            collector.collectLongMetric("class1", "method1", "duration", i);
+        }
+
+        profiler.profile();
+
+        Assert.assertEquals(4 + 2 + 1, metricList.size());
+
+        Map<String, Object> p50 = metricList.stream().filter(t -> t.get("metricName").equals("duration.p50")).findFirst().get();
+        Assert.assertEquals(500.0, (Double) p50.get("metricValue"), 500.0 / 32);
+
+        Map<String, Object> p999 = metricList.stream().filter(t -> t.get("metricName").equals("duration.p999")).findFirst().get();
+        Assert.assertEquals(999.0, (Double) p999.get("metricValue"), 999.0 / 32);
+
+        Map<String, Object> histogram = metricList.stream().filter(t -> t.get("metricName").equals("duration.histogram")).findFirst().get();
+        Assert.assertEquals(1000.0, (Double) histogram.get("metricValue"), 0.01);
+        Assert.assertEquals(1000, Histogram.deserialize((String) histogram.get("histogram")).getCount());
+    }
+
+    @Test
+    public void getPercentileName() {
+        Assert.assertEquals("p50", MethodDurationProfiler.getPercentileName(50));
+        Assert.assertEquals("p99", MethodDurationProfiler.getPercentileName(99.0));
+        Assert.assertEquals("p999", MethodDurationProfiler.getPercentileName(99.9));
+        Assert.assertEquals("p9999", MethodDurationProfiler.getPercentileName(99.99));
+    }
+
+    @Test
+    public void profile_sampled() {
+        final List<Map<String, Object>> metricList = new ArrayList<>();
+
+        MethodIdRegistry registry = new MethodIdRegistry();
+        ClassAndMethodLongMetricBuffer buffer = new ClassAndMethodLongMetricBuffer(registry);
+
+        Reporter reporter = new Reporter() {
+            @Override
+            public void report(String profilerName, Map<String, Object> metrics) {
+                metricList.add(metrics);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        MethodDurationProfiler profiler = new MethodDurationProfiler(buffer, reporter);
+
+        int methodId = registry.register("class1", "method1");
+        registry.setOptions(methodId, MethodProfilingOptions.parse("sampleRate:100"));
+
+        buffer.appendValue(methodId, "duration", 10);
+        buffer.appendValue(methodId, "duration", 20);
+        buffer.appendValue("class2", "method2", "duration", 30);
+
+        profiler.profile();
+
+        Assert.assertEquals(9, metricList.size());
+
+        Map<String, Object> estimatedCount = metricList.stream()
+                .filter(t -> t.get("metricName").equals("duration.estimatedCount"))
+                .findFirst().get();
+        Assert.assertEquals("method1", estimatedCount.get("methodName"));
+        Assert.assertEquals(200.0, (double) estimatedCount.get("metricValue"), 0.0);
+
+        for (Map<String, Object> metrics : metricList) {
+            if (metrics.get("methodName").equals("method1")) {
+                Assert.assertEquals(100, metrics.get("sampleRate"));
+            } else {
+                Assert.assertFalse(metrics.containsKey("sampleRate"));
+            }
+        }
+    }
+
+    @Test
+    public void profile_successAndError() {
+        final List<Map<String, Object>> metricList = new ArrayList<>();
+
+        ClassAndMethodLongMetricBuffer buffer = new ClassAndMethodLongMetricBuffer(new MethodIdRegistry());
+
+        Reporter reporter = new Reporter() {
+            @Override
+            public void report(String profilerName, Map<String, Object> metrics) {
+                metricList.add(metrics);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        MethodDurationProfiler profiler = new MethodDurationProfiler(buffer, reporter);
+
+        buffer.appendValue("class1", "method1", MethodDurationProfiler.METRIC_DURATION_SUCCESS, 10);
+        buffer.appendValue("class1", "method1", MethodDurationProfiler.METRIC_DURATION_SUCCESS, 20);
+        buffer.appendValue("class1", "method1", MethodDurationProfiler.METRIC_DURATION_ERROR, 1000);
+        buffer.appendValue("class1", "method1", MethodDurationProfiler.METRIC_EXCEPTION_PREFIX + "java.io.IOException", 1);
+        buffer.appendValue("class2", "method2", MethodDurationProfiler.METRIC_DURATION_ERROR, 50);
+
+        profiler.profile();
+
+        // count, sum, min and max of duration, duration.success and duration.error for class1, of duration and
+        // duration.error for class2, and one exception count
+        Assert.assertEquals(21, metricList.size());
+
+        Map<String, Double> class1Metrics = new HashMap<>();
+        for (Map<String, Object> metrics : metricList) {
+            if (metrics.get("className").equals("class1") && !metrics.containsKey("exceptionType")) {
+                class1Metrics.put((String) metrics.get("metricName"), (Double) metrics.get("metricValue"));
+            }
+        }
+        Assert.assertEquals(3.0, class1Metrics.get("duration.count"), 0.0);
+        Assert.assertEquals(1030.0, class1Metrics.get("duration.sum"), 0.0);
+        Assert.assertEquals(1000.0, class1Metrics.get("duration.max"), 0.0);
+        Assert.assertEquals(2.0, class1Metrics.get("duration.success.count"), 0.0);
+        Assert.assertEquals(20.0, class1Metrics.get("duration.success.max"), 0.0);
+        Assert.assertEquals(1.0, class1Metrics.get("duration.error.count"), 0.0);
+
+        Map<String, Object> exceptionCount = metricList.stream()
+                .filter(t -> t.containsKey("exceptionType"))
+                .findFirst().get();
+        Assert.assertEquals("exception.count", exceptionCount.get("metricName"));
+        Assert.assertEquals("java.io.IOException", exceptionCount.get("exceptionType"));
+        Assert.assertEquals("class1", exceptionCount.get("className"));
+        Assert.assertEquals(1.0, (double) exceptionCount.get("metricValue"), 0.0);
+    }
+
+    @Test
+    public void profile_slowInvocations() {
+        final List<Map<String, Object>> metricList = new ArrayList<>();
+
+        MethodIdRegistry registry = new MethodIdRegistry();
+        ClassAndMethodLongMetricBuffer buffer = new ClassAndMethodLongMetricBuffer(registry);
+        SlowInvocationRecorder recorder = new SlowInvocationRecorder(registry, 2);
+
+        Reporter reporter = new Reporter() {
+            @Override
+            public void report(String profilerName, Map<String, Object> metrics) {
+                metricList.add(metrics);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        MethodDurationProfiler profiler = new MethodDurationProfiler(buffer, reporter);
+        profiler.setSlowInvocationRecorder(recorder);
+
+        int methodId = registry.register("class1", "method1");
+        registry.setOptions(methodId, MethodProfilingOptions.parse("slowThreshold:100"));
+
+        for (int i = 0; i < 3; i++) {
+            recorder.record(methodId, () -> new SlowInvocationRecorder.SlowInvocation(200, 123, "thread1",
+                    Arrays.asList("class1.method1", "class2.method2"), Arrays.asList("arg1")));
+        }
+
+        profiler.profile();
+
+        Assert.assertEquals(2, metricList.size());
+        for (Map<String, Object> metrics : metricList) {
+            Assert.assertEquals("class1", metrics.get("className"));
+            Assert.assertEquals("method1", metrics.get("methodName"));
+            Assert.assertEquals(MethodDurationProfiler.METRIC_DURATION_SLOW, metrics.get("metricName"));
+            Assert.assertEquals(200.0, (double) metrics.get("metricValue"), 0.0);
+            Assert.assertEquals("milliseconds", metrics.get("unit"));
+            Assert.assertEquals(100L, metrics.get("slowThreshold"));
+            Assert.assertEquals(3L, metrics.get("slowCount"));
+            Assert.assertEquals(123L, metrics.get("invocationEpochMillis"));
+            Assert.assertEquals("thread1", metrics.get("threadName"));
+            Assert.assertEquals(Arrays.asList("class1.method1", "class2.method2"), metrics.get("stacktrace"));
+            Assert.assertEquals(Arrays.asList("arg1"), metrics.get("arguments"));
+        }
+
+        metricList.clear();
+        profiler.profile();
+        Assert.assertEquals(0, metricList.size());
+    }
+
+    @Test
+    public void profile_concurrency() {
+        final List<Map<String, Object>> metricList = new ArrayList<>();
+
+        MethodIdRegistry registry = new MethodIdRegistry();
+        ClassAndMethodLongMetricBuffer buffer = new ClassAndMethodLongMetricBuffer(registry);
+        MethodConcurrencyRecorder recorder = new MethodConcurrencyRecorder(registry);
+
+        Reporter reporter = new Reporter() {
+            @Override
+            public void report(String profilerName, Map<String, Object> metrics) {
+                metricList.add(metrics);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        MethodDurationProfiler profiler = new MethodDurationProfiler(buffer, reporter);
+        profiler.setConcurrencyRecorder(recorder);
+
+        int methodId = registry.register("class1", "method1");
+        long start1 = recorder.enter(methodId);
+        recorder.enter(methodId);
+        recorder.exit(methodId, start1);
+
+        profiler.profile();
+
+        Assert.assertEquals(3, metricList.size());
+        Map<String, Double> values = new HashMap<>();
+        for (Map<String, Object> metrics : metricList) {
+            Assert.assertEquals("class1", metrics.get("className"));
+            Assert.assertEquals("method1", metrics.get("methodName"));
+            values.put((String) metrics.get("metricName"), (Double) metrics.get("metricValue"));
+        }
+        Assert.assertEquals(2.0, values.get(MethodDurationProfiler.METRIC_CONCURRENCY_MAX), 0.0);
+        Assert.assertEquals(1.0, values.get(MethodDurationProfiler.METRIC_CONCURRENCY_IN_FLIGHT), 0.0);
+        Assert.assertTrue(values.get(MethodDurationProfiler.METRIC_CONCURRENCY_AVERAGE) > 0);
+        Assert.assertTrue(values.get(MethodDurationProfiler.METRIC_CONCURRENCY_AVERAGE) <= 2);
+
+        // The thread still inside the method is reported in the next interval
+        metricList.clear();
+        profiler.profile();
+        Assert.assertEquals(3, metricList.size());
+    }
+
+    @Test
+    public void profile_caller() {
+        final List<Map<String, Object>> metricList = new ArrayList<>();
+
+        MethodIdRegistry registry = new MethodIdRegistry();
+        ClassAndMethodLongMetricBuffer buffer = new ClassAndMethodLongMetricBuffer(registry);
+        MethodCallerRecorder recorder = new MethodCallerRecorder(registry, 1);
+
+        Reporter reporter = new Reporter() {
+            @Override
+            public void report(String profilerName, Map<String, Object> metrics) {
+                metricList.add(metrics);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        MethodDurationProfiler profiler = new MethodDurationProfiler(buffer, reporter);
+        profiler.setCallerRecorder(recorder);
+        profiler.setPercentiles(new double[]{50});
+
+        int methodId = registry.register("class1", "method1");
+        registry.setOptions(methodId, MethodProfilingOptions.parse("sampleRate:10@caller"));
+        recorder.record(methodId, "caller1", "foo", 10);
+        recorder.record(methodId, "caller1", "foo", 30);
+        // Dropped, the recorder only keeps one caller
+        recorder.record(methodId, "caller2", "bar", 20);
+
+        profiler.profile();
+
+        // count, sum, min, max, p50 and dropped
+        Assert.assertEquals(6, metricList.size());
+        Map<String, Double> values = new HashMap<>();
+        for (Map<String, Object> metrics : metricList) {
+            values.put((String) metrics.get("metricName"), (Double) metrics.get("metricValue"));
+            if (metrics.get("metricName").equals(MethodDurationProfiler.METRIC_DURATION_CALLER + ".dropped")) {
+                Assert.assertEquals(1, metrics.get("callerCount"));
+                continue;
+            }
+            Assert.assertEquals("class1", metrics.get("className"));
+            Assert.assertEquals("method1", metrics.get("methodName"));
+            Assert.assertEquals("caller1", metrics.get("callerClassName"));
+            Assert.assertEquals("foo", metrics.get("callerMethodName"));
+            Assert.assertEquals("milliseconds", metrics.get("unit"));
+            Assert.assertEquals(10, metrics.get("sampleRate"));
+        }
+        Assert.assertEquals(2.0, values.get("duration.caller.count"), 0.0);
+        Assert.assertEquals(40.0, values.get("duration.caller.sum"), 0.0);
+        Assert.assertEquals(10.0, values.get("duration.caller.min"), 0.0);
+        Assert.assertEquals(30.0, values.get("duration.caller.max"), 0.0);
+        Assert.assertEquals(1.0, values.get("duration.caller.dropped"), 0.0);
+        Assert.assertTrue(values.containsKey("duration.caller.p50"));
+
+        metricList.clear();
+        profiler.profile();
+        Assert.assertEquals(0, metricList.size());
+    }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.profilers;
+
+import com.uber.profiling.Reporter;
+import com.uber.profiling.util.MethodIdRegistry;
+import com.uber.profiling.util.MethodInvocationCounter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class MethodInvocationProfilerTest {
+    @Test
+    public void profile() {
+        final List<String> nameList = new ArrayList<>();
+        final List<Map<String, Object>> metricList = new ArrayList<>();
+
+        MethodIdRegistry registry = new MethodIdRegistry();
+        int methodId1 = registry.register("class1", "method1");
+        int methodId2 = registry.register("class2", "method2");
+
+        MethodInvocationCounter counter = new MethodInvocationCounter(registry);
+
+        Reporter reporter = new Reporter() {
+            @Override
+            public void report(String profilerName, Map<String, Object> metrics) {
+                nameList.add(profilerName);
+                metricList.add(metrics);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        MethodInvocationProfiler profiler = new MethodInvocationProfiler(counter, reporter);
+
+        profiler.setIntervalMillis(123);
+        Assert.assertEquals(123L, profiler.getIntervalMillis());
+
+        counter.increment(methodId1);
+        counter.increment(methodId1);
+        counter.increment(methodId1);
+
+        profiler.profile();
+
+        Assert.assertEquals(1, nameList.size());
+        Assert.assertEquals(MethodInvocationProfiler.PROFILER_NAME, nameList.get(0));
+
+        Map<String, Object> metrics = metricList.get(0);
+        Assert.assertEquals("class1", metrics.get("className"));
+        Assert.assertEquals("method1", metrics.get("methodName"));
+        Assert.assertEquals("invocation.count", metrics.get("metricName"));
+        Assert.assertEquals(3.0, (Double) metrics.get("metricValue"), 0.01);
+
+        // Only invocations since last profile are reported
+        counter.increment(methodId2);
+
+        profiler.profile();
+
+        Assert.assertEquals(2, metricList.size());
+        Assert.assertEquals("class2", metricList.get(1).get("className"));
+        Assert.assertEquals(1.0, (Double) metricList.get(1).get("metricValue"), 0.01);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.transformers;
+
+import javassist.ClassPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+public class ClassPoolCacheTest {
+    @Test
+    public void getClassPool() throws Exception {
+        ClassPoolCache cache = new ClassPoolCache();
+        ClassLoader loader1 = new URLClassLoader(new URL[0], getClass().getClassLoader());
+        ClassLoader loader2 = new URLClassLoader(new URL[0], getClass().getClassLoader());
+
+        ClassPool classPool1 = cache.getClassPool(loader1);
+        Assert.assertSame(classPool1, cache.getClassPool(loader1));
+
+        ClassPool classPool2 = cache.getClassPool(loader2);
+        Assert.assertNotSame(classPool1, classPool2);
+
+        ClassPool bootstrapClassPool = cache.getClassPool(null);
+        Assert.assertSame(bootstrapClassPool, cache.getClassPool(null));
+        Assert.assertEquals(3, cache.size());
+
+        Assert.assertEquals(ClassPoolCacheTest.class.getName(), classPool1.get(ClassPoolCacheTest.class.getName()).getName());
+    }
+
+    @Test
+    public void getClassPool_maxUsesPerPool() {
+        ClassPoolCache cache = new ClassPoolCache(10, 2);
+        ClassLoader loader = getClass().getClassLoader();
+
+        ClassPool classPool = cache.getClassPool(loader);
+        Assert.assertSame(classPool, cache.getClassPool(loader));
+        Assert.assertNotSame(classPool, cache.getClassPool(loader));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void getClassPool_maxClassPools() {
+        ClassPoolCache cache = new ClassPoolCache(2, 100);
+
+        for (int i = 0; i < 10; i++) {
+            cache.getClassPool(new URLClassLoader(new URL[0], getClass().getClassLoader()));
+            Assert.assertTrue(cache.size() <= 2);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.transformers;
+
+import com.uber.profiling.profilers.MethodDurationCollector;
+import com.uber.profiling.util.ClassAndMethod;
+import com.uber.profiling.util.ClassAndMethodFilter;
+import com.uber.profiling.util.ClassAndMethodLongMetricBuffer;
+import com.uber.profiling.util.MethodCallerRecorder;
+import com.uber.profiling.util.MethodConcurrencyRecorder;
+import com.uber.profiling.util.MethodProfilingOptions;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Benchmark comparing the weavers for per-class transform time and per-call overhead of injected duration
+ * profiling code. Run it with:
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.uber.profiling.transformers.ClassWeaverBenchmark
+ */
+public class ClassWeaverBenchmark {
+    private static final String TARGET_CLASS_NAME = Target.class.getName();
+
+    private static final int TRANSFORM_WARMUP_TIMES = 500;
+    private static final int TRANSFORM_TIMES = 2000;
+    private static final int CALL_ROUNDS = 10;
+    private static final int CALL_TIMES = 10000000;
+
+    public static class Target implements IntUnaryOperator {
+        @Override
+        public int applyAsInt(int operand) {
+            return operand * 31 + 7;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        MethodProfilerStaticProxy.setCollector(new MethodDurationCollector(new ClassAndMethodLongMetricBuffer()));
+
+        byte[] classFile = ClassWeaverTest.getClassFile(TARGET_CLASS_NAME);
+
+        System.out.println(String.format("%-10s %20s %20s", "weaver", "transform (us/class)", "call (ns/call)"));
+        System.out.println(String.format("%-10s %20s %20.2f", "none", "-",
+                measureCall(classFile)));
+
+        for (String weaver : new String[]{JavaAgentFileTransformer.WEAVER_JAVASSIST, JavaAgentFileTransformer.WEAVER_ASM}) {
+            ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(ClassWeaverTest.createSettings(weaver,
+                    new ClassAndMethodFilter(Arrays.asList(new ClassAndMethod(TARGET_CLASS_NAME, "applyAsInt")))));
+
+            double transformMicros = measureTransform(classWeaver, classFile);
+            byte[] byteCode = classWeaver.weave(ClassWeaverBenchmark.class.getClassLoader(), TARGET_CLASS_NAME, classFile);
+            System.out.println(String.format("%-10s %20.2f %20.2f", weaver, transformMicros, measureCall(byteCode)));
+        }
+
+        // Per-call overhead of options, used for the cost model of OverheadBudgetGovernor
+        MethodProfilerStaticProxy.setConcurrencyRecorder(new MethodConcurrencyRecorder());
+        MethodProfilerStaticProxy.setCallerRecorder(new MethodCallerRecorder());
+        System.out.println();
+        System.out.println(String.format("%-40s %20s", "options (asm)", "call (ns/call)"));
+        for (String options : new String[]{"sampleRate:100", "concurrency", "resourceUsage", "sampleRate:100@caller"}) {
+            ClassAndMethod classAndMethod = new ClassAndMethod(TARGET_CLASS_NAME, "applyAsInt");
+            ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(ClassWeaverTest.createSettings(JavaAgentFileTransformer.WEAVER_ASM,
+                    new ClassAndMethodFilter(Arrays.asList(classAndMethod), Collections.singletonMap(classAndMethod, MethodProfilingOptions.parse(options)))));
+            byte[] byteCode = classWeaver.weave(ClassWeaverBenchmark.class.getClassLoader(), TARGET_CLASS_NAME, classFile);
+            System.out.println(String.format("%-40s %20.2f", options, measureCall(byteCode)));
+        }
+    }
+
+    private static double measureTransform(ClassWeaver classWeaver, byte[] classFile) throws Exception {
+        ClassLoader loader = ClassWeaverBenchmark.class.getClassLoader();
+        for (int i = 0; i < TRANSFORM_WARMUP_TIMES; i++) {
+            classWeaver.weave(loader, TARGET_CLASS_NAME, classFile);
+        }
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < TRANSFORM_TIMES; i++) {
+            classWeaver.weave(loader, TARGET_CLASS_NAME, classFile);
+        }
+        return (System.nanoTime() - startTime) / 1000.0 / TRANSFORM_TIMES;
+    }
+
+    private static double measureCall(byte[] byteCode) throws Exception {
+        Class<?> clazz = new ClassWeaverTest.SingleClassLoader(ClassWeaverBenchmark.class.getClassLoader(), TARGET_CLASS_NAME, byteCode)
+                .loadClass(TARGET_CLASS_NAME);
+        IntUnaryOperator target = (IntUnaryOperator) clazz.getConstructor().newInstance();
+
+        // First round is for warm up
+        long bestNanos = Long.MAX_VALUE;
+        int result = 0;
+        for (int round = 0; round <= CALL_ROUNDS; round++) {
+            long startTime = System.nanoTime();
+            for (int i = 0; i < CALL_TIMES; i++) {
+                result = target.applyAsInt(result);
+            }
+            long nanos = System.nanoTime() - startTime;
+            if (round > 0) {
+                bestNanos = Math.min(bestNanos, nanos);
+            }
+        }
+
+        if (result == 42) {
+            System.out.println("Unexpected result: " + result);
+        }
+
+        return (double) bestNanos / CALL_TIMES;
+    }
+}
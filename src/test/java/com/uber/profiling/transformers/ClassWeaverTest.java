@@ -0,0 +1,768 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.transformers;
+
+import com.uber.profiling.profilers.MethodArgumentCollector;
+import com.uber.profiling.profilers.MethodDurationCollector;
+import com.uber.profiling.util.CallTreeRecorder;
+import com.uber.profiling.util.ClassAndMethod;
+import com.uber.profiling.util.ClassAndMethodFilter;
+import com.uber.profiling.util.ClassAndMethodLongMetricBuffer;
+import com.uber.profiling.util.ClassAndMethodMetricKey;
+import com.uber.profiling.util.ClassMethodArgument;
+import com.uber.profiling.util.ClassMethodArgumentFilter;
+import com.uber.profiling.util.ClassMethodArgumentMetricBuffer;
+import com.uber.profiling.util.Histogram;
+import com.uber.profiling.util.IOUtils;
+import com.uber.profiling.util.MethodCallerRecorder;
+import com.uber.profiling.util.MethodConcurrencyRecorder;
+import com.uber.profiling.util.MethodInvocationCounter;
+import com.uber.profiling.util.MethodProfilingOptions;
+import com.uber.profiling.util.SlowInvocationRecorder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.IntBinaryOperator;
+
+public class ClassWeaverTest {
+    private static final String TARGET_CLASS_NAME = Target.class.getName();
+
+    private ClassAndMethodLongMetricBuffer durationBuffer;
+    private ClassMethodArgumentMetricBuffer argumentBuffer;
+
+    @Retention(RetentionPolicy.RUNTIME)
+    public @interface Timed {
+    }
+
+    public static class Target implements IntBinaryOperator {
+        // Not a compile time constant, so the class has a class initializer
+        private static final long CREATED_NANOS = System.nanoTime();
+
+        private final int base;
+
+        public Target() {
+            this(0);
+        }
+
+        public Target(int base) {
+            this.base = base;
+        }
+
+        public Target(String base) {
+            super();
+            this.base = Integer.parseInt(base);
+        }
+
+        public int add(int a, int b) {
+            return a + b;
+        }
+
+        @Override
+        public int applyAsInt(int a, int b) {
+            return a * b;
+        }
+
+        public int addTwice(int a, int b) {
+            return add(add(a, b), b);
+        }
+
+        public String concat(String a, long b, char[] c) {
+            return a + b + new String(c);
+        }
+
+        @Timed
+        public static int parse(String str) {
+            try {
+                return Integer.parseInt(str);
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+
+        public static List<String> create(boolean array) {
+            List<String> list = array ? new ArrayList<>() : new LinkedList<>();
+            list.add("a");
+            return list;
+        }
+
+        public void fail(String message) {
+            throw new IllegalStateException(message);
+        }
+
+        public static CompletableFuture<Integer> delay(CompletableFuture<Integer> future) {
+            return future.thenApply(Function.identity());
+        }
+
+        public static ByteBuffer wrap(byte[] bytes) {
+            return bytes == null ? null : ByteBuffer.wrap(bytes);
+        }
+
+        public static double sum(byte a, short b, char c, boolean d, float e, double f, Integer g, String h) {
+            return a + b + c + (d ? 1 : 0) + e + f + (g == null ? 0 : g) + h.length();
+        }
+    }
+
+    @Before
+    public void before() {
+        durationBuffer = new ClassAndMethodLongMetricBuffer();
+        argumentBuffer = new ClassMethodArgumentMetricBuffer();
+        MethodProfilerStaticProxy.setCollector(new MethodDurationCollector(durationBuffer));
+        MethodProfilerStaticProxy.setArgumentCollector(new MethodArgumentCollector(argumentBuffer));
+    }
+
+    @After
+    public void after() {
+        MethodProfilerStaticProxy.setCollector(null);
+        MethodProfilerStaticProxy.setArgumentCollector(null);
+        MethodProfilerStaticProxy.setInvocationCounter(null);
+        MethodProfilerStaticProxy.setCallTreeRecorder(null);
+        MethodProfilerStaticProxy.setSlowInvocationRecorder(null);
+        MethodProfilerStaticProxy.setConcurrencyRecorder(null);
+        MethodProfilerStaticProxy.setCallerRecorder(null);
+    }
+
+    @Test
+    public void weave_javassist() throws Exception {
+        weave(JavaAgentFileTransformer.WEAVER_JAVASSIST);
+    }
+
+    @Test
+    public void weave_asm() throws Exception {
+        weave(JavaAgentFileTransformer.WEAVER_ASM);
+    }
+
+    @Test
+    public void weave_exception() throws Exception {
+        for (String weaver : new String[]{JavaAgentFileTransformer.WEAVER_JAVASSIST, JavaAgentFileTransformer.WEAVER_ASM}) {
+            Class<?> clazz = loadWovenClass(weaver);
+            Object target = clazz.getConstructor().newInstance();
+
+            for (int i = 0; i < 2; i++) {
+                try {
+                    clazz.getMethod("fail", String.class).invoke(target, "error1");
+                    Assert.fail("Exception should be thrown");
+                } catch (InvocationTargetException ex) {
+                    Assert.assertEquals(IllegalStateException.class, ex.getCause().getClass());
+                    Assert.assertEquals("error1", ex.getCause().getMessage());
+                }
+            }
+            Assert.assertEquals(-1, clazz.getMethod("parse", String.class).invoke(null, "x"));
+
+            Map<ClassAndMethodMetricKey, Histogram> durations = durationBuffer.reset();
+            Assert.assertEquals(weaver, 2, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "fail", "duration.error")).getCount());
+            Assert.assertEquals(weaver, 2, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "fail", "exception.java.lang.IllegalStateException")).getCount());
+            Assert.assertNull(weaver, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "fail", "duration.success")));
+            // Exception caught inside the method is not a failure
+            Assert.assertEquals(weaver, 1, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "parse", "duration.success")).getCount());
+            Assert.assertNull(weaver, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "parse", "duration.error")));
+        }
+    }
+
+    @Test
+    public void weave_constructor() throws Exception {
+        for (String weaver : new String[]{JavaAgentFileTransformer.WEAVER_JAVASSIST, JavaAgentFileTransformer.WEAVER_ASM}) {
+            ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(createSettings(weaver,
+                    new ClassAndMethodFilter(Arrays.asList(new ClassAndMethod(TARGET_CLASS_NAME, ClassAndMethod.CONSTRUCTOR_NAME), new ClassAndMethod(TARGET_CLASS_NAME, ClassAndMethod.CLASS_INITIALIZER_NAME)))));
+            Class<?> clazz = defineClass(classWeaver.weave(getClass().getClassLoader(), TARGET_CLASS_NAME, getClassFile(TARGET_CLASS_NAME)));
+
+            // Target() delegates to Target(int) with this(), the construction is only recorded once
+            Object target = clazz.getConstructor().newInstance();
+            Assert.assertEquals(3, clazz.getMethod("add", int.class, int.class).invoke(target, 1, 2));
+            clazz.getConstructor(int.class).newInstance(1);
+            clazz.getConstructor(String.class).newInstance("2");
+            try {
+                clazz.getConstructor(String.class).newInstance("x");
+                Assert.fail("Exception should be thrown");
+            } catch (InvocationTargetException ex) {
+                Assert.assertEquals(NumberFormatException.class, ex.getCause().getClass());
+            }
+
+            Map<ClassAndMethodMetricKey, Histogram> durations = durationBuffer.reset();
+            Assert.assertEquals(weaver, 3, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, ClassAndMethod.CONSTRUCTOR_NAME, "duration.success")).getCount());
+            Assert.assertEquals(weaver, 1, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, ClassAndMethod.CONSTRUCTOR_NAME, "duration.error")).getCount());
+            Assert.assertEquals(weaver, 1, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, ClassAndMethod.CONSTRUCTOR_NAME, "exception.java.lang.NumberFormatException")).getCount());
+            Assert.assertEquals(weaver, 1, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, ClassAndMethod.CLASS_INITIALIZER_NAME, "duration.success")).getCount());
+            Assert.assertNull(weaver, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "add", "duration.success")));
+        }
+    }
+
+    @Test
+    public void weave_wildcardNotMatchingConstructor() throws Exception {
+        for (String weaver : new String[]{JavaAgentFileTransformer.WEAVER_JAVASSIST, JavaAgentFileTransformer.WEAVER_ASM}) {
+            ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(createSettings(weaver,
+                    new ClassAndMethodFilter(Arrays.asList(new ClassAndMethod(TARGET_CLASS_NAME, "*")))));
+            Class<?> clazz = defineClass(classWeaver.weave(getClass().getClassLoader(), TARGET_CLASS_NAME, getClassFile(TARGET_CLASS_NAME)));
+            Object target = clazz.getConstructor(int.class).newInstance(1);
+            Assert.assertEquals(3, clazz.getMethod("add", int.class, int.class).invoke(target, 1, 2));
+
+            Map<ClassAndMethodMetricKey, Histogram> durations = durationBuffer.reset();
+            Assert.assertEquals(weaver, 1, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "add", "duration.success")).getCount());
+            Assert.assertNull(weaver, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, ClassAndMethod.CONSTRUCTOR_NAME, "duration.success")));
+            Assert.assertNull(weaver, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, ClassAndMethod.CLASS_INITIALIZER_NAME, "duration.success")));
+        }
+    }
+
+    @Test
+    public void weave_subtype() throws Exception {
+        for (String weaver : new String[]{JavaAgentFileTransformer.WEAVER_JAVASSIST, JavaAgentFileTransformer.WEAVER_ASM}) {
+            ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(createSettings(weaver,
+                    new ClassAndMethodFilter(Arrays.asList(new ClassAndMethod(IntBinaryOperator.class.getName() + "+", "applyAsInt")))));
+            Class<?> clazz = defineClass(classWeaver.weave(getClass().getClassLoader(), TARGET_CLASS_NAME, getClassFile(TARGET_CLASS_NAME)));
+            Object target = clazz.getConstructor().newInstance();
+            Assert.assertEquals(6, ((IntBinaryOperator) target).applyAsInt(2, 3));
+            Assert.assertEquals(5, clazz.getMethod("add", int.class, int.class).invoke(target, 2, 3));
+
+            Map<ClassAndMethodMetricKey, Histogram> durations = durationBuffer.reset();
+            Assert.assertEquals(weaver, 1, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "applyAsInt", "duration.success")).getCount());
+            Assert.assertNull(weaver, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "add", "duration.success")));
+
+            // Classes not implementing the interface are not transformed
+            Assert.assertNull(weaver, classWeaver.weave(getClass().getClassLoader(), SingleClassLoader.class.getName(), getClassFile(SingleClassLoader.class.getName())));
+        }
+    }
+
+    @Test
+    public void weave_annotation() throws Exception {
+        for (String weaver : new String[]{JavaAgentFileTransformer.WEAVER_JAVASSIST, JavaAgentFileTransformer.WEAVER_ASM}) {
+            ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(createSettings(weaver,
+                    new ClassAndMethodFilter(Arrays.asList(new ClassAndMethod("@" + Timed.class.getName(), "*")))));
+            Class<?> clazz = defineClass(classWeaver.weave(getClass().getClassLoader(), TARGET_CLASS_NAME, getClassFile(TARGET_CLASS_NAME)));
+            Assert.assertEquals(12, clazz.getMethod("parse", String.class).invoke(null, "12"));
+            Assert.assertEquals(5, clazz.getMethod("add", int.class, int.class).invoke(clazz.getConstructor().newInstance(), 2, 3));
+
+            Map<ClassAndMethodMetricKey, Histogram> durations = durationBuffer.reset();
+            Assert.assertEquals(weaver, 1, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "parse", "duration.success")).getCount());
+            Assert.assertNull(weaver, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "add", "duration.success")));
+        }
+    }
+
+    @Test
+    public void weave_notMatched() throws Exception {
+        ClassWeaverSettings settings = createSettings(JavaAgentFileTransformer.WEAVER_ASM,
+                new ClassAndMethodFilter(Arrays.asList(new ClassAndMethod(TARGET_CLASS_NAME, "notExisting"))));
+        settings.setDurationTimeUnit(TimeUnit.MILLISECONDS);
+        ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(settings);
+        Assert.assertNull(classWeaver.weave(getClass().getClassLoader(), TARGET_CLASS_NAME, getClassFile(TARGET_CLASS_NAME)));
+    }
+
+    @Test
+    public void weave_sampled() throws Exception {
+        for (String weaver : new String[]{JavaAgentFileTransformer.WEAVER_JAVASSIST, JavaAgentFileTransformer.WEAVER_ASM}) {
+            ClassAndMethod rule = new ClassAndMethod(TARGET_CLASS_NAME, "add");
+            ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(createSettings(weaver,
+                    new ClassAndMethodFilter(Arrays.asList(rule), Collections.singletonMap(rule, MethodProfilingOptions.parse("sampleRate:4")))));
+            Class<?> clazz = defineClass(classWeaver.weave(getClass().getClassLoader(), TARGET_CLASS_NAME, getClassFile(TARGET_CLASS_NAME)));
+            Object target = clazz.getConstructor().newInstance();
+
+            int invocations = 10000;
+            for (int i = 0; i < invocations; i++) {
+                Assert.assertEquals(i + 1, clazz.getMethod("add", int.class, int.class).invoke(target, i, 1));
+            }
+
+            // Expect 2500 sampled invocations, the bounds are far enough to never fail in practice
+            long count = durationBuffer.reset().get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "add", "duration.success")).getCount();
+            Assert.assertTrue(weaver + " sampled count: " + count, count > 2000 && count < 3000);
+        }
+    }
+
+    @Test
+    public void weave_resourceUsage() throws Exception {
+        for (String weaver : new String[]{JavaAgentFileTransformer.WEAVER_JAVASSIST, JavaAgentFileTransformer.WEAVER_ASM}) {
+            ClassAndMethod createRule = new ClassAndMethod(TARGET_CLASS_NAME, "create");
+            ClassAndMethod failRule = new ClassAndMethod(TARGET_CLASS_NAME, "fail");
+            Map<ClassAndMethod, MethodProfilingOptions> options = new HashMap<>();
+            options.put(createRule, MethodProfilingOptions.parse("resourceUsage"));
+            options.put(failRule, MethodProfilingOptions.parse("sampleRate:2@resourceUsage"));
+            ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(createSettings(weaver,
+                    new ClassAndMethodFilter(Arrays.asList(createRule, failRule), options)));
+            Class<?> clazz = defineClass(classWeaver.weave(getClass().getClassLoader(), TARGET_CLASS_NAME, getClassFile(TARGET_CLASS_NAME)));
+            Object target = clazz.getConstructor().newInstance();
+
+            int invocations = 100;
+            for (int i = 0; i < invocations; i++) {
+                Assert.assertEquals(1, ((List<?>) clazz.getMethod("create", boolean.class).invoke(null, true)).size());
+                try {
+                    clazz.getMethod("fail", String.class).invoke(target, "error1");
+                    Assert.fail("Exception should be thrown");
+                } catch (InvocationTargetException ex) {
+                    Assert.assertEquals(IllegalStateException.class, ex.getCause().getClass());
+                }
+            }
+
+            Map<ClassAndMethodMetricKey, Histogram> metrics = durationBuffer.reset();
+            Assert.assertEquals(weaver, invocations, metrics.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "create", "cpuTime")).getCount());
+            Histogram allocatedBytes = metrics.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "create", "allocatedBytes"));
+            Assert.assertEquals(weaver, invocations, allocatedBytes.getCount());
+            // Each invocation allocates at least a list and its backing array
+            Assert.assertTrue(weaver + " allocated bytes: " + allocatedBytes.getMin(), allocatedBytes.getMin() > 0);
+
+            // Resource usage is recorded for the same sampled invocations as the duration, also when an exception is thrown
+            long sampledCount = metrics.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "fail", "duration.error")).getCount();
+            Assert.assertEquals(weaver, sampledCount, metrics.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "fail", "cpuTime")).getCount());
+            Assert.assertEquals(weaver, sampledCount, metrics.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "fail", "allocatedBytes")).getCount());
+            Assert.assertTrue(weaver + " sampled count: " + sampledCount, sampledCount > 0 && sampledCount < invocations);
+        }
+    }
+
+    @Test
+    public void weave_slowInvocation() throws Exception {
+        for (String weaver : new String[]{JavaAgentFileTransformer.WEAVER_JAVASSIST, JavaAgentFileTransformer.WEAVER_ASM}) {
+            SlowInvocationRecorder recorder = new SlowInvocationRecorder();
+            MethodProfilerStaticProxy.setSlowInvocationRecorder(recorder);
+
+            ClassAndMethod concatRule = new ClassAndMethod(TARGET_CLASS_NAME, "concat");
+            ClassAndMethod failRule = new ClassAndMethod(TARGET_CLASS_NAME, "fail");
+            ClassAndMethod addRule = new ClassAndMethod(TARGET_CLASS_NAME, "add");
+            Map<ClassAndMethod, MethodProfilingOptions> options = new HashMap<>();
+            // Durations are in nanoseconds, so every invocation is slower than 1
+            options.put(concatRule, MethodProfilingOptions.parse("slowThreshold:1"));
+            options.put(failRule, MethodProfilingOptions.parse("slowThreshold:1"));
+            options.put(addRule, MethodProfilingOptions.parse("slowThreshold:" + TimeUnit.HOURS.toNanos(1)));
+            ClassWeaverSettings settings = createSettings(weaver,
+                    new ClassAndMethodFilter(Arrays.asList(concatRule, failRule, addRule), options));
+            settings.setArgumentProfilingFilter(new ClassMethodArgumentFilter(Arrays.asList(
+                    new ClassMethodArgument(TARGET_CLASS_NAME, "concat", 1),
+                    new ClassMethodArgument(TARGET_CLASS_NAME, "concat", 3))));
+            ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(settings);
+            Class<?> clazz = defineClass(classWeaver.weave(getClass().getClassLoader(), TARGET_CLASS_NAME, getClassFile(TARGET_CLASS_NAME)));
+            Object target = clazz.getConstructor().newInstance();
+
+            Assert.assertEquals("a1bc", clazz.getMethod("concat", String.class, long.class, char[].class).invoke(target, "a", 1L, new char[]{'b', 'c'}));
+            Assert.assertEquals(3, clazz.getMethod("add", int.class, int.class).invoke(target, 1, 2));
+            try {
+                clazz.getMethod("fail", String.class).invoke(target, "error1");
+                Assert.fail("Exception should be thrown");
+            } catch (InvocationTargetException ex) {
+                Assert.assertEquals(IllegalStateException.class, ex.getCause().getClass());
+            }
+
+            Map<String, SlowInvocationRecorder.SlowInvocation> slowInvocations = new HashMap<>();
+            for (SlowInvocationRecorder.Reservoir reservoir : recorder.reset()) {
+                Assert.assertEquals(weaver, 1, reservoir.getSlowCount());
+                slowInvocations.put(reservoir.getClassAndMethod().getMethodName(), reservoir.getSlowInvocations().get(0));
+            }
+            Assert.assertEquals(weaver, 2, slowInvocations.size());
+
+            SlowInvocationRecorder.SlowInvocation concat = slowInvocations.get("concat");
+            Assert.assertEquals(weaver, Arrays.asList("a", "bc"), concat.getArguments());
+            Assert.assertEquals(weaver, TARGET_CLASS_NAME + ".concat", concat.getStacktrace().get(0));
+            Assert.assertEquals(weaver, Thread.currentThread().getName(), concat.getThreadName());
+            Assert.assertTrue(weaver, concat.getDuration() > 1);
+
+            // Exemplars are also kept for invocations throwing exception
+            SlowInvocationRecorder.SlowInvocation fail = slowInvocations.get("fail");
+            Assert.assertEquals(weaver, 0, fail.getArguments().size());
+            Assert.assertEquals(weaver, TARGET_CLASS_NAME + ".fail", fail.getStacktrace().get(0));
+        }
+    }
+
+    @Test
+    public void weave_callTree() throws Exception {
+        for (String weaver : new String[]{JavaAgentFileTransformer.WEAVER_JAVASSIST, JavaAgentFileTransformer.WEAVER_ASM}) {
+            CallTreeRecorder recorder = new CallTreeRecorder();
+            MethodProfilerStaticProxy.setCallTreeRecorder(recorder);
+
+            ClassAndMethod addRule = new ClassAndMethod(TARGET_CLASS_NAME, "add");
+            ClassWeaverSettings settings = createSettings(weaver,
+                    new ClassAndMethodFilter(Arrays.asList(addRule, new ClassAndMethod(TARGET_CLASS_NAME, "addTwice"), new ClassAndMethod(TARGET_CLASS_NAME, "fail")),
+                            Collections.singletonMap(addRule, MethodProfilingOptions.parse("sampleRate:4"))));
+            settings.setCallTree(true);
+            ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(settings);
+            Class<?> clazz = defineClass(classWeaver.weave(getClass().getClassLoader(), TARGET_CLASS_NAME, getClassFile(TARGET_CLASS_NAME)));
+            Object target = clazz.getConstructor().newInstance();
+
+            // The exception must not leave fail on the call stack
+            try {
+                clazz.getMethod("fail", String.class).invoke(target, "error1");
+                Assert.fail("Exception should be thrown");
+            } catch (InvocationTargetException ex) {
+                Assert.assertEquals(IllegalStateException.class, ex.getCause().getClass());
+            }
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(5, clazz.getMethod("addTwice", int.class, int.class).invoke(target, 1, 2));
+            }
+
+            Map<List<ClassAndMethod>, Long> counts = new HashMap<>();
+            for (CallTreeRecorder.CallTreeNodeMetrics node : recorder.reset()) {
+                counts.put(node.getPath(), node.getCount());
+                Assert.assertTrue(weaver, node.getExclusiveNanos() <= node.getInclusiveNanos());
+            }
+            Assert.assertEquals(weaver, 3, counts.size());
+            Assert.assertEquals(weaver, 1L, (long) counts.get(Arrays.asList(new ClassAndMethod(TARGET_CLASS_NAME, "fail"))));
+            Assert.assertEquals(weaver, 10L, (long) counts.get(Arrays.asList(new ClassAndMethod(TARGET_CLASS_NAME, "addTwice"))));
+            // Call tree records every invocation, also of methods with sampled duration
+            Assert.assertEquals(weaver, 20L, (long) counts.get(Arrays.asList(new ClassAndMethod(TARGET_CLASS_NAME, "addTwice"), addRule)));
+        }
+    }
+
+    @Test
+    public void weave_invocationCounting() throws Exception {
+        for (String weaver : new String[]{JavaAgentFileTransformer.WEAVER_JAVASSIST, JavaAgentFileTransformer.WEAVER_ASM}) {
+            MethodInvocationCounter counter = new MethodInvocationCounter();
+            MethodProfilerStaticProxy.setInvocationCounter(counter);
+
+            ClassWeaverSettings settings = createSettings(weaver,
+                    new ClassAndMethodFilter(Arrays.asList(new ClassAndMethod(TARGET_CLASS_NAME, "add"))));
+            settings.setInvocationCountingFilter(new ClassAndMethodFilter(Arrays.asList(new ClassAndMethod(TARGET_CLASS_NAME, "*"))));
+            ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(settings);
+            Class<?> clazz = defineClass(classWeaver.weave(getClass().getClassLoader(), TARGET_CLASS_NAME, getClassFile(TARGET_CLASS_NAME)));
+            Object target = clazz.getConstructor().newInstance();
+
+            Assert.assertEquals(3, clazz.getMethod("add", int.class, int.class).invoke(target, 1, 2));
+            Assert.assertEquals(5, clazz.getMethod("add", int.class, int.class).invoke(target, 2, 3));
+            Assert.assertEquals(-1, clazz.getMethod("parse", String.class).invoke(null, "x"));
+            try {
+                clazz.getMethod("fail", String.class).invoke(target, "error1");
+                Assert.fail("Exception should be thrown");
+            } catch (InvocationTargetException ex) {
+                Assert.assertEquals(IllegalStateException.class, ex.getCause().getClass());
+            }
+
+            Map<ClassAndMethod, Long> counts = counter.reset();
+            Assert.assertEquals(weaver, 3, counts.size());
+            Assert.assertEquals(weaver, 2L, (long) counts.get(new ClassAndMethod(TARGET_CLASS_NAME, "add")));
+            Assert.assertEquals(weaver, 1L, (long) counts.get(new ClassAndMethod(TARGET_CLASS_NAME, "parse")));
+            Assert.assertEquals(weaver, 1L, (long) counts.get(new ClassAndMethod(TARGET_CLASS_NAME, "fail")));
+
+            // Duration profiling on the same method still works
+            Assert.assertEquals(weaver, 2, durationBuffer.reset().get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "add", "duration.success")).getCount());
+        }
+    }
+
+    @Test
+    public void weave_concurrency() throws Exception {
+        for (String weaver : new String[]{JavaAgentFileTransformer.WEAVER_JAVASSIST, JavaAgentFileTransformer.WEAVER_ASM}) {
+            MethodConcurrencyRecorder recorder = new MethodConcurrencyRecorder();
+            MethodProfilerStaticProxy.setConcurrencyRecorder(recorder);
+
+            ClassAndMethod addRule = new ClassAndMethod(TARGET_CLASS_NAME, "add");
+            ClassAndMethod failRule = new ClassAndMethod(TARGET_CLASS_NAME, "fail");
+            Map<ClassAndMethod, MethodProfilingOptions> options = new HashMap<>();
+            options.put(addRule, MethodProfilingOptions.parse("concurrency@sampleRate:4"));
+            options.put(failRule, MethodProfilingOptions.parse("concurrency"));
+            ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(createSettings(weaver,
+                    new ClassAndMethodFilter(Arrays.asList(addRule, failRule, new ClassAndMethod(TARGET_CLASS_NAME, "addTwice")), options)));
+            Class<?> clazz = defineClass(classWeaver.weave(getClass().getClassLoader(), TARGET_CLASS_NAME, getClassFile(TARGET_CLASS_NAME)));
+            Object target = clazz.getConstructor().newInstance();
+
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(5, clazz.getMethod("addTwice", int.class, int.class).invoke(target, 1, 2));
+            }
+            try {
+                clazz.getMethod("fail", String.class).invoke(target, "error1");
+                Assert.fail("Exception should be thrown");
+            } catch (InvocationTargetException ex) {
+                Assert.assertEquals(IllegalStateException.class, ex.getCause().getClass());
+            }
+
+            Map<String, MethodConcurrencyRecorder.MethodConcurrency> concurrencies = new HashMap<>();
+            for (MethodConcurrencyRecorder.MethodConcurrency concurrency : recorder.reset()) {
+                concurrencies.put(concurrency.getClassAndMethod().getMethodName(), concurrency);
+            }
+            // Only methods with concurrency option, every invocation is counted regardless of sampleRate, and
+            // threads exiting by exception are no longer in flight
+            Assert.assertEquals(weaver, 2, concurrencies.size());
+            Assert.assertEquals(weaver, 1, concurrencies.get("add").getMax());
+            Assert.assertEquals(weaver, 0, concurrencies.get("add").getInFlight());
+            Assert.assertEquals(weaver, 1, concurrencies.get("fail").getMax());
+            Assert.assertEquals(weaver, 0, concurrencies.get("fail").getInFlight());
+        }
+    }
+
+    @Test
+    public void weave_caller() throws Exception {
+        for (String weaver : new String[]{JavaAgentFileTransformer.WEAVER_JAVASSIST, JavaAgentFileTransformer.WEAVER_ASM}) {
+            MethodCallerRecorder recorder = new MethodCallerRecorder();
+            MethodProfilerStaticProxy.setCallerRecorder(recorder);
+
+            ClassAndMethod addRule = new ClassAndMethod(TARGET_CLASS_NAME, "add");
+            ClassAndMethod failRule = new ClassAndMethod(TARGET_CLASS_NAME, "fail");
+            // Parsed options require sampleRate with caller, set directly to record every invocation
+            MethodProfilingOptions callerOptions = new MethodProfilingOptions();
+            callerOptions.setCaller(true);
+            Map<ClassAndMethod, MethodProfilingOptions> options = new HashMap<>();
+            options.put(addRule, callerOptions);
+            options.put(failRule, callerOptions);
+            ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(createSettings(weaver,
+                    new ClassAndMethodFilter(Arrays.asList(addRule, failRule), options)));
+            Class<?> clazz = defineClass(classWeaver.weave(getClass().getClassLoader(), TARGET_CLASS_NAME, getClassFile(TARGET_CLASS_NAME)));
+            Object target = clazz.getConstructor().newInstance();
+
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(5, clazz.getMethod("addTwice", int.class, int.class).invoke(target, 1, 2));
+            }
+            Assert.assertEquals(3, clazz.getMethod("add", int.class, int.class).invoke(target, 1, 2));
+            try {
+                clazz.getMethod("fail", String.class).invoke(target, "error1");
+                Assert.fail("Exception should be thrown");
+            } catch (InvocationTargetException ex) {
+                Assert.assertEquals(IllegalStateException.class, ex.getCause().getClass());
+            }
+
+            Map<String, Long> addCounts = new HashMap<>();
+            long failCount = 0;
+            for (MethodCallerRecorder.CallerDuration callerDuration : recorder.reset()) {
+                Assert.assertEquals(weaver, TARGET_CLASS_NAME, callerDuration.getClassAndMethod().getClassName());
+                if (callerDuration.getClassAndMethod().getMethodName().equals("add")) {
+                    addCounts.put(callerDuration.getCaller().toString(), callerDuration.getDuration().getCount());
+                } else {
+                    failCount += callerDuration.getDuration().getCount();
+                }
+            }
+            // Invocations from addTwice are separated from the one invoked by reflection, also when exiting by exception
+            Assert.assertEquals(weaver, 2, addCounts.size());
+            Assert.assertEquals(weaver, Long.valueOf(20), addCounts.get(new ClassAndMethod(TARGET_CLASS_NAME, "addTwice").toString()));
+            Assert.assertEquals(weaver, 1, failCount);
+        }
+    }
+
+    @Test
+    public void weave_returnValue() throws Exception {
+        for (String weaver : new String[]{JavaAgentFileTransformer.WEAVER_JAVASSIST, JavaAgentFileTransformer.WEAVER_ASM}) {
+            ClassAndMethod rule = new ClassAndMethod(TARGET_CLASS_NAME, "*");
+            ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(createSettings(weaver,
+                    new ClassAndMethodFilter(Arrays.asList(rule), Collections.singletonMap(rule, MethodProfilingOptions.parse("returnValue")))));
+            Class<?> clazz = defineClass(classWeaver.weave(getClass().getClassLoader(), TARGET_CLASS_NAME, getClassFile(TARGET_CLASS_NAME)));
+            Object target = clazz.getConstructor().newInstance();
+
+            Assert.assertEquals(3, clazz.getMethod("add", int.class, int.class).invoke(target, 1, 2));
+            Assert.assertEquals("a1bc", clazz.getMethod("concat", String.class, long.class, char[].class).invoke(target, "a", 1L, new char[]{'b', 'c'}));
+            Assert.assertEquals(-1, clazz.getMethod("parse", String.class).invoke(null, "x"));
+            Assert.assertEquals(-1000, clazz.getMethod("parse", String.class).invoke(null, "-1000"));
+            Assert.assertEquals(Arrays.asList("a"), clazz.getMethod("create", boolean.class).invoke(null, true));
+            Assert.assertEquals(3, ((ByteBuffer) clazz.getMethod("wrap", byte[].class).invoke(null, new byte[3])).remaining());
+            Assert.assertNull(clazz.getMethod("wrap", byte[].class).invoke(null, (Object) null));
+            Assert.assertEquals(2.5, (double) clazz.getMethod("sum", byte.class, short.class, char.class, boolean.class, float.class, double.class, Integer.class, String.class)
+                    .invoke(null, (byte) 0, (short) 0, (char) 0, false, 0.0f, 2.5, null, ""), 0.0);
+            try {
+                clazz.getMethod("fail", String.class).invoke(target, "error1");
+                Assert.fail("Exception should be thrown");
+            } catch (InvocationTargetException ex) {
+                Assert.assertEquals(IllegalStateException.class, ex.getCause().getClass());
+            }
+
+            Map<ClassAndMethodMetricKey, Histogram> metrics = durationBuffer.reset();
+            Assert.assertEquals(weaver, 3, metrics.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "add", "returnValue")).getSum());
+            // Length of the string, size of the list and remaining bytes of the buffer
+            Assert.assertEquals(weaver, 4, metrics.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "concat", "returnValue")).getSum());
+            Assert.assertEquals(weaver, 1, metrics.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "create", "returnValue")).getSum());
+            // Negative numbers are recorded as they are, not clamped to zero
+            Histogram parseReturnValue = metrics.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "parse", "returnValue"));
+            Assert.assertEquals(weaver, 2, parseReturnValue.getCount());
+            Assert.assertEquals(weaver, -1001, parseReturnValue.getSum());
+            Assert.assertEquals(weaver, -1000, parseReturnValue.getMin());
+            Assert.assertEquals(weaver, -1, parseReturnValue.getMax());
+            Assert.assertEquals(weaver, -1000, parseReturnValue.getValueAtPercentile(50), 1000 / 32);
+            Assert.assertEquals(weaver, -1, parseReturnValue.getValueAtPercentile(100));
+            // Null is not recorded
+            Assert.assertEquals(weaver, 1, metrics.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "wrap", "returnValue")).getCount());
+            Assert.assertEquals(weaver, 3, metrics.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "wrap", "returnValue")).getSum());
+            Assert.assertEquals(weaver, 3, metrics.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "sum", "returnValue")).getSum());
+            // Nothing is returned when the method throws, and void methods are not instrumented for return value
+            Assert.assertNull(weaver, metrics.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "fail", "returnValue")));
+            Assert.assertEquals(weaver, 1, metrics.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "fail", "duration.error")).getCount());
+        }
+    }
+
+    @Test
+    public void weave_async() throws Exception {
+        for (String weaver : new String[]{JavaAgentFileTransformer.WEAVER_JAVASSIST, JavaAgentFileTransformer.WEAVER_ASM}) {
+            List<ClassAndMethod> rules = Arrays.asList(new ClassAndMethod(TARGET_CLASS_NAME, "delay"), new ClassAndMethod(TARGET_CLASS_NAME, "create"));
+            Map<ClassAndMethod, MethodProfilingOptions> options = new HashMap<>();
+            rules.forEach(rule -> options.put(rule, MethodProfilingOptions.parse("async")));
+            ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(createSettings(weaver,
+                    new ClassAndMethodFilter(rules, options)));
+            Class<?> clazz = defineClass(classWeaver.weave(getClass().getClassLoader(), TARGET_CLASS_NAME, getClassFile(TARGET_CLASS_NAME)));
+            Method delay = clazz.getMethod("delay", CompletableFuture.class);
+
+            CompletableFuture<Integer> future1 = new CompletableFuture<>();
+            CompletableFuture<?> result1 = (CompletableFuture<?>) delay.invoke(null, future1);
+            CompletableFuture<Integer> future2 = new CompletableFuture<>();
+            CompletableFuture<?> result2 = (CompletableFuture<?>) delay.invoke(null, future2);
+
+            // Nothing is recorded until the returned futures complete
+            Assert.assertNull(weaver, durationBuffer.reset().get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "delay", "duration.success")));
+
+            Thread.sleep(20);
+            future1.complete(1);
+            future2.completeExceptionally(new IllegalStateException("error1"));
+            Assert.assertEquals(1, result1.get());
+            Assert.assertTrue(result2.isCompletedExceptionally());
+
+            // Returned value which is not a CompletionStage is recorded when the method returns
+            Assert.assertEquals(Arrays.asList("a"), clazz.getMethod("create", boolean.class).invoke(null, true));
+
+            Map<ClassAndMethodMetricKey, Histogram> durations = durationBuffer.reset();
+            Histogram success = durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "delay", "duration.success"));
+            Assert.assertEquals(weaver, 1, success.getCount());
+            Assert.assertTrue(weaver, success.getMin() >= TimeUnit.MILLISECONDS.toNanos(20));
+            Assert.assertEquals(weaver, 1, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "delay", "duration.error")).getCount());
+            Assert.assertEquals(weaver, 1, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "delay", "exception.java.lang.IllegalStateException")).getCount());
+            Assert.assertEquals(weaver, 1, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "create", "duration.success")).getCount());
+        }
+    }
+
+    @Test
+    public void weave_numericArguments() throws Exception {
+        for (String weaver : new String[]{JavaAgentFileTransformer.WEAVER_JAVASSIST, JavaAgentFileTransformer.WEAVER_ASM}) {
+            ClassAndMethodLongMetricBuffer numericBuffer = new ClassAndMethodLongMetricBuffer();
+            MethodArgumentCollector argumentCollector = new MethodArgumentCollector(argumentBuffer);
+            argumentCollector.setNumericBuffer(numericBuffer);
+            MethodProfilerStaticProxy.setArgumentCollector(argumentCollector);
+
+            List<ClassMethodArgument> argumentProfiling = new ArrayList<>();
+            for (int i = 1; i <= 9; i++) {
+                argumentProfiling.add(new ClassMethodArgument(TARGET_CLASS_NAME, "sum", i, true));
+            }
+            argumentProfiling.add(new ClassMethodArgument(TARGET_CLASS_NAME, "sum", 8));
+            ClassWeaverSettings settings = createSettings(weaver, new ClassAndMethodFilter(null));
+            settings.setArgumentProfilingFilter(new ClassMethodArgumentFilter(argumentProfiling));
+            ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(settings);
+            Class<?> clazz = defineClass(classWeaver.weave(getClass().getClassLoader(), TARGET_CLASS_NAME, getClassFile(TARGET_CLASS_NAME)));
+
+            Method method = clazz.getMethod("sum", byte.class, short.class, char.class, boolean.class, float.class, double.class, Integer.class, String.class);
+            Assert.assertEquals(126.5, (double) method.invoke(null, (byte) 1, (short) 2, 'a', true, 1.5f, 20.0, 1, "abc"), 0.0);
+            Assert.assertEquals(102.75, (double) method.invoke(null, (byte) -1, (short) 3, 'a', false, 0.25f, 2.5, null, "x"), 0.0);
+
+            Map<ClassAndMethodMetricKey, Histogram> numericArguments = numericBuffer.reset();
+            // Argument 9 does not exist, and argument 8 is not a number
+            Assert.assertEquals(weaver, 7, numericArguments.size());
+            Histogram arg1 = numericArguments.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "sum", "arg.1"));
+            Assert.assertEquals(weaver, 2, arg1.getCount());
+            Assert.assertEquals(weaver, -1, arg1.getMin());
+            Assert.assertEquals(weaver, 1, arg1.getMax());
+            Assert.assertEquals(weaver, 5, numericArguments.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "sum", "arg.2")).getSum());
+            Assert.assertEquals(weaver, 'a', numericArguments.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "sum", "arg.3")).getMax());
+            Assert.assertEquals(weaver, 1, numericArguments.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "sum", "arg.4")).getSum());
+            // Float and double values are rounded
+            Assert.assertEquals(weaver, 2, numericArguments.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "sum", "arg.5")).getSum());
+            Assert.assertEquals(weaver, 23, numericArguments.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "sum", "arg.6")).getSum());
+            // Null boxed value is ignored
+            Assert.assertEquals(weaver, 1, numericArguments.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "sum", "arg.7")).getCount());
+
+            // The same argument could also be counted by value
+            Map<ClassAndMethodMetricKey, AtomicLong> arguments = argumentBuffer.reset();
+            Assert.assertEquals(weaver, 1, arguments.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "sum", "arg.8.abc")).get());
+        }
+    }
+
+    private void weave(String weaver) throws Exception {
+        Class<?> clazz = loadWovenClass(weaver);
+        Object target = clazz.getConstructor().newInstance();
+
+        Assert.assertEquals(3, clazz.getMethod("add", int.class, int.class).invoke(target, 1, 2));
+        Assert.assertEquals(5, clazz.getMethod("add", int.class, int.class).invoke(target, 2, 3));
+        Assert.assertEquals("a1bc", clazz.getMethod("concat", String.class, long.class, char[].class).invoke(target, "a", 1L, new char[]{'b', 'c'}));
+        Assert.assertEquals(10, clazz.getMethod("parse", String.class).invoke(null, "10"));
+        Assert.assertEquals(-1, clazz.getMethod("parse", String.class).invoke(null, "x"));
+        Assert.assertEquals(Arrays.asList("a"), clazz.getMethod("create", boolean.class).invoke(null, true));
+        Assert.assertEquals(Arrays.asList("a"), clazz.getMethod("create", boolean.class).invoke(null, false));
+
+        Map<ClassAndMethodMetricKey, Histogram> durations = durationBuffer.reset();
+        Assert.assertEquals(2, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "add", "duration.success")).getCount());
+        Assert.assertEquals(1, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "concat", "duration.success")).getCount());
+        Assert.assertEquals(2, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "parse", "duration.success")).getCount());
+        Assert.assertEquals(2, durations.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "create", "duration.success")).getCount());
+
+        Map<ClassAndMethodMetricKey, AtomicLong> arguments = argumentBuffer.reset();
+        Assert.assertEquals(1, arguments.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "add", "arg.1.1")).get());
+        Assert.assertEquals(1, arguments.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "add", "arg.1.2")).get());
+        Assert.assertEquals(1, arguments.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "concat", "arg.2.1")).get());
+        Assert.assertEquals(1, arguments.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "concat", "arg.3.bc")).get());
+        Assert.assertEquals(2, arguments.get(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "parse", "arg.0.")).get());
+    }
+
+    // Durations in nanoseconds, so fast methods do not record 0
+    static ClassWeaverSettings createSettings(String weaver, ClassAndMethodFilter durationProfilingFilter) {
+        ClassWeaverSettings settings = new ClassWeaverSettings();
+        settings.setWeaver(weaver);
+        settings.setDurationProfilingFilter(durationProfilingFilter);
+        settings.setDurationTimeUnit(TimeUnit.NANOSECONDS);
+        return settings;
+    }
+
+    private static Class<?> loadWovenClass(String weaver) throws Exception {
+        ClassWeaverSettings settings = createSettings(weaver,
+                new ClassAndMethodFilter(Arrays.asList(new ClassAndMethod(TARGET_CLASS_NAME, "*"))));
+        settings.setArgumentProfilingFilter(new ClassMethodArgumentFilter(Arrays.asList(
+                new ClassMethodArgument(TARGET_CLASS_NAME, "add", 1),
+                new ClassMethodArgument(TARGET_CLASS_NAME, "concat", 2),
+                new ClassMethodArgument(TARGET_CLASS_NAME, "concat", 3),
+                new ClassMethodArgument(TARGET_CLASS_NAME, "parse", 0))));
+        ClassWeaver classWeaver = JavaAgentFileTransformer.createClassWeaver(settings);
+
+        return defineClass(classWeaver.weave(ClassWeaverTest.class.getClassLoader(), TARGET_CLASS_NAME, getClassFile(TARGET_CLASS_NAME)));
+    }
+
+    private static Class<?> defineClass(byte[] byteCode) throws Exception {
+        Assert.assertNotNull(byteCode);
+        return new SingleClassLoader(ClassWeaverTest.class.getClassLoader(), TARGET_CLASS_NAME, byteCode).loadClass(TARGET_CLASS_NAME);
+    }
+
+    static byte[] getClassFile(String className) throws Exception {
+        try (InputStream inputStream = ClassWeaverTest.class.getClassLoader().getResourceAsStream(className.replace('.', '/') + ".class")) {
+            return IOUtils.toByteArray(inputStream);
+        }
+    }
+
+    /**
+     * Class loader defining one class from given byte code, and delegating other classes to its parent.
+     */
+    static class SingleClassLoader extends ClassLoader {
+        private final String className;
+        private final byte[] byteCode;
+
+        SingleClassLoader(ClassLoader parent, String className, byte[] byteCode) {
+            super(parent);
+            this.className = className;
+            this.byteCode = byteCode;
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.equals(className)) {
+                return super.loadClass(name, resolve);
+            }
+
+            Class<?> clazz = findLoadedClass(name);
+            if (clazz == null) {
+                clazz = defineClass(name, byteCode, 0, byteCode.length);
+            }
+            return clazz;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.transformers;
+
+import com.uber.profiling.Arguments;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class InstrumentationControllerTest {
+    private static final String TARGET_CLASS_NAME = ClassWeaverTest.Target.class.getName();
+
+    @Test
+    public void addAndRemove() throws Exception {
+        ClassWeaverSettings settings = new ClassWeaverSettings();
+        settings.setWeaver(JavaAgentFileTransformer.WEAVER_ASM);
+        JavaAgentFileTransformer transformer = new JavaAgentFileTransformer(settings);
+
+        Map<Class<?>, byte[]> retransformed = new HashMap<>();
+        List<Integer> batchSizes = new ArrayList<>();
+        Instrumentation instrumentation = createInstrumentation(
+                new Class<?>[]{String.class, ClassWeaverTest.Target.class, InstrumentationControllerTest.class},
+                classes -> {
+                    batchSizes.add(classes.length);
+                    for (Class<?> clazz : classes) {
+                        retransformed.put(clazz, transformer.transform(clazz.getClassLoader(), clazz.getName().replace('.', '/'),
+                                clazz, null, ClassWeaverTest.getClassFile(clazz.getName())));
+                    }
+                });
+
+        InstrumentationController controller = new InstrumentationController(transformer, new ClassRetransformer(instrumentation),
+                Collections.emptyList(), Collections.emptyMap(), Collections.emptyList());
+
+        Assert.assertEquals(1, controller.addDurationProfiling(TARGET_CLASS_NAME + ".add@sampleRate:10"));
+        Assert.assertEquals(Arrays.asList(TARGET_CLASS_NAME + ".add@sampleRate:10"), controller.getDurationProfiling());
+        Assert.assertEquals(Arrays.asList(1), batchSizes);
+        Assert.assertNotNull(retransformed.get(ClassWeaverTest.Target.class));
+
+        // Adding the same method again does not retransform anything
+        Assert.assertEquals(0, controller.addDurationProfiling(TARGET_CLASS_NAME + ".add@sampleRate:10"));
+
+        Assert.assertEquals(1, controller.addArgumentProfiling(TARGET_CLASS_NAME + ".concat.1"));
+        Assert.assertEquals(Arrays.asList(TARGET_CLASS_NAME + ".concat.1"), controller.getArgumentProfiling());
+
+        Assert.assertEquals(1, controller.removeDurationProfiling(TARGET_CLASS_NAME + ".add"));
+        Assert.assertEquals(0, controller.getDurationProfiling().size());
+        Assert.assertNotNull(retransformed.get(ClassWeaverTest.Target.class));
+
+        // No profiled methods left, original byte code is restored
+        Assert.assertEquals(1, controller.removeArgumentProfiling(TARGET_CLASS_NAME + ".concat.1"));
+        Assert.assertNull(retransformed.get(ClassWeaverTest.Target.class));
+
+        Assert.assertEquals(0, controller.removeArgumentProfiling(TARGET_CLASS_NAME + ".concat.1"));
+        Assert.assertFalse(retransformed.containsKey(String.class));
+    }
+
+    @Test
+    public void removeAll() {
+        JavaAgentFileTransformer transformer = new JavaAgentFileTransformer(new ClassWeaverSettings());
+
+        List<Class<?>> retransformed = new ArrayList<>();
+        Instrumentation instrumentation = createInstrumentation(
+                new Class<?>[]{String.class, ClassWeaverTest.Target.class, InstrumentationControllerTest.class},
+                classes -> retransformed.addAll(Arrays.asList(classes)));
+
+        InstrumentationController controller = new InstrumentationController(transformer, new ClassRetransformer(instrumentation),
+                Arrays.asList(Arguments.parseDurationProfiling(TARGET_CLASS_NAME + ".add")), Collections.emptyMap(), Collections.emptyList());
+
+        Assert.assertEquals(1, controller.addDurationProfiling(InstrumentationControllerTest.class.getName() + ".removeAll"));
+        retransformed.clear();
+
+        Assert.assertEquals(2, controller.removeAll());
+        Assert.assertEquals(Arrays.asList(ClassWeaverTest.Target.class, InstrumentationControllerTest.class), retransformed);
+        Assert.assertEquals(0, controller.getDurationProfiling().size());
+    }
+
+    @Test
+    public void argumentProfiling_numericRoundTrip() {
+        JavaAgentFileTransformer transformer = new JavaAgentFileTransformer(new ClassWeaverSettings());
+
+        Instrumentation instrumentation = createInstrumentation(
+                new Class<?>[]{ClassWeaverTest.Target.class},
+                classes -> {});
+
+        InstrumentationController controller = new InstrumentationController(transformer, new ClassRetransformer(instrumentation),
+                Collections.emptyList(), Collections.emptyMap(), Collections.emptyList());
+
+        Assert.assertEquals(1, controller.addArgumentProfiling(TARGET_CLASS_NAME + ".add.1@numeric"));
+        Assert.assertEquals(1, controller.addArgumentProfiling(TARGET_CLASS_NAME + ".add.2"));
+        List<String> listed = controller.getArgumentProfiling();
+        Assert.assertEquals(Arrays.asList(TARGET_CLASS_NAME + ".add.1@numeric", TARGET_CLASS_NAME + ".add.2"), listed);
+
+        // Values returned by getArgumentProfiling can be passed back to remove the same arguments
+        for (String value : listed) {
+            Assert.assertEquals(1, controller.removeArgumentProfiling(value));
+        }
+        Assert.assertEquals(0, controller.getArgumentProfiling().size());
+    }
+
+    @Test
+    public void retransform_batchFailure() {
+        List<List<Class<?>>> calls = new ArrayList<>();
+        Instrumentation instrumentation = createInstrumentation(new Class<?>[0], classes -> {
+            calls.add(Arrays.asList(classes));
+            if (Arrays.asList(classes).contains(Integer.class)) {
+                throw new VerifyError("Test error");
+            }
+        });
+
+        ClassRetransformer classRetransformer = new ClassRetransformer(instrumentation, 2);
+        int count = classRetransformer.retransform(Arrays.asList(String.class, Integer.class, Long.class));
+        Assert.assertEquals(2, count);
+
+        Assert.assertEquals(4, calls.size());
+        Assert.assertEquals(Arrays.asList(String.class, Integer.class), calls.get(0));
+        Assert.assertEquals(Arrays.asList(String.class), calls.get(1));
+        Assert.assertEquals(Arrays.asList(Integer.class), calls.get(2));
+        Assert.assertEquals(Arrays.asList(Long.class), calls.get(3));
+
+        Assert.assertEquals(2, classRetransformer.getBatchCount());
+        Assert.assertEquals(3, classRetransformer.getClassCount());
+        Assert.assertTrue(classRetransformer.getMaxBatchMillis() <= classRetransformer.getTotalBatchMillis());
+    }
+
+    interface RetransformHandler {
+        void retransform(Class<?>[] classes) throws Exception;
+    }
+
+    // Only implement methods used by ClassRetransformer, so the stub does not depend on Java 9+ Instrumentation methods
+    static Instrumentation createInstrumentation(Class<?>[] loadedClasses, RetransformHandler handler) {
+        return (Instrumentation) Proxy.newProxyInstance(InstrumentationControllerTest.class.getClassLoader(),
+                new Class<?>[]{Instrumentation.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAllLoadedClasses":
+                            return loadedClasses;
+                        case "isModifiableClass":
+                            return true;
+                        case "retransformClasses":
+                            handler.retransform((Class<?>[]) args[0]);
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
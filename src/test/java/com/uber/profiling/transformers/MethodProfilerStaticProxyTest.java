@@ -18,8 +18,12 @@ package com.uber.profiling.transformers;
 
 import com.uber.profiling.profilers.Constants;
 import com.uber.profiling.profilers.MethodArgumentCollector;
+import com.uber.profiling.profilers.MethodDurationCollector;
+import com.uber.profiling.util.ClassAndMethodLongMetricBuffer;
 import com.uber.profiling.util.ClassAndMethodMetricKey;
 import com.uber.profiling.util.ClassMethodArgumentMetricBuffer;
+import com.uber.profiling.util.Histogram;
+import com.uber.profiling.util.MethodIdRegistry;
 import junit.framework.Assert;
 import org.junit.After;
 import org.junit.Before;
@@ -41,8 +45,43 @@ public class MethodProfilerStaticProxyTest {
     @After
     public void after() {
         MethodProfilerStaticProxy.setCollector(null);
+        MethodProfilerStaticProxy.setArgumentCollector(null);
+    }
+
+    @Test
+    public void collectMethodDuration_methodId() {
+        ClassAndMethodLongMetricBuffer durationBuffer = new ClassAndMethodLongMetricBuffer();
+        MethodProfilerStaticProxy.setCollector(new MethodDurationCollector(durationBuffer));
+
+        int methodId = MethodIdRegistry.getInstance().register("class1", "method1");
+        MethodProfilerStaticProxy.collectMethodDuration(methodId, 10);
+        MethodProfilerStaticProxy.collectMethodDuration(methodId, 20);
+
+        Map<ClassAndMethodMetricKey, Histogram> metrics = durationBuffer.reset();
+        Assert.assertEquals(1, metrics.size());
+        Histogram histogram = metrics.get(new ClassAndMethodMetricKey("class1", "method1", "duration"));
+        Assert.assertEquals(2, histogram.getCount());
+        Assert.assertEquals(30, histogram.getSum());
     }
     
+    @Test
+    public void collectMethodDuration_successAndError() {
+        ClassAndMethodLongMetricBuffer durationBuffer = new ClassAndMethodLongMetricBuffer();
+        MethodProfilerStaticProxy.setCollector(new MethodDurationCollector(durationBuffer));
+
+        int methodId = MethodIdRegistry.getInstance().register("class1", "method1");
+        MethodProfilerStaticProxy.collectMethodDurationSuccess(methodId, 10);
+        MethodProfilerStaticProxy.collectMethodDurationError(methodId, 20);
+        MethodProfilerStaticProxy.collectMethodException(methodId, new IllegalArgumentException());
+        MethodProfilerStaticProxy.collectMethodException(methodId, new IllegalArgumentException());
+
+        Map<ClassAndMethodMetricKey, Histogram> metrics = durationBuffer.reset();
+        Assert.assertEquals(3, metrics.size());
+        Assert.assertEquals(10, metrics.get(new ClassAndMethodMetricKey("class1", "method1", "duration.success")).getSum());
+        Assert.assertEquals(20, metrics.get(new ClassAndMethodMetricKey("class1", "method1", "duration.error")).getSum());
+        Assert.assertEquals(2, metrics.get(new ClassAndMethodMetricKey("class1", "method1", "exception.java.lang.IllegalArgumentException")).getCount());
+    }
+
     @Test
     public void collectMethodArgument_nullValue() {
         MethodProfilerStaticProxy.collectMethodArgument("class1", "method1", 1, null);
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.transformers;
+
+import com.uber.profiling.Arguments;
+import com.uber.profiling.util.ClassAndMethod;
+import com.uber.profiling.util.ClassAndMethodFilter;
+import com.uber.profiling.util.ClassAndMethodMetricKey;
+import com.uber.profiling.util.Histogram;
+import com.uber.profiling.util.MethodIdRegistry;
+import com.uber.profiling.util.MethodProfilingOptions;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class OverheadBudgetGovernorTest {
+    private static final String TARGET_CLASS_NAME = ClassWeaverTest.Target.class.getName();
+
+    @Test
+    public void getOverheadPercent() {
+        Assert.assertEquals(15.0, OverheadBudgetGovernor.getOverheadPercent(1000000, MethodProfilingOptions.DEFAULT), 0.0001);
+        Assert.assertEquals(2.15, OverheadBudgetGovernor.getOverheadPercent(1000000, MethodProfilingOptions.parse("sampleRate:100")), 0.0001);
+        Assert.assertEquals(0.0015, OverheadBudgetGovernor.getOverheadPercent(100, MethodProfilingOptions.DEFAULT), 0.0001);
+
+        // Concurrency runs for every invocation, resourceUsage and caller for every sampled invocation
+        Assert.assertEquals(17.15, OverheadBudgetGovernor.getOverheadPercent(1000000, MethodProfilingOptions.parse("sampleRate:100@concurrency")), 0.0001);
+        Assert.assertEquals(16.5, OverheadBudgetGovernor.getOverheadPercent(100000, MethodProfilingOptions.parse("resourceUsage")), 0.0001);
+        Assert.assertEquals(12.15, OverheadBudgetGovernor.getOverheadPercent(1000000, MethodProfilingOptions.parse("sampleRate:100@caller")), 0.0001);
+    }
+
+    @Test
+    public void check_expensiveOptions() {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        registry.setOptions(registry.register(TARGET_CLASS_NAME, "add"), MethodProfilingOptions.parse("sampleRate:100@caller"));
+
+        InstrumentationController controller = createController();
+        OverheadBudgetGovernor governor = new OverheadBudgetGovernor(controller, registry, 1, OverheadBudgetGovernor.ACTION_SAMPLE);
+
+        // 100000 invocations per second sampled one in 100 cost 0.215% without caller, but 1.215% with it
+        Map<ClassAndMethodMetricKey, Histogram> metrics = new HashMap<>();
+        metrics.put(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "add", "duration"), createHistogram(1000));
+
+        List<Map<String, Object>> events = governor.check(metrics, TimeUnit.SECONDS.toNanos(1));
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(127, events.get(0).get("sampleRate"));
+    }
+
+    @Test
+    public void check_sample() {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        registry.register(TARGET_CLASS_NAME, "add");
+        registry.register(TARGET_CLASS_NAME, "concat");
+
+        InstrumentationController controller = createController();
+        OverheadBudgetGovernor governor = new OverheadBudgetGovernor(controller, registry, 1, OverheadBudgetGovernor.ACTION_SAMPLE);
+
+        // 100000 invocations per second cost 1.5% of one core, sampling one in two costs 0.75% + 0.2% for the guard
+        Map<ClassAndMethodMetricKey, Histogram> metrics = new HashMap<>();
+        metrics.put(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "add", "duration"), createHistogram(200000));
+        metrics.put(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "concat", "duration"), createHistogram(1000));
+
+        List<Map<String, Object>> events = governor.check(metrics, TimeUnit.SECONDS.toNanos(2));
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(TARGET_CLASS_NAME, events.get(0).get("className"));
+        Assert.assertEquals("add", events.get(0).get("methodName"));
+        Assert.assertEquals(OverheadBudgetGovernor.ACTION_SAMPLE, events.get(0).get("action"));
+        Assert.assertEquals(2, events.get(0).get("sampleRate"));
+        Assert.assertEquals(100000.0, (double) events.get(0).get("invocationRate"), 0.0001);
+        Assert.assertEquals(1, events.get(0).get("retransformedClasses"));
+
+        Assert.assertEquals(Arrays.asList(TARGET_CLASS_NAME + ".*", TARGET_CLASS_NAME + "!.add@sampleRate:2"), controller.getDurationProfiling());
+    }
+
+    @Test
+    public void check_disable() {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        registry.register(TARGET_CLASS_NAME, "add");
+
+        // The sampling guard alone exceeds the budget for 1000000 invocations per second
+        InstrumentationController controller = createController();
+        OverheadBudgetGovernor governor = new OverheadBudgetGovernor(controller, registry, 1, OverheadBudgetGovernor.ACTION_SAMPLE);
+
+        Map<ClassAndMethodMetricKey, Histogram> metrics = new HashMap<>();
+        metrics.put(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "add", "duration"), createHistogram(1000000));
+
+        List<Map<String, Object>> events = governor.check(metrics, TimeUnit.SECONDS.toNanos(1));
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(OverheadBudgetGovernor.ACTION_DISABLE, events.get(0).get("action"));
+        Assert.assertEquals(Arrays.asList(TARGET_CLASS_NAME + ".*", TARGET_CLASS_NAME + "!.add@sampleRate:1@disabled"), controller.getDurationProfiling());
+
+        // Disable action does not try sampling first
+        controller = createController();
+        governor = new OverheadBudgetGovernor(controller, registry, 1, OverheadBudgetGovernor.ACTION_DISABLE);
+
+        metrics.put(new ClassAndMethodMetricKey(TARGET_CLASS_NAME, "add", "duration"), createHistogram(100000));
+
+        events = governor.check(metrics, TimeUnit.SECONDS.toNanos(1));
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(OverheadBudgetGovernor.ACTION_DISABLE, events.get(0).get("action"));
+    }
+
+    @Test
+    public void check_prefixSibling() {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        registry.register("com.foo.Bar", "baz");
+
+        InstrumentationController controller = createController();
+        controller.addDurationProfiling("com.foo.*Bar*.*");
+        OverheadBudgetGovernor governor = new OverheadBudgetGovernor(controller, registry, 1, OverheadBudgetGovernor.ACTION_SAMPLE);
+
+        Map<ClassAndMethodMetricKey, Histogram> metrics = new HashMap<>();
+        metrics.put(new ClassAndMethodMetricKey("com.foo.Bar", "baz", "duration"), createHistogram(100000));
+        Assert.assertEquals(1, governor.check(metrics, TimeUnit.SECONDS.toNanos(1)).size());
+
+        // Only com.foo.Bar is throttled, classes sharing its name as prefix keep options of their own rules
+        List<ClassAndMethod> rules = new ArrayList<>();
+        Map<ClassAndMethod, MethodProfilingOptions> options = new HashMap<>();
+        for (String value : controller.getDurationProfiling()) {
+            rules.add(Arguments.parseDurationProfiling(value));
+            if (Arguments.parseDurationProfilingOptions(value) != null) {
+                options.put(Arguments.parseDurationProfiling(value), Arguments.parseDurationProfilingOptions(value));
+            }
+        }
+        ClassAndMethodFilter filter = new ClassAndMethodFilter(rules, options);
+        Assert.assertTrue(filter.getMethodOptions("com.foo.Bar", "baz").isSampled());
+        Assert.assertFalse(filter.getMethodOptions("com.foo.BarBaz", "baz").isSampled());
+        Assert.assertFalse(filter.getMethodOptions("com.foo.Bar$Inner", "baz").isSampled());
+    }
+
+    private static InstrumentationController createController() {
+        ClassWeaverSettings settings = new ClassWeaverSettings();
+        settings.setWeaver(JavaAgentFileTransformer.WEAVER_ASM);
+        JavaAgentFileTransformer transformer = new JavaAgentFileTransformer(settings);
+        Instrumentation instrumentation = InstrumentationControllerTest.createInstrumentation(
+                new Class<?>[]{ClassWeaverTest.Target.class}, classes -> { });
+        return new InstrumentationController(transformer, new ClassRetransformer(instrumentation),
+                Arrays.asList(Arguments.parseDurationProfiling(TARGET_CLASS_NAME + ".*")), Collections.emptyMap(), Collections.emptyList());
+    }
+
+    private static Histogram createHistogram(int count) {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < count; i++) {
+            histogram.appendValue(1);
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class CallTreeRecorderTest {
+    @Test
+    public void enterAndExit() {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        int methodIdA = registry.register("class1", "a");
+        int methodIdB = registry.register("class1", "b");
+
+        CallTreeRecorder recorder = new CallTreeRecorder(registry, 100);
+
+        // a -> b, a -> b, then b called directly
+        recorder.enter(methodIdA);
+        recorder.enter(methodIdB);
+        recorder.exit();
+        recorder.enter(methodIdB);
+        recorder.exit();
+        recorder.exit();
+        recorder.enter(methodIdB);
+        recorder.exit();
+
+        Map<List<ClassAndMethod>, CallTreeRecorder.CallTreeNodeMetrics> nodes = getNodes(recorder.reset());
+        Assert.assertEquals(3, nodes.size());
+        Assert.assertEquals(3, recorder.getNodeCount());
+
+        CallTreeRecorder.CallTreeNodeMetrics nodeA = nodes.get(Arrays.asList(new ClassAndMethod("class1", "a")));
+        CallTreeRecorder.CallTreeNodeMetrics nodeAB = nodes.get(Arrays.asList(new ClassAndMethod("class1", "a"), new ClassAndMethod("class1", "b")));
+        CallTreeRecorder.CallTreeNodeMetrics nodeB = nodes.get(Arrays.asList(new ClassAndMethod("class1", "b")));
+
+        Assert.assertEquals(1, nodeA.getCount());
+        Assert.assertEquals(2, nodeAB.getCount());
+        Assert.assertEquals(1, nodeB.getCount());
+        Assert.assertEquals(new ClassAndMethod("class1", "b"), nodeAB.getClassAndMethod());
+
+        // Time in b is excluded from exclusive time of a
+        Assert.assertEquals(nodeA.getInclusiveNanos() - nodeAB.getInclusiveNanos(), nodeA.getExclusiveNanos());
+        Assert.assertEquals(nodeAB.getInclusiveNanos(), nodeAB.getExclusiveNanos());
+
+        recorder.enter(methodIdA);
+        recorder.exit();
+
+        nodes = getNodes(recorder.reset());
+        Assert.assertEquals(1, nodes.size());
+        Assert.assertEquals(1, nodes.get(Arrays.asList(new ClassAndMethod("class1", "a"))).getCount());
+
+        Assert.assertEquals(0, recorder.reset().size());
+    }
+
+    @Test
+    public void enter_recursive() {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        int methodId = registry.register("class1", "a");
+
+        CallTreeRecorder recorder = new CallTreeRecorder(registry, 1000);
+
+        int depth = CallTreeRecorder.MAX_DEPTH + 10;
+        for (int i = 0; i < depth; i++) {
+            recorder.enter(methodId);
+        }
+        for (int i = 0; i < depth; i++) {
+            recorder.exit();
+        }
+
+        // Frames deeper than max depth are not recorded
+        Assert.assertEquals(CallTreeRecorder.MAX_DEPTH, recorder.reset().size());
+
+        // The call stack is balanced again
+        recorder.enter(methodId);
+        recorder.exit();
+        Assert.assertEquals(1, recorder.reset().get(0).getPath().size());
+    }
+
+    @Test
+    public void enter_maxNodes() {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        int methodIdA = registry.register("class1", "a");
+        int methodIdB = registry.register("class1", "b");
+        int methodIdC = registry.register("class1", "c");
+
+        CallTreeRecorder recorder = new CallTreeRecorder(registry, 2);
+
+        // a -> b -> c, c is not recorded as the tree is full
+        recorder.enter(methodIdA);
+        recorder.enter(methodIdB);
+        recorder.enter(methodIdC);
+        recorder.exit();
+        recorder.exit();
+        recorder.exit();
+        // Not registered method id and unbalanced exit are ignored
+        recorder.enter(1000);
+        recorder.exit();
+        recorder.exit();
+
+        Map<List<ClassAndMethod>, CallTreeRecorder.CallTreeNodeMetrics> nodes = getNodes(recorder.reset());
+        Assert.assertEquals(2, nodes.size());
+        Assert.assertEquals(2, recorder.getNodeCount());
+        Assert.assertEquals(2, recorder.resetDroppedCount());
+        Assert.assertEquals(0, recorder.resetDroppedCount());
+
+        // Time in the dropped child is still excluded from its parent
+        CallTreeRecorder.CallTreeNodeMetrics nodeAB = nodes.get(Arrays.asList(new ClassAndMethod("class1", "a"), new ClassAndMethod("class1", "b")));
+        Assert.assertTrue(nodeAB.getExclusiveNanos() <= nodeAB.getInclusiveNanos());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidMaxNodes() {
+        new CallTreeRecorder(new MethodIdRegistry(), 0);
+    }
+
+    private static Map<List<ClassAndMethod>, CallTreeRecorder.CallTreeNodeMetrics> getNodes(List<CallTreeRecorder.CallTreeNodeMetrics> list) {
+        Map<List<ClassAndMethod>, CallTreeRecorder.CallTreeNodeMetrics> map = new HashMap<>();
+        for (CallTreeRecorder.CallTreeNodeMetrics node : list) {
+            map.put(node.getPath(), node);
+        }
+        return map;
+    }
+}
@@ -19,7 +19,13 @@ package com.uber.profiling.util;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 public class ClassAndMethodFilterTest {
     @Test
@@ -81,6 +87,19 @@ public class ClassAndMethodFilterTest {
         Assert.assertTrue(filter.matchMethod("class1", "method1"));
     }
 
+    @Test
+    public void matchMethod_initializer() {
+        ClassAndMethodFilter filter = new ClassAndMethodFilter(
+                Arrays.asList(new ClassAndMethod("class1", "*"),
+                        new ClassAndMethod("class2", ClassAndMethod.CONSTRUCTOR_NAME)));
+        Assert.assertTrue(filter.matchMethod("class1", "method1"));
+        // Wildcard does not match constructors and class initializer
+        Assert.assertFalse(filter.matchMethod("class1", ClassAndMethod.CONSTRUCTOR_NAME));
+        Assert.assertFalse(filter.matchMethod("class1", ClassAndMethod.CLASS_INITIALIZER_NAME));
+        Assert.assertTrue(filter.matchMethod("class2", ClassAndMethod.CONSTRUCTOR_NAME));
+        Assert.assertFalse(filter.matchMethod("class2", ClassAndMethod.CLASS_INITIALIZER_NAME));
+    }
+
     @Test
     public void matchMethod_prefix() {
         ClassAndMethodFilter filter = new ClassAndMethodFilter(
@@ -97,4 +116,151 @@ public class ClassAndMethodFilterTest {
         Assert.assertFalse(filter.matchMethod("package2", "method2"));
         Assert.assertTrue(filter.matchMethod("package33.xx.yy", "method3"));
     }
+
+    @Test
+    public void matchClass_internalName() {
+        ClassAndMethodFilter filter = new ClassAndMethodFilter(
+                Arrays.asList(new ClassAndMethod("package11.class1", "method1"),
+                        new ClassAndMethod("package22", "method2")));
+        Assert.assertTrue(filter.matchClass("package11/class1"));
+        Assert.assertTrue(filter.matchClass("package22/xx/yy"));
+        Assert.assertFalse(filter.matchClass("package11/class2"));
+        Assert.assertFalse(filter.matchClass("package2"));
+    }
+
+    @Test
+    public void getMethodOptions() {
+        Map<ClassAndMethod, MethodProfilingOptions> options = new HashMap<>();
+        options.put(new ClassAndMethod("package1", "*"), MethodProfilingOptions.parse("sampleRate:10"));
+        options.put(new ClassAndMethod("package1.class1", "*"), MethodProfilingOptions.parse("sampleRate:20"));
+        options.put(new ClassAndMethod("package1", "method1"), MethodProfilingOptions.parse("sampleRate:30"));
+
+        ClassAndMethodFilter filter = new ClassAndMethodFilter(
+                Arrays.asList(new ClassAndMethod("package1", "*"),
+                        new ClassAndMethod("package1.class1", "*"),
+                        new ClassAndMethod("package1", "method1"),
+                        new ClassAndMethod("package1.class2", "method2")),
+                options);
+
+        Assert.assertEquals(10, filter.getMethodOptions("package1.class3", "method3").getSampleRate());
+        Assert.assertEquals(20, filter.getMethodOptions("package1.class1", "method3").getSampleRate());
+        Assert.assertEquals(30, filter.getMethodOptions("package1.class1", "method1").getSampleRate());
+        Assert.assertEquals(MethodProfilingOptions.DEFAULT, filter.getMethodOptions("package1.class2", "method2"));
+        Assert.assertEquals(MethodProfilingOptions.DEFAULT, filter.getMethodOptions("package2.class1", "method1"));
+    }
+
+    @Test
+    public void matchMethod_disabled() {
+        Map<ClassAndMethod, MethodProfilingOptions> options = new HashMap<>();
+        options.put(new ClassAndMethod("package1.class1", "method1"), MethodProfilingOptions.parse("sampleRate:10@disabled"));
+
+        ClassAndMethodFilter filter = new ClassAndMethodFilter(
+                Arrays.asList(new ClassAndMethod("package1", "*"),
+                        new ClassAndMethod("package1.class1", "method1")),
+                options);
+
+        Assert.assertTrue(filter.matchClass("package1.class1"));
+        Assert.assertTrue(filter.matchMethod("package1.class1", "method2"));
+        Assert.assertFalse(filter.matchMethod("package1.class1", "method1"));
+        Assert.assertTrue(filter.matchMethod("package1.class2", "method1"));
+        Assert.assertEquals("sampleRate:10@disabled", filter.getMethodOptions("package1.class1", "method1").toString());
+    }
+
+    @Test
+    public void matchMethod_glob() {
+        ClassAndMethodFilter filter = new ClassAndMethodFilter(
+                Arrays.asList(new ClassAndMethod("com.foo.*.dao.*Repository", "find*"),
+                        new ClassAndMethod("com.bar", "get?")));
+        Assert.assertTrue(filter.matchClass("com/foo/user/dao/UserRepository"));
+        Assert.assertFalse(filter.matchClass("com.foo.user.dao.UserRepositoryImpl"));
+        Assert.assertTrue(filter.matchMethod("com.foo.user.dao.UserRepository", "findById"));
+        Assert.assertTrue(filter.matchMethod("com.foo.user.dao.UserRepository", "find"));
+        Assert.assertFalse(filter.matchMethod("com.foo.user.dao.UserRepository", "save"));
+        Assert.assertFalse(filter.matchMethod("com.foo.user.admin.dao.UserRepository", "findById"));
+        Assert.assertTrue(filter.matchMethod("com.bar.Baz", "getA"));
+        Assert.assertFalse(filter.matchMethod("com.bar.Baz", "getAll"));
+    }
+
+    @Test
+    public void matchMethod_exactClass() {
+        ClassAndMethodFilter filter = new ClassAndMethodFilter(
+                Arrays.asList(new ClassAndMethod("com.foo.Bar!", "baz"), new ClassAndMethod("com.foo.Bar", "*")),
+                Collections.singletonMap(new ClassAndMethod("com.foo.Bar!", "baz"), MethodProfilingOptions.parse("sampleRate:10")));
+        Assert.assertTrue(filter.matchClass("com/foo/Bar"));
+        Assert.assertEquals(10, filter.getMethodOptions("com.foo.Bar", "baz").getSampleRate());
+        Assert.assertEquals(1, filter.getMethodOptions("com.foo.BarBaz", "baz").getSampleRate());
+        Assert.assertEquals(1, filter.getMethodOptions("com.foo.Bar$Inner", "baz").getSampleRate());
+
+        filter = new ClassAndMethodFilter(Arrays.asList(new ClassAndMethod("com.foo.Bar!", "baz")));
+        Assert.assertTrue(filter.matchMethod("com.foo.Bar", "baz"));
+        Assert.assertFalse(filter.matchClass("com.foo.BarBaz"));
+        Assert.assertFalse(filter.matchMethod("com.foo.Bar$Inner", "baz"));
+    }
+
+    @Test
+    public void matchMethod_subtype() {
+        ClassAndMethodFilter filter = new ClassAndMethodFilter(
+                Arrays.asList(new ClassAndMethod("org.apache.spark.rdd.RDD+", "compute")));
+        Assert.assertTrue(filter.hasSubtypeRules());
+        Assert.assertFalse(filter.hasAnnotationRules());
+        Assert.assertTrue(filter.matchClass("com.foo.Bar"));
+
+        Set<String> superTypeNames = new HashSet<>(Arrays.asList("org.apache.spark.rdd.RDD", "java.lang.Object"));
+        Assert.assertTrue(filter.matchMethod("org.apache.spark.rdd.MapPartitionsRDD", superTypeNames, "compute", Collections.emptySet()));
+        Assert.assertFalse(filter.matchMethod("org.apache.spark.rdd.MapPartitionsRDD", superTypeNames, "collect", Collections.emptySet()));
+        Assert.assertTrue(filter.matchMethod("org.apache.spark.rdd.RDD", Collections.singleton("java.lang.Object"), "compute", Collections.emptySet()));
+        Assert.assertFalse(filter.matchMethod("org.apache.spark.rdd.RDDs", Collections.singleton("java.lang.Object"), "compute", Collections.emptySet()));
+        Assert.assertFalse(filter.matchMethod("org.apache.spark.rdd.MapPartitionsRDD", "compute"));
+
+        Assert.assertFalse(filter.matchClass(ArrayList.class));
+        // JDK classes and classes of the profiler are not selected by supertype
+        filter = new ClassAndMethodFilter(Arrays.asList(new ClassAndMethod("java.util.List+", "add")));
+        Assert.assertFalse(filter.matchClass(ArrayList.class));
+        Assert.assertFalse(filter.matchClass(ClassAndMethodFilter.class));
+
+        filter = new ClassAndMethodFilter(Arrays.asList(new ClassAndMethod(ClassAndMethodFilterTest.class.getName() + "+", "test")));
+        Assert.assertTrue(filter.matchClass(ClassAndMethodFilterTest.class));
+        Assert.assertFalse(filter.matchClass(ClassAndMethodFilter.class));
+    }
+
+    @Test
+    public void matchMethod_annotation() {
+        ClassAndMethodFilter filter = new ClassAndMethodFilter(
+                Arrays.asList(new ClassAndMethod("@com.foo.Timed", "*")));
+        Assert.assertTrue(filter.hasAnnotationRules());
+        Assert.assertFalse(filter.hasSubtypeRules());
+        Assert.assertTrue(filter.matchClass("com.bar.Baz"));
+
+        Assert.assertTrue(filter.matchMethod("com.bar.Baz", Collections.emptySet(), "method1", Collections.singleton("com.foo.Timed")));
+        Assert.assertFalse(filter.matchMethod("com.bar.Baz", Collections.emptySet(), "method1", Collections.singleton("com.foo.Other")));
+        Assert.assertFalse(filter.matchMethod("com.bar.Baz", "method1"));
+
+        filter = new ClassAndMethodFilter(Arrays.asList(new ClassAndMethod("@" + Test.class.getName(), "*")));
+        Assert.assertTrue(filter.matchClass(ClassAndMethodFilterTest.class));
+        Assert.assertFalse(filter.matchClass(ClassAndMethodFilter.class));
+    }
+
+    @Test
+    public void getMethodOptions_specificity() {
+        Map<ClassAndMethod, MethodProfilingOptions> options = new HashMap<>();
+        options.put(new ClassAndMethod("@com.foo.Timed", "*"), MethodProfilingOptions.parse("sampleRate:10"));
+        options.put(new ClassAndMethod("com.foo.Base+", "*"), MethodProfilingOptions.parse("sampleRate:20"));
+        options.put(new ClassAndMethod("com.foo.*Impl", "*"), MethodProfilingOptions.parse("sampleRate:30"));
+        options.put(new ClassAndMethod("com.foo.Base+", "method1"), MethodProfilingOptions.parse("sampleRate:40"));
+
+        ClassAndMethodFilter filter = new ClassAndMethodFilter(
+                Arrays.asList(new ClassAndMethod("@com.foo.Timed", "*"),
+                        new ClassAndMethod("com.foo.Base+", "*"),
+                        new ClassAndMethod("com.foo.*Impl", "*"),
+                        new ClassAndMethod("com.foo.Base+", "method1")),
+                options);
+
+        Set<String> superTypeNames = Collections.singleton("com.foo.Base");
+        Set<String> annotationNames = Collections.singleton("com.foo.Timed");
+        Assert.assertEquals(10, filter.getMethodOptions("com.bar.Bar", Collections.emptySet(), "method2", annotationNames).getSampleRate());
+        Assert.assertEquals(20, filter.getMethodOptions("com.bar.Bar", superTypeNames, "method2", annotationNames).getSampleRate());
+        Assert.assertEquals(30, filter.getMethodOptions("com.foo.BarImpl", superTypeNames, "method2", annotationNames).getSampleRate());
+        Assert.assertEquals(40, filter.getMethodOptions("com.foo.BarImpl", superTypeNames, "method1", annotationNames).getSampleRate());
+        Assert.assertEquals(MethodProfilingOptions.DEFAULT, filter.getMethodOptions("com.bar.Bar", Collections.emptySet(), "method1", Collections.emptySet()));
+    }
 }
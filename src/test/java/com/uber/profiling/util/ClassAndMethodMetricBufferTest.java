@@ -58,6 +58,34 @@ public class ClassAndMethodMetricBufferTest {
         Assert.assertEquals(0, map.size());
     }
 
+    @Test
+    public void appendValue_methodId() {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        int methodId1 = registry.register("class1", "method1");
+        int methodId2 = registry.register("class2", "method2");
+
+        ClassAndMethodLongMetricBuffer buffer = new ClassAndMethodLongMetricBuffer(registry);
+        buffer.appendValue(methodId1, "duration", 11);
+        buffer.appendValue(methodId1, "duration", 33);
+        buffer.appendValue(methodId2, "duration", 22);
+        buffer.appendValue("class2", "method2", "duration", 44);
+        buffer.appendValue(1000, "duration", 55);
+
+        Map<ClassAndMethodMetricKey, Histogram> map = buffer.reset();
+        Assert.assertEquals(2, map.size());
+
+        Histogram histogram = map.get(new ClassAndMethodMetricKey("class1", "method1", "duration"));
+        Assert.assertEquals(2, histogram.getCount());
+        Assert.assertEquals(44, histogram.getSum());
+
+        histogram = map.get(new ClassAndMethodMetricKey("class2", "method2", "duration"));
+        Assert.assertEquals(2, histogram.getCount());
+        Assert.assertEquals(66, histogram.getSum());
+
+        map = buffer.reset();
+        Assert.assertEquals(0, map.size());
+    }
+
     @Test
     public void appendValue_concurrent() throws InterruptedException {
         ClassAndMethodLongMetricBuffer buffer = new ClassAndMethodLongMetricBuffer();
@@ -118,4 +146,91 @@ public class ClassAndMethodMetricBufferTest {
         Assert.assertEquals(20,
                 result.get(new ClassAndMethodMetricKey("class2", "method3", "duration")).getMax());
     }
+
+    @Test
+    public void appendValue_perThread() throws InterruptedException {
+        ClassAndMethodLongMetricBuffer buffer = new ClassAndMethodLongMetricBuffer(true);
+
+        Thread[] threads = new Thread[4];
+        int repeatTimes = 100000;
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                for (int repeat = 0; repeat < repeatTimes; repeat++) {
+                    buffer.appendValue("class1", "method1", "duration", index + 1);
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Map<ClassAndMethodMetricKey, Histogram> result = buffer.reset();
+        Assert.assertEquals(1, result.size());
+
+        Histogram histogram = result.get(new ClassAndMethodMetricKey("class1", "method1", "duration"));
+        Assert.assertEquals(4 * repeatTimes, histogram.getCount());
+        Assert.assertEquals(10 * repeatTimes, histogram.getSum());
+        Assert.assertEquals(1, histogram.getMin());
+        Assert.assertEquals(4, histogram.getMax());
+
+        Assert.assertEquals(0, buffer.reset().size());
+    }
+
+    @Test
+    public void appendValue_concurrentReset() throws InterruptedException {
+        ClassAndMethodLongMetricBuffer buffer = new ClassAndMethodLongMetricBuffer();
+
+        Thread[] threads = new Thread[4];
+        int repeatTimes = 1000000;
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                for (int repeat = 0; repeat < repeatTimes; repeat++) {
+                    buffer.appendValue("class1", "method" + (index % 2), "duration", index + 1);
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        // Reset repeatedly while writers are running, every value must be returned by exactly one reset
+        long count = 0;
+        long sum = 0;
+        int resetTimes = 0;
+        while (isAnyAlive(threads) || resetTimes == 0) {
+            for (Histogram histogram : buffer.reset().values()) {
+                count += histogram.getCount();
+                sum += histogram.getSum();
+            }
+            resetTimes++;
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (Histogram histogram : buffer.reset().values()) {
+            count += histogram.getCount();
+            sum += histogram.getSum();
+        }
+
+        Assert.assertEquals(4 * repeatTimes, count);
+        Assert.assertEquals(10L * repeatTimes, sum);
+    }
+
+    private static boolean isAnyAlive(Thread[] threads) {
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -91,4 +91,83 @@ public class ClassMethodArgmentMetricBufferTest {
         Assert.assertEquals(repeatTimes,
                 result.get(new ClassAndMethodMetricKey("class2", "method3", "arg1")).get());
     }
+
+    @Test
+    public void appendValue_perThread() throws InterruptedException {
+        ClassMethodArgumentMetricBuffer buffer = new ClassMethodArgumentMetricBuffer(true);
+
+        Thread[] threads = new Thread[4];
+        int repeatTimes = 100000;
+        for (int i = 0; i < threads.length; i++) {
+            final String argument = "arg" + (i % 2);
+            threads[i] = new Thread(() -> {
+                for (int repeat = 0; repeat < repeatTimes; repeat++) {
+                    buffer.appendValue("class1", "method1", argument);
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Map<ClassAndMethodMetricKey, AtomicLong> result = buffer.reset();
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(2 * repeatTimes, result.get(new ClassAndMethodMetricKey("class1", "method1", "arg0")).get());
+        Assert.assertEquals(2 * repeatTimes, result.get(new ClassAndMethodMetricKey("class1", "method1", "arg1")).get());
+
+        Assert.assertEquals(0, buffer.reset().size());
+    }
+
+    @Test
+    public void appendValue_concurrentReset() throws InterruptedException {
+        ClassMethodArgumentMetricBuffer buffer = new ClassMethodArgumentMetricBuffer();
+
+        Thread[] threads = new Thread[4];
+        int repeatTimes = 1000000;
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                for (int repeat = 0; repeat < repeatTimes; repeat++) {
+                    buffer.appendValue("class1", "method" + (index % 2), "arg1");
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        // Reset repeatedly while writers are running, every count must be returned by exactly one reset
+        long count = 0;
+        int resetTimes = 0;
+        while (isAnyAlive(threads) || resetTimes == 0) {
+            for (AtomicLong value : buffer.reset().values()) {
+                count += value.get();
+            }
+            resetTimes++;
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (AtomicLong value : buffer.reset().values()) {
+            count += value.get();
+        }
+
+        Assert.assertEquals(4 * repeatTimes, count);
+    }
+
+    private static boolean isAnyAlive(Thread[] threads) {
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -72,6 +72,19 @@ public class ClassMethodArgumentFilterTest {
         Assert.assertEquals(2, filter.matchMethod("class1", "method1").get(1).intValue());
     }
 
+    @Test
+    public void matchNumericMethod() {
+        ClassMethodArgumentFilter filter = new ClassMethodArgumentFilter(
+                Arrays.asList(new ClassMethodArgument("class1", "method1", 1),
+                        new ClassMethodArgument("class1", "method1", 2, true),
+                        new ClassMethodArgument("class1", "*", 3, true)));
+        Assert.assertTrue(filter.matchClass("class1"));
+        Assert.assertEquals(Arrays.asList(1), filter.matchMethod("class1", "method1"));
+        Assert.assertEquals(Arrays.asList(2, 3), filter.matchNumericMethod("class1", "method1"));
+        Assert.assertEquals(Arrays.asList(3), filter.matchNumericMethod("class1", "method2"));
+        Assert.assertEquals(0, filter.matchNumericMethod("class2", "method1").size());
+    }
+
     @Test
     public void matchMethod_wildcard() {
         ClassMethodArgumentFilter filter = new ClassMethodArgumentFilter(
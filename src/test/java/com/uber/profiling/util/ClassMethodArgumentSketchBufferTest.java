@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class ClassMethodArgumentSketchBufferTest {
+    @Test
+    public void appendValue() {
+        ClassMethodArgumentSketchBuffer buffer = new ClassMethodArgumentSketchBuffer(2);
+        buffer.appendValue("class1", "method1", 1, "a");
+        buffer.appendValue("class1", "method1", 1, "a");
+        buffer.appendValue("class1", "method1", 1, "a");
+        buffer.appendValue("class1", "method1", 1, "b");
+        buffer.appendValue("class1", "method1", 1, "c");
+        buffer.appendValue("class1", "method1", 2, "a");
+        buffer.appendValue("class2", "method2", 100, "a");
+
+        Map<ClassAndMethodMetricKey, ClassMethodArgumentSketchBuffer.ArgumentSketch> map = buffer.reset();
+        Assert.assertEquals(3, map.size());
+
+        ClassMethodArgumentSketchBuffer.ArgumentSketch sketch = map.get(new ClassAndMethodMetricKey("class1", "method1", "arg.1"));
+        Assert.assertEquals(5, sketch.getCount());
+        Assert.assertEquals(3, sketch.getDistinctCount());
+        Assert.assertEquals(2, sketch.getTopValues().size());
+        Assert.assertEquals("a", sketch.getTopValues().get(0).getValue());
+        Assert.assertEquals(3, sketch.getTopValues().get(0).getCount());
+
+        Assert.assertEquals(1, map.get(new ClassAndMethodMetricKey("class1", "method1", "arg.2")).getCount());
+        Assert.assertEquals(1, map.get(new ClassAndMethodMetricKey("class2", "method2", "arg.100")).getCount());
+
+        Assert.assertEquals(0, buffer.reset().size());
+    }
+
+    @Test
+    public void appendValue_concurrent() throws InterruptedException {
+        ClassMethodArgumentSketchBuffer buffer = new ClassMethodArgumentSketchBuffer(10);
+
+        Thread[] threads = new Thread[4];
+        int repeatTimes = 100000;
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int repeat = 0; repeat < repeatTimes; repeat++) {
+                    buffer.appendValue("class1", "method1", 1, String.valueOf(repeat % 1000));
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        long count = 0;
+        while (true) {
+            boolean alive = false;
+            for (Thread thread : threads) {
+                alive |= thread.isAlive();
+            }
+            for (ClassMethodArgumentSketchBuffer.ArgumentSketch sketch : buffer.reset().values()) {
+                count += sketch.getCount();
+            }
+            if (!alive) {
+                break;
+            }
+        }
+        for (ClassMethodArgumentSketchBuffer.ArgumentSketch sketch : buffer.reset().values()) {
+            count += sketch.getCount();
+        }
+
+        Assert.assertEquals(threads.length * repeatTimes, count);
+    }
+}
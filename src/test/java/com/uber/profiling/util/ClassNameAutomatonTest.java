@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.profiling.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClassNameAutomatonTest {
+    @Test
+    public void match_prefix() {
+        ClassNameAutomaton automaton = new ClassNameAutomaton();
+        Assert.assertTrue(automaton.isEmpty());
+        Assert.assertFalse(automaton.match("com.foo.Bar"));
+
+        automaton.put("com.foo", true, 0);
+        Assert.assertFalse(automaton.isEmpty());
+        Assert.assertTrue(automaton.match("com.foo"));
+        Assert.assertTrue(automaton.match("com.foo.Bar"));
+        Assert.assertTrue(automaton.match("com/foo/Bar"));
+        Assert.assertTrue(automaton.match("com.foobar.Bar"));
+        Assert.assertFalse(automaton.match("com.fo"));
+        Assert.assertFalse(automaton.match("org.foo.Bar"));
+    }
+
+    @Test
+    public void match_glob() {
+        ClassNameAutomaton automaton = new ClassNameAutomaton();
+        automaton.put("com.foo.*.dao.*Repository", false, 0);
+        Assert.assertTrue(automaton.match("com.foo.user.dao.UserRepository"));
+        Assert.assertTrue(automaton.match("com/foo/user/dao/UserRepository"));
+        Assert.assertTrue(automaton.match("com.foo.user.dao.Repository"));
+        Assert.assertFalse(automaton.match("com.foo.user.dao.UserRepositoryImpl"));
+        Assert.assertFalse(automaton.match("com.foo.user.admin.dao.UserRepository"));
+        Assert.assertFalse(automaton.match("com.foo.dao.UserRepository"));
+
+        automaton = new ClassNameAutomaton();
+        automaton.put("com.**.Bar?", false, 0);
+        Assert.assertTrue(automaton.match("com.foo.Bar1"));
+        Assert.assertTrue(automaton.match("com.foo.baz.Bar2"));
+        Assert.assertFalse(automaton.match("com.foo.Bar"));
+        Assert.assertFalse(automaton.match("com.foo.Bar12"));
+        Assert.assertFalse(automaton.match("com.Bar."));
+    }
+
+    @Test
+    public void getMatchedRuleIndexes() {
+        ClassNameAutomaton automaton = new ClassNameAutomaton();
+        automaton.put("com.foo", true, 0);
+        automaton.put("com.*.Bar", false, 1);
+        automaton.put("com.foo.Bar", true, 2);
+        automaton.put("org.foo", true, 3);
+        automaton.put("com.foo", true, 4);
+
+        Assert.assertArrayEquals(new int[]{0, 1, 2, 4}, automaton.getMatchedRuleIndexes("com.foo.Bar"));
+        Assert.assertArrayEquals(new int[]{0, 2, 4}, automaton.getMatchedRuleIndexes("com.foo.BarBaz"));
+        Assert.assertArrayEquals(new int[]{1}, automaton.getMatchedRuleIndexes("com.baz.Bar"));
+        Assert.assertArrayEquals(new int[]{3}, automaton.getMatchedRuleIndexes("org/foo/Bar"));
+        Assert.assertArrayEquals(new int[0], automaton.getMatchedRuleIndexes("net.foo.Bar"));
+
+        // Matching again uses the cached states
+        Assert.assertArrayEquals(new int[]{0, 1, 2, 4}, automaton.getMatchedRuleIndexes("com.foo.Bar"));
+    }
+
+    @Test
+    public void match_manyRules() {
+        ClassNameAutomaton automaton = new ClassNameAutomaton();
+        for (int i = 0; i < 1000; i++) {
+            automaton.put("com.foo" + i + ".*Service", false, i);
+        }
+        Assert.assertArrayEquals(new int[]{123}, automaton.getMatchedRuleIndexes("com.foo123.UserService"));
+        Assert.assertArrayEquals(new int[]{999}, automaton.getMatchedRuleIndexes("com.foo999.Service"));
+        Assert.assertFalse(automaton.match("com.foo1000.UserService"));
+        Assert.assertFalse(automaton.match("com.foo1.UserServiceImpl"));
+        Assert.assertFalse(automaton.match("com.foo1.é.UserService"));
+        Assert.assertTrue(automaton.match("com.foo1.éService"));
+    }
+}
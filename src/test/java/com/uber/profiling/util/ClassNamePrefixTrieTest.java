@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class ClassNamePrefixTrieTest {
+    @Test
+    public void matchPrefix() {
+        ClassNamePrefixTrie trie = new ClassNamePrefixTrie();
+        Assert.assertTrue(trie.isEmpty());
+        Assert.assertFalse(trie.matchPrefix("class1"));
+
+        trie.put("package1.class1", 0);
+        trie.put("package1.class2", 1);
+        trie.put("package2", 2);
+        Assert.assertFalse(trie.isEmpty());
+
+        Assert.assertTrue(trie.matchPrefix("package1.class1"));
+        Assert.assertTrue(trie.matchPrefix("package1.class1$Inner"));
+        Assert.assertTrue(trie.matchPrefix("package1.class2"));
+        Assert.assertTrue(trie.matchPrefix("package2.xx.yy"));
+        Assert.assertTrue(trie.matchPrefix("package22"));
+
+        Assert.assertFalse(trie.matchPrefix("package1.class3"));
+        Assert.assertFalse(trie.matchPrefix("package1"));
+        Assert.assertFalse(trie.matchPrefix("package3"));
+        Assert.assertFalse(trie.matchPrefix(""));
+    }
+
+    @Test
+    public void matchPrefix_internalName() {
+        ClassNamePrefixTrie trie = new ClassNamePrefixTrie();
+        trie.put("package1.sub1.class1", 0);
+
+        Assert.assertTrue(trie.matchPrefix("package1/sub1/class1"));
+        Assert.assertTrue(trie.matchPrefix("package1.sub1.class1"));
+        Assert.assertFalse(trie.matchPrefix("package1/sub1/class2"));
+    }
+
+    @Test
+    public void matchPrefix_emptyPrefix() {
+        ClassNamePrefixTrie trie = new ClassNamePrefixTrie();
+        trie.put("", 0);
+
+        Assert.assertTrue(trie.matchPrefix("class1"));
+        Assert.assertTrue(trie.matchPrefix(""));
+    }
+
+    @Test
+    public void getMatchedRuleIndexes() {
+        ClassNamePrefixTrie trie = new ClassNamePrefixTrie();
+        trie.put("package1.class1", 0);
+        trie.put("", 1);
+        trie.put("package1", 2);
+        trie.put("package1.class1", 3);
+        trie.put("package2", 4);
+
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3), trie.getMatchedRuleIndexes("package1/class1"));
+        Assert.assertEquals(Arrays.asList(1, 2), trie.getMatchedRuleIndexes("package1.class2"));
+        Assert.assertEquals(Arrays.asList(1, 4), trie.getMatchedRuleIndexes("package2"));
+        Assert.assertEquals(Arrays.asList(1), trie.getMatchedRuleIndexes("package3"));
+    }
+}
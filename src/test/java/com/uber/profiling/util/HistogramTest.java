@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class HistogramTest {
+    @Test
+    public void emptyHistogram() {
+        Histogram histogram = new Histogram();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getSum());
+        Assert.assertEquals(Long.MAX_VALUE, histogram.getMin());
+        Assert.assertEquals(Long.MIN_VALUE, histogram.getMax());
+        Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void appendValue() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 10; i++) {
+            histogram.appendValue(i);
+        }
+        Assert.assertEquals(10, histogram.getCount());
+        Assert.assertEquals(55, histogram.getSum());
+        Assert.assertEquals(1, histogram.getMin());
+        Assert.assertEquals(10, histogram.getMax());
+
+        // Small values are counted exactly
+        Assert.assertEquals(5, histogram.getValueAtPercentile(50));
+        Assert.assertEquals(9, histogram.getValueAtPercentile(90));
+        Assert.assertEquals(10, histogram.getValueAtPercentile(99));
+        Assert.assertEquals(1, histogram.getValueAtPercentile(0));
+        Assert.assertEquals(10, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void appendValue_negativeAndLargeValues() {
+        Histogram histogram = new Histogram();
+        histogram.appendValue(-5);
+        histogram.appendValue(Long.MAX_VALUE);
+        Assert.assertEquals(2, histogram.getCount());
+        Assert.assertEquals(-5, histogram.getMin());
+        Assert.assertEquals(Long.MAX_VALUE, histogram.getMax());
+        Assert.assertEquals(-5, histogram.getValueAtPercentile(50));
+        Assert.assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+
+        histogram.appendValue(Long.MIN_VALUE);
+        Assert.assertEquals(Long.MIN_VALUE, histogram.getMin());
+        Assert.assertEquals((double) Long.MIN_VALUE, histogram.getValueAtPercentile(0), -(double) Long.MIN_VALUE / 32);
+        Assert.assertEquals(-5, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void getValueAtPercentile_negativeValues() {
+        Histogram histogram = new Histogram();
+        for (long i = -100; i <= -1; i++) {
+            histogram.appendValue(i);
+        }
+        Assert.assertEquals(-100, histogram.getMin());
+        Assert.assertEquals(-1, histogram.getMax());
+        // Like positive values, the reported value is the highest value of the bucket
+        Assert.assertEquals(-100, histogram.getValueAtPercentile(1), 2);
+        Assert.assertEquals(-51, histogram.getValueAtPercentile(50), 2);
+        Assert.assertEquals(-2, histogram.getValueAtPercentile(99));
+        Assert.assertEquals(-1, histogram.getValueAtPercentile(100));
+
+        // Mirrored around 0, with the same relative error as positive values
+        histogram = new Histogram();
+        for (long i = 1; i <= 100000; i++) {
+            histogram.appendValue(i * 1000);
+            histogram.appendValue(-i * 1000);
+        }
+        Assert.assertEquals(-1000, histogram.getValueAtPercentile(50), 1000 / 32);
+        Assert.assertEquals(-90000000, histogram.getValueAtPercentile(5), 90000000 / 32);
+        Assert.assertEquals(90000000, histogram.getValueAtPercentile(95), 90000000 / 32);
+
+        Histogram merged = new Histogram();
+        merged.merge(histogram);
+        Assert.assertEquals(histogram.getValueAtPercentile(5), merged.getValueAtPercentile(5));
+        Assert.assertEquals(histogram.getValueAtPercentile(5), Histogram.deserialize(histogram.serialize()).getValueAtPercentile(5));
+    }
+
+    @Test
+    public void getValueAtPercentile_relativeError() {
+        Histogram histogram = new Histogram();
+        for (long i = 1; i <= 1000000; i++) {
+            histogram.appendValue(i * 1000);
+        }
+
+        double[] percentiles = new double[]{1, 50, 90, 99, 99.9, 99.99};
+        for (double percentile : percentiles) {
+            double exact = percentile / 100.0 * 1000000 * 1000;
+            long value = histogram.getValueAtPercentile(percentile);
+            Assert.assertEquals("percentile " + percentile, exact, value, exact / 32);
+        }
+    }
+
+    @Test
+    public void merge() {
+        Histogram histogram1 = new Histogram();
+        Histogram histogram2 = new Histogram();
+        for (int i = 0; i < 100; i++) {
+            histogram1.appendValue(i);
+            histogram2.appendValue(i + 1000);
+        }
+
+        histogram1.merge(histogram2);
+        Assert.assertEquals(200, histogram1.getCount());
+        Assert.assertEquals(4950 + 4950 + 100000, histogram1.getSum());
+        Assert.assertEquals(0, histogram1.getMin());
+        Assert.assertEquals(1099, histogram1.getMax());
+        Assert.assertEquals(99, histogram1.getValueAtPercentile(50));
+
+        histogram1.merge(new Histogram());
+        Assert.assertEquals(200, histogram1.getCount());
+        Assert.assertEquals(0, histogram1.getMin());
+        Assert.assertEquals(1099, histogram1.getMax());
+    }
+
+    @Test
+    public void serialize() {
+        Random random = new Random(123);
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 10000; i++) {
+            histogram.appendValue(random.nextInt(1000000) - 10);
+        }
+
+        String str = histogram.serialize();
+        Histogram deserialized = Histogram.deserialize(str);
+        Assert.assertEquals(histogram.getCount(), deserialized.getCount());
+        Assert.assertEquals(histogram.getSum(), deserialized.getSum());
+        Assert.assertEquals(histogram.getMin(), deserialized.getMin());
+        Assert.assertEquals(histogram.getMax(), deserialized.getMax());
+        for (double percentile = 0; percentile <= 100; percentile += 0.5) {
+            Assert.assertEquals(histogram.getValueAtPercentile(percentile), deserialized.getValueAtPercentile(percentile));
+        }
+
+        Histogram empty = Histogram.deserialize(new Histogram().serialize());
+        Assert.assertEquals(0, empty.getCount());
+        Assert.assertEquals(Long.MAX_VALUE, empty.getMin());
+        Assert.assertEquals(Long.MIN_VALUE, empty.getMax());
+    }
+
+    @Test
+    public void appendValue_concurrent() throws InterruptedException {
+        Histogram histogram = new Histogram();
+        Thread[] threads = new Thread[4];
+        int repeatTimes = 100000;
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                for (int repeat = 0; repeat < repeatTimes; repeat++) {
+                    histogram.appendValue(index * 100 + repeat % 100);
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(threads.length * repeatTimes, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMin());
+        Assert.assertEquals(399, histogram.getMax());
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HyperLogLogTest {
+    @Test
+    public void estimate() {
+        HyperLogLog hyperLogLog = new HyperLogLog();
+        Assert.assertEquals(0, hyperLogLog.estimate());
+
+        for (int repeat = 0; repeat < 3; repeat++) {
+            for (int i = 0; i < 100; i++) {
+                hyperLogLog.offer("value" + i);
+            }
+        }
+        Assert.assertEquals(100, hyperLogLog.estimate(), 2);
+
+        for (int i = 0; i < 1000000; i++) {
+            hyperLogLog.offer("value" + i);
+        }
+        // Standard error is about 1.6%
+        Assert.assertEquals(1000000, hyperLogLog.estimate(), 1000000 * 0.05);
+    }
+
+    @Test
+    public void merge() {
+        HyperLogLog hyperLogLog1 = new HyperLogLog();
+        HyperLogLog hyperLogLog2 = new HyperLogLog();
+        for (int i = 0; i < 20000; i++) {
+            hyperLogLog1.offer("value" + i);
+            hyperLogLog2.offer("value" + (i + 10000));
+        }
+
+        hyperLogLog1.merge(hyperLogLog2);
+        Assert.assertEquals(30000, hyperLogLog1.estimate(), 30000 * 0.05);
+    }
+}
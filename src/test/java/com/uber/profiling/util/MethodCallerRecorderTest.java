@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MethodCallerRecorderTest {
+    @Test
+    public void record() {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        int methodId = registry.register("class1", "method1");
+
+        MethodCallerRecorder recorder = new MethodCallerRecorder(registry, MethodCallerRecorder.DEFAULT_MAX_CALLERS);
+        recorder.record(methodId, "caller1", "foo", 10);
+        recorder.record(methodId, "caller1", "foo", 30);
+        recorder.record(methodId, "caller2", "bar", 100);
+        // Not registered method ids are ignored
+        recorder.record(1000, "caller1", "foo", 10);
+
+        Assert.assertEquals(2, recorder.getCallerCount());
+
+        List<MethodCallerRecorder.CallerDuration> list = recorder.reset();
+        Assert.assertEquals(2, list.size());
+        Map<ClassAndMethod, Histogram> durations = new HashMap<>();
+        for (MethodCallerRecorder.CallerDuration callerDuration : list) {
+            Assert.assertEquals(new ClassAndMethod("class1", "method1"), callerDuration.getClassAndMethod());
+            durations.put(callerDuration.getCaller(), callerDuration.getDuration());
+        }
+        Assert.assertEquals(2, durations.get(new ClassAndMethod("caller1", "foo")).getCount());
+        Assert.assertEquals(40, durations.get(new ClassAndMethod("caller1", "foo")).getSum());
+        Assert.assertEquals(1, durations.get(new ClassAndMethod("caller2", "bar")).getCount());
+        Assert.assertEquals(100, durations.get(new ClassAndMethod("caller2", "bar")).getMax());
+
+        Assert.assertEquals(0, recorder.reset().size());
+
+        // Callers seen before keep their ids
+        recorder.record(methodId, "caller2", "bar", 5);
+        Assert.assertEquals(2, recorder.getCallerCount());
+        list = recorder.reset();
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(new ClassAndMethod("caller2", "bar"), list.get(0).getCaller());
+        Assert.assertEquals(5, list.get(0).getDuration().getSum());
+    }
+
+    @Test
+    public void record_maxCallers() {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        int methodId1 = registry.register("class1", "method1");
+        int methodId2 = registry.register("class2", "method2");
+
+        MethodCallerRecorder recorder = new MethodCallerRecorder(registry, 2);
+        recorder.record(methodId1, "caller1", "foo", 10);
+        // The same caller of another method is another caller
+        recorder.record(methodId2, "caller1", "foo", 10);
+        recorder.record(methodId1, "caller2", "foo", 10);
+        recorder.record(methodId1, "caller2", "foo", 10);
+        recorder.record(methodId1, "caller1", "foo", 10);
+
+        Assert.assertEquals(2, recorder.getCallerCount());
+        Assert.assertEquals(2, recorder.resetDroppedCount());
+        Assert.assertEquals(0, recorder.resetDroppedCount());
+
+        List<MethodCallerRecorder.CallerDuration> list = recorder.reset();
+        Assert.assertEquals(2, list.size());
+        long count = 0;
+        for (MethodCallerRecorder.CallerDuration callerDuration : list) {
+            count += callerDuration.getDuration().getCount();
+        }
+        Assert.assertEquals(3, count);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidMaxCallers() {
+        new MethodCallerRecorder(new MethodIdRegistry(), 0);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class MethodConcurrencyRecorderTest {
+    @Test
+    public void enterAndExit() {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        int methodId1 = registry.register("class1", "method1");
+        int methodId2 = registry.register("class2", "method2");
+
+        MethodConcurrencyRecorder recorder = new MethodConcurrencyRecorder(registry);
+        long start1 = recorder.enter(methodId1);
+        long start2 = recorder.enter(methodId1);
+        recorder.exit(methodId1, start2);
+        recorder.exit(methodId1, start1);
+        recorder.exit(methodId2, recorder.enter(methodId2));
+        // Not registered method ids are ignored
+        Assert.assertEquals(-1, recorder.enter(1000));
+        recorder.exit(1000, -1);
+
+        List<MethodConcurrencyRecorder.MethodConcurrency> list = recorder.reset();
+        Assert.assertEquals(2, list.size());
+        for (MethodConcurrencyRecorder.MethodConcurrency concurrency : list) {
+            if (concurrency.getClassAndMethod().equals(new ClassAndMethod("class1", "method1"))) {
+                Assert.assertEquals(2, concurrency.getMax());
+            } else {
+                Assert.assertEquals(1, concurrency.getMax());
+            }
+            Assert.assertEquals(0, concurrency.getInFlight());
+            Assert.assertTrue(concurrency.getAverage() >= 0);
+            Assert.assertTrue(concurrency.getAverage() <= concurrency.getMax());
+        }
+
+        Assert.assertEquals(0, recorder.reset().size());
+    }
+
+    @Test
+    public void reset_inFlight() throws InterruptedException {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        int methodId = registry.register("class1", "method1");
+
+        MethodConcurrencyRecorder recorder = new MethodConcurrencyRecorder(registry);
+        recorder.reset();
+        long start = recorder.enter(methodId);
+        Thread.sleep(100);
+
+        // The invocation has not completed, but is counted in the average of each interval it spans
+        List<MethodConcurrencyRecorder.MethodConcurrency> list = recorder.reset();
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(1, list.get(0).getMax());
+        Assert.assertEquals(1, list.get(0).getInFlight());
+        Assert.assertTrue(list.get(0).getAverage() > 0.5);
+
+        Thread.sleep(100);
+        list = recorder.reset();
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(1, list.get(0).getMax());
+        Assert.assertEquals(1.0, list.get(0).getAverage(), 0.1);
+
+        recorder.exit(methodId, start);
+        list = recorder.reset();
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(0, list.get(0).getInFlight());
+
+        Assert.assertEquals(0, recorder.reset().size());
+    }
+
+    @Test
+    public void enter_concurrent() throws InterruptedException {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        int methodId = registry.register("class1", "method1");
+        MethodConcurrencyRecorder recorder = new MethodConcurrencyRecorder(registry);
+
+        Thread[] threads = new Thread[4];
+        CountDownLatch entered = new CountDownLatch(threads.length);
+        CountDownLatch exit = new CountDownLatch(1);
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                long start = recorder.enter(methodId);
+                entered.countDown();
+                try {
+                    exit.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                recorder.exit(methodId, start);
+            });
+            threads[i].start();
+        }
+
+        entered.await();
+        exit.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        List<MethodConcurrencyRecorder.MethodConcurrency> list = recorder.reset();
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(threads.length, list.get(0).getMax());
+        Assert.assertEquals(0, list.get(0).getInFlight());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MethodIdRegistryTest {
+    @Test
+    public void register() {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        Assert.assertEquals(0, registry.size());
+        Assert.assertNull(registry.get(0));
+        Assert.assertNull(registry.get(-1));
+
+        Assert.assertEquals(0, registry.register("class1", "method1"));
+        Assert.assertEquals(1, registry.register("class1", "method2"));
+        Assert.assertEquals(2, registry.register("class2", "method1"));
+        Assert.assertEquals(0, registry.register("class1", "method1"));
+        Assert.assertEquals(3, registry.size());
+
+        Assert.assertEquals(new ClassAndMethod("class1", "method2"), registry.get(1));
+        Assert.assertNull(registry.get(3));
+    }
+
+    @Test
+    public void register_manyMethods() {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(i, registry.register("class1", "method" + i));
+        }
+        Assert.assertEquals(1000, registry.size());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals("method" + i, registry.get(i).getMethodName());
+        }
+    }
+
+    @Test
+    public void options() {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        int methodId = registry.register("class1", "method1");
+        Assert.assertEquals(MethodProfilingOptions.DEFAULT, registry.getOptions(methodId));
+        Assert.assertEquals(MethodProfilingOptions.DEFAULT, registry.getOptions(100));
+        Assert.assertEquals(MethodProfilingOptions.DEFAULT, registry.getOptions("class2", "method2"));
+
+        registry.setOptions(methodId, MethodProfilingOptions.parse("sampleRate:10"));
+        Assert.assertEquals(10, registry.getOptions(methodId).getSampleRate());
+        Assert.assertEquals(10, registry.getOptions("class1", "method1").getSampleRate());
+
+        for (int i = 0; i < 1000; i++) {
+            registry.register("class1", "method" + i);
+        }
+        Assert.assertEquals(10, registry.getOptions(methodId).getSampleRate());
+    }
+}
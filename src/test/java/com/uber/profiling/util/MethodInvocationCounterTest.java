@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class MethodInvocationCounterTest {
+    @Test
+    public void increment() {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        int methodId1 = registry.register("class1", "method1");
+        int methodId2 = registry.register("class2", "method2");
+        registry.register("class3", "method3");
+
+        MethodInvocationCounter counter = new MethodInvocationCounter(registry);
+        counter.increment(methodId1);
+        counter.increment(methodId1);
+        counter.increment(methodId2);
+        // Not registered method ids are ignored
+        counter.increment(1000);
+        counter.increment(-1);
+
+        Map<ClassAndMethod, Long> map = counter.reset();
+        Assert.assertEquals(2, map.size());
+        Assert.assertEquals(2L, (long) map.get(new ClassAndMethod("class1", "method1")));
+        Assert.assertEquals(1L, (long) map.get(new ClassAndMethod("class2", "method2")));
+
+        counter.increment(methodId2);
+
+        map = counter.reset();
+        Assert.assertEquals(1, map.size());
+        Assert.assertEquals(1L, (long) map.get(new ClassAndMethod("class2", "method2")));
+
+        Assert.assertEquals(0, counter.reset().size());
+    }
+
+    @Test
+    public void increment_grow() {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        MethodInvocationCounter counter = new MethodInvocationCounter(registry);
+
+        for (int i = 0; i < 1000; i++) {
+            counter.increment(registry.register("class1", "method" + i));
+        }
+
+        Map<ClassAndMethod, Long> map = counter.reset();
+        Assert.assertEquals(1000, map.size());
+        Assert.assertEquals(1L, (long) map.get(new ClassAndMethod("class1", "method999")));
+    }
+
+    @Test
+    public void increment_concurrentReset() throws InterruptedException {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        int methodId = registry.register("class1", "method1");
+        MethodInvocationCounter counter = new MethodInvocationCounter(registry);
+
+        Thread[] threads = new Thread[4];
+        int repeatTimes = 1000000;
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int repeat = 0; repeat < repeatTimes; repeat++) {
+                    counter.increment(methodId);
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        // Reset repeatedly while writers are running, every increment must be returned by exactly one reset
+        long count = 0;
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread thread : threads) {
+                running |= thread.isAlive();
+            }
+            for (Long value : counter.reset().values()) {
+                count += value;
+            }
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (Long value : counter.reset().values()) {
+            count += value;
+        }
+
+        Assert.assertEquals(4 * repeatTimes, count);
+    }
+}
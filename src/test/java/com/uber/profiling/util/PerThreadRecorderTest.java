@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PerThreadRecorderTest {
+    @Test
+    public void drain() throws InterruptedException {
+        PerThreadRecorder<AtomicLong> recorder = new PerThreadRecorder<>(AtomicLong::new);
+        Assert.assertEquals(0, recorder.drain().size());
+
+        increment(recorder, 3);
+        Thread thread = new Thread(() -> increment(recorder, 5));
+        thread.start();
+        thread.join();
+        Assert.assertEquals(2, recorder.getWriterCount());
+
+        List<AtomicLong> buffers = recorder.drain();
+        Assert.assertEquals(2, buffers.size());
+        Assert.assertEquals(8, buffers.stream().mapToLong(AtomicLong::get).sum());
+
+        // The dead thread is dropped after its last buffer is drained, and idle threads are not swapped
+        Assert.assertEquals(1, recorder.getWriterCount());
+        Assert.assertEquals(0, recorder.drain().size());
+
+        increment(recorder, 1);
+        buffers = recorder.drain();
+        Assert.assertEquals(1, buffers.size());
+        Assert.assertEquals(1, buffers.get(0).get());
+    }
+
+    @Test
+    public void drain_concurrent() throws InterruptedException {
+        PerThreadRecorder<AtomicLong> recorder = new PerThreadRecorder<>(AtomicLong::new);
+
+        Thread[] threads = new Thread[4];
+        int repeatTimes = 1000000;
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> increment(recorder, repeatTimes));
+        }
+
+        AtomicBoolean finished = new AtomicBoolean(false);
+        AtomicLong total = new AtomicLong();
+        Thread reader = new Thread(() -> {
+            while (!finished.get()) {
+                total.addAndGet(recorder.drain().stream().mapToLong(AtomicLong::get).sum());
+            }
+        });
+        reader.start();
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        finished.set(true);
+        reader.join();
+
+        total.addAndGet(recorder.drain().stream().mapToLong(AtomicLong::get).sum());
+        Assert.assertEquals(threads.length * repeatTimes, total.get());
+        Assert.assertEquals(0, recorder.getWriterCount());
+    }
+
+    private static void increment(PerThreadRecorder<AtomicLong> recorder, int times) {
+        for (int i = 0; i < times; i++) {
+            PerThreadRecorder.Writer<AtomicLong> writer = recorder.beginWrite();
+            try {
+                writer.getBuffer().incrementAndGet();
+            } finally {
+                writer.endWrite();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SlowInvocationRecorderTest {
+    @Test
+    public void record() {
+        MethodIdRegistry registry = new MethodIdRegistry();
+        int methodId1 = registry.register("class1", "method1");
+        int methodId2 = registry.register("class2", "method2");
+
+        SlowInvocationRecorder recorder = new SlowInvocationRecorder(registry, 3);
+
+        AtomicInteger createdCount = new AtomicInteger();
+        for (int i = 0; i < 1000; i++) {
+            long duration = i;
+            recorder.record(methodId1, () -> {
+                createdCount.incrementAndGet();
+                return new SlowInvocationRecorder.SlowInvocation(duration, 0, "thread1", Collections.emptyList(), Collections.emptyList());
+            });
+        }
+        recorder.record(methodId2, () -> new SlowInvocationRecorder.SlowInvocation(5, 0, "thread2", Arrays.asList("a.b"), Arrays.asList("1")));
+        // Not registered method id is ignored
+        recorder.record(1000, () -> new SlowInvocationRecorder.SlowInvocation(5, 0, "thread3", Collections.emptyList(), Collections.emptyList()));
+
+        // Exemplars are only created for invocations picked by reservoir sampling, about 3 * ln(1000 / 3) + 3 of them
+        Assert.assertTrue("created count: " + createdCount.get(), createdCount.get() < 100);
+
+        List<SlowInvocationRecorder.Reservoir> reservoirs = recorder.reset();
+        Assert.assertEquals(2, reservoirs.size());
+        for (SlowInvocationRecorder.Reservoir reservoir : reservoirs) {
+            if (reservoir.getClassAndMethod().equals(new ClassAndMethod("class1", "method1"))) {
+                Assert.assertEquals(1000, reservoir.getSlowCount());
+                Assert.assertEquals(3, reservoir.getSlowInvocations().size());
+            } else {
+                Assert.assertEquals(new ClassAndMethod("class2", "method2"), reservoir.getClassAndMethod());
+                Assert.assertEquals(1, reservoir.getSlowCount());
+                SlowInvocationRecorder.SlowInvocation slowInvocation = reservoir.getSlowInvocations().get(0);
+                Assert.assertEquals(5, slowInvocation.getDuration());
+                Assert.assertEquals("thread2", slowInvocation.getThreadName());
+                Assert.assertEquals(Arrays.asList("a.b"), slowInvocation.getStacktrace());
+                Assert.assertEquals(Arrays.asList("1"), slowInvocation.getArguments());
+            }
+        }
+
+        Assert.assertEquals(0, recorder.reset().size());
+    }
+
+    @Test
+    public void getStackTrace() {
+        StackTraceElement[] elements = new StackTraceElement[100];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = new StackTraceElement("class" + i, "method" + i, null, -1);
+        }
+
+        List<String> stacktrace = SlowInvocationRecorder.getStackTrace(elements, 2);
+        Assert.assertEquals(SlowInvocationRecorder.MAX_STACK_DEPTH, stacktrace.size());
+        Assert.assertEquals("class2.method2", stacktrace.get(0));
+    }
+
+    @Test
+    public void getArgumentValues() {
+        char[] longValue = new char[SlowInvocationRecorder.MAX_ARGUMENT_LENGTH + 10];
+        Arrays.fill(longValue, 'a');
+
+        List<String> values = SlowInvocationRecorder.getArgumentValues(new Object[]{1, null, new char[]{'b', 'c'}, longValue});
+        Assert.assertEquals(Arrays.asList("1", "null", "bc", new String(longValue, 0, SlowInvocationRecorder.MAX_ARGUMENT_LENGTH)), values);
+        Assert.assertEquals(0, SlowInvocationRecorder.getArgumentValues(null).size());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class SpaceSavingSketchTest {
+    @Test
+    public void offer() {
+        SpaceSavingSketch sketch = new SpaceSavingSketch(3);
+        sketch.offer("a");
+        sketch.offer("b");
+        sketch.offer("a");
+
+        List<SpaceSavingSketch.Item> items = sketch.getItems();
+        Assert.assertEquals(2, items.size());
+        Assert.assertEquals("a", items.get(0).getValue());
+        Assert.assertEquals(2, items.get(0).getCount());
+        Assert.assertEquals(0, items.get(0).getError());
+        Assert.assertEquals("b", items.get(1).getValue());
+        Assert.assertEquals(1, items.get(1).getCount());
+    }
+
+    @Test
+    public void offer_heavyHitters() {
+        SpaceSavingSketch sketch = new SpaceSavingSketch(10);
+
+        // Frequent values mixed with 100000 distinct values seen once, values with count above total count / capacity
+        // (about 15000 here) are always kept
+        for (int i = 0; i < 100000; i++) {
+            sketch.offer("unique" + i);
+            if (i % 3 == 0) {
+                sketch.offer("frequent1");
+            }
+            if (i % 5 == 0) {
+                sketch.offer("frequent2");
+            }
+        }
+
+        List<SpaceSavingSketch.Item> items = sketch.getItems();
+        Assert.assertEquals(10, items.size());
+        Assert.assertEquals("frequent1", items.get(0).getValue());
+        Assert.assertEquals("frequent2", items.get(1).getValue());
+        for (SpaceSavingSketch.Item item : items.subList(0, 2)) {
+            long trueCount = item.getValue().equals("frequent1") ? 33334 : 20000;
+            Assert.assertTrue(item.getCount() >= trueCount);
+            Assert.assertTrue(item.getCount() - item.getError() <= trueCount);
+        }
+    }
+
+    @Test
+    public void merge() {
+        SpaceSavingSketch sketch1 = new SpaceSavingSketch(2);
+        sketch1.offer("a");
+        sketch1.offer("a");
+        sketch1.offer("b");
+
+        SpaceSavingSketch sketch2 = new SpaceSavingSketch(2);
+        sketch2.offer("a");
+        sketch2.offer("c");
+        sketch2.offer("c");
+        sketch2.offer("c");
+
+        sketch1.merge(sketch2);
+
+        List<SpaceSavingSketch.Item> items = sketch1.getItems();
+        Assert.assertEquals(2, items.size());
+        Assert.assertEquals("c", items.get(0).getValue());
+        // c replaced b with count 1
+        Assert.assertEquals(4, items.get(0).getCount());
+        Assert.assertEquals(1, items.get(0).getError());
+        Assert.assertEquals("a", items.get(1).getValue());
+        Assert.assertEquals(3, items.get(1).getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCapacity() {
+        new SpaceSavingSketch(0);
+    }
+}
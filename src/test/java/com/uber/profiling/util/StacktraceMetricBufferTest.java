@@ -240,4 +240,50 @@ public class StacktraceMetricBufferTest {
         Assert.assertEquals(0, map.size());
     }
 
+    @Test
+    public void appendValue_concurrentReset() throws InterruptedException {
+        StacktraceMetricBuffer buffer = new StacktraceMetricBuffer();
+
+        Thread[] threads = new Thread[4];
+        int repeatTimes = 1000000;
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                Stacktrace stacktrace = new Stacktrace();
+                stacktrace.setThreadName("thread" + index);
+                stacktrace.setThreadState("RUNNING");
+                stacktrace.setStack(new ClassAndMethod[] {new ClassAndMethod("class1", "method1")});
+                for (int repeat = 0; repeat < repeatTimes; repeat++) {
+                    buffer.appendValue(stacktrace);
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        // Reset repeatedly while writers are running, every count must be returned by exactly one reset
+        long count = 0;
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread thread : threads) {
+                running |= thread.isAlive();
+            }
+            for (AtomicLong value : buffer.reset().values()) {
+                count += value.get();
+            }
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (AtomicLong value : buffer.reset().values()) {
+            count += value.get();
+        }
+
+        Assert.assertEquals(4 * repeatTimes, count);
+    }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2018 Uber Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.uber.profiling.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ValueSizeUtilsTest {
+    @Test
+    public void getSize() {
+        Assert.assertEquals(ValueSizeUtils.UNKNOWN_SIZE, ValueSizeUtils.getSize(null));
+        Assert.assertEquals(ValueSizeUtils.UNKNOWN_SIZE, ValueSizeUtils.getSize(new Object()));
+        Assert.assertEquals(ValueSizeUtils.UNKNOWN_SIZE, ValueSizeUtils.getSize(10));
+
+        Assert.assertEquals(3, ValueSizeUtils.getSize(Arrays.asList(1, 2, 3)));
+        Assert.assertEquals(1, ValueSizeUtils.getSize(Collections.singletonMap("a", "b")));
+        Assert.assertEquals(0, ValueSizeUtils.getSize(""));
+        Assert.assertEquals(2, ValueSizeUtils.getSize(new StringBuilder("ab")));
+        Assert.assertEquals(4, ValueSizeUtils.getSize(new byte[4]));
+        Assert.assertEquals(5, ValueSizeUtils.getSize(new long[5]));
+        Assert.assertEquals(6, ValueSizeUtils.getSize(new String[6][2]));
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(10);
+        byteBuffer.putInt(1);
+        Assert.assertEquals(6, ValueSizeUtils.getSize(byteBuffer));
+        byteBuffer.flip();
+        Assert.assertEquals(4, ValueSizeUtils.getSize(byteBuffer));
+
+        // Elements of other buffers, not bytes
+        Assert.assertEquals(3, ValueSizeUtils.getSize(IntBuffer.allocate(3)));
+        Assert.assertEquals(3, ValueSizeUtils.getSize(ByteBuffer.allocate(32).asLongBuffer().position(1)));
+    }
+
+    @Test
+    public void toLong() {
+        Assert.assertEquals(-1, ValueSizeUtils.toLong(-1));
+        Assert.assertEquals(Long.MAX_VALUE, ValueSizeUtils.toLong(Long.MAX_VALUE));
+        Assert.assertEquals(3, ValueSizeUtils.toLong(2.5));
+        Assert.assertEquals(1, ValueSizeUtils.toLong(1.4f));
+        Assert.assertEquals(7, ValueSizeUtils.toLong(new AtomicLong(7)));
+    }
+}